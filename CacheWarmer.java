@@ -0,0 +1,344 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Warms the in-memory caches when the menu is started, so that the first orders of the day do not each wait for a
+ * cache to load. The caches are loaded in parallel, each on a connection of its own:
+ * <ul>
+ *     <li>the menus of <code>MenuCatalogue</code> (the <code>item</code> and <code>restaurant_item</code> tables),</li>
+ *     <li>the four name indexes of <code>SearchIndex</code> (customers, restaurants, items and drivers),</li>
+ *     <li>the drivers and workloads of <code>DispatchEngine</code> (the <code>driver</code> table),</li>
+ *     <li>the recent orders of the customers who ordered last (<code>RecentOrders</code>).</li>
+ * </ul>
+ * After a warm-up the menus and the names are written to a snapshot file. The next start reads that file through a
+ * memory-mapped buffer instead of the database, so the menu is ready almost at once, and the caches are then warmed
+ * from the database in the background to correct anything that changed in between. Driver workloads change all the
+ * time, so they are never taken from the file.
+ */
+public class CacheWarmer {
+
+    // Global variables
+
+    /* The first bytes of a snapshot file ("QFCW") and the version of the format. */
+    static final int MAGIC = 0x51464357;
+    static final int VERSION = 1;
+
+    /* The number of latest orders whose customers have their recent orders loaded. */
+    static final int RECENT_ORDERS = 5000;
+
+    /* The number of caches that are loaded at the same time. */
+    static final int WARM_UP_THREADS = 4;
+
+    /* The name indexes in the order in which they are kept in the snapshot file. */
+    static final SearchIndex[] INDEXES = {SearchIndex.CUSTOMERS, SearchIndex.RESTAURANTS, SearchIndex.ITEMS,
+            SearchIndex.DRIVERS};
+
+    //Methods
+
+    /**
+     * Warms the caches. If the snapshot file can be read the caches are loaded from it and corrected from the
+     * database in the background; otherwise they are loaded from the database before the menu is shown. Either way
+     * a new snapshot file is written in the background afterwards. It is invoked in the <code>main</code> method.
+     *
+     * @param connectionFactory The factory that opens the connections the caches are loaded on.
+     * @param fileName The name of the snapshot file.
+     */
+    public static void warmUp(ConnectionFactory connectionFactory, String fileName) {
+
+        Path snapshotFile = Path.of(fileName);
+
+        if (loadSnapshotFile(snapshotFile)) {
+            System.out.println("The caches were loaded from " + fileName + " and are checked in the background.\n");
+            startBackgroundThread("cache-reconcile", () -> {
+                warmFromDatabase(connectionFactory);
+                saveSnapshotFile(snapshotFile);
+            });
+        } else {
+            warmFromDatabase(connectionFactory);
+            startBackgroundThread("cache-snapshot", () -> saveSnapshotFile(snapshotFile));
+        }
+
+    }
+
+    /**
+     * Loads all the caches from the database in parallel and waits until they are loaded. A cache that fails to
+     * load is reported and left to load itself when it is first needed.
+     *
+     * @param connectionFactory The factory that opens a connection for every cache.
+     */
+    static void warmFromDatabase(ConnectionFactory connectionFactory) {
+
+        long startTime = Metrics.startTimer();
+
+        LinkedHashMap<String, Callable<Boolean>> tasks = new LinkedHashMap<>();
+        tasks.put("menus", () -> withConnection(connectionFactory, MenuCatalogue::reload));
+        for (SearchIndex index : INDEXES) {
+            tasks.put(index.table + " names", () -> withConnection(connectionFactory, index::reload));
+        }
+        tasks.put("drivers", () -> withConnection(connectionFactory, connection -> {
+            DispatchEngine.ensureLoaded(connection);
+            return true;
+        }));
+        tasks.put("recent orders", () -> withConnection(connectionFactory, connection -> {
+            RecentOrders.loadRecentOrders(connection, RECENT_ORDERS);
+            return true;
+        }));
+
+        ExecutorService executor = Executors.newFixedThreadPool(WARM_UP_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "cache-warm-up");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            LinkedHashMap<String, Future<Boolean>> results = new LinkedHashMap<>();
+            for (Map.Entry<String, Callable<Boolean>> task : tasks.entrySet()) {
+                results.put(task.getKey(), executor.submit(task.getValue()));
+            }
+            for (Map.Entry<String, Future<Boolean>> result : results.entrySet()) {
+                try {
+                    if (!result.getValue().get()) {
+                        System.out.println("CacheWarmer: the " + result.getKey() + " kept changing and were not " +
+                                "replaced.");
+                    }
+                } catch (ExecutionException e) {
+                    System.out.println("CacheWarmer: the " + result.getKey() + " could not be loaded - " +
+                            e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Metrics.recordLatency("CacheWarmer.warmFromDatabase", startTime);
+    }
+
+    /**
+     * A loading step of one cache that needs a connection.
+     */
+    interface Loader {
+
+        /**
+         * @param connection The Connection resource to load the cache on.
+         * @return False if the loaded cache was not swapped in.
+         * @throws SQLException If the underlying MySQL service fails.
+         */
+        boolean load(Connection connection) throws SQLException;
+    }
+
+    /**
+     * Runs a loading step on a connection of its own, so that no connection is shared between threads.
+     *
+     * @param connectionFactory The factory that opens the connection.
+     * @param loader The loading step.
+     * @return The result of the loading step.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static boolean withConnection(ConnectionFactory connectionFactory, Loader loader) throws SQLException {
+        try (Connection connection = connectionFactory.openConnection()) {
+            return loader.load(connection);
+        }
+    }
+
+    /**
+     * Loads the menus and the names from a snapshot file. The file is mapped into memory and read straight from the
+     * mapped buffer, without copying it into the heap first.
+     *
+     * @param snapshotFile The snapshot file.
+     * @return True if the file was read, false if it is missing or cannot be read.
+     */
+    static boolean loadSnapshotFile(Path snapshotFile) {
+
+        if (!Files.isRegularFile(snapshotFile)) {
+            return false;
+        }
+
+        long startTime = Metrics.startTimer();
+
+        /* Everything is read before anything is installed, so a damaged file changes nothing. */
+        MenuCatalogue.Snapshot menus;
+        ArrayList<int[]> indexIds = new ArrayList<>();
+        ArrayList<String[]> indexNames = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                System.out.println("CacheWarmer: " + snapshotFile + " is not a cache snapshot and was ignored.");
+                return false;
+            }
+            buffer.getLong();
+
+            /* The items and the item ids of every restaurant's menu. */
+            LinkedHashMap<Integer, MenuCatalogue.MenuItem> items = new LinkedHashMap<>();
+            int itemCount = buffer.getInt();
+            for (int i = 0; i < itemCount; i++) {
+                int itemId = buffer.getInt();
+                long itemPrice = buffer.getLong();
+                items.put(itemId, new MenuCatalogue.MenuItem(itemId, readString(buffer), itemPrice));
+            }
+            HashMap<Integer, List<Integer>> restaurantMenus = new HashMap<>();
+            int restaurantCount = buffer.getInt();
+            for (int i = 0; i < restaurantCount; i++) {
+                int restaurantId = buffer.getInt();
+                Integer[] itemIds = new Integer[buffer.getInt()];
+                for (int j = 0; j < itemIds.length; j++) {
+                    itemIds[j] = buffer.getInt();
+                }
+                restaurantMenus.put(restaurantId, List.of(itemIds));
+            }
+            menus = new MenuCatalogue.Snapshot(items, restaurantMenus);
+
+            /* The names of every index. */
+            for (int i = 0; i < INDEXES.length; i++) {
+                int nameCount = buffer.getInt();
+                if (nameCount < 0) {
+                    indexIds.add(null);
+                    indexNames.add(null);
+                    continue;
+                }
+                int[] ids = new int[nameCount];
+                String[] names = new String[nameCount];
+                for (int j = 0; j < nameCount; j++) {
+                    ids[j] = buffer.getInt();
+                    names[j] = readString(buffer);
+                }
+                indexIds.add(ids);
+                indexNames.add(names);
+            }
+
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException
+                 | NegativeArraySizeException e) {
+            System.out.println("CacheWarmer: " + snapshotFile + " could not be read and was ignored.");
+            return false;
+        }
+
+        MenuCatalogue.snapshot.compareAndSet(null, menus);
+        for (int i = 0; i < INDEXES.length; i++) {
+            if (indexIds.get(i) != null) {
+                INDEXES[i].load(indexIds.get(i), indexNames.get(i));
+            }
+        }
+
+        Metrics.recordLatency("CacheWarmer.loadSnapshotFile", startTime);
+        return true;
+    }
+
+    /**
+     * Writes the menus and the names to the snapshot file. The file is written under a temporary name and then
+     * renamed, so that a start never reads a half-written file.
+     *
+     * @param snapshotFile The snapshot file.
+     */
+    static void saveSnapshotFile(Path snapshotFile) {
+
+        MenuCatalogue.Snapshot menus = MenuCatalogue.snapshot.get();
+        if (menus == null) {
+            return;
+        }
+
+        Path temporaryFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporaryFile)))) {
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+
+            out.writeInt(menus.items.size());
+            for (MenuCatalogue.MenuItem item : menus.items.values()) {
+                out.writeInt(item.itemId);
+                out.writeLong(item.itemPrice);
+                writeString(out, item.itemName);
+            }
+            out.writeInt(menus.restaurantMenus.size());
+            for (Map.Entry<Integer, List<Integer>> menu : menus.restaurantMenus.entrySet()) {
+                out.writeInt(menu.getKey());
+                out.writeInt(menu.getValue().size());
+                for (int itemId : menu.getValue()) {
+                    out.writeInt(itemId);
+                }
+            }
+
+            /* An index that has not been loaded is written as -1 names, and is then loaded when it is needed. */
+            for (SearchIndex index : INDEXES) {
+                LinkedHashMap<Integer, String> names = index.names();
+                if (names == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                out.writeInt(names.size());
+                for (Map.Entry<Integer, String> name : names.entrySet()) {
+                    out.writeInt(name.getKey());
+                    writeString(out, name.getValue());
+                }
+            }
+
+        } catch (IOException e) {
+            System.out.println("Error: IOException - CacheWarmer.saveSnapshotFile()");
+            return;
+        }
+
+        try {
+            Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Error: IOException - CacheWarmer.saveSnapshotFile()");
+        }
+
+    }
+
+    /**
+     * @param out The stream to write to.
+     * @param text The text, which may be null.
+     * @throws IOException If the text cannot be written.
+     */
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = (text == null ? "" : text).getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @param buffer The buffer to read from.
+     * @return The text written by <code>writeString</code>.
+     */
+    static String readString(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Starts a daemon thread, so that the program can exit without waiting for it.
+     *
+     * @param name The name of the thread.
+     * @param task The work of the thread.
+     */
+    static void startBackgroundThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
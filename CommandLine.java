@@ -0,0 +1,467 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs a single operation given on the command line and exits, so that scripts and scheduled jobs can use the system
+ * without the interactive menu. For example:
+ * <ul>
+ *     <li><code>pending</code> lists the pending orders.</li>
+ *     <li><code>manifest --driver "Jane Smith"</code> lists the orders allocated to a driver (a name or an id).</li>
+ *     <li><code>finalise --order 12,13</code> or <code>finalise --driver "Jane Smith"</code> finalises orders.</li>
+ *     <li><code>invoice --order 12 [--format text|csv|json|fixed]</code> writes an invoice to the screen.</li>
+ *     <li><code>import orders.csv</code> imports orders and allocates drivers to them.</li>
+ * </ul>
+ * A command opens one connection and none of the background jobs of the menu, and the menus, search indexes and
+ * dispatch state are only loaded if the command needs them, so a command starts and finishes quickly.
+ */
+public class CommandLine {
+
+    // Global variables
+
+    /* The exit codes of a command. */
+    static final int EXIT_OK = 0;
+    static final int EXIT_FAILED = 1;
+    static final int EXIT_USAGE = 2;
+
+    /* The outcomes of importing one order. */
+    static final int IMPORTED = 0;
+    static final int ALREADY_IMPORTED = 1;
+    static final int NOT_IMPORTED = 2;
+
+    static final String USAGE = """
+            Usage: QuickFoodMS <command> [options]
+              pending                                  List the pending orders.
+              manifest --driver <name|id>              List the orders allocated to a driver.
+              finalise --order <n[,n...]>              Finalise orders and print their invoices.
+              finalise --driver <name|id>              Finalise all open orders of a driver.
+              invoice --order <n> [--format <format>]  Write an invoice to the screen (text, csv, json or fixed).
+              import <file.csv>                        Import orders and allocate drivers to them.
+            Without a command the interactive menu is started.""";
+
+    //Methods
+
+    /**
+     * Determines whether the command line arguments start with a command. It is invoked at the start of the
+     * <code>main</code> method, before anything of the interactive menu is set up.
+     *
+     * @param args The command line arguments of the program.
+     * @return True if the first argument is a command.
+     */
+    public static boolean isCommand(String[] args) {
+        return args.length > 0 && switch (args[0]) {
+            case "pending", "manifest", "finalise", "invoice", "import", "help" -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Runs the command in the command line arguments.
+     *
+     * @param args The command line arguments of the program, starting with the command.
+     * @param connectionFactory The factory that opens the connection the command runs on.
+     * @return The exit code: 0 if the command succeeded, 1 if it failed and 2 if the arguments are wrong.
+     */
+    public static int run(String[] args, ConnectionFactory connectionFactory) {
+
+        if (args[0].equals("help")) {
+            System.out.println(USAGE);
+            return EXIT_OK;
+        }
+
+        try (Connection connection = connectionFactory.openConnection()) {
+            ShardRouter.attach(connection);
+            return switch (args[0]) {
+                case "pending" -> pending(connection);
+                case "manifest" -> manifest(connection, option(args, "--driver"));
+                case "finalise" -> finalise(connection, option(args, "--order"), option(args, "--driver"));
+                case "invoice" -> invoice(connection, option(args, "--order"), option(args, "--format"));
+                case "import" -> importOrders(connection, args.length > 1 ? args[1] : null);
+                default -> usage();
+            };
+        } catch (SQLException e) {
+            e.printStackTrace();
+            System.out.println("SQL Exception thrown in " + args[0] + ".");
+            return EXIT_FAILED;
+        } finally {
+            ShardRouter.closeAll();
+        }
+
+    }
+
+    /**
+     * Lists the pending orders in the same way as the menu option.
+     *
+     * @param connection The Connection resource the command runs on.
+     * @return The exit code.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static int pending(Connection connection) throws SQLException {
+        QuickFoodMS.listPendingOrders(connection);
+        return EXIT_OK;
+    }
+
+    /**
+     * Lists the orders allocated to a driver.
+     *
+     * @param connection The Connection resource the command runs on.
+     * @param driver The driver's full name or id.
+     * @return The exit code.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static int manifest(Connection connection, String driver) throws SQLException {
+
+        if (driver == null) {
+            return usage();
+        }
+        int driverId = findDriver(connection, driver);
+        if (driverId == 0) {
+            System.out.println("Unknown driver: " + driver);
+            return EXIT_FAILED;
+        }
+
+        String driverName = Driver.findDriverName(connection, driverId);
+        ArrayList<Integer> orders = Driver.findOrdersAllocatedToDriver(connection, driverId);
+        if (orders.size() == 0) {
+            System.out.println("There are currently no orders allocated to " + driverName + "\n");
+        } else {
+            System.out.println("The following orders are allocated to " + driverName + "\n");
+            for (Integer order : orders) {
+                Order.displayOrder(ShardRouter.forNumber(connection, order), order);
+            }
+        }
+
+        return EXIT_OK;
+    }
+
+    /**
+     * Finalises a list of orders or all the open orders of a driver, and prints their invoices.
+     *
+     * @param connection The Connection resource the command runs on.
+     * @param orderList The order numbers separated by commas, or null.
+     * @param driver The driver's full name or id, or null.
+     * @return The exit code.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static int finalise(Connection connection, String orderList, String driver) throws SQLException {
+
+        ArrayList<Integer> finalisedOrders;
+        if (orderList != null) {
+            ArrayList<Integer> orderNumbers = parseOrderNumbers(orderList);
+            if (orderNumbers == null) {
+                return usage();
+            }
+            finalisedOrders = Order.finaliseOrders(connection, orderNumbers);
+        } else if (driver != null) {
+            int driverId = findDriver(connection, driver);
+            if (driverId == 0) {
+                System.out.println("Unknown driver: " + driver);
+                return EXIT_FAILED;
+            }
+            finalisedOrders = Order.finaliseOrdersOfDriver(connection, driverId);
+        } else {
+            return usage();
+        }
+
+        System.out.println(finalisedOrders.size() + " orders were finalised: " + finalisedOrders);
+        return EXIT_OK;
+    }
+
+    /**
+     * Writes the invoice of an order to the screen. The invoice is rendered from the database, so an order does not
+     * have to be finalised to show it.
+     *
+     * @param connection The Connection resource the command runs on.
+     * @param order The order number.
+     * @param format The name of the format, or null for text.
+     * @return The exit code.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static int invoice(Connection connection, String order, String format) throws SQLException {
+
+        ArrayList<Integer> orderNumbers = order == null ? null : parseOrderNumbers(order);
+        InvoiceRenderer renderer = InvoiceRenderer.forFormat(format == null ? "text" : format);
+        if (orderNumbers == null || orderNumbers.size() != 1 || renderer == null) {
+            return usage();
+        }
+
+        Invoice invoice = Invoice.loadInvoice(ShardRouter.forNumber(connection, orderNumbers.get(0)),
+                orderNumbers.get(0));
+        if (invoice.customerName == null) {
+            System.out.println("There is no order with number " + orderNumbers.get(0) + ".");
+            return EXIT_FAILED;
+        }
+
+        InvoiceBuffer invoiceBuffer = new InvoiceBuffer(1024);
+        renderer.renderHeader(invoiceBuffer);
+        renderer.render(invoice, invoiceBuffer);
+        renderer.renderFooter(invoiceBuffer);
+        try {
+            invoiceBuffer.writeTo(System.out);
+            System.out.flush();
+        } catch (IOException e) {
+            System.out.println("Error: IOException - CommandLine.invoice()");
+            return EXIT_FAILED;
+        }
+
+        return EXIT_OK;
+    }
+
+    /**
+     * Imports orders from a CSV file and allocates drivers to them in one batch. Every line of the file is one item:
+     * <pre>
+     * first name,surname,restaurant name,item id,quantity[,preparation instructions]
+     * </pre>
+     * Consecutive lines for the same customer and restaurant make up one order. Empty lines and lines starting with
+     * <code>#</code> are skipped. Each order is saved in its own transaction, so an order with an unknown customer,
+     * restaurant or item is reported and skipped without affecting the others. Every order is submitted with a key
+     * made from the file (see <code>submissionKey</code>), so importing a file again, for example after it failed
+     * part of the way, leaves out the orders that were already saved.
+     *
+     * @param connection The Connection resource the command runs on.
+     * @param fileName The name of the CSV file.
+     * @return The exit code: 1 if any order was skipped.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static int importOrders(Connection connection, String fileName) throws SQLException {
+
+        if (fileName == null) {
+            return usage();
+        }
+
+        int ordersImported = 0;
+        int ordersSkipped = 0;
+        int ordersAlreadyImported = 0;
+        String orderKey = null;
+        int orderFirstLine = 0;
+        String[] orderFields = null;
+        ArrayList<String[]> orderLines = new ArrayList<>();
+
+        /* The orders this import created, with the city of their restaurant, by shard (see ShardRouter). */
+        TreeMap<Integer, LinkedHashMap<Integer, String>> importedOrders = new TreeMap<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+
+            /* The lines of an order are collected until a line for another customer or restaurant is read. */
+            String line;
+            int lineNumber = 0;
+            while (true) {
+                line = reader.readLine();
+                lineNumber++;
+                String[] fields = null;
+                if (line != null) {
+                    if (line.isBlank() || line.startsWith("#")) {
+                        continue;
+                    }
+                    fields = line.split(",", 6);
+                    if (fields.length < 5) {
+                        System.out.println("Line " + lineNumber + " does not have five fields and was skipped.");
+                        continue;
+                    }
+                }
+
+                String key = fields == null ? null : (fields[0].trim() + "," + fields[1].trim() + "," +
+                        fields[2].trim()).toLowerCase();
+                if (orderKey != null && !orderKey.equals(key)) {
+                    String submissionKey = submissionKey(fileName, orderFirstLine, orderLines);
+                    switch (importOrder(connection, orderFields, orderLines, submissionKey, importedOrders)) {
+                        case IMPORTED -> ordersImported++;
+                        case ALREADY_IMPORTED -> ordersAlreadyImported++;
+                        default -> ordersSkipped++;
+                    }
+                    orderLines.clear();
+                }
+                if (fields == null) {
+                    break;
+                }
+                if (!key.equals(orderKey)) {
+                    orderFirstLine = lineNumber;
+                }
+                orderKey = key;
+                orderFields = fields;
+                orderLines.add(fields);
+            }
+
+        } catch (IOException e) {
+            System.out.println("Error: IOException - " + e.getMessage());
+            return EXIT_FAILED;
+        }
+
+        System.out.println(ordersImported + " orders were imported and " + ordersSkipped + " were skipped.");
+        if (ordersAlreadyImported > 0) {
+            System.out.println(ordersAlreadyImported + " orders were left out because they were already imported.");
+        }
+
+        /*
+         * The imported orders have no driver yet, so drivers are allocated to all of them at once, shard by shard
+         * (see ShardRouter). Only the orders of this import are allocated; other orders without a driver are left to
+         * the operator.
+         */
+        if (ordersImported > 0) {
+            int ordersFound = 0;
+            int ordersAllocated = 0;
+            for (Map.Entry<Integer, LinkedHashMap<Integer, String>> shardOrders : importedOrders.entrySet()) {
+                Connection shardConnection = ShardRouter.forShard(connection, shardOrders.getKey());
+                ordersFound += shardOrders.getValue().size();
+                ordersAllocated += DispatchEngine.allocateDrivers(shardConnection, shardOrders.getValue()).size();
+            }
+            System.out.println(ordersAllocated + " of " + ordersFound + " orders were allocated a driver.");
+        }
+
+        return ordersSkipped == 0 ? EXIT_OK : EXIT_FAILED;
+    }
+
+    /**
+     * Prices and saves one imported order.
+     *
+     * @param connection The Connection resource the command runs on.
+     * @param orderFields The fields of a line of the order, for the customer and restaurant.
+     * @param orderLines The fields of all the lines of the order.
+     * @param submissionKey The idempotency key of the order (see <code>OrderSubmissions</code>).
+     * @param importedOrders The orders created by the import by shard, to which a new order is added with the city
+     *                       of its restaurant.
+     * @return <code>IMPORTED</code>, <code>ALREADY_IMPORTED</code> or <code>NOT_IMPORTED</code>.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static int importOrder(Connection connection, String[] orderFields, ArrayList<String[]> orderLines,
+                           String submissionKey, TreeMap<Integer, LinkedHashMap<Integer, String>> importedOrders)
+            throws SQLException {
+
+        String description = orderFields[0].trim() + " " + orderFields[1].trim() + " at " + orderFields[2].trim();
+        int customerId = Customer.findCustomerId(connection, orderFields[0].trim(), orderFields[1].trim());
+        int restaurantId = Restaurant.findRestaurantId(connection, orderFields[2].trim());
+        if (customerId == 0 || restaurantId == 0) {
+            System.out.println("The order of " + description + " was skipped: unknown customer or restaurant.");
+            return NOT_IMPORTED;
+        }
+
+        /* Every item is checked and priced against the restaurant's menu in memory. */
+        ArrayList<ItemsOrder> lines = new ArrayList<>();
+        for (String[] fields : orderLines) {
+            MenuCatalogue.MenuItem menuItem;
+            int itemQuantity;
+            try {
+                menuItem = MenuCatalogue.findMenuItem(connection, restaurantId, Integer.parseInt(fields[3].trim()));
+                itemQuantity = Integer.parseInt(fields[4].trim());
+            } catch (NumberFormatException e) {
+                menuItem = null;
+                itemQuantity = 0;
+            }
+            if (menuItem == null || itemQuantity <= 0) {
+                System.out.println("The order of " + description + " was skipped: \"" + fields[3].trim() + "\" x \"" +
+                        fields[4].trim() + "\" is not a valid item and quantity for the restaurant.");
+                return NOT_IMPORTED;
+            }
+            String preparationInstructions = fields.length > 5 ? fields[5].trim() : "";
+            lines.add(new ItemsOrder(menuItem.itemId, 0, preparationInstructions, itemQuantity,
+                    Money.multiply(menuItem.itemPrice, itemQuantity)));
+        }
+
+        /* The order is saved on the shard of the restaurant's city, like a captured order. */
+        OrderSubmissions.Submission submission = new OrderSubmissions.Submission(submissionKey);
+        int orderNumber = Order.importOrder(ShardRouter.forRestaurant(connection, orderFields[2].trim()), customerId,
+                restaurantId, lines, submission);
+        if (submission.repeated) {
+            System.out.println("The order of " + description + " was already imported as order " + orderNumber + ".");
+            return ALREADY_IMPORTED;
+        }
+        importedOrders.computeIfAbsent(ShardRouter.shardOfNumber(orderNumber), shard -> new LinkedHashMap<>())
+                .put(orderNumber, Restaurant.findRestaurantLocation(connection, orderFields[2].trim()));
+        return IMPORTED;
+    }
+
+    /**
+     * Makes the idempotency key of an imported order from the name of the file, the line the order starts on and
+     * the lines of the order, so that the same order in the same file always has the same key.
+     *
+     * @param fileName The name of the CSV file.
+     * @param firstLineNumber The number of the first line of the order in the file.
+     * @param orderLines The fields of all the lines of the order.
+     * @return The key: the SHA-256 hash of the order in hexadecimal.
+     */
+    static String submissionKey(String fileName, int firstLineNumber, ArrayList<String[]> orderLines) {
+
+        StringBuilder order = new StringBuilder(Path.of(fileName).getFileName() + ":" + firstLineNumber);
+        for (String[] fields : orderLines) {
+            order.append('\n').append(String.join(",", fields));
+        }
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(order.toString()
+                    .getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            /* Not reached: every Java platform supports SHA-256. */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Finds a driver by id or by full name.
+     *
+     * @param connection The Connection resource the command runs on.
+     * @param driver The driver's id or full name.
+     * @return The driver id, or 0 if there is no such driver.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static int findDriver(Connection connection, String driver) throws SQLException {
+        try {
+            int driverId = Integer.parseInt(driver.trim());
+            return Driver.findDriverName(connection, driverId).isEmpty() ? 0 : driverId;
+        } catch (NumberFormatException e) {
+            return Driver.findDriverId(connection, driver.trim());
+        }
+    }
+
+    /**
+     * @param args The command line arguments.
+     * @param name The name of an option, such as <code>--order</code>.
+     * @return The value following the option, or null if the option is not given.
+     */
+    static String option(String[] args, String name) {
+        for (int i = 1; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param orderList Order numbers separated by commas.
+     * @return The order numbers, or null if one of them is not a number.
+     */
+    static ArrayList<Integer> parseOrderNumbers(String orderList) {
+        ArrayList<Integer> orderNumbers = new ArrayList<>();
+        for (String orderNumber : orderList.split(",")) {
+            try {
+                orderNumbers.add(Integer.parseInt(orderNumber.trim()));
+            } catch (NumberFormatException e) {
+                System.out.println("\"" + orderNumber.trim() + "\" is not an order number.");
+                return null;
+            }
+        }
+        return orderNumbers;
+    }
+
+    /**
+     * Prints how the commands are used.
+     *
+     * @return The exit code for wrong arguments.
+     */
+    static int usage() {
+        System.out.println(USAGE);
+        return EXIT_USAGE;
+    }
+}
@@ -0,0 +1,60 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * The connection factory opens connections to the QuickFoodMS_db database. The <code>main</code> method uses it for
+ * the connection of the menu, and background jobs use it to open connections of their own so that they never share
+ * the menu's connection between threads.
+ */
+public class ConnectionFactory {
+
+    //Attributes
+    String dbURL;
+    String username;
+    String password;
+    ConnectionFactory replicaFactory;
+
+    //Methods
+
+    /**
+     * The constructor for the ConnectionFactory class.
+     *
+     * @param dbURL The JDBC URL of the database.
+     * @param username The MySQL username.
+     * @param password The MySQL password.
+     */
+    public ConnectionFactory(String dbURL, String username, String password) {
+        this.dbURL = dbURL;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * The constructor for a ConnectionFactory whose connections route read-only queries to a replica (see
+     * <code>ReadRouter</code>). The replica is reached with the same username and password.
+     *
+     * @param dbURL The JDBC URL of the primary database.
+     * @param replicaURL The JDBC URL of the replica, or null if there is no replica.
+     * @param username The MySQL username.
+     * @param password The MySQL password.
+     */
+    public ConnectionFactory(String dbURL, String replicaURL, String username, String password) {
+        this(dbURL, username, password);
+        if (replicaURL != null && !replicaURL.isBlank()) {
+            this.replicaFactory = new ConnectionFactory(replicaURL, username, password);
+        }
+    }
+
+    /**
+     * Opens a new connection to the database. The connection is wrapped by the <code>StatementTracer</code> so that
+     * its statements show up in the metrics, and by the <code>ReadRouter</code> if there is a replica.
+     *
+     * @return A new Connection that must be closed by the caller.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public Connection openConnection() throws SQLException {
+        Connection connection = StatementTracer.trace(DriverManager.getConnection(dbURL, username, password));
+        return replicaFactory == null ? connection : ReadRouter.route(connection, replicaFactory);
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Renders invoices as CSV with one row per item line. Orders without any lines get a single row with empty item
+ * fields so that every finalised order appears in the export.
+ */
+public class CsvInvoiceRenderer implements InvoiceRenderer {
+
+    /**
+     * Writes the column headings.
+     *
+     * @param buffer The buffer to write to.
+     */
+    @Override
+    public void renderHeader(InvoiceBuffer buffer) {
+        buffer.append("order_number,customer,restaurant,restaurant_city,driver,item_name,item_quantity," +
+                "item_price,total_cost\n");
+    }
+
+    /**
+     * Writes the rows of a single invoice.
+     *
+     * @param invoice The invoice to write.
+     * @param buffer The buffer to write to.
+     */
+    @Override
+    public void render(Invoice invoice, InvoiceBuffer buffer) {
+
+        if (invoice.lines.isEmpty()) {
+            renderRow(invoice, null, buffer);
+        }
+        for (Invoice.Line line : invoice.lines) {
+            renderRow(invoice, line, buffer);
+        }
+
+    }
+
+    /**
+     * Writes one row of the CSV file.
+     *
+     * @param invoice The invoice the row belongs to.
+     * @param line The item line of the row, or <code>null</code> for an order without lines.
+     * @param buffer The buffer to write to.
+     */
+    private void renderRow(Invoice invoice, Invoice.Line line, InvoiceBuffer buffer) {
+
+        buffer.append(invoice.orderNumber).append(',');
+        buffer.appendCsvField(invoice.customerName).append(',');
+        buffer.appendCsvField(invoice.restaurantName).append(',');
+        buffer.appendCsvField(invoice.restaurantCity).append(',');
+        buffer.appendCsvField(invoice.driverName).append(',');
+        if (line != null) {
+            buffer.appendCsvField(line.itemName).append(',');
+            buffer.append(line.itemQuantity).append(',');
+            buffer.appendAmount(line.itemPrice).append(',');
+        } else {
+            buffer.append(",,,");
+        }
+        buffer.appendAmount(invoice.totalCost).append('\n');
+
+    }
+}
@@ -2,7 +2,10 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Scanner;
 
 public class Customer {
@@ -50,6 +53,8 @@ public class Customer {
      */
     public static int findCustomerId(Connection connection, String firstName, String surname) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         int customerId = 0;
 
         /* Use of PreparedStatement to set up a MySQL query statement to find the customer ID from the customer's
@@ -84,6 +89,12 @@ public class Customer {
         pstmtCustomerId.close();
         resultsCustomerId.close();
 
+        /* Offering the closest names when there is no exact match, which is often a typing mistake. */
+        if (customerId == 0) {
+            SearchIndex.CUSTOMERS.suggest(connection, firstName + " " + surname);
+        }
+
+        Metrics.recordLatency("Customer.findCustomerId", startTime);
         return customerId;
 
     }
@@ -100,6 +111,8 @@ public class Customer {
      */
     public static String findCustomerName(Connection connection, int customerId) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /* Declaration and initialisation of these two variables here because they are needed outside the while loop. */
         String customerFirstname = "";
         String customerSurname = "";
@@ -127,6 +140,7 @@ public class Customer {
         resultsCustomerName.close();
 
         /* The firstname and surname is concatenated so that a full name is returned from this method. */
+        Metrics.recordLatency("Customer.findCustomerName", startTime);
         return customerFirstname + " " + customerSurname;
 
     }
@@ -149,9 +163,12 @@ public class Customer {
         String customerCity = UserInput.readString("Customer City: ", input);
         String customerEmail = UserInput.readString("Customer Email: ", input);
 
+        long startTime = Metrics.startTimer();
+
         /* Use of PreparedStatement to set up a MySQL query statement to insert new records in the customer table.*/
         String mySQLQuery = "INSERT INTO customer VALUES (?, ?, ?, ?, ?, ?, ?);";
-        PreparedStatement pstmtCreateNewCustomer = connection.prepareStatement(mySQLQuery);
+        PreparedStatement pstmtCreateNewCustomer = connection.prepareStatement(mySQLQuery,
+                Statement.RETURN_GENERATED_KEYS);
         pstmtCreateNewCustomer.setString(1, null);
         pstmtCreateNewCustomer.setString(2, firstName);
         pstmtCreateNewCustomer.setString(3, surname);
@@ -167,6 +184,7 @@ public class Customer {
         rowsAffected = pstmtCreateNewCustomer.executeUpdate();
         if (rowsAffected > 0) {
             System.out.println("The customer was successfully added to the database.\n");
+            SearchIndex.CUSTOMERS.refreshCreated(connection, pstmtCreateNewCustomer);
         } else {
             System.out.println("The customer could not be added. Please review your input.\n");
         }
@@ -174,6 +192,8 @@ public class Customer {
         /* Closing of resource to prevent resource leaking.*/
         pstmtCreateNewCustomer.close();
 
+        Metrics.recordLatency("Customer.createNewCustomer", startTime);
+
     }
 
     /**
@@ -187,6 +207,8 @@ public class Customer {
      */
     public static ArrayList<Integer> checkForIncompleteCustomerInfo(Connection connection) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /*
          * Declaration of an ArrayList because there could be more than one customer with incomplete information. With
          * this list the relevant customer ID can be added to a list.
@@ -200,7 +222,9 @@ public class Customer {
         String mySQLQueryCustomerInfo = "SELECT * FROM customer WHERE customer_firstName IS NULL OR customer_surname " +
                 "IS NULL OR customer_phone_num IS NULL OR customer_address IS NULL OR customer_city IS NULL OR " +
                 "customer_email IS NULL;";
-        PreparedStatement pstmtCustomerInfo = connection.prepareStatement(mySQLQueryCustomerInfo);
+        /* A read-only query, so it can run on the replica (see ReadRouter). */
+        Connection readConnection = ReadRouter.forReading(connection);
+        PreparedStatement pstmtCustomerInfo = readConnection.prepareStatement(mySQLQueryCustomerInfo);
 
         /*
          * The execution of the statement and the return of a ResultSet from the method. The getter method from the
@@ -216,6 +240,7 @@ public class Customer {
         resultsCustomerInfo.close();
 
         /* Return of the ArrayList with customer ID's where there are incomplete fields.*/
+        Metrics.recordLatency("Customer.checkForIncompleteCustomerInfo", startTime);
         return incompleteCustomerInfo;
 
     }
@@ -231,6 +256,8 @@ public class Customer {
      */
     public static void displayCustomer(Connection connection, int customerId) throws SQLException{
 
+        long startTime = Metrics.startTimer();
+
         /* Declaration and initialisation of these variables because they are needed outside the while loop. */
         String customerSurname = "";
         String customerFirstname = "";
@@ -274,6 +301,111 @@ public class Customer {
         pstmtCustomerDetails.close();
         resultsCustomerDetails.close();
 
+        Metrics.recordLatency("Customer.displayCustomer", startTime);
+
+    }
+
+    /**
+     * This method reads one page of a customer's order history, newest first, with the total cost and the number of
+     * items of every order, in a single query. Orders are ordered by the time they were placed, because the order
+     * numbers of different instances and shards (see OrderNumberAllocator and ShardRouter) say nothing about which
+     * order is newer; orders placed in the same second are ordered by order number. Pages are found by that time and
+     * number ("keyset pagination") rather than by offset: the next page starts after the last order of the previous
+     * page. With the <code>(customer_id, placed_at, order_number)</code> index on <code>orders</code> (see the README)
+     * every page is read straight from the index, no matter how far back it is. It is invoked in the
+     * <code>customerOrderHistory</code> and <code>repeatLastOrder</code> methods in the main class.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed here for the
+     *                   <code>PreparedStatement</code>.
+     * @param customerId The unique customer ID.
+     * @param beforePlacedAt Only orders placed before this time, in milliseconds since the epoch, or at this time with
+     *                       a lower order number are returned. Use <code>Long.MAX_VALUE</code> for the first page.
+     * @param beforeOrderNumber The order number of the last order of the previous page.
+     * @param pageSize The maximum number of orders to return.
+     * @return The orders on the page, newest first.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static ArrayList<OrderSummary> findOrderHistory(Connection connection, int customerId, long beforePlacedAt,
+                                                           int beforeOrderNumber, int pageSize) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        ArrayList<OrderSummary> orderHistory = new ArrayList<>();
+
+        /* The orders of the page joined with their restaurant and the quantities of their items. */
+        boolean firstPage = beforePlacedAt == Long.MAX_VALUE;
+        String mySQLQueryHistory = "SELECT o.order_number, o.total_cost, o.finalised, o.placed_at, " +
+                "r.restaurant_name, COALESCE(SUM(io.item_quantity), 0) AS item_count FROM orders o " +
+                "LEFT JOIN restaurant r ON r.restaurant_id = o.restaurant_id " +
+                "LEFT JOIN items_order io ON io.order_number = o.order_number WHERE o.customer_id = ? " +
+                (firstPage ? "" : "AND (o.placed_at < ? OR (o.placed_at = ? AND o.order_number < ?)) ") +
+                "GROUP BY o.order_number, o.total_cost, o.finalised, o.placed_at, r.restaurant_name " +
+                "ORDER BY o.placed_at DESC, o.order_number DESC LIMIT ?;";
+        PreparedStatement pstmtHistory = connection.prepareStatement(mySQLQueryHistory);
+        int parameter = 1;
+        pstmtHistory.setInt(parameter++, customerId);
+        if (!firstPage) {
+            pstmtHistory.setTimestamp(parameter++, new Timestamp(beforePlacedAt));
+            pstmtHistory.setTimestamp(parameter++, new Timestamp(beforePlacedAt));
+            pstmtHistory.setInt(parameter++, beforeOrderNumber);
+        }
+        pstmtHistory.setInt(parameter, pageSize);
+
+        ResultSet resultsHistory = pstmtHistory.executeQuery();
+        while (resultsHistory.next()) {
+            OrderSummary order = new OrderSummary(resultsHistory.getInt("order_number"),
+                    resultsHistory.getString("restaurant_name"), Money.read(resultsHistory, "total_cost"),
+                    resultsHistory.getInt("item_count"), resultsHistory.getBoolean("finalised"));
+            order.placedAt = resultsHistory.getTimestamp("placed_at").getTime();
+            orderHistory.add(order);
+
+            /* Keeping the recent orders in memory for repeat orders at capture time. */
+            RecentOrders.recordOrder(customerId, order.orderNumber, order.placedAt);
+        }
+
+        /* Closing of resources to prevent resource leaking. */
+        pstmtHistory.close();
+        resultsHistory.close();
+
+        Metrics.recordLatency("Customer.findOrderHistory", startTime);
+        return orderHistory;
+
+    }
+
+    /**
+     * One order in a customer's order history.
+     */
+    public static class OrderSummary {
+
+        /* The order findOrderHistory reads orders in: placed last first, then by order number. */
+        static final Comparator<OrderSummary> NEWEST_FIRST = Comparator.<OrderSummary>comparingLong(order ->
+                order.placedAt).thenComparingInt(order -> order.orderNumber).reversed();
+
+        //Attributes
+        int orderNumber;
+        String restaurantName;
+        long totalCost;
+        int itemCount;
+        boolean finalised;
+        long placedAt;
+
+        /**
+         * The constructor for the OrderSummary class.
+         *
+         * @param orderNumber The order number.
+         * @param restaurantName The name of the restaurant the order was placed at.
+         * @param totalCost The total cost of the order in cents.
+         * @param itemCount The number of items on the order.
+         * @param finalised Whether the order has been finalised.
+         */
+        public OrderSummary(int orderNumber, String restaurantName, long totalCost, int itemCount,
+                            boolean finalised) {
+            this.orderNumber = orderNumber;
+            this.restaurantName = restaurantName;
+            this.totalCost = totalCost;
+            this.itemCount = itemCount;
+            this.finalised = finalised;
+        }
     }
 
     /**
@@ -290,6 +422,8 @@ public class Customer {
     public static void performFieldUpdate(Connection connection, String fieldToUpdate, String newValue,
                                           int customerId ) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /*
          * Use of PreparedStatement to set up a MySQL query statement to update any field in the customer table as
          * specified by the parameters of this method
@@ -306,6 +440,7 @@ public class Customer {
         rowsAffected = pstmtFieldUpdate.executeUpdate();
         if (rowsAffected > 0) {
             System.out.println("The update was successful.\n");
+            SearchIndex.CUSTOMERS.refresh(connection, customerId);
         } else {
             System.out.println("The update could not be done. Please check that the customer ID is correct.\n");
         }
@@ -313,5 +448,7 @@ public class Customer {
         /* Closing resource to prevent resource leaking. */
         pstmtFieldUpdate.close();
 
+        Metrics.recordLatency("Customer.performFieldUpdate", startTime);
+
     }
 }
\ No newline at end of file
@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Degraded mode lets the operator keep taking orders while the database cannot be reached. It is entered from the
+ * <code>main</code> method when the connection cannot be opened or is lost. Orders are then captured from what is in
+ * memory: the customers and restaurants from the name indexes of <code>SearchIndex</code>, the items and prices from
+ * <code>MenuCatalogue</code>, and the driver from the last known state of <code>DispatchEngine</code>. At start-up
+ * these come from the cache snapshot file (see <code>CacheWarmer</code>), which holds the names and menus but not
+ * the drivers.
+ * <p>
+ * Every order is written to the <code>OrderJournal</code>. It keeps its order number if one was left in the block
+ * reserved by the <code>OrderNumberAllocator</code>, and is otherwise numbered when it is saved. A background job
+ * tries to reach the database every <code>quickfood.reconnectMillis</code> milliseconds (15000 by default), saves
+ * the journal as soon as it can, and then sends the operator back to the main menu. Orders whose restaurant's city or
+ * drivers were not in memory are allocated a driver when they are saved.
+ */
+public class DegradedMode {
+
+    // Global variables
+
+    public static final long RECONNECT_MILLIS = Long.getLong("quickfood.reconnectMillis", 15_000);
+
+    /* Set by the background job once the database can be reached and the journal has been saved. */
+    static volatile boolean databaseBack;
+
+    //Methods
+
+    /**
+     * @param e An exception thrown by the database driver.
+     * @return True if the exception means that the database cannot be reached, rather than that a statement failed.
+     */
+    public static boolean isConnectionFailure(SQLException e) {
+        return e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException
+                || e instanceof SQLRecoverableException
+                || (e.getSQLState() != null && e.getSQLState().startsWith("08"));
+    }
+
+    /**
+     * Runs the degraded mode menu until the database is back and the journal has been saved. It is invoked in the
+     * <code>main</code> method.
+     *
+     * @param connectionFactory The factory used to try to reach the database.
+     * @param input The Scanner instance from the <code>main</code> method needed to read user input.
+     * @param snapshotFileName The name of the cache snapshot file to load the names and menus from if they are not
+     *                         in memory yet.
+     */
+    public static void run(ConnectionFactory connectionFactory, Scanner input, String snapshotFileName) {
+
+        System.out.println("The database cannot be reached. Orders are kept in " + OrderJournal.JOURNAL_FILE_NAME +
+                " and will be saved as soon as the database is back.\n");
+        Metrics.increment("degraded.entered");
+
+        if (MenuCatalogue.snapshot.get() == null) {
+            CacheWarmer.loadSnapshotFile(Path.of(snapshotFileName));
+        }
+
+        databaseBack = false;
+        ScheduledExecutorService drainer = startDrainer(connectionFactory);
+
+        while (!databaseBack) {
+
+            String promptMenuChoice = """
+                    Degraded Mode - The Database Cannot Be Reached (Select the Number Next to Your Choice):
+                    --------------------------------------------------------------------------------------
+                    1. Capture New Order.
+                    2. List Journalled Orders.
+                    3. Exit
+                    """;
+            int menuSelection = UserInput.readInteger(promptMenuChoice, input);
+            if (databaseBack) {
+                break;
+            }
+
+            switch (menuSelection) {
+                case 1 -> captureOrder(input);
+                case 2 -> listJournalledOrders();
+                case 3 -> {
+                    System.out.println("The journalled orders will be saved the next time the program is started. " +
+                            "Bye.");
+                    System.exit(0);
+                }
+                default -> System.out.println("Invalid number entered.");
+            }
+        }
+
+        drainer.shutdownNow();
+        System.out.println("The database is back. Returning to the main menu.\n");
+
+    }
+
+    /**
+     * Starts the background job that tries to reach the database and saves the journal once it can. Every attempt
+     * opens its own connection, so the menu is never held up by it.
+     *
+     * @param connectionFactory The factory used to try to reach the database.
+     * @return The scheduler of the job, to be shut down when degraded mode ends.
+     */
+    static ScheduledExecutorService startDrainer(ConnectionFactory connectionFactory) {
+
+        ScheduledExecutorService drainer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-drainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        drainer.scheduleWithFixedDelay(() -> {
+            if (databaseBack) {
+                return;
+            }
+            try (Connection connection = connectionFactory.openConnection()) {
+                saveJournal(connection);
+                databaseBack = true;
+                System.out.println("\nThe database is back. Choose any option to return to the main menu.");
+            } catch (SQLException e) {
+                if (!isConnectionFailure(e)) {
+                    System.out.println("DegradedMode SQL Exception. The journal could not be saved: " +
+                            e.getMessage());
+                }
+            }
+        }, RECONNECT_MILLIS, RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+
+        return drainer;
+    }
+
+    /**
+     * Saves the orders in the journal, reports the numbers given to orders that had none, and allocates drivers to
+     * the saved orders that were captured without one. Other orders without a driver, such as orders that are still
+     * being captured, are left alone. It is invoked by the background job and in the <code>main</code> method at
+     * start-up, for orders left from an earlier run.
+     *
+     * @param connection The Connection resource of the main database.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void saveJournal(Connection connection) throws SQLException {
+
+        ArrayList<OrderJournal.JournalledOrder> savedOrders = OrderJournal.drain(connection);
+        if (savedOrders.isEmpty()) {
+            return;
+        }
+
+        /* The saved orders without a driver, with the city of their restaurant, by shard (see ShardRouter). */
+        TreeMap<Integer, LinkedHashMap<Integer, String>> ordersWithoutDriver = new TreeMap<>();
+        System.out.println(savedOrders.size() + " journalled orders were saved to the database.");
+        for (OrderJournal.JournalledOrder order : savedOrders) {
+            if (order.numberedOnSave) {
+                System.out.println("Journalled order J" + order.reference + " is order " + order.orderNumber + ".");
+            }
+            if (order.driverId == 0) {
+                String city = Restaurant.findRestaurantLocation(connection, order.restaurantName);
+                ordersWithoutDriver.computeIfAbsent(ShardRouter.shardOfNumber(order.orderNumber),
+                        shard -> new LinkedHashMap<>()).put(order.orderNumber, city);
+            }
+        }
+
+        /* The in-memory workloads were only guesses while the database was down. */
+        DispatchEngine.invalidate();
+
+        int ordersFound = 0;
+        int ordersAllocated = 0;
+        for (Map.Entry<Integer, LinkedHashMap<Integer, String>> shardOrders : ordersWithoutDriver.entrySet()) {
+            Connection shardConnection = ShardRouter.forShard(connection, shardOrders.getKey());
+            ordersFound += shardOrders.getValue().size();
+            ordersAllocated += DispatchEngine.allocateDrivers(shardConnection, shardOrders.getValue()).size();
+        }
+        if (ordersFound > 0) {
+            System.out.println(ordersAllocated + " of " + ordersFound + " journalled orders without a driver were " +
+                    "allocated one.");
+        }
+
+    }
+
+    /**
+     * Captures an order from what is in memory and writes it to the journal. Only existing customers and restaurants
+     * can be used, because new ones can only be saved in the database.
+     *
+     * @param input The Scanner instance from the <code>main</code> method needed to read user input.
+     */
+    static void captureOrder(Scanner input) {
+
+        if (MenuCatalogue.snapshot.get() == null) {
+            System.out.println("The menus are not in memory, so orders can only be captured once the database is " +
+                    "back.\n");
+            return;
+        }
+
+        String customerFirstName = UserInput.readString("Customer First Name: ", input);
+        String customerSurname = UserInput.readString("Customer Surname: ", input);
+        int customerId = SearchIndex.CUSTOMERS.findExact(customerFirstName + " " + customerSurname);
+        if (customerId == 0) {
+            System.out.println("The customer is not known. New customers can only be captured once the database is " +
+                    "back.\n");
+            return;
+        }
+
+        String restaurantName = UserInput.readString("Restaurant Name: ", input);
+        int restaurantId = SearchIndex.RESTAURANTS.findExact(restaurantName);
+        if (restaurantId == 0) {
+            System.out.println("The restaurant is not known. Please check the name.\n");
+            return;
+        }
+
+        /* The lines are read in the same way as in ItemsOrder.addItemToOrder, but kept in memory. */
+        ArrayList<ItemsOrder> lines = new ArrayList<>();
+        try {
+            while (UserInput.readInteger("""
+                    Add Items Menu
+                    --------------
+                    1. Add Item.
+                    2. Exit
+                    """, input) == 1) {
+                MenuCatalogue.displayMenu(null, restaurantId);
+                int itemId = UserInput.readInteger("Item ID (0 to cancel): ", input);
+                MenuCatalogue.MenuItem menuItem = MenuCatalogue.findMenuItem(null, restaurantId, itemId);
+                while (menuItem == null && itemId != 0) {
+                    itemId = UserInput.readInteger("That item is not on the menu. Item ID (0 to cancel): ", input);
+                    menuItem = MenuCatalogue.findMenuItem(null, restaurantId, itemId);
+                }
+                if (menuItem == null) {
+                    System.out.println("No item was added.\n");
+                    continue;
+                }
+                String preparationInstructions = UserInput.readString("Preparation Instructions: ", input);
+                int itemQuantity = UserInput.readInteger("Item Quantity: ", input);
+                lines.add(new ItemsOrder(itemId, 0, preparationInstructions, itemQuantity,
+                        Money.multiply(menuItem.itemPrice, itemQuantity)));
+                System.out.println("The item was added successfully.\n");
+            }
+        } catch (SQLException e) {
+            /* Not reached: the menus are in memory, so no query is made. */
+            System.out.println("The menu could not be read.\n");
+            return;
+        }
+        if (lines.isEmpty()) {
+            System.out.println("The order has no items and was not captured.\n");
+            return;
+        }
+
+        /*
+         * The shard, the order number and the driver need the restaurant's city. Without it the order is numbered
+         * and allocated a driver when it is saved.
+         */
+        String city = Restaurant.lastKnownLocation(restaurantName);
+        int orderNumber = 0;
+        int driverId = 0;
+        if (city != null) {
+            int shard = ShardRouter.shardOfCity(city);
+            orderNumber = OrderNumberAllocator.nextReservedOrderNumber(shard);
+            driverId = DispatchEngine.allocateDriverOffline(shard, city);
+        } else if (ShardRouter.shardCount() == 1) {
+            orderNumber = OrderNumberAllocator.nextReservedOrderNumber(0);
+        }
+
+        OrderJournal.JournalledOrder order = new OrderJournal.JournalledOrder(orderNumber, customerId, restaurantId,
+                restaurantName, driverId);
+        order.lines = lines;
+        try {
+            OrderJournal.append(order);
+        } catch (IOException e) {
+            System.out.println("Error: IOException - " + e.getMessage());
+            System.out.println("The order could not be written to the journal and was not captured.\n");
+            if (driverId != 0) {
+                DispatchEngine.adjustWorkload(driverId, -1);
+            }
+            return;
+        }
+
+        System.out.println("The order was captured and will be saved when the database is back.");
+        System.out.println("Order: " + order.label() + (orderNumber == 0 ? " (the order number is given when it " +
+                "is saved)" : ""));
+        System.out.println("Driver: " + (driverId == 0 ? "allocated when the order is saved" : driverName(driverId)));
+        System.out.println("Total: R" + Money.format(order.totalCost()) + "\n");
+
+    }
+
+    /**
+     * Lists the orders that are waiting in the journal.
+     */
+    static void listJournalledOrders() {
+
+        ArrayList<OrderJournal.JournalledOrder> orders = OrderJournal.pendingOrders();
+        if (orders.isEmpty()) {
+            System.out.println("There are no journalled orders.\n");
+            return;
+        }
+
+        System.out.println("Journalled orders: \n");
+        LinkedHashMap<Integer, String> customers = SearchIndex.CUSTOMERS.names();
+        for (OrderJournal.JournalledOrder order : orders) {
+            String customerName = customers == null ? null : customers.get(order.customerId);
+            System.out.println(String.format("Order %-10s %-25s %-25s %3d lines  R%s", order.label(),
+                    customerName == null ? "Customer " + order.customerId : customerName, order.restaurantName,
+                    order.lines.size(), Money.format(order.totalCost(), 10)));
+        }
+        System.out.println();
+
+    }
+
+    /**
+     * @param driverId The unique id of a driver.
+     * @return The name of the driver from the name index, or the id if the index is not in memory.
+     */
+    static String driverName(int driverId) {
+        LinkedHashMap<Integer, String> drivers = SearchIndex.DRIVERS.names();
+        String driverName = drivers == null ? null : drivers.get(driverId);
+        return driverName == null ? "driver " + driverId : driverName;
+    }
+}
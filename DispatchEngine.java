@@ -0,0 +1,427 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The dispatch engine decides which driver gets a new order. It keeps the drivers of every city and their workloads
+ * in memory together with a list of the other cities ordered by road distance, so a decision does not need any
+ * queries. When a restaurant's city has no drivers, or all of its drivers already have
+ * <code>SATURATION_WORKLOAD</code> or more open orders, the nearest cities are searched for a driver with a lower
+ * workload.
+ * <p>
+ * The distances come from the <code>city_distance</code> table (see the README). Without that table the engine still
+ * works but only allocates drivers within the restaurant's city, like before.
+ */
+public class DispatchEngine {
+
+    // Global variables
+
+    /* A local driver pool is saturated when its quietest driver has at least this many open orders. */
+    public static final int SATURATION_WORKLOAD = 5;
+
+    /* Cities further than this are never used for overflow. */
+    public static final int MAX_OVERFLOW_DISTANCE_KM = 150;
+
+    /* The in-memory state is reloaded when it is older than this, to pick up changes made by other instances. */
+    public static final long MAX_STATE_AGE_MILLIS = 60_000;
+
+    /*
+     * The current state of every shard (see ShardRouter). A state is replaced as a whole when it is reloaded, and
+     * removed to force a reload. Driver ids are unique over all shards.
+     */
+    private static final ConcurrentHashMap<Integer, DispatchState> states = new ConcurrentHashMap<>();
+
+    /**
+     * The drivers, workloads and nearest cities loaded from the database.
+     */
+    static class DispatchState {
+
+        //Attributes
+        HashMap<String, int[]> driversByCity = new HashMap<>();
+        ConcurrentHashMap<Integer, AtomicInteger> workloads = new ConcurrentHashMap<>();
+        HashMap<String, String[]> nearestCities = new HashMap<>();
+        long loadedAt = System.currentTimeMillis();
+    }
+
+    //Methods
+
+    /**
+     * This method chooses the driver for a new order from a restaurant in the given city. It is used by
+     * <code>Driver.driverAllocation</code>.
+     *
+     * @param connection The Connection resource needed to load the state when it is not in memory yet.
+     * @param city The restaurant location (city).
+     * @return The unique driver id of the chosen driver, or 0 if there is no driver in or near the city.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static int allocateDriver(Connection connection, String city) throws SQLException {
+
+        LinkedHashMap<Integer, String> orderCities = new LinkedHashMap<>();
+        orderCities.put(0, city);
+
+        return planAllocations(ensureLoaded(connection), orderCities).getOrDefault(0, 0);
+    }
+
+    /**
+     * This method chooses the driver for an order from the state that is already in memory, however old it is, and
+     * counts the order in the driver's in-memory workload. It is used by <code>DegradedMode</code> while the database
+     * cannot be reached, so it never loads anything.
+     *
+     * @param shard The shard of the order (see ShardRouter).
+     * @param city The restaurant location (city).
+     * @return The unique driver id of the chosen driver, or 0 if there is no state in memory or no driver in or near
+     * the city.
+     */
+    public static int allocateDriverOffline(int shard, String city) {
+
+        DispatchState currentState = states.get(shard);
+        if (currentState == null) {
+            return 0;
+        }
+
+        LinkedHashMap<Integer, String> orderCities = new LinkedHashMap<>();
+        orderCities.put(0, city);
+        int driverId = planAllocations(currentState, orderCities).getOrDefault(0, 0);
+        if (driverId != 0) {
+            adjustWorkload(driverId, 1);
+        }
+
+        return driverId;
+    }
+
+    /**
+     * This method allocates drivers to many orders at once, for example after a bulk import. Every order goes to the
+     * driver with the lowest workload at that point in the batch, counting the orders already handed out earlier in
+     * the same batch, so the orders are spread evenly instead of all going to the same quiet driver. All assignments
+     * and workload changes are written in one transaction with two batched statements, instead of four queries per
+     * order through <code>Driver.driverAllocation</code> and <code>Driver.updateDriverWorkload</code>.
+     * <p>
+     * Only orders that are still open and have no driver yet are updated.
+     *
+     * @param connection The Connection resource needed here for the instances of <code>PreparedStatement</code>.
+     * @param orderCities The order numbers with the city of their restaurant, in the order they should be served.
+     * @return The order numbers that were given a driver, with the unique id of that driver.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static LinkedHashMap<Integer, Integer> allocateDrivers(Connection connection,
+                                                                  LinkedHashMap<Integer, String> orderCities)
+            throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        LinkedHashMap<Integer, Integer> assignments = planAllocations(ensureLoaded(connection), orderCities);
+        LinkedHashMap<Integer, Integer> allocated = new LinkedHashMap<>();
+        if (assignments.isEmpty()) {
+            Metrics.recordLatency("DispatchEngine.allocateDrivers", startTime);
+            return allocated;
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        HashMap<Integer, Integer> workloadChanges = new HashMap<>();
+        try {
+
+            /* Assigning the drivers with one batched statement. */
+            String mySQLQueryAssign = "UPDATE orders SET driver_id = ? WHERE order_number = ? AND finalised IS NOT " +
+                    "TRUE AND (driver_id IS NULL OR driver_id = 0);";
+            PreparedStatement pstmtAssign = connection.prepareStatement(mySQLQueryAssign);
+            ArrayList<Integer> orderNumbers = new ArrayList<>(assignments.keySet());
+            for (int orderNumber : orderNumbers) {
+                pstmtAssign.setInt(1, assignments.get(orderNumber));
+                pstmtAssign.setInt(2, orderNumber);
+                pstmtAssign.addBatch();
+            }
+            int[] rowsAssigned = pstmtAssign.executeBatch();
+
+            /* Adding up the workload changes of the orders that were really assigned. */
+            for (int i = 0; i < orderNumbers.size(); i++) {
+                if (rowsAssigned[i] > 0 || rowsAssigned[i] == Statement.SUCCESS_NO_INFO) {
+                    int driverId = assignments.get(orderNumbers.get(i));
+                    allocated.put(orderNumbers.get(i), driverId);
+                    workloadChanges.merge(driverId, 1, Integer::sum);
+                }
+            }
+
+            /* Adjusting the workloads with a second batched statement, one row per driver. */
+            String mySQLQueryWorkload = "UPDATE driver SET driver_workload = driver_workload + ? WHERE driver_id = ?;";
+            PreparedStatement pstmtWorkload = connection.prepareStatement(mySQLQueryWorkload);
+            for (Map.Entry<Integer, Integer> change : workloadChanges.entrySet()) {
+                pstmtWorkload.setInt(1, change.getValue());
+                pstmtWorkload.setInt(2, change.getKey());
+                pstmtWorkload.addBatch();
+            }
+            pstmtWorkload.executeBatch();
+
+            connection.commit();
+
+            /* Closing of resources to prevent resource leaking. */
+            pstmtAssign.close();
+            pstmtWorkload.close();
+
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        /* The in-memory workloads are only changed once the transaction has been committed. */
+        for (Map.Entry<Integer, Integer> change : workloadChanges.entrySet()) {
+            adjustWorkload(change.getKey(), change.getValue());
+        }
+
+        Metrics.recordLatency("DispatchEngine.allocateDrivers", startTime);
+        return allocated;
+    }
+
+    /**
+     * This method works out the driver of every order without changing the state. Each city that is looked at gets
+     * a priority queue of its drivers ordered by workload, and every assignment adds one to the workload of the
+     * chosen driver in the queue. The quietest driver of the restaurant's own city is used unless that city is
+     * saturated, in which case the other cities are searched from nearest to furthest: the first city with a driver
+     * quieter than the local one and below saturation wins, otherwise the quietest driver found anywhere is used.
+     *
+     * @param currentState The state to plan with.
+     * @param orderCities The order numbers with the city of their restaurant.
+     * @return The order numbers with the unique id of their driver. Orders without a driver in or near their city
+     * are left out.
+     */
+    static LinkedHashMap<Integer, Integer> planAllocations(DispatchState currentState,
+                                                           LinkedHashMap<Integer, String> orderCities) {
+
+        LinkedHashMap<Integer, Integer> assignments = new LinkedHashMap<>();
+        HashMap<String, PriorityQueue<int[]>> queues = new HashMap<>();
+
+        for (Map.Entry<Integer, String> order : orderCities.entrySet()) {
+
+            String cityKey = cityKey(order.getValue());
+            PriorityQueue<int[]> localQueue = driverQueue(currentState, queues, cityKey);
+            PriorityQueue<int[]> bestQueue = localQueue;
+            int[] best = localQueue.peek();
+
+            if (best == null || best[0] >= SATURATION_WORKLOAD) {
+                for (String nearbyCity : currentState.nearestCities.getOrDefault(cityKey, new String[0])) {
+                    PriorityQueue<int[]> nearbyQueue = driverQueue(currentState, queues, nearbyCity);
+                    int[] nearby = nearbyQueue.peek();
+                    if (nearby != null && (best == null || nearby[0] < best[0])) {
+                        best = nearby;
+                        bestQueue = nearbyQueue;
+                        if (best[0] < SATURATION_WORKLOAD) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            if (best == null) {
+                continue;
+            }
+            if (bestQueue != localQueue) {
+                Metrics.increment("dispatch.overflow");
+            }
+
+            /* The chosen driver goes back into its queue with one more order. */
+            bestQueue.poll();
+            best[0]++;
+            bestQueue.add(best);
+            assignments.put(order.getKey(), best[1]);
+        }
+
+        return assignments;
+    }
+
+    /**
+     * Returns the queue of the drivers of a city as {workload, driver id}, quietest first, creating it from the state
+     * the first time the city is needed.
+     *
+     * @param currentState The state to read the drivers and workloads from.
+     * @param queues The queues created so far.
+     * @param cityKey The city in the form returned by <code>cityKey</code>.
+     * @return The queue of the city, which is empty if the city has no drivers.
+     */
+    static PriorityQueue<int[]> driverQueue(DispatchState currentState, HashMap<String, PriorityQueue<int[]>> queues,
+                                            String cityKey) {
+
+        return queues.computeIfAbsent(cityKey, key -> {
+            PriorityQueue<int[]> queue = new PriorityQueue<>((first, second) -> first[0] != second[0]
+                    ? Integer.compare(first[0], second[0]) : Integer.compare(first[1], second[1]));
+            for (int driverId : currentState.driversByCity.getOrDefault(key, new int[0])) {
+                queue.add(new int[]{workloadOf(currentState, driverId), driverId});
+            }
+            return queue;
+        });
+    }
+
+    /**
+     * Changes the in-memory workload of a driver. It is invoked by <code>Driver.updateDriverWorkload</code> so that
+     * the state keeps track of the database without reading it back.
+     *
+     * @param driverId The unique id number of the driver.
+     * @param change The number of orders added (positive) or removed (negative).
+     */
+    public static void adjustWorkload(int driverId, int change) {
+        DispatchState currentState = states.get(ShardRouter.shardOfNumber(driverId));
+        if (currentState != null) {
+            AtomicInteger workload = currentState.workloads.get(driverId);
+            if (workload != null) {
+                workload.addAndGet(change);
+            }
+        }
+    }
+
+    /**
+     * Discards the in-memory state so that it is reloaded before the next allocation. It is invoked when drivers
+     * are added or changed and after the drivers have been re-balanced.
+     */
+    public static void invalidate() {
+        states.clear();
+    }
+
+    /**
+     * Returns the in-memory state of the connection's shard, loading it from the database first if it is missing or
+     * too old.
+     *
+     * @param connection The Connection resource needed here for the instances of <code>PreparedStatement</code>.
+     * @return The current state.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static DispatchState ensureLoaded(Connection connection) throws SQLException {
+
+        int shard = ShardRouter.shardOf(connection);
+        DispatchState currentState = states.get(shard);
+        if (currentState == null || System.currentTimeMillis() - currentState.loadedAt > MAX_STATE_AGE_MILLIS) {
+            currentState = loadState(connection);
+            states.put(shard, currentState);
+        }
+
+        return currentState;
+    }
+
+    /**
+     * This method loads the drivers and the city distances and works out the nearest cities of every city.
+     *
+     * @param connection The Connection resource needed here for the instances of <code>PreparedStatement</code>.
+     * @return The loaded state.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static DispatchState loadState(Connection connection) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+        DispatchState newState = new DispatchState();
+
+        /* All drivers with their workloads, grouped by city. */
+        HashMap<String, ArrayList<Integer>> driverLists = new HashMap<>();
+        String mySQLQueryDrivers = "SELECT driver_id, driver_city, driver_workload FROM driver;";
+        PreparedStatement pstmtDrivers = connection.prepareStatement(mySQLQueryDrivers);
+        ResultSet resultsDrivers = pstmtDrivers.executeQuery();
+        while (resultsDrivers.next()) {
+            int driverId = resultsDrivers.getInt("driver_id");
+            driverLists.computeIfAbsent(cityKey(resultsDrivers.getString("driver_city")), key -> new ArrayList<>())
+                    .add(driverId);
+            newState.workloads.put(driverId, new AtomicInteger(resultsDrivers.getInt("driver_workload")));
+        }
+        for (String city : driverLists.keySet()) {
+            newState.driversByCity.put(city, driverLists.get(city).stream().mapToInt(Integer::intValue).toArray());
+        }
+        pstmtDrivers.close();
+        resultsDrivers.close();
+
+        /* The road graph between cities. A missing table simply means that there is no overflow. */
+        HashMap<String, HashMap<String, Integer>> roads = new HashMap<>();
+        try {
+            String mySQLQueryDistances = "SELECT city_a, city_b, distance_km FROM city_distance;";
+            PreparedStatement pstmtDistances = connection.prepareStatement(mySQLQueryDistances);
+            ResultSet resultsDistances = pstmtDistances.executeQuery();
+            while (resultsDistances.next()) {
+                String cityA = cityKey(resultsDistances.getString("city_a"));
+                String cityB = cityKey(resultsDistances.getString("city_b"));
+                int distance = resultsDistances.getInt("distance_km");
+                roads.computeIfAbsent(cityA, key -> new HashMap<>()).merge(cityB, distance, Math::min);
+                roads.computeIfAbsent(cityB, key -> new HashMap<>()).merge(cityA, distance, Math::min);
+            }
+            pstmtDistances.close();
+            resultsDistances.close();
+        } catch (SQLException e) {
+            if (!"42S02".equals(e.getSQLState())) {
+                throw e;
+            }
+        }
+
+        /* The nearest cities of every city are precomputed so that an allocation only has to walk a list. */
+        for (String city : roads.keySet()) {
+            newState.nearestCities.put(city, nearestCities(roads, city));
+        }
+
+        Metrics.recordLatency("DispatchEngine.loadState", startTime);
+        return newState;
+    }
+
+    /**
+     * Works out all cities that can be reached from a city within <code>MAX_OVERFLOW_DISTANCE_KM</code>, ordered by
+     * shortest road distance (Dijkstra's algorithm).
+     *
+     * @param roads The direct distances between cities.
+     * @param origin The city to start from.
+     * @return The reachable cities, nearest first, excluding the origin.
+     */
+    static String[] nearestCities(HashMap<String, HashMap<String, Integer>> roads, String origin) {
+
+        HashMap<String, Integer> distances = new HashMap<>();
+        ArrayList<String> ordered = new ArrayList<>();
+        PriorityQueue<Object[]> queue = new PriorityQueue<>((first, second) ->
+                Integer.compare((Integer) first[1], (Integer) second[1]));
+        queue.add(new Object[]{origin, 0});
+
+        while (!queue.isEmpty()) {
+            Object[] next = queue.poll();
+            String city = (String) next[0];
+            int distance = (Integer) next[1];
+            if (distances.containsKey(city)) {
+                continue;
+            }
+            distances.put(city, distance);
+            if (!city.equals(origin)) {
+                ordered.add(city);
+            }
+            for (var road : roads.getOrDefault(city, new HashMap<>()).entrySet()) {
+                int roadDistance = distance + road.getValue();
+                if (!distances.containsKey(road.getKey()) && roadDistance <= MAX_OVERFLOW_DISTANCE_KM) {
+                    queue.add(new Object[]{road.getKey(), roadDistance});
+                }
+            }
+        }
+
+        return ordered.toArray(new String[0]);
+    }
+
+    /**
+     * @param currentState The state to read from.
+     * @param driverId The unique id number of the driver.
+     * @return The in-memory workload of the driver.
+     */
+    static int workloadOf(DispatchState currentState, int driverId) {
+        AtomicInteger workload = currentState.workloads.get(driverId);
+        return workload == null ? 0 : workload.get();
+    }
+
+    /**
+     * Cities are compared without regard to case or surrounding spaces, in the same way as the
+     * <code>LOWER(...) = LOWER(?)</code> comparisons in the queries of the other classes.
+     *
+     * @param city The city as stored or entered.
+     * @return The key of the city.
+     */
+    static String cityKey(String city) {
+        return city == null ? "" : city.trim().toLowerCase();
+    }
+}
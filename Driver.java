@@ -2,6 +2,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Scanner;
 
@@ -53,9 +54,15 @@ public class Driver {
         String driverCity = UserInput.readString("Driver Location (City): ", input);
         int driverWorkload = 0;
 
+        long startTime = Metrics.startTimer();
+
+        /* A driver is kept on the shard of the driver's city (see ShardRouter). */
+        Connection driverConnection = ShardRouter.forCity(connection, driverCity);
+
         /* Use of PreparedStatement to insert these values into the driver table of the database.*/
         String mySQLQueryCreateDriver = "INSERT INTO driver VALUES (?, ?, ?, ?);";
-        PreparedStatement pstmtCreateDriver = connection.prepareStatement(mySQLQueryCreateDriver);
+        PreparedStatement pstmtCreateDriver = driverConnection.prepareStatement(mySQLQueryCreateDriver,
+                Statement.RETURN_GENERATED_KEYS);
         pstmtCreateDriver.setString(1, null); // Auto_increment
         pstmtCreateDriver.setString(2, driverName);
         pstmtCreateDriver.setString(3, driverCity);
@@ -68,6 +75,8 @@ public class Driver {
         rowsAffected = pstmtCreateDriver.executeUpdate();
         if (rowsAffected > 0) {
             System.out.println("The driver was successfully added.");
+            DispatchEngine.invalidate();
+            SearchIndex.DRIVERS.refreshCreated(driverConnection, pstmtCreateDriver);
         } else {
             System.out.println("The driver could not be added. Please review your input.");
         }
@@ -75,6 +84,8 @@ public class Driver {
         /* Closing of resource to prevent resource leaking. */
         pstmtCreateDriver.close();
 
+        Metrics.recordLatency("Driver.createDriver", startTime);
+
     }
 
     /**
@@ -90,12 +101,15 @@ public class Driver {
      */
     public static String findDriverName(Connection connection, int driverId) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /*Declaration and initialisation of this variable because it is needed outside the while loop.*/
         String driverName = "";
 
-        /* Use of PreparedStatement to select fields from driver for a specific driver ID */
+        /* Use of PreparedStatement to select fields from driver for a specific driver ID, on the driver's shard. */
         String mySQLQueryDriverName = "SELECT * FROM driver WHERE driver_id = ?;";
-        PreparedStatement pstmtDriverName = connection.prepareStatement(mySQLQueryDriverName);
+        Connection driverConnection = ShardRouter.forNumber(connection, driverId);
+        PreparedStatement pstmtDriverName = driverConnection.prepareStatement(mySQLQueryDriverName);
         pstmtDriverName.setInt(1, driverId);
 
         /*
@@ -111,6 +125,7 @@ public class Driver {
         pstmtDriverName.close();
         resultsDriverName.close();
 
+        Metrics.recordLatency("Driver.findDriverName", startTime);
         return driverName;
 
     }
@@ -128,41 +143,75 @@ public class Driver {
      */
     public static int findDriverId(Connection connection, Scanner input) throws SQLException {
 
-        /* Declaration and initialisation of this variable because it is needed outside the while loop*/
-        int driverId = 0;
-
         /* User input of the driver name.*/
         String driverNamePrompt = "Please enter the driver's full name.";
         String driverName = UserInput.readString(driverNamePrompt, input);
 
-        /* Use of PreparedStatement to select the driver_id field from the driver table for the driver name selected. */
-        String mySQLQueryDriverId = "SELECT driver_id FROM driver WHERE LOWER(driver_name) = LOWER(?);";
-        PreparedStatement pstmtDriverId = connection.prepareStatement(mySQLQueryDriverId);
-        pstmtDriverId.setString(1, driverName);
+        return findDriverId(connection, driverName);
+
+    }
+
+    /**
+     * A method to find the driver unique id from a driver's full name that is already known, for example from the
+     * command line (see <code>CommandLine</code>). The name is matched without regard to case.
+     *
+     * @param connection The Connection resource needed here for the <code>PreparedStatement</code>.
+     * @param driverName The driver's full name.
+     * @return The driver id corresponding to the full name, or 0 if there is no such driver.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static int findDriverId(Connection connection, String driverName) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        /*
+         * Drivers are kept on the shard of their city (see ShardRouter), so the name is looked up on all shards. The
+         * last match is used, like before.
+         */
+        ArrayList<Integer> driverIds = ShardRouter.fanOut(connection, shardConnection -> {
+
+            ArrayList<Integer> shardDriverIds = new ArrayList<>();
+
+            /* Use of PreparedStatement to select the driver_id field from the driver table for the name selected. */
+            String mySQLQueryDriverId = "SELECT driver_id FROM driver WHERE LOWER(driver_name) = LOWER(?);";
+            PreparedStatement pstmtDriverId = shardConnection.prepareStatement(mySQLQueryDriverId);
+            pstmtDriverId.setString(1, driverName);
 
-        /* Execution of the statement and return of the method as a ResultSet.*/
-        ResultSet resultsDriverId = pstmtDriverId.executeQuery();
+            /* Execution of the statement and return of the method as a ResultSet.*/
+            ResultSet resultsDriverId = pstmtDriverId.executeQuery();
 
-        /* A try/catch block to catch situations where there is no matching driverId.*/
-        try{
-            while(resultsDriverId.next()) {
-                driverId = resultsDriverId.getInt("driver_id");
+            /* A try/catch block to catch situations where there is no matching driverId.*/
+            try{
+                while(resultsDriverId.next()) {
+                    shardDriverIds.add(resultsDriverId.getInt("driver_id"));
+                }
+            } catch (SQLException e) {
+                System.out.println("Driver.findDriverId SQL Exception. Unknown driver.");
             }
-        } catch (SQLException e) {
-            System.out.println("Driver.findDriverId SQL Exception. Unknown driver.");
-        }
 
-        /*Closing resources to prevent resource leaking.*/
-        pstmtDriverId.close();
-        resultsDriverId.close();
+            /*Closing resources to prevent resource leaking.*/
+            pstmtDriverId.close();
+            resultsDriverId.close();
+
+            return shardDriverIds;
+        });
+        int driverId = driverIds.isEmpty() ? 0 : driverIds.get(driverIds.size() - 1);
 
+        /* Offering the closest names when there is no exact match, which is often a typing mistake. */
+        if (driverId == 0) {
+            SearchIndex.DRIVERS.suggest(connection, driverName);
+        }
+
+        Metrics.recordLatency("Driver.findDriverId", startTime);
         return driverId;
 
     }
 
     /**
      * A method that allocates a driver id to an order based on the restaurant city and the driver's workload. It is
-     * used in the <code>addInitialOrderDetails</code> method in the <code>Order</code> class.
+     * used in the <code>addInitialOrderDetails</code> method in the <code>Order</code> class. When the city has no
+     * driver, or all of its drivers are busy, a driver from the nearest city is allocated (see
+     * <code>DispatchEngine</code>).
      *
      * @param connection The Connection resource from the <code>main</code> method needed here for the
      *                   <code>PreparedStatement</code>.
@@ -172,49 +221,16 @@ public class Driver {
      */
     public static int driverAllocation(Connection connection, String city) throws SQLException {
 
-        /* MySQL Query to find the highest driver workload for an area. */
-        String mySQLHighestWorkload = "SELECT MAX(driver_workload) as max_workload FROM driver WHERE driver_city = ?";
-
-        PreparedStatement pstmtHighestWorkload = connection.prepareStatement(mySQLHighestWorkload);
-        pstmtHighestWorkload.setString(1, city);
-
-        ResultSet resultsHighestWorkload = pstmtHighestWorkload.executeQuery();
-        int maxWorkload = 0;
-        while (resultsHighestWorkload.next()) {
-            maxWorkload = resultsHighestWorkload.getInt("max_workload");
-        }
-
-        /* MySQL Query statement. */
-        String mySQLQueryByCity = "SELECT * FROM driver WHERE driver_city = ?";
-
-        /* Insertion of, city, variable into the MySQL statement.*/
-        PreparedStatement pstmtByCity = connection.prepareStatement(mySQLQueryByCity);
-        pstmtByCity.setString(1, city);
-
-        /* Execution of the query and use of the ResultSet to get access to its getter methods. */
-        ResultSet resultsByCity = pstmtByCity.executeQuery();
-
-        /*Declaration and initialisation of the return variable so that it can be accessed outside the while loop. */
-        int driverId = 0;
+        long startTime = Metrics.startTimer();
 
         /*
-         * Logic for determination of workload comparison between drivers to ensure the driver with the lowest
-         * workload gets allocated to the delivery.
+         * The decision is made by the dispatch engine from its in-memory drivers and workloads. It prefers the driver
+         * with the lowest workload in the city and falls back to the nearest cities when the city has no driver or
+         * all its drivers are saturated.
          */
-        while (resultsByCity.next()) {
-            int driverWorkload = resultsByCity.getInt("driver_workload");
-            if (driverWorkload <= maxWorkload) {
-                driverId = resultsByCity.getInt("driver_id");
-                maxWorkload = driverWorkload;
-            }
-        }
-
-        /* Closing of resources to prevent resource leaking. */
-        pstmtHighestWorkload.close();
-        pstmtByCity.close();
-        resultsHighestWorkload.close();
-        resultsByCity.close();
+        int driverId = DispatchEngine.allocateDriver(connection, city);
 
+        Metrics.recordLatency("Driver.driverAllocation", startTime);
         return driverId;
 
     }
@@ -222,7 +238,8 @@ public class Driver {
     /**
      * When a driver is allocated a new order or when an order is finalised it is necessary to adjust the workload of
      * that particular driver. This method contains that functionality. It is used in the
-     * <code>addInitialOrderDetails</code> and <code>makeFinal</code> methods in the <code>Order</code> class.
+     * <code>addInitialOrderDetails</code> method in the <code>Order</code> class. <code>Order.makeFinal</code>
+     * decreases the workload in its own transaction instead.
      *
      * @param connection The Connection resource from the <code>main</code> method needed here for
      *                   <code>PreparedStatement</code>.
@@ -231,7 +248,10 @@ public class Driver {
      * @param driverId The unique id number for the driver that needs to be updated.
      * @throws SQLException If the underlying MySQL service fails.
      */
-    public static void updateDriverWorkload(Connection connection, String typeOfUpdate, int driverId) throws SQLException {
+    public static void updateDriverWorkload(Connection connection, String typeOfUpdate, int driverId)
+            throws SQLException {
+
+        long startTime = Metrics.startTimer();
 
         /* Declaration and initialisation of this variable because it is needed outside the while loop. */
         int currentWorkload = 0;
@@ -249,6 +269,7 @@ public class Driver {
         while (resultsCurrentWorkload.next()) {
             currentWorkload = resultsCurrentWorkload.getInt("driver_workload");
         }
+        int previousWorkload = currentWorkload;
 
         /*
          * An if/else block that uses the typeOfUpdate parameter to decide if the workload should be decreased or
@@ -271,6 +292,7 @@ public class Driver {
         rowsAffected = pstmtUpdateWorkload.executeUpdate();
         if (rowsAffected > 0) {
             System.out.println("The driver's workload has successfully been updated.");
+            DispatchEngine.adjustWorkload(driverId, currentWorkload - previousWorkload);
         } else {
             System.out.println("The update could not be completed. Please review your input.");
         }
@@ -280,6 +302,8 @@ public class Driver {
         pstmtCurrentWorkload.close();
         resultsCurrentWorkload.close();
 
+        Metrics.recordLatency("Driver.updateDriverWorkload", startTime);
+
     }
 
     /**
@@ -293,7 +317,10 @@ public class Driver {
      * <code>driverId</code>.
      * @throws SQLException If the underlying MySQL service fails.
      */
-    public static ArrayList<Integer> findOrdersAllocatedToDriver(Connection connection, int driverId) throws SQLException {
+    public static ArrayList<Integer> findOrdersAllocatedToDriver(Connection connection, int driverId)
+            throws SQLException {
+
+        long startTime = Metrics.startTimer();
 
         /*Declaration of an ArrayList to store the various order numbers in. */
         ArrayList<Integer> driversAllocated = new ArrayList<>();
@@ -304,7 +331,9 @@ public class Driver {
          */
         String mySQLQueryDriverAllocation = "SELECT order_number FROM orders WHERE driver_id = ? AND FINALISED IS " +
                 "FALSE;";
-        PreparedStatement pstmtDriverAllocation = connection.prepareStatement(mySQLQueryDriverAllocation);
+        /* A read-only query on the driver's shard, so it can run on the replica (see ShardRouter and ReadRouter). */
+        Connection readConnection = ReadRouter.forReading(ShardRouter.forNumber(connection, driverId));
+        PreparedStatement pstmtDriverAllocation = readConnection.prepareStatement(mySQLQueryDriverAllocation);
         pstmtDriverAllocation.setInt(1, driverId);
 
         /*
@@ -321,13 +350,14 @@ public class Driver {
         pstmtDriverAllocation.close();
         resultsDriverAllocation.close();
 
+        Metrics.recordLatency("Driver.findOrdersAllocatedToDriver", startTime);
         return driversAllocated;
 
     }
 
     /**
      * A generic method to handle updates of any fields in the <code>driver</code> table except for the
-     * <code>driver_id</code> field which is unique.
+     * <code>driver_id</code> field which is unique. The update runs on the shard of the driver (see ShardRouter).
      *
      * @param connection The Connection resource from the <code>main</code> method needed here for the
      *                   <code>PreparedStatement</code>.
@@ -336,7 +366,19 @@ public class Driver {
      * @param driverId The unique id number of the driver that needs to be updated.
      * @throws SQLException If the underlying MySQL service fails.
      */
-    public static void performFieldUpdate(Connection connection, String fieldToUpdate, String newValue, int driverId) throws SQLException {
+    public static void performFieldUpdate(Connection connection, String fieldToUpdate, String newValue, int driverId)
+            throws SQLException {
+
+        /* A driver's id tells the shard it is kept on, and a driver cannot be moved to a city of another shard. */
+        if (fieldToUpdate.equals("driver_city") && ShardRouter.shardCount() > 1
+                && ShardRouter.shardOfCity(newValue) != ShardRouter.shardOfNumber(driverId)) {
+            System.out.println("The driver cannot be moved to " + newValue + ", because it is kept on another " +
+                    "database. Please capture the driver again in the new city.\n");
+            return;
+        }
+
+        long startTime = Metrics.startTimer();
+        Connection driverConnection = ShardRouter.forNumber(connection, driverId);
 
         /*
          * Use of PreparedStatement to set up an update statement to update any of the fields in the driver table
@@ -344,7 +386,7 @@ public class Driver {
          */
         String mySQLQueryFieldUpdate =
                 "UPDATE driver SET " + fieldToUpdate  + " = '" + newValue + "' WHERE driver_id = ?;";
-        PreparedStatement pstmtFieldUpdate = connection.prepareStatement(mySQLQueryFieldUpdate);
+        PreparedStatement pstmtFieldUpdate = driverConnection.prepareStatement(mySQLQueryFieldUpdate);
         pstmtFieldUpdate.setInt(1, driverId);
 
         /*
@@ -354,6 +396,8 @@ public class Driver {
         rowsAffected = pstmtFieldUpdate.executeUpdate();
         if (rowsAffected > 0) {
             System.out.println("The driver was updated successfully.\n");
+            DispatchEngine.invalidate();
+            SearchIndex.DRIVERS.refresh(driverConnection, driverId);
         } else {
             System.out.println("The driver update could not be done. Please check that the driverId is correct.\n");
         }
@@ -361,5 +405,7 @@ public class Driver {
         /* Closing of resource to prevent resource leaking. */
         pstmtFieldUpdate.close();
 
+        Metrics.recordLatency("Driver.performFieldUpdate", startTime);
+
     }
 }
\ No newline at end of file
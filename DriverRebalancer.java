@@ -0,0 +1,264 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The driver re-balancing job moves open orders from overloaded drivers to drivers in the same city that have fewer
+ * orders. <code>Driver.driverAllocation</code> only balances at the moment an order is allocated, so after a busy
+ * period some drivers can hold many open orders while others hold none. The job reads all drivers and all open orders
+ * with two queries, works out the moves in memory and then writes each city's moves with one batched update in a
+ * single transaction.
+ */
+public class DriverRebalancer {
+
+    // Global variables
+
+    /* A city is only re-balanced when its busiest and quietest drivers differ by more than this many orders. */
+    public static final int MAX_WORKLOAD_SKEW = 1;
+
+    //Methods
+
+    /**
+     * This method re-balances the open orders of all cities. Open orders are orders that have not been finalised.
+     * The most recently opened orders of an overloaded driver are moved first because they are the least likely to
+     * have been started. It is invoked from the <code>rebalanceDrivers</code> menu option in the main class and by
+     * the periodic job started with <code>schedulePeriodicRebalancing</code>.
+     *
+     * @param connection The Connection resource needed here for the instances of <code>PreparedStatement</code>.
+     * @return The number of orders that were moved to another driver.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static int rebalanceDrivers(Connection connection) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        /* All drivers, grouped by city. Drivers without any orders must be included so that they can receive work. */
+        HashMap<String, ArrayList<DriverLoad>> driversByCity = new HashMap<>();
+        HashMap<Integer, DriverLoad> driversById = new HashMap<>();
+        String mySQLQueryDrivers = "SELECT driver_id, driver_city FROM driver;";
+        PreparedStatement pstmtDrivers = connection.prepareStatement(mySQLQueryDrivers);
+        ResultSet resultsDrivers = pstmtDrivers.executeQuery();
+        while (resultsDrivers.next()) {
+            DriverLoad driver = new DriverLoad(resultsDrivers.getInt("driver_id"));
+            String city = resultsDrivers.getString("driver_city");
+            driversByCity.computeIfAbsent(city == null ? "" : city.toLowerCase(), key -> new ArrayList<>())
+                    .add(driver);
+            driversById.put(driver.driverId, driver);
+        }
+
+        /*
+         * All open orders, placed last first. Each order is added to its driver, so the number of orders per driver is
+         * counted from the orders table itself rather than trusted from driver_workload.
+         */
+        String mySQLQueryOpenOrders = "SELECT order_number, driver_id FROM orders WHERE finalised IS NOT TRUE AND " +
+                "driver_id IS NOT NULL ORDER BY placed_at DESC, order_number DESC;";
+        PreparedStatement pstmtOpenOrders = connection.prepareStatement(mySQLQueryOpenOrders);
+        ResultSet resultsOpenOrders = pstmtOpenOrders.executeQuery();
+        while (resultsOpenOrders.next()) {
+            DriverLoad driver = driversById.get(resultsOpenOrders.getInt("driver_id"));
+            if (driver != null) {
+                driver.openOrders.add(resultsOpenOrders.getInt("order_number"));
+            }
+        }
+
+        /* Closing of resources to prevent resource leaking. */
+        pstmtDrivers.close();
+        pstmtOpenOrders.close();
+        resultsDrivers.close();
+        resultsOpenOrders.close();
+
+        /* Each city is planned and written separately so that one city's transaction stays small. */
+        int ordersMoved = 0;
+        for (Map.Entry<String, ArrayList<DriverLoad>> city : driversByCity.entrySet()) {
+            ArrayList<int[]> moves = planMoves(city.getValue());
+            if (!moves.isEmpty()) {
+                ordersMoved += applyMoves(connection, moves);
+            }
+        }
+
+        /* The dispatch engine must reload the workloads after orders have moved. */
+        if (ordersMoved > 0) {
+            DispatchEngine.invalidate();
+        }
+
+        Metrics.recordLatency("DriverRebalancer.rebalanceDrivers", startTime);
+        return ordersMoved;
+
+    }
+
+    /**
+     * This method works out which orders of a city must move to which driver. The drivers are sorted from busiest to
+     * quietest and every driver gets a target of the average workload, with the remainder going to the busiest
+     * drivers so that as few orders as possible have to move.
+     *
+     * @param drivers The drivers of one city with their open orders.
+     * @return The moves as {order number, from driver id, to driver id}.
+     */
+    static ArrayList<int[]> planMoves(ArrayList<DriverLoad> drivers) {
+
+        ArrayList<int[]> moves = new ArrayList<>();
+        drivers.sort((first, second) -> second.openOrders.size() - first.openOrders.size());
+
+        /* Nothing is done for a city that is already balanced. */
+        int busiest = drivers.get(0).openOrders.size();
+        int quietest = drivers.get(drivers.size() - 1).openOrders.size();
+        if (busiest - quietest <= MAX_WORKLOAD_SKEW) {
+            return moves;
+        }
+
+        /* Working out the target workload of every driver. */
+        int totalOrders = 0;
+        for (DriverLoad driver : drivers) {
+            totalOrders += driver.openOrders.size();
+        }
+        int[] targets = new int[drivers.size()];
+        for (int i = 0; i < drivers.size(); i++) {
+            targets[i] = totalOrders / drivers.size() + (i < totalOrders % drivers.size() ? 1 : 0);
+        }
+
+        /*
+         * Two pointers walk towards each other: the busiest driver still above target gives its newest order to the
+         * quietest driver still below target. Every step moves one order, so the loop runs at most once per order.
+         */
+        int giver = 0;
+        int receiver = drivers.size() - 1;
+        int[] given = new int[drivers.size()];
+        int[] received = new int[drivers.size()];
+        while (giver < receiver) {
+            DriverLoad from = drivers.get(giver);
+            DriverLoad to = drivers.get(receiver);
+            if (from.openOrders.size() - given[giver] <= targets[giver]) {
+                giver++;
+            } else if (to.openOrders.size() + received[receiver] >= targets[receiver]) {
+                receiver--;
+            } else {
+                moves.add(new int[]{from.openOrders.get(given[giver]), from.driverId, to.driverId});
+                given[giver]++;
+                received[receiver]++;
+            }
+        }
+
+        return moves;
+    }
+
+    /**
+     * This method writes the moves of one city to the database in a single transaction. The orders are moved with
+     * one batched update that only moves an order if it still belongs to the same driver and is still open, so an
+     * order that was finalised in the meantime is left alone. The workloads are then adjusted for the orders that
+     * did move.
+     *
+     * @param connection The Connection resource needed here for the instances of <code>PreparedStatement</code>.
+     * @param moves The moves as {order number, from driver id, to driver id}.
+     * @return The number of orders that were moved.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static int applyMoves(Connection connection, ArrayList<int[]> moves) throws SQLException {
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        int ordersMoved = 0;
+        try {
+
+            /* Moving the orders with one batched statement. */
+            String mySQLQueryMoveOrder = "UPDATE orders SET driver_id = ? WHERE order_number = ? AND driver_id = ? " +
+                    "AND finalised IS NOT TRUE;";
+            PreparedStatement pstmtMoveOrder = connection.prepareStatement(mySQLQueryMoveOrder);
+            for (int[] move : moves) {
+                pstmtMoveOrder.setInt(1, move[2]);
+                pstmtMoveOrder.setInt(2, move[0]);
+                pstmtMoveOrder.setInt(3, move[1]);
+                pstmtMoveOrder.addBatch();
+            }
+            int[] rowsMoved = pstmtMoveOrder.executeBatch();
+
+            /* Adding up the workload changes of the orders that really moved. */
+            HashMap<Integer, Integer> workloadChanges = new HashMap<>();
+            for (int i = 0; i < moves.size(); i++) {
+                if (rowsMoved[i] > 0 || rowsMoved[i] == Statement.SUCCESS_NO_INFO) {
+                    workloadChanges.merge(moves.get(i)[1], -1, Integer::sum);
+                    workloadChanges.merge(moves.get(i)[2], 1, Integer::sum);
+                    ordersMoved++;
+                }
+            }
+
+            /* Adjusting the workloads with a second batched statement. */
+            String mySQLQueryWorkload = "UPDATE driver SET driver_workload = driver_workload + ? WHERE driver_id = ?;";
+            PreparedStatement pstmtWorkload = connection.prepareStatement(mySQLQueryWorkload);
+            for (Map.Entry<Integer, Integer> change : workloadChanges.entrySet()) {
+                pstmtWorkload.setInt(1, change.getValue());
+                pstmtWorkload.setInt(2, change.getKey());
+                pstmtWorkload.addBatch();
+            }
+            pstmtWorkload.executeBatch();
+
+            connection.commit();
+
+            /* Closing of resources to prevent resource leaking. */
+            pstmtMoveOrder.close();
+            pstmtWorkload.close();
+
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        return ordersMoved;
+    }
+
+    /**
+     * Starts a background job that re-balances the drivers at a fixed interval. Every run opens its own connection
+     * from the connection factory so that the menu's connection is never used from two threads. Drivers only take
+     * orders from their own shard (see <code>ShardRouter</code>), so every shard is re-balanced on its own.
+     *
+     * @param connectionFactory The factory used to open a connection for each run.
+     * @param periodMinutes The number of minutes between runs.
+     */
+    public static void schedulePeriodicRebalancing(ConnectionFactory connectionFactory, long periodMinutes) {
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "driver-rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+                ConnectionFactory shardFactory = shard == 0 ? connectionFactory : ShardRouter.shardFactory(shard);
+                try (Connection connection = shardFactory.openConnection()) {
+                    rebalanceDrivers(connection);
+                } catch (SQLException e) {
+                    System.out.println("DriverRebalancer SQL Exception. The drivers could not be re-balanced.");
+                }
+            }
+        }, periodMinutes, periodMinutes, TimeUnit.MINUTES);
+
+    }
+
+    /**
+     * A driver and the open orders allocated to it, newest first.
+     */
+    static class DriverLoad {
+
+        //Attributes
+        int driverId;
+        ArrayList<Integer> openOrders = new ArrayList<>();
+
+        /**
+         * @param driverId The unique id number of the driver.
+         */
+        DriverLoad(int driverId) {
+            this.driverId = driverId;
+        }
+    }
+}
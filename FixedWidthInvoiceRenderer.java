@@ -0,0 +1,33 @@
+/**
+ * Renders invoices in the fixed-width record layout used by the accounting system. Every invoice is one record of
+ * 107 characters followed by a line break:
+ * <pre>
+ * order number      10  zero padded
+ * customer          30  space padded
+ * restaurant        30  space padded
+ * driver            20  space padded
+ * total in cents    12  zero padded
+ * number of lines    5  zero padded
+ * </pre>
+ */
+public class FixedWidthInvoiceRenderer implements InvoiceRenderer {
+
+    /**
+     * Writes a single invoice as one fixed-width record.
+     *
+     * @param invoice The invoice to write.
+     * @param buffer The buffer to write to.
+     */
+    @Override
+    public void render(Invoice invoice, InvoiceBuffer buffer) {
+
+        buffer.appendZeroPadded(invoice.orderNumber, 10);
+        buffer.appendPadded(invoice.customerName, 30);
+        buffer.appendPadded(invoice.restaurantName, 30);
+        buffer.appendPadded(invoice.driverName, 20);
+        buffer.appendZeroPadded(invoice.totalCost, 12);
+        buffer.appendZeroPadded(invoice.lines.size(), 5);
+        buffer.append('\n');
+
+    }
+}
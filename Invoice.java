@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+public class Invoice {
+
+    //Attributes
+    int orderNumber;
+    String customerName;
+    String customerEmail;
+    String customerPhoneNumber;
+    String customerCity;
+    String customerAddress;
+    String restaurantName;
+    String restaurantCity;
+    String restaurantPhoneNumber;
+    String driverName;
+    long totalCost;
+    ArrayList<Line> lines = new ArrayList<>();
+
+    /**
+     * A single item "line" on an invoice.
+     */
+    public static class Line {
+
+        //Attributes
+        int itemQuantity;
+        String itemName;
+        long itemPrice;
+        String preparationInstructions;
+
+        /**
+         * The constructor for the Line class.
+         *
+         * @param itemQuantity The number of items ordered.
+         * @param itemName The name of the menu item.
+         * @param itemPrice The price of one of the items in cents.
+         * @param preparationInstructions Any preparation instructions attached to the line.
+         */
+        public Line(int itemQuantity, String itemName, long itemPrice, String preparationInstructions) {
+            this.itemQuantity = itemQuantity;
+            this.itemName = itemName;
+            this.itemPrice = itemPrice;
+            this.preparationInstructions = preparationInstructions;
+        }
+    }
+
+    /* The columns selected for the heading of an invoice. They are shared by the single and the bulk queries. */
+    static final String INVOICE_COLUMNS = "o.order_number, o.total_cost, c.customer_firstname, c.customer_surname, " +
+            "c.customer_email, c.customer_phone_num, c.customer_city, c.customer_address, r.restaurant_name, " +
+            "r.restaurant_city, r.restaurant_phone_num, d.driver_name";
+
+    static final String INVOICE_JOINS = "FROM orders o " +
+            "LEFT JOIN customer c ON c.customer_id = o.customer_id " +
+            "LEFT JOIN restaurant r ON r.restaurant_id = o.restaurant_id " +
+            "LEFT JOIN driver d ON d.driver_id = o.driver_id ";
+
+    /* The number of orders whose invoices are loaded with one query by <code>loadInvoices</code>. */
+    static final int LOAD_BATCH_SIZE = 500;
+
+    //Methods
+
+    /**
+     * This method loads everything that is needed to render the invoice of one order. The heading of the invoice is
+     * read with a single query that joins the <code>orders</code>, <code>customer</code>, <code>restaurant</code>
+     * and <code>driver</code> tables and the lines are read with a second query that joins <code>items_order</code>
+     * and <code>item</code>.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed here for the
+     *                   <code>PreparedStatement</code>.
+     * @param orderNumber The order number of the invoice.
+     * @return The invoice of the order.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static Invoice loadInvoice(Connection connection, int orderNumber) throws SQLException {
+
+        Invoice invoice = new Invoice();
+        invoice.orderNumber = orderNumber;
+
+        /* The heading of the invoice. */
+        String mySQLQueryInvoice = "SELECT " + INVOICE_COLUMNS + " " + INVOICE_JOINS + "WHERE o.order_number = ?;";
+        PreparedStatement pstmtInvoice = connection.prepareStatement(mySQLQueryInvoice);
+        pstmtInvoice.setInt(1, orderNumber);
+        ResultSet resultsInvoice = pstmtInvoice.executeQuery();
+        while (resultsInvoice.next()) {
+            invoice.readHeading(resultsInvoice);
+        }
+
+        /* The lines of the invoice. */
+        String mySQLQueryLines = "SELECT io.item_quantity, io.preparation_instructions, i.item_name, i.item_price " +
+                "FROM items_order io LEFT JOIN item i ON i.item_id = io.item_id WHERE io.order_number = ?;";
+        PreparedStatement pstmtLines = connection.prepareStatement(mySQLQueryLines);
+        pstmtLines.setInt(1, orderNumber);
+        ResultSet resultsLines = pstmtLines.executeQuery();
+        while (resultsLines.next()) {
+            invoice.readLine(resultsLines);
+        }
+
+        /* Closing of resources to prevent resource leaking. */
+        pstmtInvoice.close();
+        pstmtLines.close();
+        resultsInvoice.close();
+        resultsLines.close();
+
+        return invoice;
+
+    }
+
+    /**
+     * This method loads the invoices of many orders at once, for example when a whole shift is finalised. The
+     * headings and the lines are each read with one query per <code>LOAD_BATCH_SIZE</code> orders instead of two
+     * queries per order.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed here for the
+     *                   <code>PreparedStatement</code>.
+     * @param orderNumbers The order numbers of the invoices.
+     * @return The invoices in the same order as the order numbers.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static ArrayList<Invoice> loadInvoices(Connection connection, ArrayList<Integer> orderNumbers)
+            throws SQLException {
+
+        LinkedHashMap<Integer, Invoice> invoices = new LinkedHashMap<>();
+        for (int orderNumber : orderNumbers) {
+            Invoice invoice = new Invoice();
+            invoice.orderNumber = orderNumber;
+            invoices.put(orderNumber, invoice);
+        }
+
+        for (int first = 0; first < orderNumbers.size(); first += LOAD_BATCH_SIZE) {
+
+            List<Integer> batch = orderNumbers.subList(first, Math.min(first + LOAD_BATCH_SIZE, orderNumbers.size()));
+            String placeholders = String.join(", ", Collections.nCopies(batch.size(), "?"));
+
+            /* The headings of the invoices in this batch. */
+            String mySQLQueryInvoices = "SELECT " + INVOICE_COLUMNS + " " + INVOICE_JOINS +
+                    "WHERE o.order_number IN (" + placeholders + ");";
+            PreparedStatement pstmtInvoices = connection.prepareStatement(mySQLQueryInvoices);
+            for (int i = 0; i < batch.size(); i++) {
+                pstmtInvoices.setInt(i + 1, batch.get(i));
+            }
+            ResultSet resultsInvoices = pstmtInvoices.executeQuery();
+            while (resultsInvoices.next()) {
+                invoices.get(resultsInvoices.getInt("order_number")).readHeading(resultsInvoices);
+            }
+
+            /* The lines of the invoices in this batch. */
+            String mySQLQueryLines = "SELECT io.order_number, io.item_quantity, io.preparation_instructions, " +
+                    "i.item_name, i.item_price FROM items_order io LEFT JOIN item i ON i.item_id = io.item_id " +
+                    "WHERE io.order_number IN (" + placeholders + ");";
+            PreparedStatement pstmtLines = connection.prepareStatement(mySQLQueryLines);
+            for (int i = 0; i < batch.size(); i++) {
+                pstmtLines.setInt(i + 1, batch.get(i));
+            }
+            ResultSet resultsLines = pstmtLines.executeQuery();
+            while (resultsLines.next()) {
+                invoices.get(resultsLines.getInt("order_number")).readLine(resultsLines);
+            }
+
+            /* Closing of resources to prevent resource leaking. */
+            pstmtInvoices.close();
+            pstmtLines.close();
+            resultsInvoices.close();
+            resultsLines.close();
+        }
+
+        return new ArrayList<>(invoices.values());
+
+    }
+
+    /**
+     * This method exports the invoices of all finalised orders for the accounting system. The invoices and their
+     * lines are read with one query that is streamed from the MySQL server row by row. A single Invoice and a single
+     * InvoiceBuffer are reused for every order, so the memory used stays the same no matter how many invoices are
+     * exported.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed here for the
+     *                   <code>PreparedStatement</code>.
+     * @param renderer The renderer that determines the format of the export.
+     * @param out The stream the export is written to.
+     * @return The number of invoices that were exported.
+     * @throws SQLException If the underlying MySQL service fails.
+     * @throws IOException If the export cannot be written.
+     */
+    public static int exportFinalisedInvoices(Connection connection, InvoiceRenderer renderer,
+                                              OutputStream out) throws SQLException, IOException {
+
+        int invoicesExported = 0;
+        Invoice invoice = new Invoice();
+        InvoiceBuffer invoiceBuffer = new InvoiceBuffer(64 * 1024);
+
+        /*
+         * The lines are joined onto the heading and ordered by order number, so all the rows of an invoice arrive
+         * together. A fetch size of Integer.MIN_VALUE tells the MySQL driver to stream the rows instead of reading
+         * the whole result into memory.
+         */
+        String mySQLQueryExport = "SELECT " + INVOICE_COLUMNS + ", io.item_id, io.item_quantity, " +
+                "io.preparation_instructions, i.item_name, i.item_price " + INVOICE_JOINS +
+                "LEFT JOIN items_order io ON io.order_number = o.order_number " +
+                "LEFT JOIN item i ON i.item_id = io.item_id " +
+                "WHERE o.finalised IS TRUE ORDER BY o.order_number;";
+        PreparedStatement pstmtExport = connection.prepareStatement(mySQLQueryExport, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+        pstmtExport.setFetchSize(Integer.MIN_VALUE);
+        ResultSet resultsExport = pstmtExport.executeQuery();
+
+        renderer.renderHeader(invoiceBuffer);
+        while (resultsExport.next()) {
+
+            /* A new order number means the previous invoice is complete and can be rendered. */
+            int orderNumber = resultsExport.getInt("order_number");
+            if (orderNumber != invoice.orderNumber) {
+                if (invoice.orderNumber != 0) {
+                    renderer.render(invoice, invoiceBuffer);
+                    invoicesExported++;
+                }
+                invoice.lines.clear();
+                invoice.orderNumber = orderNumber;
+                invoice.readHeading(resultsExport);
+            }
+
+            /* Orders without any lines produce a single row with a NULL item id. */
+            resultsExport.getInt("item_id");
+            if (!resultsExport.wasNull()) {
+                invoice.readLine(resultsExport);
+            }
+
+            /* The buffer is written out whenever it has grown large so that it never holds more than a few invoices. */
+            if (invoiceBuffer.length() > 32 * 1024) {
+                invoiceBuffer.writeTo(out);
+                invoiceBuffer.reset();
+            }
+        }
+        if (invoice.orderNumber != 0) {
+            renderer.render(invoice, invoiceBuffer);
+            invoicesExported++;
+        }
+        renderer.renderFooter(invoiceBuffer);
+        invoiceBuffer.writeTo(out);
+        out.flush();
+
+        /* Closing of resources to prevent resource leaking. */
+        pstmtExport.close();
+        resultsExport.close();
+
+        return invoicesExported;
+
+    }
+
+    /**
+     * Reads the heading fields of the invoice from the current row of a ResultSet.
+     *
+     * @param results A ResultSet positioned on a row that contains the <code>INVOICE_COLUMNS</code>.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    private void readHeading(ResultSet results) throws SQLException {
+
+        /* Missing values are shown as empty text, in the same way as the find methods of the other classes. */
+        customerName = emptyIfNull(results.getString("customer_firstname")) + " " +
+                emptyIfNull(results.getString("customer_surname"));
+        customerEmail = emptyIfNull(results.getString("customer_email"));
+        customerPhoneNumber = emptyIfNull(results.getString("customer_phone_num"));
+        customerCity = emptyIfNull(results.getString("customer_city"));
+        customerAddress = emptyIfNull(results.getString("customer_address"));
+        restaurantName = emptyIfNull(results.getString("restaurant_name"));
+        restaurantCity = emptyIfNull(results.getString("restaurant_city"));
+        restaurantPhoneNumber = emptyIfNull(results.getString("restaurant_phone_num"));
+        driverName = emptyIfNull(results.getString("driver_name"));
+        totalCost = Money.read(results, "total_cost");
+
+    }
+
+    /**
+     * Reads one item line of the invoice from the current row of a ResultSet and adds it to the invoice.
+     *
+     * @param results A ResultSet positioned on a row that contains the line columns.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    private void readLine(ResultSet results) throws SQLException {
+        lines.add(new Line(results.getInt("item_quantity"), results.getString("item_name"),
+                Money.read(results, "item_price"), results.getString("preparation_instructions")));
+    }
+
+    /**
+     * A utility method that replaces a <code>NULL</code> column value with an empty String.
+     *
+     * @param value The value read from the ResultSet.
+     * @return The value, or an empty String if it was <code>null</code>.
+     */
+    private static String emptyIfNull(String value) {
+        return value == null ? "" : value;
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * The invoice archive keeps a copy of every invoice that is printed so that it can be reprinted later without
+ * searching through <code>invoice.txt</code>. Invoices are appended to data files ("segments") in the
+ * <code>invoice-archive</code> directory and an index file records where each order's invoice starts and how long it
+ * is. The index is addressed directly by order number, so finding an invoice is a single read regardless of how many
+ * invoices have been archived. A new segment is started every day or when the current segment becomes too large.
+ * <p>
+ * Every shard (see ShardRouter) has its own index file, addressed by the order number within the range of the shard.
+ * Otherwise the records of shard n would start n times 2.4 GB into a single index file.
+ */
+public class InvoiceArchive {
+
+    // Global variables
+
+    /* The directory, file names and limits used by the archive. */
+    public static final String ARCHIVE_DIRECTORY = "invoice-archive";
+    public static final String INDEX_FILE_NAME = "invoices.idx";
+    public static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /*
+     * Every index record is 24 bytes: the segment day (yyyyMMdd), the segment number, the offset of the invoice in
+     * the segment, the length of the invoice and 4 unused bytes to keep the records aligned.
+     */
+    static final int INDEX_RECORD_SIZE = 24;
+
+    static final DateTimeFormatter SEGMENT_DAY_FORMAT = DateTimeFormatter.BASIC_ISO_DATE;
+
+    /* The segment that is currently being appended to. A day of 0 means that it has not been determined yet. */
+    private static int currentSegmentDay = 0;
+    private static int currentSegmentNumber = 0;
+
+    //Methods
+
+    /**
+     * This method appends an invoice to the current segment and records its position in the index. It is invoked in
+     * the <code>printInvoice</code> method in the <code>Order</code> class.
+     *
+     * @param orderNumber The order number of the invoice. It is used as the position of the record in the index.
+     * @param invoice The rendered invoice.
+     */
+    public static synchronized void archiveInvoice(int orderNumber, InvoiceBuffer invoice) {
+
+        try {
+
+            /* Making sure the archive directory exists and choosing the segment to write to. */
+            new File(ARCHIVE_DIRECTORY).mkdirs();
+            selectSegment(invoice.length());
+
+            /* Appending the invoice to the segment. The offset is the size of the segment before the write. */
+            long offset;
+            try (FileChannel segment = FileChannel.open(segmentPath(currentSegmentDay, currentSegmentNumber),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                offset = segment.size();
+                ByteBuffer invoiceBuffer = ByteBuffer.wrap(invoice.array(), 0, invoice.length());
+                while (invoiceBuffer.hasRemaining()) {
+                    segment.write(invoiceBuffer);
+                }
+            }
+
+            /* Writing the index record at the position determined by the order number. */
+            ByteBuffer indexRecord = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+            indexRecord.putInt(currentSegmentDay);
+            indexRecord.putInt(currentSegmentNumber);
+            indexRecord.putLong(offset);
+            indexRecord.putInt(invoice.length());
+            indexRecord.putInt(0);
+            indexRecord.flip();
+            try (FileChannel index = FileChannel.open(indexPath(orderNumber), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                long position = indexPosition(orderNumber);
+                while (indexRecord.hasRemaining()) {
+                    position += index.write(indexRecord, position);
+                }
+            }
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error: IOException - archiveInvoice()");
+        }
+
+    }
+
+    /**
+     * This method finds an archived invoice by its order number. It reads one index record and then the invoice
+     * itself from the segment that the record points to.
+     *
+     * @param orderNumber The order number of the invoice to find.
+     * @return The text of the invoice, or <code>null</code> if no invoice was archived for the order number.
+     */
+    public static synchronized String findInvoice(int orderNumber) {
+
+        if (orderNumber <= 0 || !indexPath(orderNumber).toFile().exists()) {
+            return null;
+        }
+
+        try {
+
+            /* Reading the index record for the order number. A length of 0 means nothing was archived. */
+            ByteBuffer indexRecord = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+            try (FileChannel index = FileChannel.open(indexPath(orderNumber), StandardOpenOption.READ)) {
+                long position = indexPosition(orderNumber);
+                if (position + INDEX_RECORD_SIZE > index.size()) {
+                    return null;
+                }
+                while (indexRecord.hasRemaining()) {
+                    position += index.read(indexRecord, position);
+                }
+            }
+            indexRecord.flip();
+            int segmentDay = indexRecord.getInt();
+            int segmentNumber = indexRecord.getInt();
+            long offset = indexRecord.getLong();
+            int length = indexRecord.getInt();
+            if (length == 0) {
+                return null;
+            }
+
+            /* Reading the invoice from its segment. */
+            ByteBuffer invoiceBuffer = ByteBuffer.allocate(length);
+            try (FileChannel segment = FileChannel.open(segmentPath(segmentDay, segmentNumber),
+                    StandardOpenOption.READ)) {
+                long position = offset;
+                while (invoiceBuffer.hasRemaining()) {
+                    int bytesRead = segment.read(invoiceBuffer, position);
+                    if (bytesRead < 0) {
+                        return null;
+                    }
+                    position += bytesRead;
+                }
+            }
+
+            return new String(invoiceBuffer.array(), StandardCharsets.UTF_8);
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error: IOException - findInvoice()");
+            return null;
+        }
+
+    }
+
+    /**
+     * This method decides which segment the next invoice is written to. A new segment is started when the day
+     * changes or when the invoice would make the current segment larger than <code>MAX_SEGMENT_SIZE</code>.
+     *
+     * @param invoiceLength The length in bytes of the invoice that is about to be written.
+     */
+    private static void selectSegment(int invoiceLength) {
+
+        int today = Integer.parseInt(LocalDate.now().format(SEGMENT_DAY_FORMAT));
+
+        /*
+         * On the first write of the day the existing segments are checked so that a restart of the program continues
+         * with the last segment of the day instead of starting over at segment 0.
+         */
+        if (today != currentSegmentDay) {
+            currentSegmentDay = today;
+            currentSegmentNumber = 0;
+            while (segmentPath(currentSegmentDay, currentSegmentNumber + 1).toFile().exists()) {
+                currentSegmentNumber++;
+            }
+        }
+
+        /* Moving to the next segment when the current one is full. */
+        File segmentFile = segmentPath(currentSegmentDay, currentSegmentNumber).toFile();
+        if (segmentFile.length() > 0 && segmentFile.length() + invoiceLength > MAX_SEGMENT_SIZE) {
+            currentSegmentNumber++;
+        }
+
+    }
+
+    /**
+     * A utility method to find the index file of an order. The orders of shard 0 use <code>INDEX_FILE_NAME</code>, so
+     * an archive from before the orders were sharded is still read.
+     *
+     * @param orderNumber The order number of the invoice.
+     * @return The path of the index file of the shard of the order.
+     */
+    private static Path indexPath(int orderNumber) {
+        int shard = (orderNumber - 1) / ShardRouter.SHARD_RANGE;
+        return Path.of(ARCHIVE_DIRECTORY, shard == 0 ? INDEX_FILE_NAME : "invoices-shard-" + shard + ".idx");
+    }
+
+    /**
+     * @param orderNumber The order number of the invoice.
+     * @return The position of the order's record in the index file of its shard.
+     */
+    private static long indexPosition(int orderNumber) {
+        return (long) ((orderNumber - 1) % ShardRouter.SHARD_RANGE + 1) * INDEX_RECORD_SIZE;
+    }
+
+    /**
+     * A utility method to build the path of a segment from its day and number.
+     *
+     * @param segmentDay The day of the segment in yyyyMMdd format.
+     * @param segmentNumber The number of the segment within that day.
+     * @return The path of the segment file.
+     */
+    private static Path segmentPath(int segmentDay, int segmentNumber) {
+        return Path.of(ARCHIVE_DIRECTORY, "invoices-" + segmentDay + "-" + segmentNumber + ".dat");
+    }
+}
@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reusable byte buffer that the invoice renderers write into. Text is encoded to UTF-8 directly into the buffer and
+ * numbers are written digit by digit, so rendering an invoice does not build intermediate Strings. The same buffer is
+ * reset and reused for every invoice in a bulk export.
+ */
+public class InvoiceBuffer {
+
+    //Attributes
+    byte[] bytes;
+    int length;
+
+    //Methods
+
+    /**
+     * The constructor for the InvoiceBuffer class.
+     *
+     * @param initialCapacity The number of bytes the buffer can hold before it has to grow.
+     */
+    public InvoiceBuffer(int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+        this.length = 0;
+    }
+
+    /**
+     * Empties the buffer so that it can be reused for the next invoice. The underlying array is kept.
+     */
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * @return The number of bytes currently in the buffer.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return The underlying array. Only the first <code>length()</code> bytes are part of the content.
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    /**
+     * Appends text to the buffer encoded as UTF-8. A <code>null</code> value is written as "null" in the same way
+     * that <code>PrintWriter</code> does.
+     *
+     * @param text The text to append.
+     * @return This buffer so that calls can be chained.
+     */
+    public InvoiceBuffer append(String text) {
+
+        if (text == null) {
+            text = "null";
+        }
+
+        return append(text, 0, text.length());
+    }
+
+    /**
+     * Appends part of a String to the buffer encoded as UTF-8.
+     *
+     * @param text The text to append from.
+     * @param start The index of the first character to append.
+     * @param end The index after the last character to append.
+     * @return This buffer so that calls can be chained.
+     */
+    public InvoiceBuffer append(String text, int start, int end) {
+
+        ensureCapacity(end - start);
+        for (int i = start; i < end; i++) {
+            char character = text.charAt(i);
+
+            /* Plain ASCII is by far the most common case and is copied straight across. */
+            if (character < 0x80) {
+                ensureCapacity(1);
+                bytes[length++] = (byte) character;
+            } else if (character < 0x800) {
+                ensureCapacity(2);
+                bytes[length++] = (byte) (0xC0 | (character >> 6));
+                bytes[length++] = (byte) (0x80 | (character & 0x3F));
+            } else if (Character.isHighSurrogate(character) && i + 1 < end
+                    && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(character, text.charAt(++i));
+                ensureCapacity(4);
+                bytes[length++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                ensureCapacity(3);
+                bytes[length++] = (byte) (0xE0 | (character >> 12));
+                bytes[length++] = (byte) (0x80 | ((character >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (character & 0x3F));
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Appends a single ASCII character to the buffer.
+     *
+     * @param character The character to append.
+     * @return This buffer so that calls can be chained.
+     */
+    public InvoiceBuffer append(char character) {
+        ensureCapacity(1);
+        bytes[length++] = (byte) character;
+        return this;
+    }
+
+    /**
+     * Appends the decimal digits of a number to the buffer.
+     *
+     * @param number The number to append.
+     * @return This buffer so that calls can be chained.
+     */
+    public InvoiceBuffer append(long number) {
+
+        if (number < 0) {
+            append('-');
+            number = -number;
+        }
+
+        /* The digits are written from the back, so the number of digits is counted first. */
+        int digits = 1;
+        for (long remaining = number / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int position = length + digits - 1; position >= length; position--) {
+            bytes[position] = (byte) ('0' + (number % 10));
+            number /= 10;
+        }
+        length += digits;
+
+        return this;
+    }
+
+    /**
+     * Appends a number padded on the left with zeros to a fixed width.
+     *
+     * @param number The number to append. It must not be negative.
+     * @param width The number of characters the number must take up.
+     * @return This buffer so that calls can be chained.
+     */
+    public InvoiceBuffer appendZeroPadded(long number, int width) {
+
+        int digits = 1;
+        for (long remaining = number / 10; remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        for (int i = digits; i < width; i++) {
+            append('0');
+        }
+
+        return append(number);
+    }
+
+    /**
+     * Appends an amount of money with two decimal places.
+     *
+     * @param cents The amount to append, in cents (see <code>Money</code>).
+     * @return This buffer so that calls can be chained.
+     */
+    public InvoiceBuffer appendAmount(long cents) {
+
+        if (cents < 0) {
+            append('-');
+            cents = -cents;
+        }
+        append(cents / 100);
+        append('.');
+
+        return appendZeroPadded(cents % 100, 2);
+    }
+
+    /**
+     * Appends text cut off or padded on the right with spaces to a fixed width. It is used for the fixed-width
+     * accounting format.
+     *
+     * @param text The text to append.
+     * @param width The number of characters the text must take up.
+     * @return This buffer so that calls can be chained.
+     */
+    public InvoiceBuffer appendPadded(String text, int width) {
+
+        if (text == null) {
+            text = "";
+        }
+
+        int characters = Math.min(text.length(), width);
+        append(text, 0, characters);
+        for (int i = characters; i < width; i++) {
+            append(' ');
+        }
+
+        return this;
+    }
+
+    /**
+     * Appends text as a quoted JSON string with the necessary characters escaped.
+     *
+     * @param text The text to append. A <code>null</code> value is written as the JSON literal null.
+     * @return This buffer so that calls can be chained.
+     */
+    public InvoiceBuffer appendJsonString(String text) {
+
+        if (text == null) {
+            return append("null");
+        }
+
+        append('"');
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char character = text.charAt(i);
+            if (character == '"' || character == '\\' || character < 0x20) {
+
+                /* Everything up to the character that needs escaping is copied in one go. */
+                append(text, start, i);
+                append('\\');
+                switch (character) {
+                    case '"' -> append('"');
+                    case '\\' -> append('\\');
+                    case '\n' -> append('n');
+                    case '\r' -> append('r');
+                    case '\t' -> append('t');
+                    default -> {
+                        append("u00");
+                        append(Character.forDigit(character >> 4, 16));
+                        append(Character.forDigit(character & 0xF, 16));
+                    }
+                }
+                start = i + 1;
+            }
+        }
+        append(text, start, text.length());
+
+        return append('"');
+    }
+
+    /**
+     * Appends text as a CSV field. The field is only quoted when it contains a comma, a quote or a line break.
+     *
+     * @param text The text to append.
+     * @return This buffer so that calls can be chained.
+     */
+    public InvoiceBuffer appendCsvField(String text) {
+
+        if (text == null) {
+            return this;
+        }
+
+        boolean needsQuotes = false;
+        for (int i = 0; i < text.length() && !needsQuotes; i++) {
+            char character = text.charAt(i);
+            needsQuotes = character == ',' || character == '"' || character == '\n' || character == '\r';
+        }
+        if (!needsQuotes) {
+            return append(text);
+        }
+
+        append('"');
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '"') {
+                append(text, start, i + 1);
+                start = i;
+            }
+        }
+        append(text, start, text.length());
+
+        return append('"');
+    }
+
+    /**
+     * Writes the content of the buffer to an output stream.
+     *
+     * @param out The stream to write to.
+     * @throws IOException If the stream cannot be written to.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    /**
+     * @return The content of the buffer decoded as a String.
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Grows the underlying array when it cannot hold the number of extra bytes that is about to be written.
+     *
+     * @param extraBytes The number of bytes that is about to be written.
+     */
+    private void ensureCapacity(int extraBytes) {
+        if (length + extraBytes > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extraBytes));
+        }
+    }
+}
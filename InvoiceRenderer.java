@@ -0,0 +1,46 @@
+/**
+ * A renderer writes invoices in a specific format into an <code>InvoiceBuffer</code>. The header and footer are
+ * written once per export, around all the invoices, which is needed by formats such as CSV and JSON.
+ */
+public interface InvoiceRenderer {
+
+    /**
+     * Writes anything that must come before the first invoice of an export.
+     *
+     * @param buffer The buffer to write to.
+     */
+    default void renderHeader(InvoiceBuffer buffer) {
+    }
+
+    /**
+     * Writes a single invoice.
+     *
+     * @param invoice The invoice to write.
+     * @param buffer The buffer to write to.
+     */
+    void render(Invoice invoice, InvoiceBuffer buffer);
+
+    /**
+     * Writes anything that must come after the last invoice of an export.
+     *
+     * @param buffer The buffer to write to.
+     */
+    default void renderFooter(InvoiceBuffer buffer) {
+    }
+
+    /**
+     * A utility method that returns the renderer for a format name entered by the user.
+     *
+     * @param format The name of the format: text, csv, json or fixed.
+     * @return A new renderer for the format, or <code>null</code> if the format is unknown.
+     */
+    static InvoiceRenderer forFormat(String format) {
+        return switch (format.trim().toLowerCase()) {
+            case "text" -> new TextInvoiceRenderer();
+            case "csv" -> new CsvInvoiceRenderer();
+            case "json" -> new JsonInvoiceRenderer();
+            case "fixed" -> new FixedWidthInvoiceRenderer();
+            default -> null;
+        };
+    }
+}
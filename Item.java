@@ -2,13 +2,14 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Scanner;
 
 public class Item {
 
     //Attributes
     String itemName;
-    float price;
+    long price;
 
     // Global variables
 
@@ -20,9 +21,9 @@ public class Item {
      * The constructor for the item class. It is not used but has been included for the sake of completeness.
      *
      * @param itemName The description of the menu item.
-     * @param price The price of the item.
+     * @param price The price of the item in cents.
      */
-    public Item(String itemName, float price) {
+    public Item(String itemName, long price) {
         this.itemName = itemName;
         this.price = price;
     }
@@ -42,19 +43,42 @@ public class Item {
 
         /* User input of the item's details.*/
         String itemName = UserInput.readString("Item Name: ", input);
-        double itemPrice = UserInput.readDouble("Item Price: ", input);
+        long itemPrice = UserInput.readAmount("Item Price: ", input);
+        String restaurantName = UserInput.readString("Restaurant Name (leave blank for all restaurants): ", input);
+
+        long startTime = Metrics.startTimer();
 
         /* Using PreparedStatement to insert the variables into the item table.*/
         String mySQLQueryCreateNewItem = "INSERT INTO item VALUES (?, ?, ?)";
-        PreparedStatement pstmtCreateNewItem = connection.prepareStatement(mySQLQueryCreateNewItem);
+        PreparedStatement pstmtCreateNewItem = connection.prepareStatement(mySQLQueryCreateNewItem,
+                Statement.RETURN_GENERATED_KEYS);
         pstmtCreateNewItem.setString(1, null); //Auto_increment
         pstmtCreateNewItem.setString(2, itemName);
-        pstmtCreateNewItem.setDouble(3, itemPrice);
+        Money.write(pstmtCreateNewItem, 3, itemPrice);
 
         /* Execution of statement and determining if the addition was successful (with user feedback).*/
         rowsAffected = pstmtCreateNewItem.executeUpdate();
         if (rowsAffected > 0) {
             System.out.println("The item was successfully created.\n");
+
+            /* Reading the new item id to link the item to its restaurant and add it to the in-memory menus. */
+            int itemId = 0;
+            ResultSet resultsItemId = pstmtCreateNewItem.getGeneratedKeys();
+            while (resultsItemId.next()) {
+                itemId = resultsItemId.getInt(1);
+            }
+            resultsItemId.close();
+
+            if (!restaurantName.isBlank()) {
+                int restaurantId = Restaurant.findRestaurantId(connection, restaurantName);
+                if (restaurantId != 0) {
+                    MenuCatalogue.linkItem(connection, restaurantId, itemId);
+                } else {
+                    System.out.println("The restaurant was not found, so the item is offered by all restaurants.\n");
+                }
+            }
+            SearchIndex.ITEMS.refresh(connection, itemId);
+            MenuCatalogue.refreshItem(connection, itemId);
         } else {
             System.out.println("The item could not be created. Please review your input\n");
         }
@@ -62,6 +86,8 @@ public class Item {
         /* Closing of resource to prevent resource leaking. */
         pstmtCreateNewItem.close();
 
+        Metrics.recordLatency("Item.createNewItem", startTime);
+
     }
 
 
@@ -77,6 +103,8 @@ public class Item {
      */
     public static String findItemName(Connection connection, int itemId) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /*Declaration and initialisation of variable because it is needed outside the while loop.*/
         String itemName = "";
 
@@ -98,24 +126,26 @@ public class Item {
         pstmtFindItem.close();
         resultsFindItem.close();
 
+        Metrics.recordLatency("Item.findItemName", startTime);
         return itemName;
     }
 
     /**
-     * A method to find an item's price from its unique item id. It is used as a utility in the <code>ItemsOrder
-     * .addItemToOrder</code> method as well as the display and print invoice functionalities of the program that
-     * resides as utilities in the Order class.
+     * A method to find an item's price from its unique item id. It is used as a utility in the display and print
+     * invoice functionalities of the program that resides as utilities in the Order class.
      *
      * @param connection The Connection resource from the <code>main</code> method needed here for the
      *                   <code>PreparedStatement</code>.
      * @param itemId The unique id number for the menu item.
-     * @return The price of the item based on its unique id number.
+     * @return The price of the item in cents based on its unique id number.
      * @throws SQLException If the underlying MySQL service fails.
      */
-    public static double findItemPrice(Connection connection, int itemId) throws SQLException {
+    public static long findItemPrice(Connection connection, int itemId) throws SQLException {
+
+        long startTime = Metrics.startTimer();
 
         /* Declaration and initialisation of this variable because it is needed outside the while loop.*/
-        double itemPrice = 0.00;
+        long itemPrice = 0;
 
         /*Use of a PreparedStatement to select the item_price field for a specific item ID.*/
         String mySQLQueryFindPrice = "SELECT item_price FROM item WHERE item_id = ?;";
@@ -128,13 +158,14 @@ public class Item {
          */
         ResultSet resultsFindPrice = pstmtFindPrice.executeQuery();
         while (resultsFindPrice.next()) {
-            itemPrice = resultsFindPrice.getDouble("item_price");
+            itemPrice = Money.read(resultsFindPrice, "item_price");
         }
 
         /* Closing resources to prevent resource leaking.*/
         pstmtFindPrice.close();
         resultsFindPrice.close();
 
+        Metrics.recordLatency("Item.findItemPrice", startTime);
         return itemPrice;
 
     }
@@ -149,28 +180,30 @@ public class Item {
      * @param fieldToUpdate The name in string format of the field that must be updated.
      * @param newValue The new string value of the field (if applicable). The data type depends on the field and
      *                 there is an if/else statement to handle different data types differently.
-     * @param newValueDouble The new double value of the field (if applicable). The same handling applies as with
+     * @param newValueCents The new amount of the field in cents (if applicable). The same handling applies as with
      *                       <code>newValue</code> above.
      * @param typeOfData The type of data of the new value to enable different handling.
      * @param itemId The unique id number of the menu item.
      * @throws SQLException If the underlying MySQL service fails.
      */
     public static void performFieldUpdate (Connection connection, String fieldToUpdate, String newValue,
-                                                 double newValueDouble, String typeOfData,
+                                                 long newValueCents, String typeOfData,
                                                  int itemId) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /*
-         * Setting up two different MySQL statements because this method can either require a String or a double data
-         * type depending on which value needs to be updated. The if/else statement uses the typeOfData parameter to
+         * Setting up two different MySQL statements because this method can either require a String or an amount
+         * depending on which value needs to be updated. The if/else statement uses the typeOfData parameter to
          * determine which MySQL to use.
          */
         String mySQLQueryFieldUpdate = "";
         if (typeOfData.equalsIgnoreCase("string")) {
             mySQLQueryFieldUpdate =
                     "UPDATE item SET " + fieldToUpdate  + " = '" + newValue + "' WHERE item_id = ?;";
-        } else if (typeOfData.equalsIgnoreCase("double")) {
+        } else if (typeOfData.equalsIgnoreCase("money")) {
             mySQLQueryFieldUpdate =
-                    "UPDATE item SET " + fieldToUpdate  + " = '" + newValueDouble + "' WHERE item_id = ?;";
+                    "UPDATE item SET " + fieldToUpdate  + " = '" + Money.format(newValueCents) + "' WHERE item_id = ?;";
         }
 
         /* The PreparedStatement and insertion of the variable as normal. */
@@ -182,6 +215,8 @@ public class Item {
         rowsAffected = pstmtFieldUpdate.executeUpdate();
         if (rowsAffected > 0) {
             System.out.println("The item was updated successfully.\n");
+            SearchIndex.ITEMS.refresh(connection, itemId);
+            MenuCatalogue.refreshItem(connection, itemId);
         } else {
             System.out.println("The update could not be done. Please check that the customer ID is correct.\n");
         }
@@ -189,5 +224,7 @@ public class Item {
         /* Closing resource to prevent resource leaking.*/
         pstmtFieldUpdate.close();
 
+        Metrics.recordLatency("Item.performFieldUpdate", startTime);
+
     }
 }
\ No newline at end of file
@@ -12,7 +12,7 @@ public class ItemsOrder {
     int orderNumber;
     String preparationInstructions;
     int itemQuantity;
-    double item_cost;
+    long item_cost;
 
     // Methods
 
@@ -23,9 +23,9 @@ public class ItemsOrder {
      * @param orderNumber The order number as it appears in the <code>orders</code> table.
      * @param preparationInstructions Any preparation instructions that is attached to an order.
      * @param itemQuantity The number of items. Needed for the cost calculation.
-     * @param item_cost The calculated total cost for a specific item.
+     * @param item_cost The calculated total cost for a specific item in cents.
      */
-    public ItemsOrder(int itemId, int orderNumber, String preparationInstructions, int itemQuantity, double item_cost) {
+    public ItemsOrder(int itemId, int orderNumber, String preparationInstructions, int itemQuantity, long item_cost) {
         this.itemId = itemId;
         this.orderNumber = orderNumber;
         this.preparationInstructions = preparationInstructions;
@@ -34,9 +34,10 @@ public class ItemsOrder {
     }
 
     /**
-     * A utility method to add an item "line" to an order.
+     * A utility method to add an item "line" to an order. The line is submitted with a key in the same way as an
+     * order (see OrderSubmissions), so that adding it again after a failed attempt does not save it twice.
      * @param connection The Connection resource from the <code>main</code> method of the program needed for the
-     *                   invocation of the <code>getItemPrice</code> method in the <code>Item</code> class.
+     *                   insert and to load the menus the first time they are needed.
      * @param input The Scanner instance from the <code>main</code> method needed here to read user input with the
      *              help of the utility class <code>UserInput</code>.
      * @param orderNumber The order number so that the items in the items_order table can be linked back to the orders
@@ -45,14 +46,47 @@ public class ItemsOrder {
      */
     public static void addItemToOrder(Connection connection, Scanner input, int orderNumber) throws SQLException {
 
+        /*
+         * The menu of the order's restaurant is shown from the in-memory menu catalogue, and the item ID is read
+         * until it is an item on that menu, so that no database read is needed to check or price the item.
+         */
+        int restaurantId = PopularityTracker.findOrderRestaurant(connection, orderNumber);
+        MenuCatalogue.displayMenu(connection, restaurantId);
         System.out.println("Please enter items details:");
 
-        /* User input of the variables needed to add an item to an order. The last variable is a calculated value.*/
-        int itemId = UserInput.readInteger("Item ID: ", input);
+        /*
+         * User input of the variables needed to add an item to an order. The last variable is a calculated value.
+         * An item ID of 0 cancels the item and returns to the menu.
+         */
+        int itemId = UserInput.readInteger("Item ID (0 to cancel): ", input);
+        MenuCatalogue.MenuItem menuItem = MenuCatalogue.findMenuItem(connection, restaurantId, itemId);
+        while (menuItem == null && itemId != 0) {
+            itemId = UserInput.readInteger("That item is not on the menu. Item ID (0 to cancel): ", input);
+            menuItem = MenuCatalogue.findMenuItem(connection, restaurantId, itemId);
+        }
+        if (menuItem == null) {
+            System.out.println("No item was added.\n");
+            return;
+        }
         String preparationInstructions = UserInput.readString("Preparation Instructions: ", input);
         int itemQuantity = UserInput.readInteger("Item Quantity: ", input);
-        double itemPrice = Item.findItemPrice(connection, itemId);
-        double totalCost = itemPrice * itemQuantity;
+        long totalCost = Money.multiply(menuItem.itemPrice, itemQuantity);
+
+        long startTime = Metrics.startTimer();
+
+        /*
+         * A line that is submitted again after a failed attempt keeps the key of that attempt (see OrderSubmissions),
+         * so that a line the attempt may already have saved is not added a second time.
+         */
+        String submissionDescription = "line of order " + orderNumber + " " + itemId + " " + itemQuantity + " " +
+                preparationInstructions;
+        OrderSubmissions.Submission submission = OrderSubmissions.beginSubmission(submissionDescription);
+        if (OrderSubmissions.findOrderNumber(connection, submission.key) != 0) {
+            OrderSubmissions.endSubmission(submissionDescription);
+            System.out.println("This item was already added to the order, so it was not added again.\n");
+            Metrics.recordLatency("ItemsOrder.addItemToOrder", startTime);
+            return;
+        }
 
         /* The use of PreparedStatement to insert the variables into a MySQL statement. */
         String mySQLQueryAddItem = "INSERT INTO items_order VALUES (?, ?, ?, ?, ?);";
@@ -61,28 +95,59 @@ public class ItemsOrder {
         pstmtAddItem.setInt(2, orderNumber);
         pstmtAddItem.setString(3, preparationInstructions);
         pstmtAddItem.setInt(4, itemQuantity);
-        pstmtAddItem.setDouble(5, totalCost);
+        Money.write(pstmtAddItem, 5, totalCost);
+
+        /* The line and the key of its submission are saved in one transaction. */
+        boolean lineAdded = false;
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
 
-        /* A try/catch block to intercept cases where an unknown (non-existent) item ID is entered. */
         try {
-            /*
-             * The execution of the statement and setting the return equal to a variable. If this variable is > 0 then
-             * the execution was successful, so it is used here as a check and feedback to the user.
-             */
-            int rowsAffected = pstmtAddItem.executeUpdate();
-            if (rowsAffected > 0) {
-                System.out.println("The item was added successfully.\n");
+
+            /* A try/catch block to intercept cases where an unknown (non-existent) item ID is entered. */
+            try {
+                /*
+                 * The execution of the statement and setting the return equal to a variable. If this variable is > 0
+                 * then the execution was successful, so it is used here as a check and feedback to the user.
+                 */
+                lineAdded = pstmtAddItem.executeUpdate() > 0;
+
+            } catch (SQLIntegrityConstraintViolationException e) {
+                System.out.println("Please make sure that all information fields are only filled with information " +
+                        "that exists in the database.\n");
+            }
+
+            /* If another session saved the same submission in the meantime, its line is kept instead. */
+            if (lineAdded && OrderSubmissions.recordSubmission(connection, submission.key, orderNumber) != 0) {
+                connection.rollback();
+                submission.repeated = true;
+                lineAdded = false;
             } else {
-                System.out.println("The item could not be added. Please review your input.");
+                connection.commit();
             }
 
-        } catch (SQLIntegrityConstraintViolationException e) {
-            System.out.println("Please make sure that all information fields are only filled with information that " +
-                    "exists in the database.\n");
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+
+            /* Closed this resource to prevent a resource leak.*/
+            pstmtAddItem.close();
         }
 
-        /* Closed this resource to prevent a resource leak.*/
-        pstmtAddItem.close();
+        /* The popularity of the item and the key of the line are only kept once the line has been committed. */
+        OrderSubmissions.endSubmission(submissionDescription);
+        if (lineAdded) {
+            System.out.println("The item was added successfully.\n");
+            PopularityTracker.recordLine(connection, orderNumber, itemId, itemQuantity);
+            OrderSubmissions.remember(submission.key, orderNumber);
+        } else if (submission.repeated) {
+            System.out.println("This item was already added to the order, so it was not added again.\n");
+        }
+
+        Metrics.recordLatency("ItemsOrder.addItemToOrder", startTime);
+
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,71 @@
+/**
+ * Renders invoices as a JSON array with one object per invoice. The item lines are nested in each object.
+ */
+public class JsonInvoiceRenderer implements InvoiceRenderer {
+
+    //Attributes
+    boolean firstInvoice = true;
+
+    /**
+     * Opens the JSON array.
+     *
+     * @param buffer The buffer to write to.
+     */
+    @Override
+    public void renderHeader(InvoiceBuffer buffer) {
+        firstInvoice = true;
+        buffer.append('[');
+    }
+
+    /**
+     * Writes a single invoice as a JSON object.
+     *
+     * @param invoice The invoice to write.
+     * @param buffer The buffer to write to.
+     */
+    @Override
+    public void render(Invoice invoice, InvoiceBuffer buffer) {
+
+        /* Every invoice after the first one is separated from the previous one by a comma. */
+        if (!firstInvoice) {
+            buffer.append(',');
+        }
+        firstInvoice = false;
+
+        buffer.append("\n{\"order_number\":").append(invoice.orderNumber);
+        buffer.append(",\"customer\":").appendJsonString(invoice.customerName);
+        buffer.append(",\"email\":").appendJsonString(invoice.customerEmail);
+        buffer.append(",\"phone_number\":").appendJsonString(invoice.customerPhoneNumber);
+        buffer.append(",\"city\":").appendJsonString(invoice.customerCity);
+        buffer.append(",\"address\":").appendJsonString(invoice.customerAddress);
+        buffer.append(",\"restaurant\":").appendJsonString(invoice.restaurantName);
+        buffer.append(",\"restaurant_city\":").appendJsonString(invoice.restaurantCity);
+        buffer.append(",\"restaurant_phone_number\":").appendJsonString(invoice.restaurantPhoneNumber);
+        buffer.append(",\"driver\":").appendJsonString(invoice.driverName);
+        buffer.append(",\"total_cost\":").appendAmount(invoice.totalCost);
+        buffer.append(",\"lines\":[");
+        for (int i = 0; i < invoice.lines.size(); i++) {
+            Invoice.Line line = invoice.lines.get(i);
+            if (i > 0) {
+                buffer.append(',');
+            }
+            buffer.append("{\"item_name\":").appendJsonString(line.itemName);
+            buffer.append(",\"item_quantity\":").append(line.itemQuantity);
+            buffer.append(",\"item_price\":").appendAmount(line.itemPrice);
+            buffer.append(",\"preparation_instructions\":").appendJsonString(line.preparationInstructions);
+            buffer.append('}');
+        }
+        buffer.append("]}");
+
+    }
+
+    /**
+     * Closes the JSON array.
+     *
+     * @param buffer The buffer to write to.
+     */
+    @Override
+    public void renderFooter(InvoiceBuffer buffer) {
+        buffer.append("\n]\n");
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram in the style of an HDR histogram. Values are counted in buckets whose width grows
+ * with the value: every power of two is split into 8 sub-buckets, so any recorded value is reported to within 12.5%
+ * while the whole range of a long fits in fewer than 500 buckets. Recording a value is a few shifts and one atomic
+ * increment, which makes it cheap enough to use on every method invocation.
+ */
+public class LatencyHistogram {
+
+    // Global variables
+
+    /* Values below 16 get a bucket each. Above that every power of two is split into 2^SUB_BUCKET_BITS buckets. */
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+    static final int BUCKET_COUNT = LINEAR_BUCKETS + (62 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    //Attributes
+    AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    LongAdder count = new LongAdder();
+    LongAdder sum = new LongAdder();
+    AtomicLong max = new AtomicLong();
+
+    //Methods
+
+    /**
+     * Records a single value in the histogram.
+     *
+     * @param value The value to record, normally a duration in nanoseconds. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+
+        if (value < 0) {
+            value = 0;
+        }
+
+        buckets.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+
+    }
+
+    /**
+     * @return The number of values recorded.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return The sum of all values recorded.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return The largest value recorded.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Estimates the value below which a given fraction of the recorded values fall.
+     *
+     * @param quantile The fraction, for example 0.99 for the 99th percentile.
+     * @return The highest value of the bucket that contains the quantile, or 0 if nothing has been recorded.
+     */
+    public long getValueAtQuantile(double quantile) {
+
+        long totalCount = getCount();
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        /* Walking through the buckets until the running count reaches the requested rank. */
+        long rank = Math.max(1, (long) Math.ceil(quantile * totalCount));
+        long runningCount = 0;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            runningCount += buckets.get(index);
+            if (runningCount >= rank) {
+                return Math.min(bucketLowestValue(index + 1) - 1, getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    /**
+     * Determines the bucket that a value is counted in.
+     *
+     * @param value The value, which is not negative.
+     * @return The index of the bucket.
+     */
+    static int bucketIndex(long value) {
+
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+
+        /* The position of the highest bit selects the power of two and the next bits select the sub-bucket. */
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return LINEAR_BUCKETS + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Determines the lowest value that is counted in a bucket.
+     *
+     * @param index The index of the bucket.
+     * @return The lowest value of the bucket.
+     */
+    static long bucketLowestValue(int index) {
+
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        if (index >= BUCKET_COUNT) {
+            return Long.MAX_VALUE;
+        }
+
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+}
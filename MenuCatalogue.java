@@ -0,0 +1,344 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The menu catalogue holds the menu of every restaurant in memory so that items can be listed and checked while an
+ * order is captured without reading the database. The menus are kept in an immutable snapshot. A change to an item
+ * builds a new snapshot from a copy of the current one and swaps it in atomically, so readers always see a complete
+ * menu and never wait for an edit.
+ * <p>
+ * Items are linked to restaurants by the optional <code>restaurant_item</code> table (see the README). A restaurant
+ * without any linked items, or any restaurant when the table does not exist, offers every item.
+ */
+public class MenuCatalogue {
+
+    // Global variables
+
+    /* The current snapshot, or null until the menus are first needed. */
+    static final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+    /**
+     * An item on a menu. It cannot be changed once it has been created.
+     */
+    public static final class MenuItem {
+
+        //Attributes
+        final int itemId;
+        final String itemName;
+        final long itemPrice;
+
+        /**
+         * The constructor for the MenuItem class.
+         *
+         * @param itemId The unique id of the item.
+         * @param itemName The name of the item.
+         * @param itemPrice The price of the item in cents.
+         */
+        MenuItem(int itemId, String itemName, long itemPrice) {
+            this.itemId = itemId;
+            this.itemName = itemName;
+            this.itemPrice = itemPrice;
+        }
+    }
+
+    /**
+     * All items and the item ids of every restaurant's menu. The maps and lists cannot be changed.
+     */
+    static final class Snapshot {
+
+        //Attributes
+        final Map<Integer, MenuItem> items;
+        final Map<Integer, List<Integer>> restaurantMenus;
+
+        /**
+         * @param items The items by item id, in menu order.
+         * @param restaurantMenus The item ids of every restaurant that has linked items.
+         */
+        Snapshot(LinkedHashMap<Integer, MenuItem> items, HashMap<Integer, List<Integer>> restaurantMenus) {
+            this.items = Collections.unmodifiableMap(items);
+            this.restaurantMenus = Collections.unmodifiableMap(restaurantMenus);
+        }
+    }
+
+    //Methods
+
+    /**
+     * Returns the menu of a restaurant.
+     *
+     * @param connection The Connection resource needed to load the menus the first time they are needed.
+     * @param restaurantId The unique id of the restaurant.
+     * @return The items of the menu, in item id order.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static List<MenuItem> findMenu(Connection connection, int restaurantId) throws SQLException {
+
+        Snapshot current = currentSnapshot(connection);
+        List<Integer> itemIds = current.restaurantMenus.get(restaurantId);
+        if (itemIds == null) {
+            return List.copyOf(current.items.values());
+        }
+
+        ArrayList<MenuItem> menu = new ArrayList<>();
+        for (int itemId : itemIds) {
+            MenuItem item = current.items.get(itemId);
+            if (item != null) {
+                menu.add(item);
+            }
+        }
+
+        return menu;
+    }
+
+    /**
+     * Finds an item on the menu of a restaurant. It is used to check the item id entered in
+     * <code>ItemsOrder.addItemToOrder</code>.
+     *
+     * @param connection The Connection resource needed to load the menus the first time they are needed.
+     * @param restaurantId The unique id of the restaurant.
+     * @param itemId The unique id of the item.
+     * @return The item, or null if it is not on the restaurant's menu.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static MenuItem findMenuItem(Connection connection, int restaurantId, int itemId) throws SQLException {
+
+        Snapshot current = currentSnapshot(connection);
+        List<Integer> itemIds = current.restaurantMenus.get(restaurantId);
+        if (itemIds != null && !itemIds.contains(itemId)) {
+            return null;
+        }
+
+        return current.items.get(itemId);
+    }
+
+    /**
+     * Displays the menu of a restaurant.
+     *
+     * @param connection The Connection resource needed to load the menus the first time they are needed.
+     * @param restaurantId The unique id of the restaurant.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void displayMenu(Connection connection, int restaurantId) throws SQLException {
+
+        System.out.println(padRight("Item ID", 8) + " " + padRight("Item", 30) + "      Price");
+        for (MenuItem item : findMenu(connection, restaurantId)) {
+            System.out.println(padRight(String.valueOf(item.itemId), 8) + " " + padRight(item.itemName, 30) + " R" +
+                    Money.format(item.itemPrice, 9));
+        }
+        System.out.println();
+
+    }
+
+    /**
+     * Reloads one item after it was created or changed, and swaps in a new snapshot with the reloaded item. Nothing
+     * is done if the menus have not been loaded yet. It is invoked by <code>Item.createNewItem</code> and
+     * <code>Item.performFieldUpdate</code>.
+     *
+     * @param connection The Connection resource needed here for the instances of <code>PreparedStatement</code>.
+     * @param itemId The unique id of the item.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void refreshItem(Connection connection, int itemId) throws SQLException {
+
+        if (snapshot.get() == null) {
+            return;
+        }
+
+        /*
+         * Reading the item and its restaurants before the swap, so that the swap itself never waits for the
+         * database.
+         */
+        MenuItem item = null;
+        String mySQLQueryItem = "SELECT item_id, item_name, item_price FROM item WHERE item_id = ?;";
+        PreparedStatement pstmtItem = connection.prepareStatement(mySQLQueryItem);
+        pstmtItem.setInt(1, itemId);
+        ResultSet resultsItem = pstmtItem.executeQuery();
+        while (resultsItem.next()) {
+            item = new MenuItem(itemId, resultsItem.getString("item_name"), Money.read(resultsItem, "item_price"));
+        }
+        pstmtItem.close();
+        resultsItem.close();
+
+        ArrayList<Integer> restaurantIds = new ArrayList<>();
+        String mySQLQueryLinks = "SELECT restaurant_id FROM restaurant_item WHERE item_id = ?;";
+        PreparedStatement pstmtLinks = connection.prepareStatement(mySQLQueryLinks);
+        pstmtLinks.setInt(1, itemId);
+        try {
+            ResultSet resultsLinks = pstmtLinks.executeQuery();
+            while (resultsLinks.next()) {
+                restaurantIds.add(resultsLinks.getInt("restaurant_id"));
+            }
+            resultsLinks.close();
+        } catch (SQLException e) {
+            if (!"42S02".equals(e.getSQLState())) {
+                throw e;
+            }
+        } finally {
+            /* Closing of resource to prevent resource leaking. */
+            pstmtLinks.close();
+        }
+
+        /* Copy-on-write: a new snapshot is built from the current one and only swapped in if nobody swapped first. */
+        Snapshot current;
+        Snapshot updated;
+        do {
+            current = snapshot.get();
+            LinkedHashMap<Integer, MenuItem> items = new LinkedHashMap<>(current.items);
+            HashMap<Integer, List<Integer>> restaurantMenus = new HashMap<>();
+            for (Map.Entry<Integer, List<Integer>> menu : current.restaurantMenus.entrySet()) {
+                ArrayList<Integer> itemIds = new ArrayList<>(menu.getValue());
+                itemIds.remove(Integer.valueOf(itemId));
+                restaurantMenus.put(menu.getKey(), itemIds);
+            }
+
+            if (item == null) {
+                items.remove(itemId);
+            } else {
+                items.put(itemId, item);
+                for (int restaurantId : restaurantIds) {
+                    restaurantMenus.computeIfAbsent(restaurantId, key -> new ArrayList<>()).add(itemId);
+                }
+            }
+            restaurantMenus.replaceAll((key, itemIds) -> List.copyOf(itemIds));
+            updated = new Snapshot(items, restaurantMenus);
+        } while (!snapshot.compareAndSet(current, updated));
+
+    }
+
+    /**
+     * Adds an item to the menu of a restaurant by inserting it into the <code>restaurant_item</code> table. It is
+     * invoked by <code>Item.createNewItem</code>, which refreshes the item afterwards.
+     *
+     * @param connection The Connection resource needed here for the <code>PreparedStatement</code>.
+     * @param restaurantId The unique id of the restaurant.
+     * @param itemId The unique id of the item.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void linkItem(Connection connection, int restaurantId, int itemId) throws SQLException {
+
+        String mySQLQueryLinkItem = "INSERT IGNORE INTO restaurant_item (restaurant_id, item_id) VALUES (?, ?);";
+        PreparedStatement pstmtLinkItem = connection.prepareStatement(mySQLQueryLinkItem);
+        pstmtLinkItem.setInt(1, restaurantId);
+        pstmtLinkItem.setInt(2, itemId);
+
+        /* Without the link table every restaurant offers every item, so there is nothing to link. */
+        try {
+            pstmtLinkItem.executeUpdate();
+        } catch (SQLException e) {
+            if (!"42S02".equals(e.getSQLState())) {
+                throw e;
+            }
+        } finally {
+            /* Closing of resource to prevent resource leaking. */
+            pstmtLinkItem.close();
+        }
+
+    }
+
+    /**
+     * Loads all menus from the database and swaps them in for the current snapshot. It is used by
+     * <code>CacheWarmer</code> to warm the menus and to correct menus that were read from a snapshot file. If an item
+     * was refreshed while the menus were loading, the menus are loaded again so that the change is not lost.
+     *
+     * @param connection The Connection resource needed here for the instances of <code>PreparedStatement</code>.
+     * @return True if the loaded menus were swapped in, false if items kept being refreshed.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static boolean reload(Connection connection) throws SQLException {
+
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Snapshot current = snapshot.get();
+            if (snapshot.compareAndSet(current, loadSnapshot(connection))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param text The text to pad.
+     * @param width The number of characters the text must take up at least.
+     * @return The text padded on the right with spaces.
+     */
+    static String padRight(String text, int width) {
+        StringBuilder padded = new StringBuilder(width).append(text);
+        while (padded.length() < width) {
+            padded.append(' ');
+        }
+        return padded.toString();
+    }
+
+    /**
+     * Returns the current snapshot, loading it the first time.
+     *
+     * @param connection The Connection resource needed to load the menus.
+     * @return The current snapshot.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static Snapshot currentSnapshot(Connection connection) throws SQLException {
+
+        Snapshot current = snapshot.get();
+        if (current == null) {
+            snapshot.compareAndSet(null, loadSnapshot(connection));
+            current = snapshot.get();
+        }
+
+        return current;
+    }
+
+    /**
+     * Loads all items and all links between restaurants and items with one query each.
+     *
+     * @param connection The Connection resource needed here for the instances of <code>PreparedStatement</code>.
+     * @return The new snapshot.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static Snapshot loadSnapshot(Connection connection) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        LinkedHashMap<Integer, MenuItem> items = new LinkedHashMap<>();
+        String mySQLQueryItems = "SELECT item_id, item_name, item_price FROM item ORDER BY item_id;";
+        PreparedStatement pstmtItems = connection.prepareStatement(mySQLQueryItems);
+        ResultSet resultsItems = pstmtItems.executeQuery();
+        while (resultsItems.next()) {
+            int itemId = resultsItems.getInt("item_id");
+            items.put(itemId, new MenuItem(itemId, resultsItems.getString("item_name"),
+                    Money.read(resultsItems, "item_price")));
+        }
+        pstmtItems.close();
+        resultsItems.close();
+
+        HashMap<Integer, List<Integer>> restaurantMenus = new HashMap<>();
+        String mySQLQueryLinks = "SELECT restaurant_id, item_id FROM restaurant_item ORDER BY restaurant_id, item_id;";
+        PreparedStatement pstmtLinks = connection.prepareStatement(mySQLQueryLinks);
+        try {
+            ResultSet resultsLinks = pstmtLinks.executeQuery();
+            while (resultsLinks.next()) {
+                restaurantMenus.computeIfAbsent(resultsLinks.getInt("restaurant_id"), key -> new ArrayList<>())
+                        .add(resultsLinks.getInt("item_id"));
+            }
+            resultsLinks.close();
+        } catch (SQLException e) {
+            if (!"42S02".equals(e.getSQLState())) {
+                throw e;
+            }
+        } finally {
+            /* Closing of resource to prevent resource leaking. */
+            pstmtLinks.close();
+        }
+        restaurantMenus.replaceAll((key, itemIds) -> List.copyOf(itemIds));
+
+        Metrics.recordLatency("MenuCatalogue.loadSnapshot", startTime);
+        return new Snapshot(items, restaurantMenus);
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics registry of the program. Every static method in the entity classes records how long it took in a
+ * <code>LatencyHistogram</code> and the <code>StatementTracer</code> counts every SQL statement against the menu
+ * action that issued it. The registry only uses lock-free counters, so recording a measurement never blocks the
+ * operator.
+ * <p>
+ * The latencies only cover the database work of a method, not the time the operator takes to answer its prompts. A
+ * menu action is ended even when it fails, and a failed action is also counted under <code>actions.failed</code>.
+ */
+public class Metrics {
+
+    // Global variables
+
+    /* The latency histograms per operation and the counters, both keyed by name. */
+    static final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    /* The menu action that is currently running on this thread. Statements are counted against it. */
+    static final ThreadLocal<String> currentAction = ThreadLocal.withInitial(() -> "none");
+
+    static final double[] REPORTED_QUANTILES = {0.5, 0.9, 0.99};
+
+    //Methods
+
+    /**
+     * Starts timing an operation.
+     *
+     * @return The start time that must be passed to <code>recordLatency</code>.
+     */
+    public static long startTimer() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time an operation took since <code>startTimer</code> was invoked.
+     *
+     * @param operation The name of the operation, for example "Order.openOrder".
+     * @param startTime The value returned by <code>startTimer</code>.
+     */
+    public static void recordLatency(String operation, long startTime) {
+        latencies.computeIfAbsent(operation, name -> new LatencyHistogram()).record(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Adds one to a counter.
+     *
+     * @param counter The name of the counter.
+     */
+    public static void increment(String counter) {
+        counters.computeIfAbsent(counter, name -> new LongAdder()).increment();
+    }
+
+    /**
+     * Marks the start of a menu action. The SQL statements issued until <code>endAction</code> is invoked are
+     * counted against this action.
+     *
+     * @param action The name of the menu action.
+     * @return The start time that must be passed to <code>endAction</code>.
+     */
+    public static long beginAction(String action) {
+        currentAction.set(action);
+        increment("actions." + action);
+        return startTimer();
+    }
+
+    /**
+     * Marks the end of the current menu action and records how long it took.
+     *
+     * @param startTime The value returned by <code>beginAction</code>.
+     */
+    public static void endAction(long startTime) {
+        recordLatency("menu." + currentAction.get(), startTime);
+        currentAction.remove();
+    }
+
+    /**
+     * Counts a SQL statement against the menu action that is currently running.
+     */
+    public static void countStatement() {
+        increment("statements." + currentAction.get());
+    }
+
+    /**
+     * A method to display all metrics to the user. It is invoked in the <code>showMetrics</code> method in the main
+     * class.
+     */
+    public static void displayMetrics() {
+        System.out.println(renderText());
+    }
+
+    /**
+     * Renders all metrics as a human-readable table with latencies in milliseconds.
+     *
+     * @return The rendered metrics.
+     */
+    public static String renderText() {
+
+        StringBuilder text = new StringBuilder();
+
+        text.append("Latencies (ms)\n--------------\n");
+        text.append(String.format("%-45s %10s %10s %10s %10s %10s%n", "Operation", "Count", "p50", "p90", "p99",
+                "Max"));
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            text.append(String.format("%-45s %10d %10.3f %10.3f %10.3f %10.3f%n", entry.getKey(),
+                    histogram.getCount(), histogram.getValueAtQuantile(0.5) / 1e6,
+                    histogram.getValueAtQuantile(0.9) / 1e6, histogram.getValueAtQuantile(0.99) / 1e6,
+                    histogram.getMax() / 1e6));
+        }
+
+        text.append("\nCounters\n--------\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            text.append(String.format("%-45s %10d%n", entry.getKey(), entry.getValue().sum()));
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format. Latencies are reported as summaries in seconds
+     * and counters as counters.
+     *
+     * @return The rendered metrics.
+     */
+    public static String renderPrometheus() {
+
+        StringBuilder text = new StringBuilder();
+
+        text.append("# TYPE quickfood_operation_latency_seconds summary\n");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            String label = "operation=\"" + entry.getKey() + "\"";
+            for (double quantile : REPORTED_QUANTILES) {
+                text.append("quickfood_operation_latency_seconds{").append(label).append(",quantile=\"")
+                        .append(quantile).append("\"} ").append(histogram.getValueAtQuantile(quantile) / 1e9)
+                        .append('\n');
+            }
+            text.append("quickfood_operation_latency_seconds_sum{").append(label).append("} ")
+                    .append(histogram.getSum() / 1e9).append('\n');
+            text.append("quickfood_operation_latency_seconds_count{").append(label).append("} ")
+                    .append(histogram.getCount()).append('\n');
+        }
+
+        text.append("# TYPE quickfood_events_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            text.append("quickfood_events_total{name=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Starts a background thread that writes all metrics to a file at a fixed interval. The file is written to a
+     * temporary file first and then moved into place so that a reader never sees a half-written file. Files ending in
+     * ".prom" are written in the Prometheus format and all others as text.
+     *
+     * @param fileName The name of the file to write the metrics to.
+     * @param periodSeconds The number of seconds between dumps.
+     */
+    public static void startPeriodicDump(String fileName, long periodSeconds) {
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                String metrics = fileName.endsWith(".prom") ? renderPrometheus() : renderText();
+                Path target = Path.of(fileName);
+                Path temporary = Path.of(fileName + ".tmp");
+                Files.writeString(temporary, metrics, StandardCharsets.UTF_8);
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                System.out.println("Error: IOException - startPeriodicDump()");
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+
+    }
+}
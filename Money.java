@@ -0,0 +1,149 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Amounts of money are handled as a primitive <code>long</code> number of cents throughout the program, so that sums
+ * of prices and costs are exact and do not drift the way <code>double</code> sums do. This class converts amounts
+ * from and to the database and user input, does the arithmetic with overflow checks and formats amounts without a
+ * <code>Formatter</code>.
+ */
+public final class Money {
+
+    //Methods
+
+    /**
+     * The class only has static methods, so it is not instantiated.
+     */
+    private Money() {
+    }
+
+    /**
+     * Reads an amount from a column of the current row of a ResultSet. The column is read as a decimal so that no
+     * rounding error is picked up on the way.
+     *
+     * @param results The ResultSet positioned on a row.
+     * @param column The name of the column.
+     * @return The amount in cents, or 0 if the column is <code>NULL</code>.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static long read(ResultSet results, String column) throws SQLException {
+        BigDecimal amount = results.getBigDecimal(column);
+        return amount == null ? 0 : toCents(amount);
+    }
+
+    /**
+     * Sets an amount as a decimal parameter of a PreparedStatement.
+     *
+     * @param statement The statement.
+     * @param parameterIndex The index of the parameter, starting at 1.
+     * @param cents The amount in cents.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void write(PreparedStatement statement, int parameterIndex, long cents) throws SQLException {
+        statement.setBigDecimal(parameterIndex, BigDecimal.valueOf(cents, 2));
+    }
+
+    /**
+     * Parses an amount typed by the user, such as "12", "12.5" or "12.50". More than two decimals are rounded half up.
+     *
+     * @param text The amount as text.
+     * @return The amount in cents.
+     * @throws NumberFormatException If the text is not a number or the amount is too large.
+     */
+    public static long parse(String text) {
+        try {
+            return toCents(new BigDecimal(text.trim()));
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + text);
+        }
+    }
+
+    /**
+     * @param cents The price of one item in cents.
+     * @param quantity The number of items.
+     * @return The cost of the items in cents.
+     * @throws ArithmeticException If the cost is too large for a <code>long</code>.
+     */
+    public static long multiply(long cents, int quantity) {
+        return Math.multiplyExact(cents, (long) quantity);
+    }
+
+    /**
+     * @param first An amount in cents.
+     * @param second Another amount in cents.
+     * @return The sum of the amounts in cents.
+     * @throws ArithmeticException If the sum is too large for a <code>long</code>.
+     */
+    public static long add(long first, long second) {
+        return Math.addExact(first, second);
+    }
+
+    /**
+     * Formats an amount with two decimals, such as "1234.50" or "-0.05".
+     *
+     * @param cents The amount in cents.
+     * @return The formatted amount.
+     */
+    public static String format(long cents) {
+        char[] digits = new char[24];
+        int start = formatInto(digits, cents);
+        return new String(digits, start, digits.length - start);
+    }
+
+    /**
+     * Formats an amount with two decimals, padded on the left with spaces to a fixed width for tables.
+     *
+     * @param cents The amount in cents.
+     * @param width The number of characters the amount must take up at least.
+     * @return The formatted amount.
+     */
+    public static String format(long cents, int width) {
+        char[] digits = new char[Math.max(24, width)];
+        int start = formatInto(digits, cents);
+        while (digits.length - start < width) {
+            digits[--start] = ' ';
+        }
+        return new String(digits, start, digits.length - start);
+    }
+
+    /**
+     * Writes the digits of an amount into the end of a char array, from right to left.
+     *
+     * @param digits The array to write into. It must hold at least 24 characters.
+     * @param cents The amount in cents.
+     * @return The index of the first character written.
+     */
+    static int formatInto(char[] digits, long cents) {
+
+        int position = digits.length;
+
+        /* Working with the negative value so that Long.MIN_VALUE does not overflow. */
+        long remaining = cents > 0 ? -cents : cents;
+        for (int i = 0; i < 2; i++) {
+            digits[--position] = (char) ('0' - remaining % 10);
+            remaining /= 10;
+        }
+        digits[--position] = '.';
+        do {
+            digits[--position] = (char) ('0' - remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (cents < 0) {
+            digits[--position] = '-';
+        }
+
+        return position;
+    }
+
+    /**
+     * @param amount An amount as a decimal.
+     * @return The amount in cents, rounded half up.
+     * @throws ArithmeticException If the amount is too large for a <code>long</code>.
+     */
+    static long toCents(BigDecimal amount) {
+        return amount.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+}
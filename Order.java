@@ -1,25 +1,27 @@
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLIntegrityConstraintViolationException;
 import java.util.ArrayList;
-import java.util.Formatter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
-
-import static java.sql.Types.NULL;
-
+import java.util.TreeMap;
+import java.util.stream.IntStream;
 
 public class Order {
 
     //Attributes
     int customerId;
     int restaurantId;
-    double totalCost;
+    long totalCost;
     int driverId;
     boolean finalised;
 
@@ -33,12 +35,12 @@ public class Order {
      *
      * @param customerId The customer's unique ID number or code. Generated automatically upon registration.
      * @param restaurantId The restaurant's unique ID number or code. Generated automatically upon registration.
-     * @param totalCost The total cost of all "lines" on a specific order. Calculated from the values in the
-     *                  <code>items_order</code> table.
+     * @param totalCost The total cost in cents of all "lines" on a specific order. Calculated from the values in
+     *                  the <code>items_order</code> table.
      * @param driverId The driver's unique ID number or code. Generated automatically upon registration.
      * @param finalised A boolean value so that an order can be "signed off" as complete when delivered and paid.
      */
-    public Order(int customerId, int restaurantId, double totalCost, int driverId, boolean finalised) {
+    public Order(int customerId, int restaurantId, long totalCost, int driverId, boolean finalised) {
         this.customerId = customerId;
         this.restaurantId = restaurantId;
         this.totalCost = totalCost;
@@ -49,7 +51,8 @@ public class Order {
     /**
      * This method opens an order and allocates an order number to it. At this stage the order will only have an order
      * number, customer id and restaurant id allocated to it. The rest of the details of the order is still to be
-     * populated.
+     * populated. The order is saved together with the key of its submission (see <code>OrderSubmissions</code>), so
+     * if the submission was already saved the original order is returned and nothing is inserted.
      *
      * @param connection The Connection resource from the <code>main</code> method needed here for the
      *                   <code>Customer.findCustomerId</code> and <code>Restaurant.findRestaurantId</code> methods as
@@ -57,13 +60,26 @@ public class Order {
      * @param customerFirstName The customer's first name needed to determine the customer id.
      * @param customerSurname The customer's surname, also needed to determine the customer id.
      * @param restaurantName The restaurant name needed to determine the restaurant if.
+     * @param submission The submission of the order. It is marked as repeated if its order was already saved.
+     * @return The order number of the new or original order, or 0 if the order could not be opened.
      * @throws SQLException If the underlying MySQL service fails.
      */
-    public static int openOrder(Connection connection, String customerFirstName,
-                                 String customerSurname, String restaurantName) throws SQLException {
+    public static int openOrder(Connection connection, String customerFirstName, String customerSurname,
+                                String restaurantName, OrderSubmissions.Submission submission) throws SQLException {
+
+        long startTime = Metrics.startTimer();
 
         /* Declaration and initialisation of the return variable from this method.*/
         int orderNumber = 0;
+        boolean orderOpened = false;
+
+        /* A submission that was already saved returns its order without touching the orders table. */
+        int originalOrderNumber = OrderSubmissions.findOrderNumber(connection, submission.key);
+        if (originalOrderNumber != 0) {
+            submission.repeated = true;
+            Metrics.recordLatency("Order.openOrder", startTime);
+            return originalOrderNumber;
+        }
 
         /*
          * Obtaining these two variables by invocation of two utility methods from the Customer and Restaurant
@@ -72,60 +88,90 @@ public class Order {
         int customerId = Customer.findCustomerId(connection, customerFirstName, customerSurname);
         int restaurantId = Restaurant.findRestaurantId(connection, restaurantName);
 
+        /*
+         * The order number is taken from a block reserved by the OrderNumberAllocator, which is the only source of
+         * order numbers. It is allocated before the transaction starts.
+         */
+        int allocatedOrderNumber = OrderNumberAllocator.nextOrderNumber(connection);
+
         /*
          * The use of PreparedStatement to insert the variables into a MySQL statement. The null variables will be
          * populated later in the program.
          */
-        String mySQLQueryOpenOrder = "INSERT INTO `orders` (customer_id, restaurant_id, total_cost, driver_id, " +
-                "finalised) " +
-                "VALUES (?,?,?,?,?);";
+        String mySQLQueryOpenOrder = "INSERT INTO `orders` (order_number, customer_id, restaurant_id, total_cost, " +
+                "driver_id, finalised) " +
+                "VALUES (?,?,?,?,?,?);";
         PreparedStatement pstmtOpenOrder = connection.prepareStatement(mySQLQueryOpenOrder);
-        pstmtOpenOrder.setInt(1, customerId);
-        pstmtOpenOrder.setInt(2, restaurantId);
-        pstmtOpenOrder.setString(3, null);
+        pstmtOpenOrder.setInt(1, allocatedOrderNumber);
+        pstmtOpenOrder.setInt(2, customerId);
+        pstmtOpenOrder.setInt(3, restaurantId);
         pstmtOpenOrder.setString(4, null);
         pstmtOpenOrder.setString(5, null);
+        pstmtOpenOrder.setString(6, null);
+
+        /* The order and the key of its submission are saved in one transaction. */
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
 
-        /*
-         * A try/catch block to intercept cases where a non-existent customer or restaurant ID is entered.
-         */
         try {
 
+            /*
+             * A try/catch block to intercept cases where a non-existent customer or restaurant ID is entered.
+             */
+            try {
+
                 /*
-                 * The execution of the statement and setting the return equal to a variable. If this variable is > 0 then
-                 * the execution was successful, so it is used here as a check and feedback to the user.
+                 * The execution of the statement and setting the return equal to a variable. If this variable is > 0
+                 * then the execution was successful.
                  */
                 rowsAffected = pstmtOpenOrder.executeUpdate();
-                if (rowsAffected >0) {
-                    System.out.println("Your order was successfully opened.");
-                } else {
-                    System.out.println("Your order could not be opened. Please review your input.");
-                }
+                orderOpened = rowsAffected > 0;
 
             } catch (SQLIntegrityConstraintViolationException e) {
                 System.out.println("Order.openOrder: You tried to enter non-existent reference data. Please make sure the " +
                         "client and restaurant you entered, exists in the database.\n");
             }
 
-            /* Ref: https://stackoverflow.com/questions/39287353/java-spring-jdbc-last-insert-id. Reference used to
-            retrieve last auto incremented after MySQL query. PreparedStatement to retrieve the last auto_incremented
-             value of order_number in the orders table.
+            /*
+             * Unlike MAX(order_number) the allocated number is the number of this order even when other instances
+             * capture orders too. An order that could not be opened has number 0.
              */
-            String MySQLOrderNumber = "SELECT MAX(order_number) AS id FROM orders";
-            PreparedStatement pstmtOrderNumber = connection.prepareStatement(MySQLOrderNumber);
-
-            /* Execution of the PreparedStatement and storage of the return as a ResultSet.*/
-            ResultSet resultsOrderNumber = pstmtOrderNumber.executeQuery();
+            orderNumber = orderOpened ? allocatedOrderNumber : 0;
 
-            /*Extracting the order number with the use of the ResultSet's getter method.*/
-            while (resultsOrderNumber.next()) {
-                orderNumber = resultsOrderNumber.getInt("id");
+            /* If another session saved the same submission in the meantime, its order is kept instead. */
+            if (orderOpened) {
+                originalOrderNumber = OrderSubmissions.recordSubmission(connection, submission.key, orderNumber);
             }
+            if (originalOrderNumber != 0) {
+                connection.rollback();
+                submission.repeated = true;
+                orderOpened = false;
+                orderNumber = originalOrderNumber;
+            } else {
+                connection.commit();
+            }
+
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
 
             /* Closed resources to prevent resource leak.*/
             pstmtOpenOrder.close();
-            pstmtOrderNumber.close();
+        }
+
+        /* Keeping the new order in memory for repeat orders, for the popularity of its items and for its key. */
+        if (orderOpened) {
+            System.out.println("Your order was successfully opened.");
+            RecentOrders.recordOrder(customerId, orderNumber, System.currentTimeMillis());
+            PopularityTracker.rememberOrderRestaurant(orderNumber, restaurantId);
+            OrderSubmissions.remember(submission.key, orderNumber);
+        } else if (!submission.repeated) {
+            System.out.println("Your order could not be opened. Please review your input.");
+        }
 
+        Metrics.recordLatency("Order.openOrder", startTime);
         return orderNumber;
 
     }
@@ -137,7 +183,8 @@ public class Order {
      * to this method for display and user choice.
      *
      * @param connection The Connection resource from the <code>main</code> method needed for the invocation of
-     *                   <code>findExistingOrderNumber</code> and <code>displayOrder</code>.
+     *                   <code>findExistingOrderNumber</code> and <code>displayOrder</code>, which each run on the
+     *                   shard of the orders (see ShardRouter).
      * @param input The Scanner instance from the <code>main</code> method needed for user input with the help of the
      *             utility class <code>UserInput</code>.
      * @return The required order number searched for by customer first and surname and restaurant name.
@@ -172,7 +219,7 @@ public class Order {
             System.out.println(headingForOrderDisplayList);
             for (Integer number : orderNumbers) {
                 if (number != 0) {
-                    displayOrder(connection, number);
+                    displayOrder(ShardRouter.forNumber(connection, number), number);
                 }
             }
             orderNumber = UserInput.readInteger("Choose an order number: ", input);
@@ -196,10 +243,13 @@ public class Order {
      * @param orderNumber The order number needed to update with the total cost and allocated driver.
      * @throws SQLException If the underlying MySQL service fails.
      */
-    public static void addInitialOrderDetails(Connection connection, String restaurantName, int orderNumber) throws SQLException {
+    public static void addInitialOrderDetails(Connection connection, String restaurantName, int orderNumber)
+            throws SQLException {
+
+        long startTime = Metrics.startTimer();
 
         /*Declaration and initialisation of a variable to calculate the grand total cost of an order number. */
-        double grandTotalCost = 0.00;
+        long grandTotalCost = 0;
 
         /* Allocating a driver and updating that driver's workload accordingly with these two methods. */
         int driverId = Driver.driverAllocation(connection, Restaurant.findRestaurantLocation(connection,
@@ -220,13 +270,13 @@ public class Order {
          */
         ResultSet resultsItemCost = pstmtItemCost.executeQuery();
         while (resultsItemCost.next()) {
-            grandTotalCost += resultsItemCost.getDouble("item_cost");
+            grandTotalCost = Money.add(grandTotalCost, Money.read(resultsItemCost, "item_cost"));
         }
 
         /* Using a PreparedStatement to update the order with the total cost and driver id. */
         String mySQLQueryUpdateOrderCost = "UPDATE orders SET total_cost = ?, driver_id = ? WHERE order_number = ?;";
         PreparedStatement pstmtUpdateOrderCost = connection.prepareStatement(mySQLQueryUpdateOrderCost);
-        pstmtUpdateOrderCost.setDouble(1, grandTotalCost);
+        Money.write(pstmtUpdateOrderCost, 1, grandTotalCost);
         pstmtUpdateOrderCost.setInt(2, driverId);
         pstmtUpdateOrderCost.setInt(3, orderNumber);
 
@@ -246,6 +296,254 @@ public class Order {
         pstmtUpdateOrderCost.close();
         resultsItemCost.close();
 
+        Metrics.recordLatency("Order.addInitialOrderDetails", startTime);
+
+    }
+
+    /**
+     * This method places a new order that repeats an earlier order of the same customer at the same restaurant, so
+     * that a regular customer's usual meal does not have to be captured item by item. Everything happens in one
+     * transaction: the order is opened, its lines are copied from the earlier order with one INSERT ... SELECT that
+     * prices them from the current <code>item</code> table, a driver is allocated and the total is calculated. If
+     * any step fails nothing is saved. It is invoked in the <code>captureNewOrder</code> method in the main class.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed here for the instances of
+     *                   <code>PreparedStatement</code> and the invocation of
+     *                   <code>DispatchEngine.allocateDriver</code>.
+     * @param previousOrderNumber The order number of the order to repeat.
+     * @param submission The submission of the new order (see <code>OrderSubmissions</code>). It is marked as
+     *                   repeated if its order was already saved, and then that order is returned.
+     * @return The order number of the new order, or 0 if the order to repeat does not exist.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static int repeatOrder(Connection connection, int previousOrderNumber,
+                                  OrderSubmissions.Submission submission) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        int originalOrderNumber = OrderSubmissions.findOrderNumber(connection, submission.key);
+        if (originalOrderNumber != 0) {
+            submission.repeated = true;
+            Metrics.recordLatency("Order.repeatOrder", startTime);
+            return originalOrderNumber;
+        }
+
+        int orderNumber = 0;
+        int customerId = 0;
+        int restaurantId = 0;
+        int driverId = 0;
+        ArrayList<int[]> copiedLines = new ArrayList<>();
+
+        /* The number is allocated before the transaction starts (see OrderNumberAllocator). */
+        int allocatedOrderNumber = OrderNumberAllocator.nextOrderNumber(connection);
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        try {
+
+            /* The customer and the restaurant's city of the order to repeat. */
+            String mySQLQueryPrevious = "SELECT o.customer_id, o.restaurant_id, r.restaurant_city FROM orders o " +
+                    "JOIN restaurant r ON r.restaurant_id = o.restaurant_id WHERE o.order_number = ?;";
+            PreparedStatement pstmtPrevious = connection.prepareStatement(mySQLQueryPrevious);
+            pstmtPrevious.setInt(1, previousOrderNumber);
+            ResultSet resultsPrevious = pstmtPrevious.executeQuery();
+            String restaurantCity = null;
+            while (resultsPrevious.next()) {
+                customerId = resultsPrevious.getInt("customer_id");
+                restaurantId = resultsPrevious.getInt("restaurant_id");
+                restaurantCity = resultsPrevious.getString("restaurant_city");
+            }
+            pstmtPrevious.close();
+            resultsPrevious.close();
+
+            if (restaurantCity == null) {
+                connection.rollback();
+                Metrics.recordLatency("Order.repeatOrder", startTime);
+                return 0;
+            }
+
+            /*
+             * Opening the new order in the same way as openOrder, with the allocated number.
+             */
+            String mySQLQueryOpenOrder = "INSERT INTO orders (order_number, customer_id, restaurant_id, total_cost, " +
+                    "driver_id, finalised) SELECT ?, customer_id, restaurant_id, NULL, NULL, NULL FROM orders WHERE " +
+                    "order_number = ?;";
+            PreparedStatement pstmtOpenOrder = connection.prepareStatement(mySQLQueryOpenOrder);
+            pstmtOpenOrder.setInt(1, allocatedOrderNumber);
+            pstmtOpenOrder.setInt(2, previousOrderNumber);
+            pstmtOpenOrder.executeUpdate();
+            orderNumber = allocatedOrderNumber;
+            pstmtOpenOrder.close();
+
+            /* If another session saved the same submission in the meantime, its order is kept instead. */
+            originalOrderNumber = OrderSubmissions.recordSubmission(connection, submission.key, orderNumber);
+            if (originalOrderNumber != 0) {
+                connection.rollback();
+                submission.repeated = true;
+                Metrics.recordLatency("Order.repeatOrder", startTime);
+                return originalOrderNumber;
+            }
+
+            /* Copying the lines with the current prices. Items that no longer exist are left out. */
+            String mySQLQueryCopyItems = "INSERT INTO items_order (item_id, order_number, preparation_instructions, " +
+                    "item_quantity, item_cost) SELECT io.item_id, ?, io.preparation_instructions, io.item_quantity, " +
+                    "io.item_quantity * i.item_price FROM items_order io JOIN item i ON i.item_id = io.item_id " +
+                    "WHERE io.order_number = ?;";
+            PreparedStatement pstmtCopyItems = connection.prepareStatement(mySQLQueryCopyItems);
+            pstmtCopyItems.setInt(1, orderNumber);
+            pstmtCopyItems.setInt(2, previousOrderNumber);
+            pstmtCopyItems.executeUpdate();
+            pstmtCopyItems.close();
+
+            /* The copied lines are read back so that their items can be counted once the order is saved. */
+            String mySQLQueryCopiedLines = "SELECT item_id, item_quantity FROM items_order WHERE order_number = ?;";
+            PreparedStatement pstmtCopiedLines = connection.prepareStatement(mySQLQueryCopiedLines);
+            pstmtCopiedLines.setInt(1, orderNumber);
+            ResultSet resultsCopiedLines = pstmtCopiedLines.executeQuery();
+            while (resultsCopiedLines.next()) {
+                copiedLines.add(new int[]{resultsCopiedLines.getInt("item_id"),
+                        resultsCopiedLines.getInt("item_quantity")});
+            }
+            pstmtCopiedLines.close();
+            resultsCopiedLines.close();
+
+            /* Allocating a driver and setting the total from the copied lines. */
+            driverId = DispatchEngine.allocateDriver(connection, restaurantCity);
+            String mySQLQueryUpdateOrder = "UPDATE orders SET total_cost = (SELECT COALESCE(SUM(item_cost), 0) FROM " +
+                    "items_order WHERE order_number = ?), driver_id = ? WHERE order_number = ?;";
+            PreparedStatement pstmtUpdateOrder = connection.prepareStatement(mySQLQueryUpdateOrder);
+            pstmtUpdateOrder.setInt(1, orderNumber);
+            pstmtUpdateOrder.setInt(2, driverId);
+            pstmtUpdateOrder.setInt(3, orderNumber);
+            pstmtUpdateOrder.executeUpdate();
+            pstmtUpdateOrder.close();
+
+            String mySQLQueryWorkload = "UPDATE driver SET driver_workload = driver_workload + 1 WHERE driver_id = ?;";
+            PreparedStatement pstmtWorkload = connection.prepareStatement(mySQLQueryWorkload);
+            pstmtWorkload.setInt(1, driverId);
+            pstmtWorkload.executeUpdate();
+            pstmtWorkload.close();
+
+            connection.commit();
+
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        /* The in-memory state is only changed once the transaction has been committed. */
+        DispatchEngine.adjustWorkload(driverId, 1);
+        RecentOrders.recordOrder(customerId, orderNumber, System.currentTimeMillis());
+        PopularityTracker.rememberOrderRestaurant(orderNumber, restaurantId);
+        OrderSubmissions.remember(submission.key, orderNumber);
+        for (int[] line : copiedLines) {
+            PopularityTracker.recordSale(restaurantId, line[0], line[1]);
+        }
+
+        Metrics.recordLatency("Order.repeatOrder", startTime);
+        return orderNumber;
+
+    }
+
+    /**
+     * This method saves an order that was imported in bulk (see <code>CommandLine</code>) with all its lines in one
+     * transaction, so that a failed import never leaves half an order behind. The lines are already priced from the
+     * menu catalogue, so the total is known before the order is inserted. No driver is allocated here: the imported
+     * orders are given drivers together afterwards by <code>DispatchEngine.allocateDrivers</code>.
+     *
+     * @param connection The Connection resource needed here for the instances of <code>PreparedStatement</code>.
+     * @param customerId The unique id of the customer.
+     * @param restaurantId The unique id of the restaurant.
+     * @param lines The lines of the order. Their order numbers are ignored.
+     * @param submission The submission of the order (see <code>OrderSubmissions</code>). It is marked as repeated if
+     *                   the order was already imported, and then that order is returned.
+     * @return The order number of the new order.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static int importOrder(Connection connection, int customerId, int restaurantId,
+                                  ArrayList<ItemsOrder> lines, OrderSubmissions.Submission submission)
+            throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        int originalOrderNumber = OrderSubmissions.findOrderNumber(connection, submission.key);
+        if (originalOrderNumber != 0) {
+            submission.repeated = true;
+            Metrics.recordLatency("Order.importOrder", startTime);
+            return originalOrderNumber;
+        }
+
+        int orderNumber = 0;
+        long grandTotalCost = 0;
+        for (ItemsOrder line : lines) {
+            grandTotalCost = Money.add(grandTotalCost, line.item_cost);
+        }
+
+        /* The number is allocated before the transaction starts (see OrderNumberAllocator). */
+        int allocatedOrderNumber = OrderNumberAllocator.nextOrderNumber(connection);
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        try {
+
+            String mySQLQueryOpenOrder = "INSERT INTO orders (order_number, customer_id, restaurant_id, total_cost, " +
+                    "driver_id, finalised) VALUES (?, ?, ?, ?, NULL, NULL);";
+            PreparedStatement pstmtOpenOrder = connection.prepareStatement(mySQLQueryOpenOrder);
+            pstmtOpenOrder.setInt(1, allocatedOrderNumber);
+            pstmtOpenOrder.setInt(2, customerId);
+            pstmtOpenOrder.setInt(3, restaurantId);
+            Money.write(pstmtOpenOrder, 4, grandTotalCost);
+            pstmtOpenOrder.executeUpdate();
+            orderNumber = allocatedOrderNumber;
+            pstmtOpenOrder.close();
+
+            /* If another session saved the same submission in the meantime, its order is kept instead. */
+            originalOrderNumber = OrderSubmissions.recordSubmission(connection, submission.key, orderNumber);
+            if (originalOrderNumber != 0) {
+                connection.rollback();
+                submission.repeated = true;
+                Metrics.recordLatency("Order.importOrder", startTime);
+                return originalOrderNumber;
+            }
+
+            /* All the lines are sent to the database in a single batch. */
+            String mySQLQueryAddItems = "INSERT INTO items_order VALUES (?, ?, ?, ?, ?);";
+            PreparedStatement pstmtAddItems = connection.prepareStatement(mySQLQueryAddItems);
+            for (ItemsOrder line : lines) {
+                pstmtAddItems.setInt(1, line.itemId);
+                pstmtAddItems.setInt(2, orderNumber);
+                pstmtAddItems.setString(3, line.preparationInstructions);
+                pstmtAddItems.setInt(4, line.itemQuantity);
+                Money.write(pstmtAddItems, 5, line.item_cost);
+                pstmtAddItems.addBatch();
+            }
+            pstmtAddItems.executeBatch();
+            pstmtAddItems.close();
+
+            connection.commit();
+
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        /* The in-memory state is only changed once the transaction has been committed. */
+        RecentOrders.recordOrder(customerId, orderNumber, System.currentTimeMillis());
+        PopularityTracker.rememberOrderRestaurant(orderNumber, restaurantId);
+        OrderSubmissions.remember(submission.key, orderNumber);
+        for (ItemsOrder line : lines) {
+            PopularityTracker.recordSale(restaurantId, line.itemId, line.itemQuantity);
+        }
+
+        Metrics.recordLatency("Order.importOrder", startTime);
+        return orderNumber;
+
     }
 
     /**
@@ -261,8 +559,10 @@ public class Order {
      */
     public static void updateWithNewItems(Connection connection, int orderNumber) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /* Declaration and initialisation of variable needed to calculate the total cost of the order. */
-        double grandTotalCost = 0.00;
+        long grandTotalCost = 0;
 
         /* PreparedStatement to select the item_cost from each item for a specific order. */
         String mySQLQueryCalculateCost = "SELECT item_cost FROM items_order WHERE order_number = ?;";
@@ -275,13 +575,13 @@ public class Order {
          */
         ResultSet resultsCalculateCost = pstmtCalculateCost.executeQuery();
         while (resultsCalculateCost.next()) {
-            grandTotalCost += resultsCalculateCost.getDouble("item_cost");
+            grandTotalCost = Money.add(grandTotalCost, Money.read(resultsCalculateCost, "item_cost"));
         }
 
         /* PreparedStatement to update the orders table with the new total cost. */
         String mySQLUpdate = "UPDATE orders SET total_cost = ? WHERE order_number = ?;";
         PreparedStatement pstmtUpdateWithCost = connection.prepareStatement(mySQLUpdate);
-        pstmtUpdateWithCost.setDouble(1, grandTotalCost);
+        Money.write(pstmtUpdateWithCost, 1, grandTotalCost);
         pstmtUpdateWithCost.setInt(2, orderNumber);
 
         /*Execution and determination if the update was successful. */
@@ -297,6 +597,8 @@ public class Order {
         pstmtCalculateCost.close();
         resultsCalculateCost.close();
 
+        Metrics.recordLatency("Order.updateWithNewItems", startTime);
+
     }
 
     /**
@@ -310,10 +612,12 @@ public class Order {
      */
     public static void displayOrder(Connection connection, int orderNumber) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /* Declaration and initialisation of variables needed from the orders table. */
         int customerId = 0;
         int restaurantId = 0;
-        double totalCost = 0.00;
+        long totalCost = 0;
         int driverId = 0;
         boolean finalised = false;
 
@@ -328,7 +632,7 @@ public class Order {
         while (resultsDisplayOrder.next()) {
             customerId = resultsDisplayOrder.getInt("customer_id");
             restaurantId = resultsDisplayOrder.getInt("restaurant_id");
-            totalCost = resultsDisplayOrder.getFloat("total_cost");
+            totalCost = Money.read(resultsDisplayOrder, "total_cost");
             driverId = resultsDisplayOrder.getInt("driver_id");
             finalised = resultsDisplayOrder.getBoolean("finalised");
         }
@@ -354,8 +658,7 @@ public class Order {
         System.out.println("Order Number: " + orderNumber);
         System.out.println("Customer Name: " + Customer.findCustomerName(connection, customerId));
         System.out.println("Restaurant Name: " + Restaurant.findRestaurantName(connection, restaurantId));
-        String twoDecimalFigure = String.format("%.2f", totalCost);
-        System.out.println("Total Cost: R " + twoDecimalFigure);
+        System.out.println("Total Cost: R " + Money.format(totalCost));
         System.out.println("Allocated Driver: " + Driver.findDriverName(connection, driverId) + "\n");
         System.out.println("Finalised? " + finalised);
         /* Display of the line items of the order using a while loop because there might be more than one item. A
@@ -365,8 +668,7 @@ public class Order {
             itemQuantity = resultsDisplayItems.getInt("item_quantity");
             itemId = resultsDisplayItems.getInt("item_id");
             String itemName = Item.findItemName(connection, itemId);
-            double itemPrice = Item.findItemPrice(connection, itemId);
-            String formattedPrice = String.format("%.2f", itemPrice);
+            String formattedPrice = Money.format(Item.findItemPrice(connection, itemId));
             specialInstructions = resultsDisplayItems.getString("preparation_instructions");
             System.out.print(itemQuantity + " x " + itemName + "(" + formattedPrice + ") " + "Special " +
                     "Instructions: " + specialInstructions + "\n");
@@ -380,13 +682,16 @@ public class Order {
         resultsDisplayOrder.close();
         resultsDisplayItems.close();
 
+        Metrics.recordLatency("Order.displayOrder", startTime);
+
     }
 
     /**
      * A method that searches for the order number using the customer's first and surname as well as the restaurant's
      * name to try and eliminate duplicates as far as possible. The order numbers are then stored in an ArrayList
      * which is returned from the method and used in the <code>returnOrderNumber</code> method which is discussed
-     * under that methods comment.
+     * under that methods comment. The orders of a restaurant are kept on the shard of its city, so the search runs
+     * on that shard (see ShardRouter).
      *
      * @param connection The Connection resource from the <code>main</code> menu needed here for the instances of
      *                   <code>PreparedStatement</code>.
@@ -410,44 +715,23 @@ public class Order {
         String customerSurname = UserInput.readString("Customer Surname: ", input);
         String restaurantName = UserInput.readString("Restaurant Name: ", input);
 
-        /*
-         * A PreparedStatement that searches for the customer_id in the customer table matching the first and last
-         * name of the customer. It then executes the statement which returns a ResultSet whose getter method is used
-         * for the customer_id.
-         */
-        String mySQLQueryCustomerId = "SELECT customer_id FROM customer WHERE LOWER(customer_firstname) = LOWER(?) " +
-                "AND LOWER(customer_surname) = LOWER(?);";
-        PreparedStatement pstmtCustomerId = connection.prepareStatement(mySQLQueryCustomerId);
-        pstmtCustomerId.setString(1, customerFirstName);
-        pstmtCustomerId.setString(2, customerSurname);
-        ResultSet resultsCustomerId = pstmtCustomerId.executeQuery();
-        int customerId = NULL;
-        while (resultsCustomerId.next()) {
-            customerId = resultsCustomerId.getInt("customer_id");
-        }
-
-        /*
-         * A PreparedStatement that searches for the restaurant_id in the restaurant table using the restaurant name.
-         *  It then executes the statement and also function as the statement above.
-         */
-        String mySQLQueryRestaurantId = "SELECT restaurant_id FROM restaurant WHERE LOWER(restaurant_name) = LOWER(?);";
-        PreparedStatement pstmtRestaurantId = connection.prepareStatement(mySQLQueryRestaurantId);
-        pstmtRestaurantId.setString(1, restaurantName);
-        ResultSet resultsRestaurantId = pstmtRestaurantId.executeQuery();
-        int restaurantId = NULL;
-        while (resultsRestaurantId.next()) {
-            restaurantId = resultsRestaurantId.getInt("restaurant_id");
-        }
+        long startTime = Metrics.startTimer();
+        Connection restaurantConnection = ShardRouter.forRestaurant(connection, restaurantName);
 
         /*
-         * Finally a PreparedStatement is used again to select the order_number where the customerId and restaurantId
-         *  matches those determined above. The order_number is found like above by the getter method of the
+         * A single PreparedStatement joins the orders with the customer and restaurant tables so that the order
+         * numbers are found by name in one round trip. The order_number is found by the getter method of the
          * ResultSet that was returned from the execution of the statement.
          */
-        String mySQLQueryOrderNumbers = "SELECT order_number FROM orders WHERE customer_id = ? AND restaurant_id = ?;";
-        PreparedStatement pstmtOrderNumbers = connection.prepareStatement(mySQLQueryOrderNumbers);
-        pstmtOrderNumbers.setInt(1, customerId);
-        pstmtOrderNumbers.setInt(2, restaurantId);
+        String mySQLQueryOrderNumbers = "SELECT o.order_number FROM orders o " +
+                "JOIN customer c ON c.customer_id = o.customer_id " +
+                "JOIN restaurant r ON r.restaurant_id = o.restaurant_id " +
+                "WHERE LOWER(c.customer_firstname) = LOWER(?) AND LOWER(c.customer_surname) = LOWER(?) " +
+                "AND LOWER(r.restaurant_name) = LOWER(?) ORDER BY o.order_number;";
+        PreparedStatement pstmtOrderNumbers = restaurantConnection.prepareStatement(mySQLQueryOrderNumbers);
+        pstmtOrderNumbers.setString(1, customerFirstName);
+        pstmtOrderNumbers.setString(2, customerSurname);
+        pstmtOrderNumbers.setString(3, restaurantName);
         ResultSet resultsOrderNumbers = pstmtOrderNumbers.executeQuery();
         while (resultsOrderNumbers.next()) {
             orderNumbers.add(resultsOrderNumbers.getInt("order_number"));
@@ -455,12 +739,9 @@ public class Order {
 
         /* Closing of resources to prevent resource leaking.*/
         pstmtOrderNumbers.close();
-        pstmtCustomerId.close();
-        pstmtRestaurantId.close();
         resultsOrderNumbers.close();
-        resultsCustomerId.close();
-        resultsRestaurantId.close();
 
+        Metrics.recordLatency("Order.findExistingOrderNumber", startTime);
         return orderNumbers;
 
     }
@@ -478,6 +759,8 @@ public class Order {
      */
     public static ArrayList<Integer> checkForIncompleteOrders(Connection connection) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /* Declaration of an ArrayList to store the list of order numbers that will be produced by this method. */
         ArrayList<Integer> incompleteOrderNumbers = new ArrayList<>();
 
@@ -489,7 +772,9 @@ public class Order {
          * will return multiple records so each of these will be added to the ArrayList incompleteOrderNumbers.
          */
         String mySQLQueryOrders = "SELECT * FROM orders WHERE total_cost IS NULL AND driver_id IS NULL;";
-        PreparedStatement pstmtOrders = connection.prepareStatement(mySQLQueryOrders);
+        /* A read-only query, so it can run on the replica (see ReadRouter). */
+        Connection readConnection = ReadRouter.forReading(connection);
+        PreparedStatement pstmtOrders = readConnection.prepareStatement(mySQLQueryOrders);
         ResultSet resultsOrders = pstmtOrders.executeQuery();
         while (resultsOrders.next()) {
             incompleteOrderNumbers.add(resultsOrders.getInt("order_number"));
@@ -499,9 +784,44 @@ public class Order {
         pstmtOrders.close();
         resultsOrders.close();
 
+        Metrics.recordLatency("Order.checkForIncompleteOrders", startTime);
         return incompleteOrderNumbers;
     }
 
+    /**
+     * This method finds the open orders that do not have a driver yet, together with the city of their restaurant,
+     * so that drivers can be allocated to all of them at once with <code>DispatchEngine.allocateDrivers</code>. It is
+     * used in the <code>allocateUnassignedOrders</code> method in the main class.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed here for the
+     *                   <code>PreparedStatement</code>.
+     * @return The order numbers, oldest first, with the city of the restaurant of each order.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static LinkedHashMap<Integer, String> findOrdersWithoutDriver(Connection connection) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        LinkedHashMap<Integer, String> orderCities = new LinkedHashMap<>();
+
+        /* One joined query returns the orders together with the city needed to allocate their drivers. */
+        String mySQLQueryUnassigned = "SELECT o.order_number, r.restaurant_city FROM orders o JOIN restaurant r ON " +
+                "r.restaurant_id = o.restaurant_id WHERE o.finalised IS NOT TRUE AND (o.driver_id IS NULL OR " +
+                "o.driver_id = 0) ORDER BY o.order_number;";
+        PreparedStatement pstmtUnassigned = connection.prepareStatement(mySQLQueryUnassigned);
+        ResultSet resultsUnassigned = pstmtUnassigned.executeQuery();
+        while (resultsUnassigned.next()) {
+            orderCities.put(resultsUnassigned.getInt("order_number"), resultsUnassigned.getString("restaurant_city"));
+        }
+
+        /* Closing of resources to prevent resource leaking. */
+        pstmtUnassigned.close();
+        resultsUnassigned.close();
+
+        Metrics.recordLatency("Order.findOrdersWithoutDriver", startTime);
+        return orderCities;
+    }
+
     /**
      * A method that finds pending orders by searching through the boolean column <code>finalised</code> in the
      * <code>orders</code> table and returns a list of records that have false values.
@@ -513,6 +833,8 @@ public class Order {
      */
     public static ArrayList<Integer> findPendingOrders(Connection connection) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /*Declaration of an ArrayList to store the possibly multiple order numbers that will result from this query.*/
         ArrayList<Integer> pendingOrders = new ArrayList<>();
 
@@ -522,7 +844,9 @@ public class Order {
          * loop. All order_numbers found will be added to the ArrayList.
          */
         String mySQLPendingOrders = "SELECT order_number FROM orders WHERE finalised IS FALSE;";
-        PreparedStatement pstmtPendingOrders = connection.prepareStatement(mySQLPendingOrders);
+        /* A read-only query, so it can run on the replica (see ReadRouter). */
+        Connection readConnection = ReadRouter.forReading(connection);
+        PreparedStatement pstmtPendingOrders = readConnection.prepareStatement(mySQLPendingOrders);
         ResultSet resultsPendingOrders = pstmtPendingOrders.executeQuery();
         while (resultsPendingOrders.next()) {
             pendingOrders.add(resultsPendingOrders.getInt("order_number"));
@@ -532,210 +856,404 @@ public class Order {
         pstmtPendingOrders.close();
         resultsPendingOrders.close();
 
+        Metrics.recordLatency("Order.findPendingOrders", startTime);
         return pendingOrders;
 
     }
 
     /**
      * This method changes the <code>finalised</code> value of a record in the <code>orders</code> table to true when
-     * am order is completed. It also updates the allocated driver's workload by invoking  <code>Driver
-     * .updateDriverWorkload</code> and prints an invoice to file by invoking <code>printInvoice</code>.
+     * am order is completed. In the same transaction it adds the order to the daily sales and decreases the allocated
+     * driver's workload. Once committed it prints an invoice to file by invoking <code>printInvoice</code>.
      *
      * @param connection The Connection resource from the <code>main</code> method needed here for the instances of
-     *                   <code>PreparedStatement</code> and the two methods <code>Driver
-     *                   .updateDriverWorkload</code> <code>printInvoice</code>
+     *                   <code>PreparedStatement</code> and the methods <code>SalesAggregator
+     *                   .recordFinalisedOrders</code> and <code>printInvoice</code>
      * @param orderNumber The order number that is used as the entry point to carry out these functions.
      * @throws SQLException If the underlying MySQL service fails.
      */
     public static void makeFinal(Connection connection, int orderNumber) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /* Declaration and initialisation of driverId variable because it is needed outside the while loop. */
         int driverId = 0;
 
         /*
-         * A PreparedStatement to update a given order number so that the finalised variable is true (TINYINT = 1).
+         * The order is finalised, added to the daily sales and removed from its driver's workload in one
+         * transaction, as in finaliseOrdersWhere, so that a failure part of the way leaves the order open and a retry
+         * finalises and counts it completely.
          */
-        String mySQLFinaliseOrder = "UPDATE orders SET finalised = true WHERE order_number = ?;";
-        PreparedStatement pstmtFinaliseOrder = connection.prepareStatement(mySQLFinaliseOrder);
-        pstmtFinaliseOrder.setInt(1, orderNumber);
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        try {
+
+            /*
+             * A PreparedStatement to update a given order number so that the finalised variable is true (TINYINT = 1).
+             */
+            String mySQLFinaliseOrder = "UPDATE orders SET finalised = true WHERE order_number = ? AND finalised " +
+                    "IS NOT TRUE;";
+            PreparedStatement pstmtFinaliseOrder = connection.prepareStatement(mySQLFinaliseOrder);
+            pstmtFinaliseOrder.setInt(1, orderNumber);
 
-        /*Execution of the statement and determination if the update was successful.*/
-        rowsAffected = pstmtFinaliseOrder.executeUpdate();
+            /*
+             * Execution of the statement and determination if the update was successful. Only an order that was not
+             * finalised before is added to the daily sales, so that it is never counted twice.
+             */
+            rowsAffected = pstmtFinaliseOrder.executeUpdate();
+
+            /* Closing of resource to prevent resource leaking.*/
+            pstmtFinaliseOrder.close();
+
+            /*
+             * The driver's workload is only decreased for an order that was finalised just now, so that finalising
+             * an order twice does not remove it from the driver's workload twice.
+             */
+            if (rowsAffected > 0) {
+                SalesAggregator.recordFinalisedOrders(connection, List.of(orderNumber));
+
+                /*
+                 * A PreparedStatement to find the driver id of the same order number to be used below.
+                 */
+                String mySQLQueryFindDriverId = "SELECT driver_id FROM orders WHERE order_number = ?;";
+                PreparedStatement pstmtFindDriverId = connection.prepareStatement(mySQLQueryFindDriverId);
+                pstmtFindDriverId.setInt(1, orderNumber);
+                ResultSet resultsFindDriverId = pstmtFindDriverId.executeQuery();
+                while(resultsFindDriverId.next()) {
+                    driverId = resultsFindDriverId.getInt("driver_id");
+                }
+
+                /* Closing of resources to prevent resource leaking.*/
+                pstmtFindDriverId.close();
+                resultsFindDriverId.close();
+
+                /* The update of the driver's workload. I.e., 1 Order will be removed.*/
+                if (driverId != 0) {
+                    String mySQLQueryWorkload = "UPDATE driver SET driver_workload = driver_workload - 1 " +
+                            "WHERE driver_id = ?;";
+                    PreparedStatement pstmtWorkload = connection.prepareStatement(mySQLQueryWorkload);
+                    pstmtWorkload.setInt(1, driverId);
+                    pstmtWorkload.executeUpdate();
+                    pstmtWorkload.close();
+                }
+            }
+
+            connection.commit();
+
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        /*
+         * The dispatch engine's workload and the invoice are only handled once the transaction has been committed.
+         */
         if (rowsAffected > 0) {
             System.out.println("The order was successfully finalised.");
+            if (driverId != 0) {
+                DispatchEngine.adjustWorkload(driverId, -1);
+            }
+
+            /* Printing of an invoice to file as required by the client.*/
+            printInvoice(connection, orderNumber);
         } else {
-            System.out.println("The operation could not be performed. Check if you entered a valid order number.");
+            System.out.println("The operation could not be performed. Check if you entered a valid order number " +
+                    "that is not finalised yet.");
+        }
+
+        Metrics.recordLatency("Order.makeFinal", startTime);
+
+    }
+
+    /**
+     * This method finalises a list of orders at once. Order numbers that do not exist or are already finalised are
+     * skipped. It is invoked in the <code>finaliseOrder</code> method in the main class.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed for the invocation of
+     *                   <code>finaliseOrdersWhere</code>.
+     * @param orderNumbers The order numbers to finalise.
+     * @return The order numbers that were finalised.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static ArrayList<Integer> finaliseOrders(Connection connection, ArrayList<Integer> orderNumbers)
+            throws SQLException {
+
+        if (orderNumbers.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        /* With several shards (see ShardRouter) the orders are finalised on the shard of each order number. */
+        if (ShardRouter.shardCount() > 1) {
+            TreeMap<Integer, ArrayList<Integer>> shardOrderNumbers = new TreeMap<>();
+            for (int orderNumber : orderNumbers) {
+                shardOrderNumbers.computeIfAbsent(ShardRouter.shardOfNumber(orderNumber), key -> new ArrayList<>())
+                        .add(orderNumber);
+            }
+            ArrayList<Integer> finalisedOrders = new ArrayList<>();
+            for (Map.Entry<Integer, ArrayList<Integer>> shard : shardOrderNumbers.entrySet()) {
+                Connection shardConnection = ShardRouter.forNumber(connection, shard.getValue().get(0));
+                String placeholders = String.join(", ", Collections.nCopies(shard.getValue().size(), "?"));
+                finalisedOrders.addAll(finaliseOrdersWhere(shardConnection, "order_number IN (" + placeholders + ")",
+                        shard.getValue()));
+            }
+            return finalisedOrders;
         }
 
+        String placeholders = String.join(", ", Collections.nCopies(orderNumbers.size(), "?"));
+
+        return finaliseOrdersWhere(connection, "order_number IN (" + placeholders + ")", orderNumbers);
+    }
+
+    /**
+     * This method finalises all open orders of a driver at once, for example at the end of the driver's shift. It
+     * is invoked in the <code>finaliseOrder</code> method in the main class.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed for the invocation of
+     *                   <code>finaliseOrdersWhere</code>.
+     * @param driverId The unique id number of the driver.
+     * @return The order numbers that were finalised.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static ArrayList<Integer> finaliseOrdersOfDriver(Connection connection, int driverId) throws SQLException {
+
+        ArrayList<Integer> parameters = new ArrayList<>();
+        parameters.add(driverId);
+
+        /* A driver's orders are kept on the driver's shard (see ShardRouter). */
+        return finaliseOrdersWhere(ShardRouter.forNumber(connection, driverId), "driver_id = ?", parameters);
+    }
+
+    /**
+     * This method finalises all open orders with an order number from <code>firstOrderNumber</code> up to and
+     * including <code>lastOrderNumber</code>. It is invoked in the <code>finaliseOrder</code> method in the main
+     * class.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed for the invocation of
+     *                   <code>finaliseOrdersWhere</code>.
+     * @param firstOrderNumber The first order number of the range.
+     * @param lastOrderNumber The last order number of the range.
+     * @return The order numbers that were finalised.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static ArrayList<Integer> finaliseOrderRange(Connection connection, int firstOrderNumber,
+                                                        int lastOrderNumber) throws SQLException {
+
+        ArrayList<Integer> parameters = new ArrayList<>();
+        parameters.add(firstOrderNumber);
+        parameters.add(lastOrderNumber);
+
         /*
-         * A PreparedStatement to find the driver id of the same order number to be used below.
+         * A range can cover orders of every shard (see ShardRouter), so it is finalised on each of them in turn. The
+         * shards are not done in parallel because the invoices of all of them are appended to the same file.
          */
-        String mySQLQueryFindDriverId = "SELECT driver_id FROM orders WHERE order_number = ?;";
-        PreparedStatement pstmtFindDriverId = connection.prepareStatement(mySQLQueryFindDriverId);
-        pstmtFindDriverId.setInt(1, orderNumber);
-        ResultSet resultsFindDriverId = pstmtFindDriverId.executeQuery();
-        while(resultsFindDriverId.next()) {
-            driverId = resultsFindDriverId.getInt("driver_id");
+        ArrayList<Integer> finalisedOrders = new ArrayList<>();
+        for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+            finalisedOrders.addAll(finaliseOrdersWhere(ShardRouter.forShard(connection, shard),
+                    "order_number BETWEEN ? AND ?", parameters));
+        }
+
+        return finalisedOrders;
+    }
+
+    /**
+     * This method does the work of the bulk finalise methods above. Instead of the four statements per order of
+     * <code>makeFinal</code>, all selected orders are finalised in one transaction with three statements: the open
+     * orders are selected and locked, the workloads of their drivers are decreased with one grouped update and the
+     * orders are finalised with one set-based update. The invoices are then loaded together and rendered in parallel
+     * by <code>printInvoices</code>.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed here for the instances of
+     *                   <code>PreparedStatement</code>.
+     * @param condition The condition on the <code>orders</code> table that selects the orders, with placeholders.
+     * @param parameters The values of the placeholders in the condition.
+     * @return The order numbers that were finalised.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static ArrayList<Integer> finaliseOrdersWhere(Connection connection, String condition,
+                                                  ArrayList<Integer> parameters) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        ArrayList<Integer> finalisedOrders = new ArrayList<>();
+        HashMap<Integer, Integer> workloadChanges = new HashMap<>();
+        String openCondition = condition + " AND finalised IS NOT TRUE";
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        try {
+
+            /* Selecting and locking the open orders so that the two updates below see exactly the same orders. */
+            String mySQLQuerySelectOrders = "SELECT order_number, driver_id FROM orders WHERE " + openCondition +
+                    " ORDER BY order_number FOR UPDATE;";
+            PreparedStatement pstmtSelectOrders = connection.prepareStatement(mySQLQuerySelectOrders);
+            setParameters(pstmtSelectOrders, parameters);
+            ResultSet resultsSelectOrders = pstmtSelectOrders.executeQuery();
+            while (resultsSelectOrders.next()) {
+                finalisedOrders.add(resultsSelectOrders.getInt("order_number"));
+                int driverId = resultsSelectOrders.getInt("driver_id");
+                if (driverId != 0) {
+                    workloadChanges.merge(driverId, -1, Integer::sum);
+                }
+            }
+            pstmtSelectOrders.close();
+            resultsSelectOrders.close();
+
+            if (!finalisedOrders.isEmpty()) {
+
+                /* One grouped update removes the finalised orders from the workloads of all their drivers. */
+                String mySQLQueryWorkloads = "UPDATE driver d JOIN (SELECT driver_id, COUNT(*) AS finalised_orders " +
+                        "FROM orders WHERE " + openCondition + " GROUP BY driver_id) f ON f.driver_id = d.driver_id " +
+                        "SET d.driver_workload = d.driver_workload - f.finalised_orders;";
+                PreparedStatement pstmtWorkloads = connection.prepareStatement(mySQLQueryWorkloads);
+                setParameters(pstmtWorkloads, parameters);
+                pstmtWorkloads.executeUpdate();
+                pstmtWorkloads.close();
+
+                /* One set-based update finalises all the orders. */
+                String mySQLQueryFinalise = "UPDATE orders SET finalised = true WHERE " + openCondition + ";";
+                PreparedStatement pstmtFinalise = connection.prepareStatement(mySQLQueryFinalise);
+                setParameters(pstmtFinalise, parameters);
+                pstmtFinalise.executeUpdate();
+                pstmtFinalise.close();
+
+                /* Adding the orders to the daily sales in the same transaction. */
+                SalesAggregator.recordFinalisedOrders(connection, finalisedOrders);
+            }
+
+            connection.commit();
+
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
         }
 
-        /* The update of the driver's workload. I.e., 1 Order will be removed.*/
-        Driver.updateDriverWorkload(connection, "remove", driverId);
+        /* The dispatch engine's workloads are only changed once the transaction has been committed. */
+        for (Map.Entry<Integer, Integer> change : workloadChanges.entrySet()) {
+            DispatchEngine.adjustWorkload(change.getKey(), change.getValue());
+        }
 
-        /* Printing of an invoice to file as required by the client.*/
-        printInvoice(connection, orderNumber);
+        /* Printing of the invoices to file as required by the client. */
+        if (!finalisedOrders.isEmpty()) {
+            printInvoices(connection, finalisedOrders);
+        }
+
+        Metrics.recordLatency("Order.finaliseOrdersWhere", startTime);
+        return finalisedOrders;
 
-        /* Closing of resources to prevent resource leaking.*/
-        pstmtFinaliseOrder.close();
-        pstmtFindDriverId.close();
-        resultsFindDriverId.close();
     }
 
     /**
-     * This method handles the printing of the invoice in a format determined by the fictional company.
+     * A utility method that binds integer values to the placeholders of a statement in order.
      *
-     * @param connection The Connection resource from the <code>main</code> method that is used extensively
-     *                   throughout this method both for <code>PreparedStatement</code> and other method invocation
-     *                   which will not be discussed individually.
+     * @param statement The statement to bind the values to.
+     * @param parameters The values to bind.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static void setParameters(PreparedStatement statement, ArrayList<Integer> parameters) throws SQLException {
+        for (int i = 0; i < parameters.size(); i++) {
+            statement.setInt(i + 1, parameters.get(i));
+        }
+    }
+
+    /**
+     * This method handles the printing of the invoice in a format determined by the fictional company. The invoice
+     * is loaded by <code>Invoice.loadInvoice</code> and rendered by the <code>TextInvoiceRenderer</code> straight into
+     * a byte buffer that is written to file and to the invoice archive.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed here for the invocation of
+     *                   <code>Invoice.loadInvoice</code>.
      * @param orderNumber The order number of the particular record in the <code>orders</code> table which is the
      *                    "index" table of the database. All information can be accessed through this order number.
      * @throws SQLException If the underlying MySQL service fails.
      */
     public static void printInvoice(Connection connection, int orderNumber) throws SQLException {
 
-        /*Declaration and initialisation of all variables needed for some sections of the invoice. */
-        int customerId = 0;
-        int restaurantId = 0;
-        double totalCost = 0.00;
-        int driverId = 0;
-        String customerEmail = "";
-        String customerPhoneNumber = "";
-        String customerCity = "";
-        String customerAddress = "";
+        long startTime = Metrics.startTimer();
 
-        /*Instantiation of a StringWriter and PrintWriter objects to be used in the writeInvoiceToFile method*/
-        StringWriter stringWriter = new StringWriter();
-        PrintWriter printWriter = new PrintWriter(stringWriter);
+        /* Loading all the information on the invoice with two queries instead of one per field. */
+        Invoice invoice = Invoice.loadInvoice(connection, orderNumber);
 
-        /*
-         * The process of using PreparedStatements has already been discussed. It will not be discussed again here.
-         * This one is to get the information from the orders table for a given order_number. */
-        String mySQLQueryOrder = "SELECT * FROM orders WHERE order_number = ?;";
-        PreparedStatement pstmtOrderInformation = connection.prepareStatement(mySQLQueryOrder);
-        pstmtOrderInformation.setInt(1, orderNumber);
-        ResultSet resultsOrderInformation = pstmtOrderInformation.executeQuery();
-        while (resultsOrderInformation.next()) {
-            customerId = resultsOrderInformation.getInt("customer_id");
-            restaurantId = resultsOrderInformation.getInt("restaurant_id");
-            totalCost = resultsOrderInformation.getFloat("total_cost");
-            driverId = resultsOrderInformation.getInt("driver_id");
-        }
-
-        /* Declaration of variables that will be accessed through resultsItemsInformation later in the method. */
-        int itemId;
-        String specialInstructions;
-        int itemQuantity;
+        /* The rendering of the invoice into a byte buffer. */
+        InvoiceBuffer invoiceBuffer = new InvoiceBuffer(1024);
+        new TextInvoiceRenderer().render(invoice, invoiceBuffer);
 
-        /*
-         * This one is for the items_order table's information for a given order_number.
-         */
-        String mySQLQueryItems = "SELECT * FROM items_order WHERE order_number = ?;";
-        PreparedStatement pstmtItemsInformation = connection.prepareStatement(mySQLQueryItems);
-        pstmtItemsInformation.setInt(1, orderNumber);
-        ResultSet resultsItemsInformation = pstmtItemsInformation.executeQuery();
+        /*The invocation of the method responsible for writing the information to a file*/
+        writeInvoiceToFile(invoiceBuffer);
 
-        /*
-         * This one is for the customer table's information for a given customer_id
-         */
-        String mySQLQueryCustomer = "SELECT * FROM customer WHERE customer_id = ?;";
-        PreparedStatement pstmtCustomer = connection.prepareStatement(mySQLQueryCustomer);
-        pstmtCustomer.setInt(1, customerId);
-        ResultSet resultsCustomer = pstmtCustomer.executeQuery();
-        while (resultsCustomer.next()) {
-            customerEmail = resultsCustomer.getString("customer_email");
-            customerPhoneNumber = resultsCustomer.getString("customer_phone_num");
-            customerCity = resultsCustomer.getString("customer_city");
-            customerAddress = resultsCustomer.getString("customer_address");
-        }
-
-        /* The actual preparation of the output using the printWriter instance. */
-        printWriter.println("Invoice\n");
-        printWriter.println("Order Number: " + orderNumber);
-        printWriter.println("Customer: " + Customer.findCustomerName(connection, customerId));
-        printWriter.println("Email: " + customerEmail);
-        printWriter.println(("Phone number: " + customerPhoneNumber));
-        printWriter.println("Location: " + customerCity);
-        printWriter.println("\n");
-        printWriter.println("You have ordered the following from " + Restaurant.findRestaurantName(connection,
-                restaurantId) + " in " + Restaurant.findRestaurantLocation(connection,
-                Restaurant.findRestaurantName(connection, restaurantId)) + ":");
-        printWriter.println("\n");
-        /* A while loop because there is likely more than one item on the order. */
-        while (resultsItemsInformation.next()) {
-            itemQuantity = resultsItemsInformation.getInt("item_quantity");
-            itemId = resultsItemsInformation.getInt("item_id");
-            String itemName = Item.findItemName(connection, itemId);
-            double itemPrice = Item.findItemPrice(connection, itemId);
-            String formattedPrice = String.format("%.2f", itemPrice);
-            specialInstructions = resultsItemsInformation.getString("preparation_instructions");
-            printWriter.print(itemQuantity + " x " + itemName + " (R" + formattedPrice + ") " + "Special " +
-                    "Instructions: " + specialInstructions + "\n");
-        }
-        printWriter.println("\n");
-        String twoDecimalFigure = String.format("%.2f", totalCost);
-        printWriter.println("Total: " + twoDecimalFigure);
-        printWriter.println(Driver.findDriverName(connection, driverId) + " is nearest to the restaurant and so he " +
-                "will be delivering your order at:");
-        printWriter.println(customerAddress);
-        printWriter.println("\n");
-        printWriter.println("If you need to contact the restaurant, their number is " + Restaurant.findRestaurantPhoneNumber(connection, restaurantId));
+        /* Keeping a copy of the invoice in the archive so that it can be reprinted by order number later. */
+        InvoiceArchive.archiveInvoice(orderNumber, invoiceBuffer);
 
-        printWriter.println("\n");
+        Metrics.recordLatency("Order.printInvoice", startTime);
 
-        /*The invocation of the method responsible for writing the information to a file*/
-        writeInvoiceToFile(stringWriter.toString());
+    }
 
-        /* Closing of resources to prevent resource leaking. */
-        pstmtCustomer.close();
-        pstmtItemsInformation.close();
-        pstmtOrderInformation.close();
-        resultsCustomer.close();
-        resultsItemsInformation.close();
-        resultsOrderInformation.close();
-        printWriter.close();
+    /**
+     * This method prints the invoices of many orders at once. The invoices are loaded with
+     * <code>Invoice.loadInvoices</code>, rendered in parallel because rendering does not need the database, and then
+     * written to file with a single write and added to the invoice archive in order-number order.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed here for the invocation of
+     *                   <code>Invoice.loadInvoices</code>.
+     * @param orderNumbers The order numbers of the invoices to print.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void printInvoices(Connection connection, ArrayList<Integer> orderNumbers) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        ArrayList<Invoice> invoices = Invoice.loadInvoices(connection, orderNumbers);
+
+        /* Each invoice is rendered into its own buffer, so the invoices can be rendered on all processors at once. */
+        InvoiceBuffer[] invoiceBuffers = new InvoiceBuffer[invoices.size()];
+        IntStream.range(0, invoices.size()).parallel().forEach(i -> {
+            invoiceBuffers[i] = new InvoiceBuffer(1024);
+            new TextInvoiceRenderer().render(invoices.get(i), invoiceBuffers[i]);
+        });
+
+        writeInvoiceToFile(invoiceBuffers);
+        for (int i = 0; i < invoices.size(); i++) {
+            InvoiceArchive.archiveInvoice(invoices.get(i).orderNumber, invoiceBuffers[i]);
+        }
+
+        Metrics.recordLatency("Order.printInvoices", startTime);
 
     }
 
     /**
-     * The method by which the invoice is printed to a text file line by line.
-     * @param lineToPrint The string that is printed to the indicated file.
+     * The method by which the invoice is printed to a text file.
+     * @param invoiceBuffers The rendered invoices that are appended to the indicated file.
      */
-    public static void writeInvoiceToFile(String lineToPrint) {
-        try {
+    public static void writeInvoiceToFile(InvoiceBuffer... invoiceBuffers) {
 
-            /* Name of file to write. */
-            String fileToWriteTo = "invoice.txt";
+        long startTime = Metrics.startTimer();
 
-            /*
-             * Using an instance of FileWriter to write to the named file. The second argument ensures info is
-             * appended and not overwritten.
-             */
-            FileWriter writer = new FileWriter(fileToWriteTo, true);
+        /* Name of file to write. */
+        String fileToWriteTo = "invoice.txt";
 
-            /*
-             * Using an instance of Formatter to make sure the information is printed line by line on separate
-             * lines in the output file
-             */
-            Formatter form = new Formatter(writer);
-            form.format("%s", lineToPrint + "\n");
+        /*
+         * Using an instance of FileOutputStream to write to the named file. The second argument ensures info is
+         * appended and not overwritten. The try with resources closes the stream to prevent resource leaking.
+         */
+        try (BufferedOutputStream writer = new BufferedOutputStream(new FileOutputStream(fileToWriteTo, true))) {
 
-            /*Closing of the resources to prevent resource leaking.*/
-            form.close();
-            writer.close();
+            /* Writing each invoice followed by an empty line to separate it from the next invoice. */
+            for (InvoiceBuffer invoiceBuffer : invoiceBuffers) {
+                invoiceBuffer.writeTo(writer);
+                writer.write('\n');
+            }
 
         } catch (IOException e) {
             e.printStackTrace();
             System.out.println("Error: IOException - writeInvoiceToFile()");
         }
 
+        Metrics.recordLatency("Order.writeInvoiceToFile", startTime);
+
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,315 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.stream.IntStream;
+
+/**
+ * A read-only, in-memory copy of all finalised orders for ad-hoc analysis. The orders and their lines are streamed
+ * from the database once and stored column by column in primitive arrays: one array per field instead of one object
+ * per row. Text such as cities is dictionary encoded, so every row only stores a small int code. A line item then
+ * takes 16 bytes, which keeps tens of millions of lines within a modest heap, and the analyses scan the arrays in
+ * parallel chunks instead of issuing a query per order.
+ * <p>
+ * The snapshot does not change after it has been loaded. Load a new one to include orders finalised since.
+ */
+public class OrderAnalytics {
+
+    // Global variables
+
+    /* The number of rows each parallel task scans. */
+    static final int CHUNK_SIZE = 1 << 16;
+
+    //Attributes
+
+    /* The order columns. Row i of every array belongs to the same order. */
+    int orderCount;
+    int[] orderNumbers = new int[1024];
+    int[] orderCities = new int[1024];
+    long[] orderTotals = new long[1024];
+    int[] orderItemCounts = new int[1024];
+
+    /* The line item columns. Row i of every array belongs to the same line. */
+    int lineCount;
+    int[] lineItems = new int[1024];
+    int[] lineQuantities = new int[1024];
+    long[] lineCosts = new long[1024];
+
+    /* The dictionaries of the encoded columns. Item ids are encoded too so that they can index arrays. */
+    Dictionary cities = new Dictionary();
+    Dictionary itemIds = new Dictionary();
+    HashMap<Integer, String> itemNames = new HashMap<>();
+
+    //Methods
+
+    /**
+     * This method loads all finalised orders and their lines into a new snapshot. The rows are streamed from the
+     * MySQL server, so the only memory used is that of the columns themselves. It is invoked in the
+     * <code>orderAnalytics</code> method in the main class.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed here for the instances of
+     *                   <code>PreparedStatement</code>.
+     * @return The loaded snapshot.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static OrderAnalytics loadSnapshot(Connection connection) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+        OrderAnalytics snapshot = new OrderAnalytics();
+
+        /* The item names are few, so they are simply kept in a map for the reports. */
+        String mySQLQueryItems = "SELECT item_id, item_name FROM item;";
+        PreparedStatement pstmtItems = connection.prepareStatement(mySQLQueryItems);
+        ResultSet resultsItems = pstmtItems.executeQuery();
+        while (resultsItems.next()) {
+            snapshot.itemNames.put(resultsItems.getInt("item_id"), resultsItems.getString("item_name"));
+        }
+        pstmtItems.close();
+        resultsItems.close();
+
+        /*
+         * The orders with their lines, ordered by order number so that all lines of an order arrive together. A
+         * fetch size of Integer.MIN_VALUE tells the MySQL driver to stream the rows.
+         */
+        String mySQLQuerySnapshot = "SELECT o.order_number, o.total_cost, r.restaurant_city, io.item_id, " +
+                "io.item_quantity, io.item_cost FROM orders o " +
+                "LEFT JOIN restaurant r ON r.restaurant_id = o.restaurant_id " +
+                "LEFT JOIN items_order io ON io.order_number = o.order_number " +
+                "WHERE o.finalised IS TRUE ORDER BY o.order_number;";
+        PreparedStatement pstmtSnapshot = connection.prepareStatement(mySQLQuerySnapshot, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+        pstmtSnapshot.setFetchSize(Integer.MIN_VALUE);
+        ResultSet resultsSnapshot = pstmtSnapshot.executeQuery();
+
+        int currentOrderNumber = 0;
+        while (resultsSnapshot.next()) {
+
+            /* A new order number starts a new order row. */
+            int orderNumber = resultsSnapshot.getInt("order_number");
+            if (orderNumber != currentOrderNumber) {
+                snapshot.addOrder(orderNumber, resultsSnapshot.getString("restaurant_city"),
+                        Money.read(resultsSnapshot, "total_cost"));
+                currentOrderNumber = orderNumber;
+            }
+
+            /* Orders without any lines produce a single row with a NULL item id. */
+            int itemId = resultsSnapshot.getInt("item_id");
+            if (!resultsSnapshot.wasNull()) {
+                snapshot.addLine(itemId, resultsSnapshot.getInt("item_quantity"),
+                        Money.read(resultsSnapshot, "item_cost"));
+            }
+        }
+
+        /* Closing of resources to prevent resource leaking. */
+        pstmtSnapshot.close();
+        resultsSnapshot.close();
+
+        Metrics.recordLatency("OrderAnalytics.loadSnapshot", startTime);
+        return snapshot;
+
+    }
+
+    /**
+     * Appends an order row to the order columns.
+     *
+     * @param orderNumber The order number.
+     * @param city The city of the restaurant.
+     * @param totalCost The total cost of the order in cents.
+     */
+    void addOrder(int orderNumber, String city, long totalCost) {
+
+        if (orderCount == orderNumbers.length) {
+            int capacity = orderCount * 2;
+            orderNumbers = Arrays.copyOf(orderNumbers, capacity);
+            orderCities = Arrays.copyOf(orderCities, capacity);
+            orderTotals = Arrays.copyOf(orderTotals, capacity);
+            orderItemCounts = Arrays.copyOf(orderItemCounts, capacity);
+        }
+
+        orderNumbers[orderCount] = orderNumber;
+        orderCities[orderCount] = cities.encode(city == null ? "Unknown" : city);
+        orderTotals[orderCount] = totalCost;
+        orderCount++;
+
+    }
+
+    /**
+     * Appends a line row to the line columns and adds its quantity to the last order.
+     *
+     * @param itemId The item id of the line.
+     * @param quantity The quantity of the item.
+     * @param cost The cost of the line in cents.
+     */
+    void addLine(int itemId, int quantity, long cost) {
+
+        if (lineCount == lineItems.length) {
+            int capacity = lineCount * 2;
+            lineItems = Arrays.copyOf(lineItems, capacity);
+            lineQuantities = Arrays.copyOf(lineQuantities, capacity);
+            lineCosts = Arrays.copyOf(lineCosts, capacity);
+        }
+
+        lineItems[lineCount] = itemIds.encode(String.valueOf(itemId));
+        lineQuantities[lineCount] = quantity;
+        lineCosts[lineCount] = cost;
+        lineCount++;
+        orderItemCounts[orderCount - 1] += quantity;
+
+    }
+
+    /**
+     * Finds the items that were sold the most, by quantity. The quantities are summed per item in parallel chunks
+     * and the top items are then picked with a small heap.
+     *
+     * @param limit The number of items to return.
+     * @return The top items as {item id, quantity, revenue in cents}, best first.
+     */
+    public ArrayList<long[]> findTopItems(int limit) {
+
+        long startTime = Metrics.startTimer();
+
+        /* Every chunk sums into its own arrays, which are then added together. */
+        int itemCount = itemIds.size();
+        long[][] totals = IntStream.range(0, chunkCount(lineCount)).parallel()
+                .mapToObj(chunk -> {
+                    long[][] partial = new long[2][itemCount];
+                    int end = Math.min(lineCount, (chunk + 1) * CHUNK_SIZE);
+                    for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+                        partial[0][lineItems[i]] += lineQuantities[i];
+                        partial[1][lineItems[i]] += lineCosts[i];
+                    }
+                    return partial;
+                })
+                .reduce(new long[2][itemCount], (first, second) -> {
+                    long[][] sum = new long[2][itemCount];
+                    for (int i = 0; i < itemCount; i++) {
+                        sum[0][i] = first[0][i] + second[0][i];
+                        sum[1][i] = first[1][i] + second[1][i];
+                    }
+                    return sum;
+                });
+
+        /* A heap of the best items so far, with the weakest on top so that it can be replaced. */
+        PriorityQueue<long[]> topItems = new PriorityQueue<>((first, second) -> Long.compare(first[1], second[1]));
+        for (int code = 0; code < itemCount; code++) {
+            topItems.add(new long[]{Long.parseLong(itemIds.decode(code)), totals[0][code], totals[1][code]});
+            if (topItems.size() > limit) {
+                topItems.poll();
+            }
+        }
+
+        ArrayList<long[]> result = new ArrayList<>(topItems);
+        result.sort((first, second) -> Long.compare(second[1], first[1]));
+
+        Metrics.recordLatency("OrderAnalytics.findTopItems", startTime);
+        return result;
+    }
+
+    /**
+     * Adds up the revenue and the number of orders per restaurant city.
+     *
+     * @return The cities with {number of orders, revenue in cents}, highest revenue first.
+     */
+    public ArrayList<Object[]> findRevenueByCity() {
+
+        long startTime = Metrics.startTimer();
+
+        int cityCount = cities.size();
+        long[][] totals = IntStream.range(0, chunkCount(orderCount)).parallel()
+                .mapToObj(chunk -> {
+                    long[][] partial = new long[2][cityCount];
+                    int end = Math.min(orderCount, (chunk + 1) * CHUNK_SIZE);
+                    for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+                        partial[0][orderCities[i]]++;
+                        partial[1][orderCities[i]] += orderTotals[i];
+                    }
+                    return partial;
+                })
+                .reduce(new long[2][cityCount], (first, second) -> {
+                    long[][] sum = new long[2][cityCount];
+                    for (int i = 0; i < cityCount; i++) {
+                        sum[0][i] = first[0][i] + second[0][i];
+                        sum[1][i] = first[1][i] + second[1][i];
+                    }
+                    return sum;
+                });
+
+        ArrayList<Object[]> result = new ArrayList<>();
+        for (int code = 0; code < cityCount; code++) {
+            result.add(new Object[]{cities.decode(code), totals[0][code], totals[1][code]});
+        }
+        result.sort((first, second) -> Long.compare((Long) second[2], (Long) first[2]));
+
+        Metrics.recordLatency("OrderAnalytics.findRevenueByCity", startTime);
+        return result;
+    }
+
+    /**
+     * Works out the average basket: the average number of items and the average total cost of an order. Both are
+     * rounded half up to two decimals and returned in hundredths, so that they can be formatted like money.
+     *
+     * @return {average number of items in hundredths, average total cost in cents}, or zeros if there are no orders.
+     */
+    public long[] findAverageBasket() {
+
+        if (orderCount == 0) {
+            return new long[]{0, 0};
+        }
+
+        long items = IntStream.range(0, orderCount).parallel().mapToLong(i -> orderItemCounts[i]).sum();
+        long revenue = IntStream.range(0, orderCount).parallel().mapToLong(i -> orderTotals[i]).sum();
+
+        return new long[]{(items * 100 + orderCount / 2) / orderCount, (revenue + orderCount / 2) / orderCount};
+    }
+
+    /**
+     * @param rows The number of rows to scan.
+     * @return The number of chunks of <code>CHUNK_SIZE</code> rows.
+     */
+    static int chunkCount(int rows) {
+        return (rows + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    /**
+     * Maps text values to dense int codes and back.
+     */
+    static class Dictionary {
+
+        //Attributes
+        HashMap<String, Integer> codes = new HashMap<>();
+        ArrayList<String> values = new ArrayList<>();
+
+        /**
+         * @param value The value to encode.
+         * @return The code of the value, which is assigned the first time the value is seen.
+         */
+        int encode(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        /**
+         * @param code A code returned by <code>encode</code>.
+         * @return The value of the code.
+         */
+        String decode(int code) {
+            return values.get(code);
+        }
+
+        /**
+         * @return The number of distinct values.
+         */
+        int size() {
+            return values.size();
+        }
+    }
+}
@@ -0,0 +1,597 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The order journal keeps the orders that are captured while the database cannot be reached (see
+ * <code>DegradedMode</code>) in a local append-only file, and saves them to the database once it is back. Every
+ * record is written and forced to disk before the operator is told that the order was captured, so a captured order
+ * survives a crash or a restart of the program.
+ * <p>
+ * A record is its length, its bytes and a CRC32 checksum of the bytes. A record that was only partly written when the
+ * program stopped fails the check and ends the journal. There are four kinds of records:
+ * <ul>
+ *     <li>an order with its lines, its driver and, if one was reserved, its order number,</li>
+ *     <li>the order number given to an order without one, written just before that order is saved,</li>
+ *     <li>the order number of an order that was saved, written once its transaction is committed, and</li>
+ *     <li>the reference of an order that the database rejected, written once the order was copied to the
+ *     <code>REJECTED_FILE_NAME</code> file.</li>
+ * </ul>
+ * Every order has its number before it is saved, and saving an order whose number is already in the database does
+ * nothing. The saved orders are also left out when the journal is read again. So a journal can be saved again after it
+ * was interrupted half way without saving any order twice. An order that fails for a passing reason, such as a
+ * deadlock or a lock wait timeout, stays in the journal and is saved the next time. The journal is only deleted once
+ * every order in it is saved or rejected.
+ */
+public class OrderJournal {
+
+    // Global variables
+
+    /* The first bytes of a journal file ("QFOJ") and the version of the format. */
+    static final int MAGIC = 0x51464F4A;
+    static final int VERSION = 1;
+
+    /* The kinds of records. */
+    static final byte ORDER_RECORD = 1;
+    static final byte NUMBER_RECORD = 2;
+    static final byte SAVED_RECORD = 3;
+    static final byte REJECTED_RECORD = 4;
+
+    /* The largest number of orders saved in one transaction. */
+    public static final int DRAIN_BATCH_SIZE = 50;
+
+    public static final String JOURNAL_FILE_NAME = "orders.journal";
+    static Path journalFile = Path.of(JOURNAL_FILE_NAME);
+
+    /* The orders that the database rejected, as order records in the format of the journal. */
+    public static final String REJECTED_FILE_NAME = "orders.rejected";
+    static Path rejectedFile = Path.of(REJECTED_FILE_NAME);
+
+    /* The reference of the last order in the journal, or -1 if the journal has not been read yet. */
+    private static int lastReference = -1;
+
+    /* The length of the journal up to the end of its last complete record, as found by readAll. */
+    private static long validLength;
+
+    /**
+     * An order in the journal.
+     */
+    public static class JournalledOrder {
+
+        //Attributes
+        int reference;
+        long capturedAt;
+        int orderNumber;
+        int customerId;
+        int restaurantId;
+        String restaurantName;
+        int driverId;
+        boolean numberedOnSave;
+        boolean saved;
+        boolean rejected;
+        ArrayList<ItemsOrder> lines = new ArrayList<>();
+
+        /**
+         * @param orderNumber The order number, or 0 if it is given when the order is saved.
+         * @param customerId The unique id of the customer.
+         * @param restaurantId The unique id of the restaurant.
+         * @param restaurantName The name of the restaurant, used to find the shard of an order without a number.
+         * @param driverId The unique id of the allocated driver, or 0 if the driver is allocated when it is saved.
+         */
+        public JournalledOrder(int orderNumber, int customerId, int restaurantId, String restaurantName,
+                               int driverId) {
+            this.capturedAt = System.currentTimeMillis();
+            this.orderNumber = orderNumber;
+            this.customerId = customerId;
+            this.restaurantId = restaurantId;
+            this.restaurantName = restaurantName;
+            this.driverId = driverId;
+        }
+
+        /**
+         * @return The total cost of the order in cents.
+         */
+        public long totalCost() {
+            long totalCost = 0;
+            for (ItemsOrder line : lines) {
+                totalCost = Money.add(totalCost, line.item_cost);
+            }
+            return totalCost;
+        }
+
+        /**
+         * @return The order number the operator was given, or the journal reference ("J" and a number) if the order
+         * had no number when it was captured.
+         */
+        public String label() {
+            return orderNumber != 0 && !numberedOnSave ? String.valueOf(orderNumber) : "J" + reference;
+        }
+    }
+
+    //Methods
+
+    /**
+     * Appends an order to the journal and forces it to disk. The order is given the next journal reference.
+     *
+     * @param order The order with its lines.
+     * @throws IOException If the journal cannot be written.
+     */
+    public static synchronized void append(JournalledOrder order) throws IOException {
+
+        long startTime = Metrics.startTimer();
+
+        /* A record that was cut off when the program stopped is removed, so that the new record can be read. */
+        if (lastReference < 0) {
+            lastReference = readAll().size();
+            if (Files.isRegularFile(journalFile) && Files.size(journalFile) > validLength) {
+                try (FileChannel journal = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                    journal.truncate(validLength);
+                }
+            }
+        }
+        order.reference = lastReference + 1;
+        appendRecord(journalFile, orderRecord(order));
+
+        lastReference = order.reference;
+        Metrics.increment("journal.orders");
+        Metrics.recordLatency("OrderJournal.append", startTime);
+    }
+
+    /**
+     * @param order An order with its lines.
+     * @return The order record of the order.
+     * @throws IOException If the record cannot be written.
+     */
+    static byte[] orderRecord(JournalledOrder order) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ORDER_RECORD);
+        out.writeInt(order.reference);
+        out.writeLong(order.capturedAt);
+        out.writeInt(order.orderNumber);
+        out.writeInt(order.customerId);
+        out.writeInt(order.restaurantId);
+        out.writeUTF(order.restaurantName);
+        out.writeInt(order.driverId);
+        out.writeInt(order.lines.size());
+        for (ItemsOrder line : order.lines) {
+            out.writeInt(line.itemId);
+            out.writeInt(line.itemQuantity);
+            out.writeLong(line.item_cost);
+            out.writeUTF(line.preparationInstructions == null ? "" : line.preparationInstructions);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes one record at the end of a journal file, creating the file with its header if it does not exist.
+     *
+     * @param file The journal file, or the file of rejected orders.
+     * @param record The bytes of the record.
+     * @throws IOException If the file cannot be written.
+     */
+    static void appendRecord(Path file, byte[] record) throws IOException {
+
+        CRC32 checksum = new CRC32();
+        checksum.update(record);
+
+        try (FileChannel journal = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+
+            ByteBuffer buffer = ByteBuffer.allocate((journal.size() == 0 ? 8 : 0) + 8 + record.length);
+            if (journal.size() == 0) {
+                buffer.putInt(MAGIC);
+                buffer.putInt(VERSION);
+            }
+            buffer.putInt(record.length);
+            buffer.put(record);
+            buffer.putInt((int) checksum.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                journal.write(buffer);
+            }
+
+            /* The order only counts as captured once it is on the disk. */
+            journal.force(false);
+        }
+
+    }
+
+    /**
+     * @return The orders in the journal, in the order they were captured, with the numbers given to them since and
+     * whether they were saved or rejected.
+     * @throws IOException If the journal cannot be read or is not a journal.
+     */
+    static synchronized ArrayList<JournalledOrder> readAll() throws IOException {
+
+        ArrayList<JournalledOrder> orders = new ArrayList<>();
+        validLength = 0;
+        if (!Files.isRegularFile(journalFile)) {
+            return orders;
+        }
+
+        byte[] journal = Files.readAllBytes(journalFile);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal))) {
+
+            /* A journal without a complete header has no orders yet. */
+            if (journal.length < 8) {
+                return orders;
+            }
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(journalFile + " is not an order journal.");
+            }
+
+            LinkedHashMap<Integer, JournalledOrder> ordersByReference = new LinkedHashMap<>();
+            while (in.available() > 0) {
+
+                /* A record that is cut off or fails its checksum was being written when the program stopped. */
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > in.available()) {
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    CRC32 checksum = new CRC32();
+                    checksum.update(record);
+                    if (in.readInt() != (int) checksum.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                validLength = journal.length - in.available();
+
+                DataInputStream fields = new DataInputStream(new ByteArrayInputStream(record));
+                byte kind = fields.readByte();
+                if (kind == ORDER_RECORD) {
+                    int reference = fields.readInt();
+                    long capturedAt = fields.readLong();
+                    JournalledOrder order = new JournalledOrder(fields.readInt(), fields.readInt(),
+                            fields.readInt(), fields.readUTF(), fields.readInt());
+                    order.reference = reference;
+                    order.capturedAt = capturedAt;
+                    int lineCount = fields.readInt();
+                    for (int i = 0; i < lineCount; i++) {
+                        int itemId = fields.readInt();
+                        int itemQuantity = fields.readInt();
+                        long itemCost = fields.readLong();
+                        order.lines.add(new ItemsOrder(itemId, 0, fields.readUTF(), itemQuantity, itemCost));
+                    }
+                    ordersByReference.put(reference, order);
+                } else if (kind == NUMBER_RECORD) {
+                    JournalledOrder order = ordersByReference.get(fields.readInt());
+                    int orderNumber = fields.readInt();
+                    if (order != null) {
+                        order.orderNumber = orderNumber;
+                        order.numberedOnSave = true;
+                    }
+                } else if (kind == SAVED_RECORD) {
+                    JournalledOrder order = ordersByReference.get(fields.readInt());
+                    int orderNumber = fields.readInt();
+                    if (order != null) {
+                        order.orderNumber = orderNumber;
+                        order.saved = true;
+                    }
+                } else if (kind == REJECTED_RECORD) {
+                    JournalledOrder order = ordersByReference.get(fields.readInt());
+                    if (order != null) {
+                        order.rejected = true;
+                    }
+                }
+            }
+            orders.addAll(ordersByReference.values());
+        }
+
+        return orders;
+    }
+
+    /**
+     * @return The orders that are waiting in the journal to be saved.
+     */
+    public static ArrayList<JournalledOrder> pendingOrders() {
+        try {
+            ArrayList<JournalledOrder> orders = readAll();
+            orders.removeIf(order -> order.saved || order.rejected);
+            return orders;
+        } catch (IOException e) {
+            System.out.println("Error: IOException - " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Saves the orders in the journal to the database and deletes the journal. Consecutive orders of the same shard
+     * are saved together, up to <code>DRAIN_BATCH_SIZE</code> in one transaction. An order that the database rejects,
+     * for example because its customer was removed in the meantime, is moved to the <code>REJECTED_FILE_NAME</code>
+     * file, so it cannot hold up the others. An order that fails for a passing reason stays in the journal for the
+     * next time. Every batch is marked as saved in the journal once it is committed. If the connection is lost on the
+     * way the journal is kept, and saving it again later carries on with the orders that were not marked.
+     *
+     * @param connection The Connection resource of the main database.
+     * @return The orders that were saved.
+     * @throws SQLException If the connection to the database fails.
+     */
+    public static synchronized ArrayList<JournalledOrder> drain(Connection connection) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        ArrayList<JournalledOrder> savedOrders = new ArrayList<>();
+        ArrayList<JournalledOrder> orders;
+        try {
+            orders = readAll();
+            orders.removeIf(order -> order.saved || order.rejected);
+        } catch (IOException e) {
+            System.out.println("Error: IOException - " + e.getMessage());
+            return savedOrders;
+        }
+
+        int start = 0;
+        while (start < orders.size()) {
+
+            /* The batch is the next orders that are saved on the same shard. */
+            Connection orderConnection = connectionOf(connection, orders.get(start));
+            int end = start + 1;
+            while (end < orders.size() && end - start < DRAIN_BATCH_SIZE
+                    && connectionOf(connection, orders.get(end)) == orderConnection) {
+                end++;
+            }
+            List<JournalledOrder> batch = orders.subList(start, end);
+            numberOrders(orderConnection, batch);
+
+            try {
+                savedOrders.addAll(saveBatch(orderConnection, batch));
+                markSaved(batch);
+            } catch (SQLException e) {
+                if (DegradedMode.isConnectionFailure(e)) {
+                    throw e;
+                }
+
+                /* One order spoils the whole batch, so the orders are tried one at a time to find it. */
+                for (JournalledOrder order : batch) {
+                    try {
+                        savedOrders.addAll(saveBatch(orderConnection, List.of(order)));
+                        markSaved(List.of(order));
+                    } catch (SQLException orderException) {
+                        if (DegradedMode.isConnectionFailure(orderException)) {
+                            throw orderException;
+                        }
+                        if (RetryPolicy.classify(orderException) == RetryPolicy.Failure.PERMANENT && reject(order)) {
+                            System.out.println("Journalled order " + order.label() + " of customer " +
+                                    order.customerId + " at " + order.restaurantName + " was rejected by the " +
+                                    "database and moved to " + REJECTED_FILE_NAME + ", so it must be captured " +
+                                    "again: " + orderException.getMessage());
+                        } else {
+                            System.out.println("Journalled order " + order.label() + " of customer " +
+                                    order.customerId + " at " + order.restaurantName + " could not be saved now " +
+                                    "and stays in the journal: " + orderException.getMessage());
+                        }
+                    }
+                }
+            }
+            start = end;
+        }
+
+        /* The journal is only deleted once none of its orders can be lost with it. */
+        if (orders.stream().allMatch(order -> order.saved || order.rejected)) {
+            try {
+                Files.deleteIfExists(journalFile);
+                lastReference = 0;
+            } catch (IOException e) {
+                System.out.println("Error: IOException - OrderJournal.drain()");
+            }
+        }
+
+        if (!orders.isEmpty()) {
+            Metrics.recordLatency("OrderJournal.drain", startTime);
+        }
+        return savedOrders;
+    }
+
+    /**
+     * @param connection The Connection resource of the main database.
+     * @param order An order in the journal.
+     * @return The connection of the shard the order is saved on (see ShardRouter).
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static Connection connectionOf(Connection connection, JournalledOrder order) throws SQLException {
+        return order.orderNumber != 0 ? ShardRouter.forNumber(connection, order.orderNumber)
+                : ShardRouter.forRestaurant(connection, order.restaurantName);
+    }
+
+    /**
+     * Gives the orders of a batch that have no order number yet one from the <code>OrderNumberAllocator</code>, and
+     * records it in the journal before the order is saved, so that the order keeps its number if the batch has to be
+     * saved again. An order is never saved without a number, because saving it again could not be recognised.
+     *
+     * @param connection The Connection resource of the shard of the batch.
+     * @param batch The orders of the batch.
+     * @throws SQLException If the underlying MySQL service fails, or an order could not be given a number.
+     */
+    static void numberOrders(Connection connection, List<JournalledOrder> batch) throws SQLException {
+
+        for (JournalledOrder order : batch) {
+            if (order.orderNumber != 0) {
+                continue;
+            }
+            int orderNumber = OrderNumberAllocator.nextOrderNumber(connection);
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(NUMBER_RECORD);
+                out.writeInt(order.reference);
+                out.writeInt(orderNumber);
+                appendRecord(journalFile, bytes.toByteArray());
+                order.orderNumber = orderNumber;
+                order.numberedOnSave = true;
+            } catch (IOException e) {
+                throw new SQLException("The number of journalled order J" + order.reference + " could not be " +
+                        "written to the journal.", e);
+            }
+        }
+
+    }
+
+    /**
+     * Marks the orders of a batch as saved in the journal, so that they are left out if the journal is read again
+     * before it is deleted. It is invoked once the transaction of the batch has been committed.
+     *
+     * @param batch The orders of the batch, all with their order numbers.
+     */
+    static void markSaved(List<JournalledOrder> batch) {
+
+        try {
+            for (JournalledOrder order : batch) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(SAVED_RECORD);
+                out.writeInt(order.reference);
+                out.writeInt(order.orderNumber);
+                appendRecord(journalFile, bytes.toByteArray());
+                order.saved = true;
+            }
+        } catch (IOException e) {
+            /* The orders have their numbers, so saving them again would still leave them as they are. */
+            System.out.println("Error: IOException - OrderJournal.markSaved()");
+        }
+
+    }
+
+    /**
+     * Moves an order that the database rejected to the file of rejected orders, and marks it as rejected in the
+     * journal so that it is no longer saved.
+     *
+     * @param order The rejected order.
+     * @return True if the order was moved, or false if it stays in the journal because a file could not be written.
+     */
+    static boolean reject(JournalledOrder order) {
+
+        try {
+            appendRecord(rejectedFile, orderRecord(order));
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(REJECTED_RECORD);
+            out.writeInt(order.reference);
+            appendRecord(journalFile, bytes.toByteArray());
+            order.rejected = true;
+            Metrics.increment("journal.rejected");
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error: IOException - OrderJournal.reject()");
+            return false;
+        }
+
+    }
+
+    /**
+     * Saves a batch of orders in one transaction. The orders are inserted one by one so that an order that is already
+     * in the database can be recognised and skipped, and the lines and the drivers' workloads are then written in two
+     * batched statements.
+     *
+     * @param connection The Connection resource of the shard of the batch.
+     * @param batch The orders of the batch.
+     * @return The orders that were saved, without the ones that were already in the database.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static ArrayList<JournalledOrder> saveBatch(Connection connection, List<JournalledOrder> batch)
+            throws SQLException {
+
+        ArrayList<JournalledOrder> savedOrders = new ArrayList<>();
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+
+        try {
+
+            /* An order whose number is already taken was saved before, and is left as it is. */
+            String mySQLQuerySaveOrder = "INSERT INTO orders (order_number, customer_id, restaurant_id, total_cost, " +
+                    "driver_id, finalised, placed_at) SELECT ?, ?, ?, ?, ?, NULL, ? FROM DUAL WHERE NOT EXISTS " +
+                    "(SELECT 1 FROM orders WHERE order_number = ?);";
+            PreparedStatement pstmtSaveOrder = connection.prepareStatement(mySQLQuerySaveOrder);
+            String mySQLQueryAddItems = "INSERT INTO items_order VALUES (?, ?, ?, ?, ?);";
+            PreparedStatement pstmtAddItems = connection.prepareStatement(mySQLQueryAddItems);
+            String mySQLQueryWorkload = "UPDATE driver SET driver_workload = driver_workload + 1 WHERE driver_id = ?;";
+            PreparedStatement pstmtWorkload = connection.prepareStatement(mySQLQueryWorkload);
+
+            for (JournalledOrder order : batch) {
+                pstmtSaveOrder.setInt(1, order.orderNumber);
+                pstmtSaveOrder.setInt(2, order.customerId);
+                pstmtSaveOrder.setInt(3, order.restaurantId);
+                Money.write(pstmtSaveOrder, 4, order.totalCost());
+                pstmtSaveOrder.setObject(5, order.driverId == 0 ? null : order.driverId);
+                pstmtSaveOrder.setTimestamp(6, new Timestamp(order.capturedAt));
+                pstmtSaveOrder.setInt(7, order.orderNumber);
+                if (pstmtSaveOrder.executeUpdate() != 1) {
+                    continue;
+                }
+
+                int orderNumber = order.orderNumber;
+                for (ItemsOrder line : order.lines) {
+                    pstmtAddItems.setInt(1, line.itemId);
+                    pstmtAddItems.setInt(2, orderNumber);
+                    pstmtAddItems.setString(3, line.preparationInstructions);
+                    pstmtAddItems.setInt(4, line.itemQuantity);
+                    Money.write(pstmtAddItems, 5, line.item_cost);
+                    pstmtAddItems.addBatch();
+                }
+                if (order.driverId != 0) {
+                    pstmtWorkload.setInt(1, order.driverId);
+                    pstmtWorkload.addBatch();
+                }
+
+                JournalledOrder savedOrder = new JournalledOrder(orderNumber, order.customerId, order.restaurantId,
+                        order.restaurantName, order.driverId);
+                savedOrder.reference = order.reference;
+                savedOrder.numberedOnSave = order.numberedOnSave;
+                savedOrder.lines = order.lines;
+                savedOrders.add(savedOrder);
+            }
+            pstmtAddItems.executeBatch();
+            pstmtWorkload.executeBatch();
+
+            /* Closing of resources to prevent resource leaking. */
+            pstmtSaveOrder.close();
+            pstmtAddItems.close();
+            pstmtWorkload.close();
+
+            connection.commit();
+
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        /* The in-memory state is only changed once the transaction has been committed. */
+        for (JournalledOrder order : savedOrders) {
+            RecentOrders.recordOrder(order.customerId, order.orderNumber, order.capturedAt);
+            PopularityTracker.rememberOrderRestaurant(order.orderNumber, order.restaurantId);
+            for (ItemsOrder line : order.lines) {
+                PopularityTracker.recordSale(order.restaurantId, line.itemId, line.itemQuantity);
+            }
+        }
+
+        return savedOrders;
+    }
+}
@@ -0,0 +1,205 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out order numbers from blocks that are reserved in the <code>order_sequence</code> table (hi/lo), so that
+ * several instances of the program can capture orders against one database without asking it for every number.
+ * Reserving a block is a single UPDATE that moves the sequence of the shard forward by the size of the block. The
+ * numbers of the block are then handed out from memory with an <code>AtomicLong</code>, without a lock.
+ * <p>
+ * The size of the next block follows the intake: a block that was used up within half of
+ * <code>TARGET_BLOCK_MILLIS</code> doubles the size, and a block that lasted more than twice as long halves it. Numbers
+ * that are left over when the program stops are never used, so order numbers can have gaps.
+ * <p>
+ * The allocator is the only source of order numbers. Every order is inserted with its number, never by
+ * auto-increment, because an explicit number moves the auto-increment value of <code>orders</code> past it, and the
+ * next auto-incremented number could then fall inside a block that another instance has reserved. Orders can therefore
+ * not be saved without the <code>order_sequence</code> table.
+ */
+public class OrderNumberAllocator {
+
+    // Global variables
+
+    public static final int MIN_BLOCK_SIZE = 10;
+    public static final int MAX_BLOCK_SIZE = 1000;
+    static final long TARGET_BLOCK_MILLIS = 30_000;
+
+    /* The current block of every shard (see ShardRouter). */
+    static final ConcurrentHashMap<Integer, Block> blocks = new ConcurrentHashMap<>();
+
+    /**
+     * A reserved range of order numbers.
+     */
+    static class Block {
+
+        //Attributes
+        final long last;
+        final int size;
+        final long reservedAt;
+        final AtomicLong next;
+
+        /**
+         * @param first The first order number of the block.
+         * @param size The number of order numbers in the block.
+         */
+        Block(long first, int size) {
+            this.last = first + size - 1;
+            this.size = size;
+            this.reservedAt = System.currentTimeMillis();
+            this.next = new AtomicLong(first);
+        }
+    }
+
+    //Methods
+
+    /**
+     * Returns a new order number on the shard of a connection. It must be invoked before a transaction is started on
+     * the connection, so that a reserved block is never rolled back after some of its numbers were handed out.
+     *
+     * @param connection The Connection resource of the shard the order is saved on, in auto-commit mode.
+     * @return The new order number.
+     * @throws SQLException If the underlying MySQL service fails or the <code>order_sequence</code> table is missing.
+     */
+    public static int nextOrderNumber(Connection connection) throws SQLException {
+
+        int shard = ShardRouter.shardOf(connection);
+        while (true) {
+
+            /* The numbers of the current block are handed out without a lock. */
+            Block block = blocks.get(shard);
+            if (block != null) {
+                long orderNumber = block.next.getAndIncrement();
+                if (orderNumber <= block.last) {
+                    return (int) orderNumber;
+                }
+            }
+
+            /* Only one thread reserves the next block; the others find it when they try again. */
+            synchronized (blocks) {
+                if (blocks.get(shard) == block) {
+                    blocks.put(shard, reserveBlock(connection, shard, nextBlockSize(block)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a new order number from the block that is already reserved for a shard, without going to the database.
+     * It is used by <code>DegradedMode</code> while the database cannot be reached. The number is as final as any
+     * other, because the block was reserved in the database before it went down.
+     *
+     * @param shard The shard of the order (see ShardRouter).
+     * @return The new order number, or 0 if no reserved numbers are left.
+     */
+    public static int nextReservedOrderNumber(int shard) {
+
+        Block block = blocks.get(shard);
+        if (block != null) {
+            long orderNumber = block.next.getAndIncrement();
+            if (orderNumber <= block.last) {
+                return (int) orderNumber;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * @param block The block that was used up, or null for the first block.
+     * @return The size of the next block, from how long the used up block lasted.
+     */
+    static int nextBlockSize(Block block) {
+
+        if (block == null) {
+            return MIN_BLOCK_SIZE * 2;
+        }
+
+        long lasted = System.currentTimeMillis() - block.reservedAt;
+        if (lasted < TARGET_BLOCK_MILLIS / 2) {
+            return Math.min(block.size * 2, MAX_BLOCK_SIZE);
+        }
+        if (lasted > TARGET_BLOCK_MILLIS * 2) {
+            return Math.max(block.size / 2, MIN_BLOCK_SIZE);
+        }
+        return block.size;
+    }
+
+    /**
+     * Reserves a block of order numbers. <code>LAST_INSERT_ID(expr)</code> makes the UPDATE return the new value of
+     * the sequence as its generated key, so the block is reserved in one round trip. The row of a shard is created
+     * from the highest order number of the shard the first time it is needed.
+     *
+     * @param connection The Connection resource of the shard.
+     * @param shard The shard.
+     * @param size The number of order numbers to reserve.
+     * @return The reserved block.
+     * @throws SQLException If the underlying MySQL service fails or the <code>order_sequence</code> table is missing.
+     */
+    static Block reserveBlock(Connection connection, int shard, int size) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        long last = 0;
+        try {
+            for (int attempt = 0; attempt < 2 && last == 0; attempt++) {
+                String mySQLQueryReserve = "UPDATE order_sequence SET next_value = LAST_INSERT_ID(next_value + ?) " +
+                        "WHERE shard = ?;";
+                PreparedStatement pstmtReserve = connection.prepareStatement(mySQLQueryReserve,
+                        Statement.RETURN_GENERATED_KEYS);
+                pstmtReserve.setInt(1, size);
+                pstmtReserve.setInt(2, shard);
+                if (pstmtReserve.executeUpdate() > 0) {
+                    ResultSet resultsReserve = pstmtReserve.getGeneratedKeys();
+                    while (resultsReserve.next()) {
+                        last = resultsReserve.getLong(1);
+                    }
+                    resultsReserve.close();
+                } else {
+                    createSequence(connection, shard);
+                }
+                pstmtReserve.close();
+            }
+        } catch (SQLException e) {
+            if (!"42S02".equals(e.getSQLState())) {
+                throw e;
+            }
+            throw new SQLException("There is no order_sequence table on shard " + shard + ", so no order numbers " +
+                    "can be given out. Please create it as described in the README.", e.getSQLState(), e);
+        }
+
+        if (last == 0) {
+            throw new SQLException("No order numbers could be reserved for shard " + shard + ".");
+        }
+
+        Metrics.increment("orders.numberBlocks");
+        Metrics.recordLatency("OrderNumberAllocator.reserveBlock", startTime);
+        return new Block(last - size + 1, size);
+    }
+
+    /**
+     * Creates the sequence row of a shard, starting after the highest order number in the range of the shard. If
+     * another instance created it first, its row is kept.
+     *
+     * @param connection The Connection resource of the shard.
+     * @param shard The shard.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static void createSequence(Connection connection, int shard) throws SQLException {
+
+        String mySQLQueryCreate = "INSERT IGNORE INTO order_sequence (shard, next_value) SELECT ?, " +
+                "GREATEST(COALESCE(MAX(order_number), 0), ?) FROM orders WHERE order_number < ?;";
+        PreparedStatement pstmtCreate = connection.prepareStatement(mySQLQueryCreate);
+        pstmtCreate.setInt(1, shard);
+        pstmtCreate.setLong(2, (long) shard * ShardRouter.SHARD_RANGE);
+        pstmtCreate.setLong(3, (long) (shard + 1) * ShardRouter.SHARD_RANGE + 1);
+        pstmtCreate.executeUpdate();
+
+        /* Closing of resource to prevent resource leaking. */
+        pstmtCreate.close();
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A check of the <code>OrderNumberAllocator</code> across instances of the program, run from the command line:
+ * <pre>
+ * java OrderNumberAllocatorCheck [processes] [threads] [numbers per thread] [JDBC URL username password]
+ * </pre>
+ * Every process is a separate JVM with its own allocator, as every instance of the program has, and all of them
+ * reserve their blocks from one <code>order_sequence</code> table. Inside a process the threads take numbers at the
+ * same time, each on its own connection. The processes send the numbers they took back to the check, which fails if
+ * any number was handed out twice. With a JDBC URL the blocks are reserved in the <code>order_sequence</code> table of
+ * that database. Without one they are reserved in a sequence kept in a file, which is locked while it is moved
+ * forward and answers the allocator's two statements in the same way, so the check can be run without a database.
+ */
+public class OrderNumberAllocatorCheck {
+
+    // Global variables
+
+    /* The file the sequence is kept in when there is no database, and the lock of this process on it. */
+    static Path sequenceFile;
+    static final Object sequenceLock = new Object();
+
+    //Methods
+
+    /**
+     * Runs the check, or one of its processes when the first argument is <code>--worker</code>.
+     *
+     * @param args The number of processes (4 by default), the number of threads in each process (4 by default), the
+     *             number of order numbers each thread takes (25000 by default) and, optionally, the JDBC URL,
+     *             username and password of a database.
+     * @throws Exception If a process cannot be started or is interrupted.
+     */
+    public static void main(String[] args) throws Exception {
+
+        if (args.length > 0 && args[0].equals("--worker")) {
+            System.exit(runWorker(args));
+        }
+
+        int processes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int numbersPerThread = args.length > 2 ? Integer.parseInt(args[2]) : 25_000;
+
+        /* The processes share the database, or else a new sequence file. */
+        List<String> target = new ArrayList<>();
+        Path sharedSequence = null;
+        if (args.length > 5) {
+            target.addAll(List.of(args[3], args[4], args[5]));
+        } else {
+            sharedSequence = Files.createTempFile("order_sequence", ".seq");
+            target.add(sharedSequence.toString());
+        }
+
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        ArrayList<Process> workers = new ArrayList<>();
+        long startTime = System.nanoTime();
+        for (int i = 0; i < processes; i++) {
+            List<String> command = new ArrayList<>(List.of(java, "-cp", System.getProperty("java.class.path"),
+                    "OrderNumberAllocatorCheck", "--worker", String.valueOf(threads),
+                    String.valueOf(numbersPerThread)));
+            command.addAll(target);
+            workers.add(new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start());
+        }
+
+        /* The numbers of every process are read back and checked against those of all the others. */
+        BitSet numbers = new BitSet();
+        int numbersTaken = 0;
+        int duplicates = 0;
+        boolean failed = false;
+        for (Process worker : workers) {
+            try (DataInputStream in = new DataInputStream(worker.getInputStream())) {
+                while (true) {
+                    int orderNumber = in.readInt();
+                    numbersTaken++;
+                    if (orderNumber <= 0 || numbers.get(orderNumber)) {
+                        duplicates++;
+                    } else {
+                        numbers.set(orderNumber);
+                    }
+                }
+            } catch (EOFException e) {
+                /* The process has sent all its numbers. */
+            }
+            failed |= worker.waitFor() != 0;
+        }
+        long millis = (System.nanoTime() - startTime) / 1_000_000;
+        if (sharedSequence != null) {
+            Files.deleteIfExists(sharedSequence);
+        }
+
+        System.out.println(processes + " processes of " + threads + " threads took " + numbersTaken +
+                " order numbers in " + millis + " ms. Duplicate or invalid numbers: " + duplicates + ".");
+
+        boolean passed = !failed && duplicates == 0 && numbersTaken == processes * threads * numbersPerThread;
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Takes order numbers on several threads of this process and writes them to standard output as ints.
+     *
+     * @param args <code>--worker</code>, the number of threads, the number of order numbers each thread takes, and
+     *             either the sequence file or the JDBC URL, username and password.
+     * @return The exit code: 0 if every thread took all its numbers.
+     * @throws Exception If the process is interrupted or the numbers cannot be written.
+     */
+    static int runWorker(String[] args) throws Exception {
+
+        int threads = Integer.parseInt(args[1]);
+        int numbersPerThread = Integer.parseInt(args[2]);
+        ConnectionFactory connectionFactory = args.length > 5 ? new ConnectionFactory(args[3], args[4], args[5])
+                : null;
+        if (connectionFactory == null) {
+            sequenceFile = Path.of(args[3]);
+        }
+
+        ConcurrentLinkedQueue<int[]> taken = new ConcurrentLinkedQueue<>();
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        CountDownLatch start = new CountDownLatch(1);
+        ArrayList<Thread> workers = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try (Connection connection = connectionFactory == null ? simulatedConnection()
+                        : connectionFactory.openConnection()) {
+                    int[] orderNumbers = new int[numbersPerThread];
+                    start.await();
+                    for (int n = 0; n < numbersPerThread; n++) {
+                        orderNumbers[n] = OrderNumberAllocator.nextOrderNumber(connection);
+                    }
+                    taken.add(orderNumbers);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }, "allocator-check-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out))) {
+            for (int[] orderNumbers : taken) {
+                for (int orderNumber : orderNumbers) {
+                    out.writeInt(orderNumber);
+                }
+            }
+        }
+        for (Throwable failure : failures) {
+            failure.printStackTrace();
+        }
+
+        return failures.isEmpty() ? 0 : 1;
+    }
+
+    /**
+     * @return A connection that answers the statements of <code>OrderNumberAllocator.reserveBlock</code> and
+     * <code>createSequence</code> from the sequence file.
+     */
+    static Connection simulatedConnection() {
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (proxy, method, methodArgs) -> switch (method.getName()) {
+                    case "prepareStatement" -> simulatedStatement((String) methodArgs[0]);
+                    case "getAutoCommit" -> true;
+                    case "isClosed" -> false;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == methodArgs[0];
+                    default -> null;
+                });
+    }
+
+    /**
+     * @param sql The statement.
+     * @return A prepared statement that runs the statement against the sequence file.
+     */
+    static PreparedStatement simulatedStatement(String sql) {
+
+        long[] parameters = new long[4];
+        long[] lastInsertId = new long[1];
+
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, (proxy, method, methodArgs) -> {
+                    switch (method.getName()) {
+                        case "setInt", "setLong" -> parameters[(Integer) methodArgs[0]] =
+                                ((Number) methodArgs[1]).longValue();
+                        case "executeUpdate" -> {
+
+                            /* UPDATE ... SET next_value = LAST_INSERT_ID(next_value + ?) WHERE shard = ? */
+                            if (sql.startsWith("UPDATE order_sequence")) {
+                                long[] next = new long[1];
+                                boolean found = updateSequence((int) parameters[2], value -> {
+                                    next[0] = value + parameters[1];
+                                    return next[0];
+                                });
+                                lastInsertId[0] = next[0];
+                                return found ? 1 : 0;
+                            }
+
+                            /* INSERT IGNORE INTO order_sequence ... with an empty orders table. */
+                            if (sql.startsWith("INSERT IGNORE INTO order_sequence")) {
+                                return updateSequence((int) parameters[1], null) ? 0 : 1;
+                            }
+                            throw new SQLException("Unexpected statement: " + sql);
+                        }
+                        case "getGeneratedKeys" -> {
+                            return simulatedKey(lastInsertId[0]);
+                        }
+                        case "hashCode" -> {
+                            return System.identityHashCode(proxy);
+                        }
+                        case "equals" -> {
+                            return proxy == methodArgs[0];
+                        }
+                        default -> {
+                        }
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * A change to the value of a row of the sequence.
+     */
+    interface SequenceUpdate {
+
+        /**
+         * @param value The value of the row.
+         * @return The new value of the row.
+         */
+        long apply(long value);
+    }
+
+    /**
+     * Changes or creates the row of a shard in the sequence file while the file is locked against the other
+     * processes, and against the other threads of this one. The value of shard n is kept at byte 9n, after a byte that
+     * tells whether the row exists.
+     *
+     * @param shard The shard.
+     * @param update The change to the row, or null to create the row with the value 0 if it does not exist.
+     * @return True if the row existed.
+     * @throws IOException If the sequence file cannot be read or written.
+     */
+    static boolean updateSequence(int shard, SequenceUpdate update) throws IOException {
+
+        synchronized (sequenceLock) {
+            try (FileChannel sequence = FileChannel.open(sequenceFile, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE); FileLock lock = sequence.lock()) {
+
+                ByteBuffer row = ByteBuffer.allocate(9);
+                boolean found = sequence.read(row, shard * 9L) == 9 && row.get(0) == 1;
+                long value = found ? row.getLong(1) : 0;
+                if (found && update == null) {
+                    return true;
+                }
+                if (update != null) {
+                    if (!found) {
+                        return false;
+                    }
+                    value = update.apply(value);
+                }
+
+                row.clear();
+                row.put((byte) 1).putLong(value).flip();
+                sequence.write(row, shard * 9L);
+                sequence.force(false);
+                return found;
+            }
+        }
+    }
+
+    /**
+     * @param key The generated key.
+     * @return A result set with the generated key as its only row.
+     */
+    static ResultSet simulatedKey(long key) {
+
+        boolean[] read = new boolean[1];
+
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, methodArgs) -> switch (method.getName()) {
+                    case "next" -> {
+                        boolean hasRow = !read[0];
+                        read[0] = true;
+                        yield hasRow;
+                    }
+                    case "getLong" -> key;
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == methodArgs[0];
+                    default -> null;
+                });
+    }
+}
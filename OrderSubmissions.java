@@ -0,0 +1,226 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Makes the submission of an order idempotent, so that an order that is submitted again after a step timed out is not
+ * saved twice. Every submission carries a key, which is saved in the <code>order_submission</code> table in the same
+ * transaction as the order. The primary key of the table makes sure that a key is only ever used by one order. When
+ * a key is submitted again the number of the original order is returned, and nothing is written to
+ * <code>orders</code>, <code>items_order</code> or <code>driver</code>.
+ * <p>
+ * The keys of the last <code>CACHE_CAPACITY</code> submissions are kept in memory, so that a repeated submission is
+ * mostly recognised without a query. A captured order is given a random key when its capture starts. If the capture
+ * fails and the operator captures the same customer and restaurant again within <code>PENDING_MILLIS</code>, the key
+ * is used again. An imported order's key is made from the file, so importing a file again skips the orders that were
+ * already saved. The lines added to an order are submitted in the same way by <code>ItemsOrder.addItemToOrder</code>,
+ * with the key saved against the number of their order. Without the <code>order_submission</code> table only the
+ * keys in memory are checked.
+ */
+public class OrderSubmissions {
+
+    // Global variables
+
+    public static final int CACHE_CAPACITY = 4096;
+    public static final long PENDING_MILLIS = 10 * 60_000L;
+
+    /* The order numbers of the most recent keys, least recently used first. */
+    static final Map<String, Integer> recentKeys = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > CACHE_CAPACITY;
+        }
+    };
+
+    /* The submissions of captures that have not finished yet, by what was captured. */
+    static final HashMap<String, Submission> pendingSubmissions = new HashMap<>();
+
+    /* Set once the order_submission table was found to be missing, so that it is not looked for on every order. */
+    static volatile boolean tableMissing;
+
+    /**
+     * The submission of one order.
+     */
+    static class Submission {
+
+        //Attributes
+        final String key;
+        final long startedAt;
+        boolean repeated;
+
+        /**
+         * @param key The idempotency key of the submission, at most 64 characters.
+         */
+        Submission(String key) {
+            this.key = key;
+            this.startedAt = System.currentTimeMillis();
+        }
+    }
+
+    //Methods
+
+    /**
+     * Starts the submission of a captured order. If a capture of the same order was started within
+     * <code>PENDING_MILLIS</code> and did not finish, its submission is continued, so that the order it may already
+     * have saved is found.
+     *
+     * @param description What is captured, for example the customer and the restaurant.
+     * @return The submission.
+     */
+    public static Submission beginSubmission(String description) {
+
+        String normalisedDescription = SearchIndex.normalise(description);
+        synchronized (pendingSubmissions) {
+            Submission submission = pendingSubmissions.get(normalisedDescription);
+            if (submission == null || System.currentTimeMillis() - submission.startedAt > PENDING_MILLIS) {
+                submission = new Submission(UUID.randomUUID().toString());
+                pendingSubmissions.put(normalisedDescription, submission);
+            }
+            return submission;
+        }
+    }
+
+    /**
+     * Ends the submission of a captured order once it was saved, or once it is known that nothing was saved.
+     *
+     * @param description What was captured, as given to <code>beginSubmission</code>.
+     */
+    public static void endSubmission(String description) {
+        synchronized (pendingSubmissions) {
+            pendingSubmissions.remove(SearchIndex.normalise(description));
+        }
+    }
+
+    /**
+     * Finds the order that was saved with a key, first in memory and then in the <code>order_submission</code>
+     * table.
+     *
+     * @param connection The Connection resource of the shard the order is saved on.
+     * @param key The idempotency key.
+     * @return The order number of the order, or 0 if the key was not used yet.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static int findOrderNumber(Connection connection, String key) throws SQLException {
+
+        synchronized (recentKeys) {
+            Integer orderNumber = recentKeys.get(key);
+            if (orderNumber != null) {
+                Metrics.increment("orders.repeatedSubmissions");
+                return orderNumber;
+            }
+        }
+        if (tableMissing) {
+            return 0;
+        }
+
+        int orderNumber = readOrderNumber(connection, key);
+        if (orderNumber != 0) {
+            Metrics.increment("orders.repeatedSubmissions");
+            remember(key, orderNumber);
+        }
+        return orderNumber;
+    }
+
+    /**
+     * Saves the key of a new order. It is invoked inside the transaction that saves the order, so that the order and
+     * its key are saved together or not at all. If another session saved the same key first, the primary key
+     * rejects it and the order of the other session is returned, and the caller rolls back.
+     *
+     * @param connection The Connection resource of the transaction.
+     * @param key The idempotency key.
+     * @param orderNumber The order number of the new order.
+     * @return 0 if the key was saved, or the order number of the order that was saved with it before.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static int recordSubmission(Connection connection, String key, int orderNumber) throws SQLException {
+
+        if (tableMissing) {
+            return 0;
+        }
+
+        try {
+            String mySQLQueryRecord = "INSERT INTO order_submission (idempotency_key, order_number) VALUES (?, ?);";
+            PreparedStatement pstmtRecord = connection.prepareStatement(mySQLQueryRecord);
+            pstmtRecord.setString(1, key);
+            pstmtRecord.setInt(2, orderNumber);
+            pstmtRecord.executeUpdate();
+
+            /* Closing of resource to prevent resource leaking. */
+            pstmtRecord.close();
+        } catch (SQLIntegrityConstraintViolationException e) {
+            Metrics.increment("orders.repeatedSubmissions");
+            return readOrderNumber(connection, key);
+        } catch (SQLException e) {
+            if (!"42S02".equals(e.getSQLState())) {
+                throw e;
+            }
+            markTableMissing();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Keeps the key of an order in memory. It is invoked once the order is committed.
+     *
+     * @param key The idempotency key.
+     * @param orderNumber The order number of the order.
+     */
+    static void remember(String key, int orderNumber) {
+        synchronized (recentKeys) {
+            recentKeys.put(key, orderNumber);
+        }
+    }
+
+    /**
+     * Reads the order of a key from the <code>order_submission</code> table. The read is a locking read, so that
+     * inside a transaction it sees a key that another session committed after the transaction started.
+     *
+     * @param connection The Connection resource of the shard the order is saved on.
+     * @param key The idempotency key.
+     * @return The order number of the order, or 0 if the key is not in the table.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static int readOrderNumber(Connection connection, String key) throws SQLException {
+
+        int orderNumber = 0;
+        try {
+            String mySQLQueryFind = "SELECT order_number FROM order_submission WHERE idempotency_key = ? " +
+                    "LOCK IN SHARE MODE;";
+            PreparedStatement pstmtFind = connection.prepareStatement(mySQLQueryFind);
+            pstmtFind.setString(1, key);
+            ResultSet resultsFind = pstmtFind.executeQuery();
+            while (resultsFind.next()) {
+                orderNumber = resultsFind.getInt("order_number");
+            }
+
+            /* Closing of resources to prevent resource leaking. */
+            pstmtFind.close();
+            resultsFind.close();
+        } catch (SQLException e) {
+            if (!"42S02".equals(e.getSQLState())) {
+                throw e;
+            }
+            markTableMissing();
+        }
+
+        return orderNumber;
+    }
+
+    /**
+     * Stops looking for the <code>order_submission</code> table once it was found to be missing.
+     */
+    static void markTableMissing() {
+        if (!tableMissing) {
+            System.out.println("OrderSubmissions: there is no order_submission table, so repeated orders are only " +
+                    "recognised while the program runs.");
+            tableMissing = true;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The popularity tracker counts the items that are sold as lines are added to orders, so that the best sellers can be
+ * shown without querying <code>items_order</code>. It keeps exact counts per item and per restaurant and item in
+ * striped counters (<code>LongAdder</code>), and approximate counts for the last hour and the last day in
+ * "Space-Saving" sketches. A sketch only keeps <code>SKETCH_CAPACITY</code> items, so the windows use a fixed amount
+ * of memory however many different items are sold, while the items that sell most are always among those kept.
+ * <p>
+ * The counts start at zero when the program starts.
+ */
+public class PopularityTracker {
+
+    // Global variables
+
+    /* The number of items each sketch keeps. */
+    public static final int SKETCH_CAPACITY = 200;
+
+    /* The exact counts since the program started, per item and per restaurant and item. */
+    static final ConcurrentHashMap<Integer, LongAdder> itemCounts = new ConcurrentHashMap<>();
+    static final ConcurrentHashMap<Long, LongAdder> restaurantItemCounts = new ConcurrentHashMap<>();
+
+    /* The last hour in 12 buckets of 5 minutes and the last day in 24 buckets of an hour. */
+    static final WindowedSketch lastHour = new WindowedSketch(12, 5 * 60_000L);
+    static final WindowedSketch lastDay = new WindowedSketch(24, 60 * 60_000L);
+
+    /* The restaurant of recently seen orders, so that a line does not need a query to find its restaurant. */
+    static final Map<Integer, Integer> orderRestaurants = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+            return size() > 1024;
+        }
+    };
+
+    //Methods
+
+    /**
+     * Remembers the restaurant of an order. It is invoked by <code>Order.openOrder</code>, <code>repeatOrder</code>
+     * and <code>importOrder</code> so that the lines added to the order later are counted against the restaurant
+     * without a query.
+     *
+     * @param orderNumber The order number.
+     * @param restaurantId The unique id of the restaurant of the order.
+     */
+    public static void rememberOrderRestaurant(int orderNumber, int restaurantId) {
+        synchronized (orderRestaurants) {
+            orderRestaurants.put(orderNumber, restaurantId);
+        }
+    }
+
+    /**
+     * Counts a line that was added to an order. It is invoked by <code>ItemsOrder.addItemToOrder</code> and
+     * <code>Order.repeatOrder</code>.
+     *
+     * @param connection The Connection resource needed to find the restaurant of an order that has not been seen.
+     * @param orderNumber The order number of the line.
+     * @param itemId The item id of the line.
+     * @param quantity The quantity of the line.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void recordLine(Connection connection, int orderNumber, int itemId, int quantity)
+            throws SQLException {
+        recordSale(findOrderRestaurant(connection, orderNumber), itemId, quantity);
+    }
+
+    /**
+     * Counts the sale of an item.
+     *
+     * @param restaurantId The unique id of the restaurant that sold the item.
+     * @param itemId The item id.
+     * @param quantity The number of items sold.
+     */
+    public static void recordSale(int restaurantId, int itemId, int quantity) {
+
+        itemCounts.computeIfAbsent(itemId, key -> new LongAdder()).add(quantity);
+        restaurantItemCounts.computeIfAbsent(restaurantItemKey(restaurantId, itemId), key -> new LongAdder())
+                .add(quantity);
+
+        long now = System.currentTimeMillis();
+        lastHour.record(itemId, quantity, now);
+        lastDay.record(itemId, quantity, now);
+
+    }
+
+    /**
+     * Finds the items sold the most since the program started.
+     *
+     * @param limit The number of items to return.
+     * @return The items as {item id, quantity}, best first.
+     */
+    public static ArrayList<long[]> findTopItems(int limit) {
+
+        HashMap<Integer, Long> counts = new HashMap<>();
+        for (Map.Entry<Integer, LongAdder> entry : itemCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+
+        return topOf(counts, limit);
+    }
+
+    /**
+     * Finds the items of one restaurant sold the most since the program started.
+     *
+     * @param restaurantId The unique id of the restaurant.
+     * @param limit The number of items to return.
+     * @return The items as {item id, quantity}, best first.
+     */
+    public static ArrayList<long[]> findTopItemsForRestaurant(int restaurantId, int limit) {
+
+        HashMap<Integer, Long> counts = new HashMap<>();
+        for (Map.Entry<Long, LongAdder> entry : restaurantItemCounts.entrySet()) {
+            if ((int) (entry.getKey() >>> 32) == restaurantId) {
+                counts.put((int) (long) entry.getKey(), entry.getValue().sum());
+            }
+        }
+
+        return topOf(counts, limit);
+    }
+
+    /**
+     * Finds the items sold the most in the last hour. The quantities are estimates that can be slightly too high.
+     *
+     * @param limit The number of items to return.
+     * @return The items as {item id, quantity}, best first.
+     */
+    public static ArrayList<long[]> findTopItemsLastHour(int limit) {
+        return topOf(lastHour.merge(System.currentTimeMillis()), limit);
+    }
+
+    /**
+     * Finds the items sold the most in the last day. The quantities are estimates that can be slightly too high.
+     *
+     * @param limit The number of items to return.
+     * @return The items as {item id, quantity}, best first.
+     */
+    public static ArrayList<long[]> findTopItemsLastDay(int limit) {
+        return topOf(lastDay.merge(System.currentTimeMillis()), limit);
+    }
+
+    /**
+     * Finds the restaurant of an order, from memory if the order has been seen and from the shard of the order (see
+     * ShardRouter) otherwise. An order that is not found is not remembered, so that it is found once it exists.
+     *
+     * @param connection The Connection resource of the caller, needed to find the connection of the order's shard.
+     * @param orderNumber The order number.
+     * @return The unique id of the restaurant, or 0 if the order does not exist.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static int findOrderRestaurant(Connection connection, int orderNumber) throws SQLException {
+
+        synchronized (orderRestaurants) {
+            Integer restaurantId = orderRestaurants.get(orderNumber);
+            if (restaurantId != null) {
+                return restaurantId;
+            }
+        }
+
+        int restaurantId = 0;
+        String mySQLQueryRestaurant = "SELECT restaurant_id FROM orders WHERE order_number = ?;";
+        PreparedStatement pstmtRestaurant = ShardRouter.forNumber(connection, orderNumber)
+                .prepareStatement(mySQLQueryRestaurant);
+        pstmtRestaurant.setInt(1, orderNumber);
+        ResultSet resultsRestaurant = pstmtRestaurant.executeQuery();
+        while (resultsRestaurant.next()) {
+            restaurantId = resultsRestaurant.getInt("restaurant_id");
+        }
+
+        /* Closing of resources to prevent resource leaking. */
+        pstmtRestaurant.close();
+        resultsRestaurant.close();
+
+        if (restaurantId != 0) {
+            rememberOrderRestaurant(orderNumber, restaurantId);
+        }
+        return restaurantId;
+    }
+
+    /**
+     * @param restaurantId The unique id of the restaurant.
+     * @param itemId The item id.
+     * @return The key of the restaurant and item in <code>restaurantItemCounts</code>.
+     */
+    static long restaurantItemKey(int restaurantId, int itemId) {
+        return ((long) restaurantId << 32) | (itemId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Sorts counts from highest to lowest and keeps the first ones.
+     *
+     * @param counts The counts per item id.
+     * @param limit The number of items to return.
+     * @return The items as {item id, quantity}, best first.
+     */
+    static ArrayList<long[]> topOf(Map<Integer, Long> counts, int limit) {
+
+        ArrayList<long[]> items = new ArrayList<>();
+        for (Map.Entry<Integer, Long> entry : counts.entrySet()) {
+            items.add(new long[]{entry.getKey(), entry.getValue()});
+        }
+        items.sort((first, second) -> Long.compare(second[1], first[1]));
+
+        return new ArrayList<>(items.subList(0, Math.min(limit, items.size())));
+    }
+
+    /**
+     * A Space-Saving sketch. It counts at most <code>SKETCH_CAPACITY</code> items. When a new item arrives and the
+     * sketch is full, the item with the lowest count is replaced and the new item takes over that count, so the
+     * count of an item can only be too high, by at most the lowest count in the sketch.
+     */
+    static class SpaceSaving {
+
+        //Attributes
+        HashMap<Integer, Long> counts = new HashMap<>();
+
+        /**
+         * @param itemId The item id.
+         * @param quantity The quantity to add.
+         */
+        void add(int itemId, long quantity) {
+
+            Long count = counts.get(itemId);
+            if (count != null || counts.size() < SKETCH_CAPACITY) {
+                counts.put(itemId, (count == null ? 0 : count) + quantity);
+                return;
+            }
+
+            /* Replacing the item with the lowest count. */
+            int lowestItem = 0;
+            long lowestCount = Long.MAX_VALUE;
+            for (Map.Entry<Integer, Long> entry : counts.entrySet()) {
+                if (entry.getValue() < lowestCount) {
+                    lowestItem = entry.getKey();
+                    lowestCount = entry.getValue();
+                }
+            }
+            counts.remove(lowestItem);
+            counts.put(itemId, lowestCount + quantity);
+
+        }
+    }
+
+    /**
+     * A sliding window made of a ring of sketches, one per time bucket. A bucket is cleared when the ring comes round
+     * to it again, so the window always covers the last <code>bucketCount</code> buckets.
+     */
+    static class WindowedSketch {
+
+        //Attributes
+        SpaceSaving[] buckets;
+        long[] bucketEpochs;
+        long bucketMillis;
+
+        /**
+         * @param bucketCount The number of buckets in the window.
+         * @param bucketMillis The length of one bucket in milliseconds.
+         */
+        WindowedSketch(int bucketCount, long bucketMillis) {
+            this.buckets = new SpaceSaving[bucketCount];
+            this.bucketEpochs = new long[bucketCount];
+            this.bucketMillis = bucketMillis;
+            for (int i = 0; i < bucketCount; i++) {
+                buckets[i] = new SpaceSaving();
+                bucketEpochs[i] = -1;
+            }
+        }
+
+        /**
+         * @param itemId The item id.
+         * @param quantity The quantity sold.
+         * @param now The current time in milliseconds.
+         */
+        synchronized void record(int itemId, int quantity, long now) {
+
+            long epoch = now / bucketMillis;
+            int index = (int) (epoch % buckets.length);
+            if (bucketEpochs[index] != epoch) {
+                buckets[index] = new SpaceSaving();
+                bucketEpochs[index] = epoch;
+            }
+            buckets[index].add(itemId, quantity);
+
+        }
+
+        /**
+         * Adds up the buckets that are still inside the window.
+         *
+         * @param now The current time in milliseconds.
+         * @return The estimated counts per item id.
+         */
+        synchronized HashMap<Integer, Long> merge(long now) {
+
+            long epoch = now / bucketMillis;
+            HashMap<Integer, Long> counts = new HashMap<>();
+            for (int i = 0; i < buckets.length; i++) {
+                if (bucketEpochs[i] > epoch - buckets.length) {
+                    for (Map.Entry<Integer, Long> entry : buckets[i].counts.entrySet()) {
+                        counts.merge(entry.getKey(), entry.getValue(), Long::sum);
+                    }
+                }
+            }
+
+            return counts;
+        }
+    }
+}
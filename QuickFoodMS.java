@@ -1,7 +1,13 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.Scanner;
 
 /**
@@ -14,14 +20,54 @@ import java.util.Scanner;
  */
 public class QuickFoodMS {
 
+    /**
+     * A main menu option, run by <code>runAction</code> so that its metrics are recorded under its name.
+     */
+    interface MenuAction {
+
+        /**
+         * @throws SQLException If the underlying MySQL service fails.
+         */
+        void run() throws SQLException;
+    }
 
     /**
      * The main method from where all other methods will be invoked based on the user's menu choice.
      *
-     * @param args Main method.
+     * @param args The command line arguments. A command such as <code>pending</code> runs a single operation
+     *             without the menu (see <code>CommandLine</code>). <code>--record file</code> records the session and
+     *             <code>--replay file</code> replays a recorded one, at the recorded pace or flat out with
+     *             <code>--fast</code>.
      */
     public static void main(String[] args) {
 
+        /* Variables for use in opening the JDBC connection to the "PoisePMS_db" database. */
+        String dbURL = "jdbc:mysql://localhost:3306/QuickFoodMS_db?useSSL=false";
+        String username = "otheruser";
+        String password = "swordfish";
+
+        /* Reporting queries are sent to a replica when one is given with -Dquickfood.replicaUrl (see ReadRouter). */
+        String replicaURL = System.getProperty("quickfood.replicaUrl");
+
+        ConnectionFactory connectionFactory = new ConnectionFactory(dbURL, replicaURL, username, password);
+
+        /* Spreading orders and drivers over several databases by city when shards are given (see ShardRouter). */
+        try {
+            ShardRouter.configure(connectionFactory, System.getProperty("quickfood.shardUrls"),
+                    System.getProperty("quickfood.shardCities"), username, password);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid shard configuration: " + e.getMessage());
+            return;
+        }
+
+        /*
+         * A command on the command line (see CommandLine) runs one operation and exits, without the Scanner, the
+         * menu or any of the background jobs, so that it can be used from scripts.
+         */
+        if (CommandLine.isCommand(args)) {
+            System.exit(CommandLine.run(args, connectionFactory));
+        }
+
         System.out.println("Welcome to the Quick Food Management System.\n");
 
         /*
@@ -30,86 +76,147 @@ public class QuickFoodMS {
          */
         Scanner scanner = new Scanner(System.in);
 
-        /* Variables for use in opening the JDBC connection to the "PoisePMS_db" database. */
-        String dbURL = "jdbc:mysql://localhost:3306/QuickFoodMS_db?useSSL=false";
-        String username = "otheruser";
-        String password = "swordfish";
+        /* Recording or replaying the operator's answers when asked to on the command line (see SessionLog). */
+        try {
+            SessionLog.configure(args);
+        } catch (IOException e) {
+            System.out.println("Error: IOException - " + e.getMessage());
+            return;
+        }
 
-        /* Using a try with resources / catch block to open the Connection resource and catch any SQL Exceptions. */
-        try (Connection connection = DriverManager.getConnection(dbURL, username, password)) {
+        /*
+         * When the database cannot be reached, at start-up or later on, orders are taken in degraded mode (see
+         * DegradedMode) until it is back, after which the connection is opened again and the main menu is shown.
+         */
+        boolean started = false;
+        while (true) {
 
-            /*
-             * A while loop that will continue running until the user chooses to exit the program by selecting the
-             * relevant option number below.
-             */
-            while (true) {
-
-                /* Main menu of the application. */
-                String promptMenuChoice = """
-                        Main Menu (Select the Number Next to Your Choice):
-                        --------------------------------------------------
-                        1. Capture New Order.
-                        2. Add Items To Existing Order.
-                        3. Find and Display Order.
-                        4. List Orders With Incomplete Information.
-                        5. List Pending Orders.
-                        6. List Orders Allocated To A Specific Driver.
-                        7. Finalise Order.
-                        8. Capture New Customer.
-                        9. Update Existing Customers.
-                        10. Capture New Restaurant.
-                        11. Update Existing Restaurant.
-                        12. Add New Menu Item.
-                        13. Edit Menu Item
-                        14. Capture New Driver.
-                        15. Update Driver.
-                        16. Exit
-                        """;
+            /* Using a try with resources / catch block to open the Connection resource and catch any SQL Exceptions. */
+            try (Connection connection = connectionFactory.openConnection()) {
 
-                /*
-                 * Reading of user input of their menu choice and an if statement to handle invalid numbers selected.
-                 */
-                int menuSelection = UserInput.readInteger(promptMenuChoice, scanner);
-                if (menuSelection < 1 || menuSelection > 16) {
-                    System.out.println("Invalid number entered.");
-                    continue;
+                ShardRouter.attach(connection);
+
+                if (!started) {
+
+                    /* Loading the menus, names and drivers before the first order is captured. */
+                    CacheWarmer.warmUp(connectionFactory, "cache.snapshot");
+
+                    /* Writing all metrics to file every minute so that they can be collected by a monitoring system. */
+                    Metrics.startPeriodicDump("metrics.prom", 60);
+
+                    /* Moving open orders away from overloaded drivers every 15 minutes. */
+                    DriverRebalancer.schedulePeriodicRebalancing(connectionFactory, 15);
+
+                    started = true;
                 }
 
+                /* Saving the orders taken in degraded mode that were not saved yet, for example before a restart. */
+                DegradedMode.saveJournal(connection);
 
                 /*
-                 * A switch statement to handle the different menu choices and to delegate them to specific methods
-                 * to handle the respective choices and functionalities associated with them.
-                 * Ref: https://docs.oracle.com/en/java/javase/13/language/switch-expressions.html. NOTE TO
-                 * REVIEWER: I spoke to Pierre, and he gave the go ahead to use the new enhanced switch statement as
-                 * long as it is referenced.
+                 * A while loop that will continue running until the user chooses to exit the program by selecting the
+                 * relevant option number below.
                  */
-                switch (menuSelection) {
-                    case 1 -> captureNewOrder(connection, scanner);
-                    case 2 -> addItemsToExistingOrder(connection, scanner);
-                    case 3 -> findAndDisplayOrder(connection, scanner);
-                    case 4 -> listOrdersWithIncompleteInfo(connection);
-                    case 5 -> listPendingOrders(connection);
-                    case 6 -> ordersAllocatedToDriver(connection, scanner);
-                    case 7 -> finaliseOrder(connection, scanner);
-                    case 8 -> captureNewCustomer(connection, scanner);
-                    case 9 -> updateCustomer(connection, scanner);
-                    case 10 -> captureNewRestaurant(connection, scanner);
-                    case 11 -> updateRestaurant(connection, scanner);
-                    case 12 -> addNewItem(connection, scanner);
-                    case 13 -> editItem(connection, scanner);
-                    case 14 -> captureNewDriver(connection, scanner);
-                    case 15 -> editDriver(connection, scanner);
-                    case 16 -> {
-                        System.out.println("Thank you for using the QuickFoodMS application. Bye.");
-                        System.exit(0);
+                while (true) {
+
+                    /* Main menu of the application. */
+                    String promptMenuChoice = """
+                            Main Menu (Select the Number Next to Your Choice):
+                            --------------------------------------------------
+                            1. Capture New Order.
+                            2. Add Items To Existing Order.
+                            3. Find and Display Order.
+                            4. List Orders With Incomplete Information.
+                            5. List Pending Orders.
+                            6. List Orders Allocated To A Specific Driver.
+                            7. Finalise Order.
+                            8. Capture New Customer.
+                            9. Update Existing Customers.
+                            10. Capture New Restaurant.
+                            11. Update Existing Restaurant.
+                            12. Add New Menu Item.
+                            13. Edit Menu Item
+                            14. Capture New Driver.
+                            15. Update Driver.
+                            16. Reprint Invoice.
+                            17. Export Finalised Invoices.
+                            18. Show Metrics.
+                            19. Rebalance Drivers.
+                            20. Allocate Drivers To Unassigned Orders.
+                            21. Customer Order History.
+                            22. Daily Sales Report.
+                            23. Order Analytics.
+                            24. Popular Items.
+                            25. Search.
+                            26. Exit
+                            """;
+
+                    /*
+                     * Reading of user input of their menu choice and an if statement to handle invalid numbers
+                     * selected.
+                     */
+                    int menuSelection = UserInput.readInteger(promptMenuChoice, scanner);
+                    if (menuSelection < 1 || menuSelection > 26) {
+                        System.out.println("Invalid number entered.");
+                        continue;
                     }
+
+
+                    /*
+                     * A switch statement to handle the different menu choices and to delegate them to specific methods
+                     * to handle the respective choices and functionalities associated with them.
+                     * Ref: https://docs.oracle.com/en/java/javase/13/language/switch-expressions.html. NOTE TO
+                     * REVIEWER: I spoke to Pierre, and he gave the go ahead to use the new enhanced switch statement as
+                     * long as it is referenced.
+                     */
+                    switch (menuSelection) {
+                        case 1 -> runAction("captureNewOrder", () -> captureNewOrder(connection, scanner));
+                        case 2 -> runAction("addItemsToExistingOrder",
+                                () -> addItemsToExistingOrder(connection, scanner));
+                        case 3 -> runAction("findAndDisplayOrder", () -> findAndDisplayOrder(connection, scanner));
+                        case 4 -> runAction("listOrdersWithIncompleteInfo",
+                                () -> listOrdersWithIncompleteInfo(connection));
+                        case 5 -> runAction("listPendingOrders", () -> listPendingOrders(connection));
+                        case 6 -> runAction("ordersAllocatedToDriver",
+                                () -> ordersAllocatedToDriver(connection, scanner));
+                        case 7 -> runAction("finaliseOrder", () -> finaliseOrder(connection, scanner));
+                        case 8 -> runAction("captureNewCustomer", () -> captureNewCustomer(connection, scanner));
+                        case 9 -> runAction("updateCustomer", () -> updateCustomer(connection, scanner));
+                        case 10 -> runAction("captureNewRestaurant", () -> captureNewRestaurant(connection, scanner));
+                        case 11 -> runAction("updateRestaurant", () -> updateRestaurant(connection, scanner));
+                        case 12 -> runAction("addNewItem", () -> addNewItem(connection, scanner));
+                        case 13 -> runAction("editItem", () -> editItem(connection, scanner));
+                        case 14 -> runAction("captureNewDriver", () -> captureNewDriver(connection, scanner));
+                        case 15 -> runAction("editDriver", () -> editDriver(connection, scanner));
+                        case 16 -> runAction("reprintInvoice", () -> reprintInvoice(scanner));
+                        case 17 -> runAction("exportInvoices", () -> exportInvoices(connection, scanner));
+                        case 18 -> runAction("showMetrics", () -> showMetrics());
+                        case 19 -> runAction("rebalanceDrivers", () -> rebalanceDrivers(connection));
+                        case 20 -> runAction("allocateUnassignedOrders", () -> allocateUnassignedOrders(connection));
+                        case 21 -> runAction("customerOrderHistory", () -> customerOrderHistory(connection, scanner));
+                        case 22 -> runAction("dailySalesReport", () -> dailySalesReport(connection, scanner));
+                        case 23 -> runAction("orderAnalytics", () -> orderAnalytics(connection, scanner));
+                        case 24 -> runAction("popularItems", () -> popularItems(connection, scanner));
+                        case 25 -> runAction("search", () -> search(connection, scanner));
+                        case 26 -> {
+                            System.out.println("Thank you for using the QuickFoodMS application. Bye.");
+                            ShardRouter.closeAll();
+                            System.exit(0);
+                        }
+                    }
+
                 }
 
+            } catch (SQLException e) {
+                if (DegradedMode.isConnectionFailure(e)) {
+                    DegradedMode.run(connectionFactory, scanner, "cache.snapshot");
+                    continue;
+                }
+                e.printStackTrace();
+                System.out.println("SQL Exception thrown in main.\n");
             }
 
-        } catch (SQLException e) {
-            e.printStackTrace();
-            System.out.println("SQL Exception thrown in main.\n");
+            break;
         }
 
         /* Closing this resource to prevent resource leaking. */
@@ -117,6 +224,30 @@ public class QuickFoodMS {
 
     }
 
+    /**
+     * Runs a main menu option and records its metrics under its name (see Metrics and SessionLog). The action is
+     * ended even when the option fails, and a failed option is also counted under <code>actions.failed</code>.
+     *
+     * @param action The name of the option, for example "captureNewOrder".
+     * @param menuAction The option.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static void runAction(String action, MenuAction menuAction) throws SQLException {
+
+        long actionStartTime = Metrics.beginAction(action);
+        SessionLog.beginAction(action);
+        try {
+            menuAction.run();
+        } catch (SQLException | RuntimeException e) {
+            Metrics.increment("actions.failed." + action);
+            throw e;
+        } finally {
+            Metrics.endAction(actionStartTime);
+            SessionLog.endAction();
+        }
+
+    }
+
     /**
      * A method to capture new orders. This method will check if a customer is already in the database and if not it
      * will divert the user to the <code>createNewCustomer</code> method in the Customer class.
@@ -145,6 +276,11 @@ public class QuickFoodMS {
             /* Adding a new customer to the customer table by means of the Customer class' createNewCustomer method. */
             Customer.createNewCustomer(connection, input, customerFirstName, customerSurname);
 
+        } else if (repeatLastOrder(connection, input, customerFirstName, customerSurname)) {
+
+            /* The customer's last order was repeated, so there are no items to capture. */
+            return;
+
         }
 
         /*
@@ -153,8 +289,29 @@ public class QuickFoodMS {
          */
         String restaurantName = UserInput.readString("Restaurant Name: ", input);
 
-        /* Opening of an order with only the order-number, customer_id and restaurant_id columns being populated. */
-        int orderNumber = Order.openOrder(connection, customerFirstName, customerSurname, restaurantName);
+        /*
+         * The order, its items and its driver are all kept on the shard of the restaurant's city (see ShardRouter).
+         * Without shards this is simply the connection from the main method.
+         */
+        Connection orderConnection = ShardRouter.forRestaurant(connection, restaurantName);
+
+        /*
+         * Opening of an order with only the order-number, customer_id and restaurant_id columns being populated. If
+         * an earlier capture of the same order failed part of the way, for example because a step timed out, its
+         * submission is continued, and the order it already saved is shown instead of opening a second one.
+         */
+        String submissionDescription = customerFirstName + " " + customerSurname + " at " + restaurantName;
+        OrderSubmissions.Submission submission = OrderSubmissions.beginSubmission(submissionDescription);
+        int orderNumber = Order.openOrder(orderConnection, customerFirstName, customerSurname, restaurantName,
+                submission);
+        if (submission.repeated) {
+            System.out.println("This order was already submitted as order number " + orderNumber + ", so it was " +
+                    "not opened again. Missing items can be added with option 2 and a missing driver with option " +
+                    "20 of the main menu.\n");
+            OrderSubmissions.endSubmission(submissionDescription);
+            Order.displayOrder(orderConnection, orderNumber);
+            return;
+        }
 
         /* The "add item to order" while loop that will continue until a user enters the finished option. */
         while (true) {
@@ -177,7 +334,7 @@ public class QuickFoodMS {
 
             /* Handling of valid menu choices.*/
             if (addItemsToOrder == 1) {
-                ItemsOrder.addItemToOrder(connection, input, orderNumber);
+                ItemsOrder.addItemToOrder(orderConnection, input, orderNumber);
             } else if (addItemsToOrder == 2) {
                 break;
             }
@@ -185,10 +342,67 @@ public class QuickFoodMS {
         }
 
         /* Update the "orders" table with the total cost and allocating a driver. */
-        Order.addInitialOrderDetails(connection, restaurantName, orderNumber);
+        Order.addInitialOrderDetails(orderConnection, restaurantName, orderNumber);
+
+        /* The order was saved completely, so a new capture of the same customer and restaurant is a new order. */
+        OrderSubmissions.endSubmission(submissionDescription);
 
         /* Displaying the order details. */
-        Order.displayOrder(connection, orderNumber);
+        Order.displayOrder(orderConnection, orderNumber);
+    }
+
+    /**
+     * A method that offers to repeat the last order of an existing customer. The last order is taken from the
+     * customer's recent orders in memory, or read as the first entry of the customer's order history when it is not
+     * there or the orders are sharded. The order is repeated by the <code>repeatOrder</code> method in the Order class.
+     *
+     * @param connection The Connection instance from the <code>main</code> method needed for the invocation of the
+     *                   Customer and Order class methods.
+     * @param input The Scanner instance from the <code>main</code> method needed to read input from the user with
+     *              the help of the UserInput class.
+     * @param customerFirstName The first name of the customer.
+     * @param customerSurname The surname of the customer.
+     * @return True if the last order was repeated, false if a new order must be captured.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static boolean repeatLastOrder(Connection connection, Scanner input, String customerFirstName,
+                                          String customerSurname) throws SQLException {
+
+        int customerId = Customer.findCustomerId(connection, customerFirstName, customerSurname);
+        /*
+         * The last order is read from the database rather than from the recent orders in memory, which miss the
+         * orders of other instances, and the last orders of the shards are compared by the time they were placed,
+         * because order numbers say nothing about which order is newer.
+         */
+        ArrayList<Customer.OrderSummary> lastOrders = ShardRouter.fanOut(connection, shardConnection ->
+                Customer.findOrderHistory(shardConnection, customerId, Long.MAX_VALUE, Integer.MAX_VALUE, 1));
+        if (lastOrders.size() == 0) {
+            return false;
+        }
+        lastOrders.sort(Customer.OrderSummary.NEWEST_FIRST);
+        int lastOrderNumber = lastOrders.get(0).orderNumber;
+
+        String repeatPrompt = "The customer's last order was order number " + lastOrderNumber + ". Repeat it? (Y/N)";
+        if (!UserInput.readString(repeatPrompt, input).equalsIgnoreCase("y")) {
+            return false;
+        }
+
+        /* The new order is placed on the shard of the earlier one, which is the shard of the same restaurant. */
+        Connection orderConnection = ShardRouter.forNumber(connection, lastOrderNumber);
+        String submissionDescription = "repeat of order " + lastOrderNumber;
+        OrderSubmissions.Submission submission = OrderSubmissions.beginSubmission(submissionDescription);
+        int orderNumber = Order.repeatOrder(orderConnection, lastOrderNumber, submission);
+        OrderSubmissions.endSubmission(submissionDescription);
+        if (orderNumber == 0) {
+            System.out.println("The last order could not be found. Please capture the order.\n");
+            return false;
+        }
+
+        System.out.println(submission.repeated ? "This order was already repeated as order number " + orderNumber +
+                ", so it was not placed again.\n" : "Your order was successfully placed.\n");
+        Order.displayOrder(orderConnection, orderNumber);
+        return true;
+
     }
 
     /**
@@ -210,10 +424,11 @@ public class QuickFoodMS {
         /*
          * Using these two methods from the respective classes to first add the item to the items_order table and
          * then to update the orders table's cost column accordingly. Invalid or unknown order numbers will trigger
-         * error messages from within the first of these methods.
+         * error messages from within the first of these methods. Both run on the shard of the order.
          */
-        ItemsOrder.addItemToOrder(connection, input, orderNumber);
-        Order.updateWithNewItems(connection, orderNumber);
+        Connection orderConnection = ShardRouter.forNumber(connection, orderNumber);
+        ItemsOrder.addItemToOrder(orderConnection, input, orderNumber);
+        Order.updateWithNewItems(orderConnection, orderNumber);
     }
 
     /**
@@ -239,7 +454,7 @@ public class QuickFoodMS {
          * Displaying the order details once found. If there are more than one order that fits the search criteria
          * then a list of the orders will be shown from which the user can choose.
          */
-        Order.displayOrder(connection, orderNumber);
+        Order.displayOrder(ShardRouter.forNumber(connection, orderNumber), orderNumber);
 
     }
 
@@ -264,13 +479,13 @@ public class QuickFoodMS {
          * records are then listed by the use of an advanced for loop and the "displayOrder" method in the Order
          * class. The check for incomplete customer info below works in the same way, so it will not be discussed.
          */
-        ArrayList<Integer> incompleteOrders = Order.checkForIncompleteOrders(connection);
+        ArrayList<Integer> incompleteOrders = ShardRouter.fanOut(connection, Order::checkForIncompleteOrders);
         if (incompleteOrders.size() == 0) {
             System.out.println("There are no incomplete orders.\n");
         } else {
             System.out.println("Incomplete Orders: \n");
             for (Integer order : incompleteOrders) {
-                Order.displayOrder(connection, order);
+                Order.displayOrder(ShardRouter.forNumber(connection, order), order);
             }
             System.out.println("\n");
         }
@@ -300,9 +515,9 @@ public class QuickFoodMS {
 
         /*
          * The method returns an ArrayList with all orders numbers of records in the "orders" table that have
-         * finalised fields that are false(TINYINT = 0).
+         * finalised fields that are false(TINYINT = 0). With several shards all of them are searched in parallel.
          */
-        ArrayList<Integer> pendingOrders = Order.findPendingOrders(connection);
+        ArrayList<Integer> pendingOrders = ShardRouter.fanOut(connection, Order::findPendingOrders);
 
         /*
          * If the ArrayList length is 0 then there are no pending orders, else the pending orders are listed by using
@@ -313,7 +528,7 @@ public class QuickFoodMS {
         } else {
             System.out.println("Pending orders: \n");
             for (Integer order : pendingOrders) {
-                Order.displayOrder(connection, order);
+                Order.displayOrder(ShardRouter.forNumber(connection, order), order);
             }
         }
 
@@ -350,7 +565,7 @@ public class QuickFoodMS {
         } else {
             System.out.println("The following orders are allocated to " + driverName + "\n");
             for (Integer order : ordersAllocatedToDriver) {
-                Order.displayOrder(connection, order);
+                Order.displayOrder(ShardRouter.forNumber(connection, order), order);
             }
         }
 
@@ -358,7 +573,9 @@ public class QuickFoodMS {
 
     /**
      * A method to update the status of an order to "finalised" when the order has been completed and paid for. It does
-     * this with the help of the utility method in Order class, <code>makeFinal</code>.
+     * this with the help of the utility method in Order class, <code>makeFinal</code>. Several orders can also be
+     * finalised at once, for example at the end of a shift, by listing their numbers, choosing a driver or giving a
+     * range of order numbers. These are handled by the bulk finalise methods in the Order class.
      *
      * @param connection The Connection resource from the <code>main</code> method needed when invoking the helper
      *                   method from the Order class.
@@ -368,12 +585,440 @@ public class QuickFoodMS {
      */
     public static void finaliseOrder(Connection connection, Scanner input) throws SQLException {
 
+        String finaliseMenuPrompt = """
+                Finalise Orders
+                --------------------
+                1. A Single Order.
+                2. A List Of Orders.
+                3. All Open Orders Of A Driver.
+                4. A Range Of Order Numbers.
+                """;
+
+        int finaliseMenuChoice = UserInput.readInteger(finaliseMenuPrompt, input);
+
         /*
-         * User input of a orderNumber and then the finalisation of that order by the Order.makeFinal method (which
-         * will also write an invoice to file).
+         * The single order is finalised by the Order.makeFinal method (which will also write an invoice to file). The
+         * other choices collect the orders and finalise them together.
          */
-        int orderNumber = UserInput.readInteger("Order Number To Finalise: ", input);
-        Order.makeFinal(connection, orderNumber);
+        ArrayList<Integer> finalisedOrders;
+        switch (finaliseMenuChoice) {
+            case 1 -> {
+                int orderNumber = UserInput.readInteger("Order Number To Finalise: ", input);
+                Order.makeFinal(ShardRouter.forNumber(connection, orderNumber), orderNumber);
+                return;
+            }
+            case 2 -> {
+                String orderList = UserInput.readString("Order Numbers To Finalise (separated by commas): ", input);
+                ArrayList<Integer> orderNumbers = new ArrayList<>();
+                for (String orderNumber : orderList.split(",")) {
+                    try {
+                        orderNumbers.add(Integer.parseInt(orderNumber.trim()));
+                    } catch (NumberFormatException e) {
+                        System.out.println("\"" + orderNumber.trim() + "\" is not an order number and was skipped.");
+                    }
+                }
+                finalisedOrders = Order.finaliseOrders(connection, orderNumbers);
+            }
+            case 3 -> {
+                int driverId = Driver.findDriverId(connection, input);
+                if (driverId == 0) {
+                    System.out.println("Unknown driver.\n");
+                    return;
+                }
+                finalisedOrders = Order.finaliseOrdersOfDriver(connection, driverId);
+            }
+            case 4 -> {
+                int firstOrderNumber = UserInput.readInteger("First Order Number: ", input);
+                int lastOrderNumber = UserInput.readInteger("Last Order Number: ", input);
+                finalisedOrders = Order.finaliseOrderRange(connection, firstOrderNumber, lastOrderNumber);
+            }
+            default -> {
+                System.out.println("Invalid choice entered.\n");
+                return;
+            }
+        }
+
+        if (finalisedOrders.size() == 0) {
+            System.out.println("There were no open orders to finalise.\n");
+        } else {
+            System.out.println(finalisedOrders.size() + " orders were successfully finalised and their invoices " +
+                    "printed.\n");
+        }
+
+    }
+
+    /**
+     * A method to reprint the invoice of a finalised order. The invoice is read from the invoice archive by the
+     * <code>findInvoice</code> method in the <code>InvoiceArchive</code> class, so the database is not needed.
+     *
+     * @param input The Scanner instance from the <code>main</code> method needed to read the order number with the
+     *              help of the UserInput class.
+     */
+    public static void reprintInvoice(Scanner input) {
+
+        int orderNumber = UserInput.readInteger("Order Number To Reprint: ", input);
+        String invoice = InvoiceArchive.findInvoice(orderNumber);
+
+        /* Invoices are only archived when an order is finalised, so a missing invoice is reported to the user. */
+        if (invoice == null) {
+            System.out.println("There is no archived invoice for order number " + orderNumber + ".\n");
+        } else {
+            System.out.println(invoice);
+        }
+
+    }
+
+    /**
+     * A method to export the invoices of all finalised orders for the accounting system. The export is done by the
+     * <code>exportFinalisedInvoices</code> method in the <code>Invoice</code> class in the format chosen by the user.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed for the invocation of
+     *                   <code>Invoice.exportFinalisedInvoices</code>.
+     * @param input The Scanner instance from the <code>main</code> method needed to read user input with the help of
+     *              the UserInput class.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void exportInvoices(Connection connection, Scanner input) throws SQLException {
+
+        /* Choosing the format of the export. Unknown formats are rejected before anything is written. */
+        String format = UserInput.readString("Export Format (text/csv/json/fixed): ", input);
+        InvoiceRenderer renderer = InvoiceRenderer.forFormat(format);
+        if (renderer == null) {
+            System.out.println("Unknown export format.\n");
+            return;
+        }
+
+        /* An empty file name writes the export to the screen so that it can be piped to another program. */
+        String fileName = UserInput.readString("File Name (leave empty to print to the screen): ", input);
+        try {
+            int invoicesExported;
+            if (fileName.isBlank()) {
+                invoicesExported = Invoice.exportFinalisedInvoices(connection, renderer, System.out);
+            } else {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName))) {
+                    invoicesExported = Invoice.exportFinalisedInvoices(connection, renderer, out);
+                }
+            }
+            System.out.println(invoicesExported + " invoices were exported.\n");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Error: IOException - exportInvoices()");
+        }
+
+    }
+
+    /**
+     * A method to show the metrics of the program. The latencies and counters are shown by the
+     * <code>displayMetrics</code> method in the <code>Metrics</code> class and the statistics per SQL statement by the
+     * <code>displayTrace</code> method in the <code>StatementTracer</code> class.
+     */
+    public static void showMetrics() {
+        Metrics.displayMetrics();
+        StatementTracer.displayTrace();
+    }
+
+    /**
+     * A method to move open orders from overloaded drivers to drivers in the same city with a lower workload. The
+     * work is done by the <code>rebalanceDrivers</code> method in the <code>DriverRebalancer</code> class, which
+     * also runs on its own every 15 minutes.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed for the invocation of
+     *                   <code>DriverRebalancer.rebalanceDrivers</code>.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void rebalanceDrivers(Connection connection) throws SQLException {
+
+        /* Drivers only take orders from their own shard, so every shard is re-balanced on its own. */
+        int ordersMoved = 0;
+        for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+            ordersMoved += DriverRebalancer.rebalanceDrivers(ShardRouter.forShard(connection, shard));
+        }
+        if (ordersMoved == 0) {
+            System.out.println("The drivers' workloads are already balanced.\n");
+        } else {
+            System.out.println(ordersMoved + " orders were moved to drivers with a lower workload.\n");
+        }
+
+    }
+
+    /**
+     * A method to allocate drivers to all open orders that do not have a driver yet, for example orders that were
+     * captured while no driver was available in their city, or orders that were imported in bulk. The drivers are
+     * allocated in one batch by the <code>allocateDrivers</code> method in the <code>DispatchEngine</code> class.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed for the invocation of
+     *                   <code>Order.findOrdersWithoutDriver</code> and <code>DispatchEngine.allocateDrivers</code>.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void allocateUnassignedOrders(Connection connection) throws SQLException {
+
+        /* The orders of every shard are allocated the drivers of the same shard. */
+        int ordersFound = 0;
+        int ordersAllocated = 0;
+        for (int shard = 0; shard < ShardRouter.shardCount(); shard++) {
+            Connection shardConnection = ShardRouter.forShard(connection, shard);
+            LinkedHashMap<Integer, String> orderCities = Order.findOrdersWithoutDriver(shardConnection);
+            if (orderCities.size() > 0) {
+                ordersFound += orderCities.size();
+                ordersAllocated += DispatchEngine.allocateDrivers(shardConnection, orderCities).size();
+            }
+        }
+        if (ordersFound == 0) {
+            System.out.println("All open orders already have a driver.\n");
+            return;
+        }
+
+        System.out.println(ordersAllocated + " of " + ordersFound + " orders were allocated a driver.");
+        if (ordersAllocated < ordersFound) {
+            System.out.println("The remaining orders have no driver in or near their restaurant's city.");
+        }
+        System.out.println();
+
+    }
+
+    /**
+     * A method to display the order history of a customer, newest first, one page at a time. The pages are read by
+     * the <code>findOrderHistory</code> method in the Customer class.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed for the invocation of the
+     *                   Customer class methods.
+     * @param input The Scanner instance from the <code>main</code> method needed to read input from the user with
+     *              the help of the UserInput class.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void customerOrderHistory(Connection connection, Scanner input) throws SQLException {
+
+        String customerFirstName = UserInput.readString("Customer First Name: ", input);
+        String customerSurname = UserInput.readString("Customer Surname: ", input);
+        int customerId = Customer.findCustomerId(connection, customerFirstName, customerSurname);
+
+        /* Reading pages until the history runs out or the user has seen enough. */
+        int pageSize = 10;
+        long beforePlacedAt = Long.MAX_VALUE;
+        int beforeOrderNumber = Integer.MAX_VALUE;
+        int ordersShown = 0;
+        long totalSpent = 0;
+        while (true) {
+
+            /*
+             * With several shards a page is read from every shard and the orders placed last are kept, so that the
+             * next page again starts after the last order shown.
+             */
+            long pagePlacedAt = beforePlacedAt;
+            int pageOrderNumber = beforeOrderNumber;
+            ArrayList<Customer.OrderSummary> page = ShardRouter.fanOut(connection, shardConnection ->
+                    Customer.findOrderHistory(shardConnection, customerId, pagePlacedAt, pageOrderNumber, pageSize));
+            page.sort(Customer.OrderSummary.NEWEST_FIRST);
+            while (page.size() > pageSize) {
+                page.remove(page.size() - 1);
+            }
+            if (page.size() == 0 && ordersShown == 0) {
+                System.out.println("There are no orders on record for this customer.\n");
+                return;
+            }
+
+            for (Customer.OrderSummary order : page) {
+                System.out.println(String.format("Order %-8d %-25s %3d items  R%s  %s", order.orderNumber,
+                        order.restaurantName, order.itemCount, Money.format(order.totalCost, 10),
+                        order.finalised ? "Finalised" : "Pending"));
+                totalSpent = Money.add(totalSpent, order.totalCost);
+                beforePlacedAt = order.placedAt;
+                beforeOrderNumber = order.orderNumber;
+            }
+            ordersShown += page.size();
+
+            if (page.size() < pageSize
+                    || !UserInput.readString("Show older orders? (Y/N)", input).equalsIgnoreCase("y")) {
+                break;
+            }
+        }
+
+        System.out.println("\nOrders shown: " + ordersShown + "  Total: R" + Money.format(totalSpent) + "\n");
+
+    }
+
+    /**
+     * A method to display the revenue of one day per restaurant, per city and per driver. The report is read from the
+     * daily sales summary by the <code>displayDailySales</code> method in the <code>SalesAggregator</code> class.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed for the invocation of
+     *                   <code>SalesAggregator.displayDailySales</code>.
+     * @param input The Scanner instance from the <code>main</code> method needed to read input from the user with
+     *              the help of the UserInput class.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void dailySalesReport(Connection connection, Scanner input) throws SQLException {
+
+        String salesDatePrompt = "Date Of The Report (yyyy-mm-dd, leave empty for today): ";
+        String salesDateInput = UserInput.readString(salesDatePrompt, input).trim();
+
+        /* An empty date means today and an invalid date is reported to the user. */
+        LocalDate salesDate;
+        try {
+            salesDate = salesDateInput.isEmpty() ? LocalDate.now() : LocalDate.parse(salesDateInput);
+        } catch (DateTimeParseException e) {
+            System.out.println("Invalid date entered.\n");
+            return;
+        }
+
+        SalesAggregator.displayDailySales(connection, salesDate);
+        System.out.println();
+
+    }
+
+    /**
+     * A method for ad-hoc analysis of all finalised orders. A snapshot of the orders is loaded into memory once by
+     * the <code>loadSnapshot</code> method in the <code>OrderAnalytics</code> class and the analyses chosen from the
+     * menu then run on that snapshot without touching the database.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed for the invocation of
+     *                   <code>OrderAnalytics.loadSnapshot</code>.
+     * @param input The Scanner instance from the <code>main</code> method needed to read input from the user with
+     *              the help of the UserInput class.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void orderAnalytics(Connection connection, Scanner input) throws SQLException {
+
+        OrderAnalytics snapshot = OrderAnalytics.loadSnapshot(connection);
+        System.out.println("Loaded " + snapshot.orderCount + " finalised orders with " + snapshot.lineCount +
+                " lines.\n");
+
+        while (true) {
+
+            String analyticsMenuPrompt = """
+                    Order Analytics
+                    --------------------
+                    1. Top Items.
+                    2. Revenue By City.
+                    3. Average Basket.
+                    4. Return to Main Menu.
+                    """;
+
+            int analyticsMenuChoice = UserInput.readInteger(analyticsMenuPrompt, input);
+            if (analyticsMenuChoice == 4) {
+                break;
+            }
+
+            switch (analyticsMenuChoice) {
+                case 1 -> {
+                    int limit = UserInput.readInteger("Number Of Items: ", input);
+                    for (long[] item : snapshot.findTopItems(limit)) {
+                        System.out.println(String.format("%-30s %10d  R%s",
+                                snapshot.itemNames.getOrDefault((int) item[0], "Item " + item[0]), item[1],
+                                Money.format(item[2], 12)));
+                    }
+                }
+                case 2 -> {
+                    for (Object[] city : snapshot.findRevenueByCity()) {
+                        System.out.println(String.format("%-30s %10d orders  R%s", city[0], (Long) city[1],
+                                Money.format((Long) city[2], 12)));
+                    }
+                }
+                case 3 -> {
+                    long[] basket = snapshot.findAverageBasket();
+                    System.out.println("Average items per order: " + Money.format(basket[0]) +
+                            "\nAverage order total: R" + Money.format(basket[1]));
+                }
+                default -> System.out.println("Invalid choice entered.");
+            }
+            System.out.println();
+        }
+
+    }
+
+    /**
+     * A method to show the items that sell best, overall, in the last hour, in the last day or at one restaurant.
+     * The counts are kept in memory by the <code>PopularityTracker</code> class as items are added to orders, so only
+     * the item names are read from the database.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed for the invocation of the
+     *                   Item and Restaurant class methods.
+     * @param input The Scanner instance from the <code>main</code> method needed to read input from the user with
+     *              the help of the UserInput class.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void popularItems(Connection connection, Scanner input) throws SQLException {
+
+        String popularItemsPrompt = """
+                Popular Items
+                --------------------
+                1. Since The Program Started.
+                2. In The Last Hour.
+                3. In The Last Day.
+                4. At A Restaurant.
+                """;
+
+        int popularItemsChoice = UserInput.readInteger(popularItemsPrompt, input);
+        ArrayList<long[]> topItems;
+        switch (popularItemsChoice) {
+            case 1 -> topItems = PopularityTracker.findTopItems(10);
+            case 2 -> topItems = PopularityTracker.findTopItemsLastHour(10);
+            case 3 -> topItems = PopularityTracker.findTopItemsLastDay(10);
+            case 4 -> {
+                String restaurantName = UserInput.readString("Restaurant Name: ", input);
+                topItems = PopularityTracker.findTopItemsForRestaurant(
+                        Restaurant.findRestaurantId(connection, restaurantName), 10);
+            }
+            default -> {
+                System.out.println("Invalid choice entered.\n");
+                return;
+            }
+        }
+
+        if (topItems.size() == 0) {
+            System.out.println("No items have been sold in this period.\n");
+            return;
+        }
+        for (long[] item : topItems) {
+            System.out.println(String.format("%-30s %10d", Item.findItemName(connection, (int) item[0]), item[1]));
+        }
+        System.out.println();
+
+    }
+
+    /**
+     * A method to search customers, restaurants, items or drivers by part of their name, or by a name with a typing
+     * mistake. The names are searched in memory by the <code>SearchIndex</code> class.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed to load the search index.
+     * @param input The Scanner instance from the <code>main</code> method needed to read input from the user with
+     *              the help of the UserInput class.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void search(Connection connection, Scanner input) throws SQLException {
+
+        String searchPrompt = """
+                Search
+                --------------------
+                1. Customers.
+                2. Restaurants.
+                3. Items.
+                4. Drivers.
+                """;
+
+        int searchChoice = UserInput.readInteger(searchPrompt, input);
+        SearchIndex searchIndex;
+        switch (searchChoice) {
+            case 1 -> searchIndex = SearchIndex.CUSTOMERS;
+            case 2 -> searchIndex = SearchIndex.RESTAURANTS;
+            case 3 -> searchIndex = SearchIndex.ITEMS;
+            case 4 -> searchIndex = SearchIndex.DRIVERS;
+            default -> {
+                System.out.println("Invalid choice entered.\n");
+                return;
+            }
+        }
+
+        String query = UserInput.readString("Name Or Part Of A Name: ", input);
+        ArrayList<SearchIndex.Candidate> candidates = searchIndex.search(connection, query, 10);
+        if (candidates.size() == 0) {
+            System.out.println("No matching names were found.\n");
+            return;
+        }
+        for (SearchIndex.Candidate candidate : candidates) {
+            System.out.println(String.format("%-8d %s", candidate.id, candidate.name));
+        }
+        System.out.println();
 
     }
 
@@ -603,25 +1248,25 @@ public class QuickFoodMS {
 
             /* Declaration and initialisation of the variables needed for the update. */
             String newValueOfFieldString = "";
-            double newValueOfFieldDouble = 0.00;
+            long newValueOfFieldCents = 0;
 
             /*
              * The switch statement linked to menu choices. It is obvious that the handling of the two choices is
-             * different because the one value is a String and the other a double. The method therefore takes both a
-             * string and double as arguments and use the appropriate one.
+             * different because the one value is a String and the other an amount. The method therefore takes both a
+             * string and an amount in cents as arguments and use the appropriate one.
              */
             switch (updateMenuChoice) {
                 case 1 -> {
                     newValueOfFieldString = UserInput.readString("What is the new value? ", input);
                     String typeOfData = "String";
                     Item.performFieldUpdate(connection, "item_name", newValueOfFieldString,
-                            newValueOfFieldDouble, typeOfData, itemId);
+                            newValueOfFieldCents, typeOfData, itemId);
                 }
                 case 2 -> {
-                    newValueOfFieldDouble = UserInput.readDouble("What is the new value? ", input);
-                    String typeOfData = "Double";
+                    newValueOfFieldCents = UserInput.readAmount("What is the new value? ", input);
+                    String typeOfData = "Money";
                     Item.performFieldUpdate(connection, "item_price", newValueOfFieldString,
-                            newValueOfFieldDouble, typeOfData, itemId);
+                            newValueOfFieldCents, typeOfData, itemId);
                 }
             }
         }
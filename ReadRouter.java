@@ -0,0 +1,167 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * The read router sends reporting queries to a read-only replica of the database, so that long lists and checks do
+ * not compete with the capture of orders on the primary. A connection from a <code>ConnectionFactory</code> with a
+ * replica is wrapped by the router, and methods that only read ask for their connection with
+ * <code>forReading</code>. Everything else runs on the primary as before.
+ * <p>
+ * A replica can lag a little behind the primary. So that a user always sees what was just captured, reads stay on the
+ * primary for <code>quickfood.readYourWritesMillis</code> milliseconds (5000 by default) after the connection wrote
+ * anything, and for as long as a transaction is open. If the replica cannot be reached, reads fall back to the
+ * primary and the replica is tried again a minute later.
+ */
+public class ReadRouter {
+
+    // Global variables
+
+    public static final long READ_YOUR_WRITES_MILLIS = Long.getLong("quickfood.readYourWritesMillis", 5000);
+    static final long REPLICA_RETRY_MILLIS = 60_000;
+
+    //Methods
+
+    /**
+     * Wraps a primary connection so that <code>forReading</code> can route its reads to a replica.
+     *
+     * @param primary The connection to the primary database.
+     * @param replicaFactory The factory that opens the connection to the replica when it is first needed.
+     * @return A Connection that passes all calls to the primary and keeps track of its writes.
+     */
+    public static Connection route(Connection primary, ConnectionFactory replicaFactory) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new RoutingHandler(primary, replicaFactory));
+    }
+
+    /**
+     * Returns the connection a read-only query must run on. It is the replica if the connection is routed, has not
+     * written recently and is not in a transaction, and the connection itself otherwise.
+     *
+     * @param connection The connection of the caller.
+     * @return The connection to prepare the read-only statement on. It must not be closed by the caller.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static Connection forReading(Connection connection) throws SQLException {
+
+        if (Proxy.isProxyClass(connection.getClass())
+                && Proxy.getInvocationHandler(connection) instanceof RoutingHandler handler) {
+            return handler.readConnection(connection);
+        }
+
+        return connection;
+    }
+
+    /**
+     * Classifies a statement by its first keyword. Anything that is not a plain query counts as a write, so that an
+     * unknown statement never lets a read go to the replica too early.
+     *
+     * @param sql The SQL text of the statement.
+     * @return True if the statement may change data.
+     */
+    static boolean isWrite(String sql) {
+
+        String statement = sql.stripLeading();
+        int end = 0;
+        while (end < statement.length() && Character.isLetter(statement.charAt(end))) {
+            end++;
+        }
+
+        return switch (statement.substring(0, end).toUpperCase()) {
+            case "SELECT", "WITH", "SHOW" -> statement.toUpperCase().contains("FOR UPDATE");
+            default -> true;
+        };
+    }
+
+    /**
+     * Intercepts the calls on the primary connection to note when it last wrote, and holds the replica connection.
+     */
+    static class RoutingHandler implements InvocationHandler {
+
+        //Attributes
+        Connection primary;
+        ConnectionFactory replicaFactory;
+        Connection replica;
+        volatile long lastWriteTime;
+        long replicaRetryTime;
+
+        /**
+         * @param primary The connection to the primary database.
+         * @param replicaFactory The factory that opens the connection to the replica.
+         */
+        RoutingHandler(Connection primary, ConnectionFactory replicaFactory) {
+            this.primary = primary;
+            this.replicaFactory = replicaFactory;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            /* Statements whose SQL is only known at execution time are counted as writes. */
+            switch (method.getName()) {
+                case "prepareStatement", "prepareCall" -> {
+                    if (isWrite((String) args[0])) {
+                        lastWriteTime = System.currentTimeMillis();
+                    }
+                }
+                case "createStatement", "commit" -> lastWriteTime = System.currentTimeMillis();
+                case "close" -> closeReplica();
+                default -> {
+                }
+            }
+
+            return StatementTracer.invoke(primary, method, args);
+        }
+
+        /**
+         * @param proxy The routed connection, which is returned when the read must stay on the primary.
+         * @return The connection to read from.
+         * @throws SQLException If the underlying MySQL service fails.
+         */
+        synchronized Connection readConnection(Connection proxy) throws SQLException {
+
+            long now = System.currentTimeMillis();
+            if (now - lastWriteTime < READ_YOUR_WRITES_MILLIS || !primary.getAutoCommit()) {
+                Metrics.increment("reads.primary");
+                return proxy;
+            }
+
+            if (replica == null || replica.isClosed()) {
+                if (now < replicaRetryTime) {
+                    Metrics.increment("reads.primary");
+                    return proxy;
+                }
+                try {
+                    replica = replicaFactory.openConnection();
+                    replica.setReadOnly(true);
+                } catch (SQLException e) {
+                    System.out.println("ReadRouter: the replica could not be reached, so reads use the primary. " +
+                            e.getMessage());
+                    replica = null;
+                    replicaRetryTime = now + REPLICA_RETRY_MILLIS;
+                    Metrics.increment("reads.primary");
+                    return proxy;
+                }
+            }
+
+            Metrics.increment("reads.replica");
+            return replica;
+        }
+
+        /**
+         * Closes the replica connection together with the primary connection.
+         */
+        synchronized void closeReplica() {
+            if (replica != null) {
+                try {
+                    replica.close();
+                } catch (SQLException e) {
+                    System.out.println("Error: SQLException - ReadRouter.closeReplica()");
+                }
+                replica = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the most recent order numbers of every customer in memory, with the time each order was placed. Each customer
+ * has a small ring of <code>RING_SIZE</code> orders in which a newer order overwrites the oldest one. The rings are
+ * filled as orders are opened and when a customer's order history is displayed, so they only hold what this instance
+ * of the program has seen since it was started. Other instances place orders too, so the last order to repeat is
+ * read from the database (see <code>QuickFoodMS.repeatLastOrder</code>) rather than from these rings.
+ */
+public class RecentOrders {
+
+    // Global variables
+
+    /* The number of recent orders kept per customer. */
+    public static final int RING_SIZE = 5;
+
+    /* The rings per customer id. */
+    static final ConcurrentHashMap<Integer, Ring> rings = new ConcurrentHashMap<>();
+
+    /**
+     * The recent order numbers of one customer.
+     */
+    static class Ring {
+
+        //Attributes
+        int[] orderNumbers = new int[RING_SIZE];
+        long[] placedAt = new long[RING_SIZE];
+        int size;
+    }
+
+    //Methods
+
+    /**
+     * Records an order of a customer. It is invoked by <code>Order.openOrder</code> and
+     * <code>Customer.findOrderHistory</code>. Every instance numbers its orders from its own block (see
+     * OrderNumberAllocator), so a higher order number is not a newer order. When the ring is full the new order
+     * overwrites the order placed first, unless it was placed before all of them.
+     *
+     * @param customerId The unique id of the customer.
+     * @param orderNumber The order number of the order.
+     * @param placedAt The time the order was placed, in milliseconds since the epoch.
+     */
+    public static void recordOrder(int customerId, int orderNumber, long placedAt) {
+
+        Ring ring = rings.computeIfAbsent(customerId, key -> new Ring());
+        synchronized (ring) {
+
+            /* Finding the slot of the oldest order, and ignoring an order that is already in the ring. */
+            int oldestSlot = 0;
+            for (int i = 0; i < ring.size; i++) {
+                if (ring.orderNumbers[i] == orderNumber) {
+                    return;
+                }
+                if (ring.placedAt[i] < ring.placedAt[oldestSlot]) {
+                    oldestSlot = i;
+                }
+            }
+
+            if (ring.size < RING_SIZE) {
+                ring.orderNumbers[ring.size] = orderNumber;
+                ring.placedAt[ring.size++] = placedAt;
+            } else if (placedAt > ring.placedAt[oldestSlot]) {
+                ring.orderNumbers[oldestSlot] = orderNumber;
+                ring.placedAt[oldestSlot] = placedAt;
+            }
+        }
+
+    }
+
+    /**
+     * Fills the rings with the latest orders in the database, so that the customers who ordered recently can have
+     * their last order repeated straight after a start. It is invoked by <code>CacheWarmer</code>.
+     *
+     * @param connection The Connection resource needed here for the <code>PreparedStatement</code>.
+     * @param orders The number of latest orders to read.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void loadRecentOrders(Connection connection, int orders) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        /* Newest first, so that a full ring never has a newer order replaced by an older one. */
+        String mySQLQueryRecent = "SELECT customer_id, order_number, placed_at FROM orders " +
+                "ORDER BY placed_at DESC LIMIT ?;";
+        PreparedStatement pstmtRecent = connection.prepareStatement(mySQLQueryRecent);
+        pstmtRecent.setInt(1, orders);
+        ResultSet resultsRecent = pstmtRecent.executeQuery();
+        while (resultsRecent.next()) {
+            recordOrder(resultsRecent.getInt("customer_id"), resultsRecent.getInt("order_number"),
+                    resultsRecent.getTimestamp("placed_at").getTime());
+        }
+
+        /* Closing of resources to prevent resource leaking. */
+        pstmtRecent.close();
+        resultsRecent.close();
+
+        Metrics.recordLatency("RecentOrders.loadRecentOrders", startTime);
+    }
+
+    /**
+     * Returns the most recent orders of a customer, newest first.
+     *
+     * @param customerId The unique id of the customer.
+     * @return The order numbers, which is empty if no order of the customer has been seen.
+     */
+    public static int[] findRecentOrders(int customerId) {
+
+        Ring ring = rings.get(customerId);
+        if (ring == null) {
+            return new int[0];
+        }
+
+        int[] recentOrders;
+        long[] placedAt;
+        synchronized (ring) {
+            recentOrders = Arrays.copyOf(ring.orderNumbers, ring.size);
+            placedAt = Arrays.copyOf(ring.placedAt, ring.size);
+        }
+
+        /* Sorting from the order placed last to the order placed first. */
+        for (int i = 1; i < recentOrders.length; i++) {
+            for (int j = i; j > 0 && placedAt[j] > placedAt[j - 1]; j--) {
+                long swapTime = placedAt[j];
+                placedAt[j] = placedAt[j - 1];
+                placedAt[j - 1] = swapTime;
+                int swap = recentOrders[j];
+                recentOrders[j] = recentOrders[j - 1];
+                recentOrders[j - 1] = swap;
+            }
+        }
+
+        return recentOrders;
+    }
+
+    /**
+     * Returns the most recent order of a customer that this instance has seen.
+     *
+     * @param customerId The unique id of the customer.
+     * @return The order number, or 0 if no order of the customer has been seen.
+     */
+    public static int findLastOrder(int customerId) {
+        int[] recentOrders = findRecentOrders(customerId);
+        return recentOrders.length == 0 ? 0 : recentOrders[0];
+    }
+}
@@ -2,7 +2,9 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Restaurant {
 
@@ -14,6 +16,9 @@ public class Restaurant {
     // Global Variables
     public static int rowsAffected;
 
+    /* The last location found for every restaurant name, for order capture while the database is down. */
+    static final ConcurrentHashMap<String, String> knownLocations = new ConcurrentHashMap<>();
+
     //Methods
 
     /**
@@ -52,9 +57,12 @@ public class Restaurant {
         String restaurantPhoneNumber = UserInput.readString("Restaurant Phone Number: ", input);
         String restaurantCity = UserInput.readString("Restaurant Location (City): ", input);
 
+        long startTime = Metrics.startTimer();
+
         /* Use of PreparedStatement to set up a MySQL query statement. */
         String mySQLQueryCreateRestaurant = "INSERT INTO restaurant VALUES (?, ?, ?, ?)";
-        PreparedStatement pstmtCreateRestaurant = connection.prepareStatement(mySQLQueryCreateRestaurant);
+        PreparedStatement pstmtCreateRestaurant = connection.prepareStatement(mySQLQueryCreateRestaurant,
+                Statement.RETURN_GENERATED_KEYS);
         pstmtCreateRestaurant.setString(1, null);
         pstmtCreateRestaurant.setString(2, restaurantName);
         pstmtCreateRestaurant.setString(3, restaurantPhoneNumber);
@@ -67,6 +75,7 @@ public class Restaurant {
         rowsAffected = pstmtCreateRestaurant.executeUpdate();
         if (rowsAffected > 0) {
             System.out.println("The restaurant was successfully created.\n");
+            SearchIndex.RESTAURANTS.refreshCreated(connection, pstmtCreateRestaurant);
         } else {
             System.out.println("The restaurant could not be created. Please review your input\n");
         }
@@ -74,6 +83,8 @@ public class Restaurant {
         /* Closing resource to prevent resource leaking. */
         pstmtCreateRestaurant.close();
 
+        Metrics.recordLatency("Restaurant.createNewRestaurant", startTime);
+
     }
 
     /**
@@ -87,6 +98,8 @@ public class Restaurant {
      */
     public static int findRestaurantId(Connection connection, String restaurantName) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /* Declaration and initialisation of this variable because it is needed outside the while loop.*/
         int restaurantId = 0;
 
@@ -112,6 +125,12 @@ public class Restaurant {
         pstmtRestaurantId.close();
         resultsRestaurantId.close();
 
+        /* Offering the closest names when there is no exact match, which is often a typing mistake. */
+        if (restaurantId == 0) {
+            SearchIndex.RESTAURANTS.suggest(connection, restaurantName);
+        }
+
+        Metrics.recordLatency("Restaurant.findRestaurantId", startTime);
         return restaurantId;
 
     }
@@ -128,6 +147,8 @@ public class Restaurant {
      */
     public static String findRestaurantName(Connection connection, int restaurantId) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /* Declaration and initialisation of this variable because it is needed outside the while loop.*/
         String restaurantName = "";
 
@@ -152,6 +173,7 @@ public class Restaurant {
         pstmtRestaurantId.close();
         resultsRestaurantId.close();
 
+        Metrics.recordLatency("Restaurant.findRestaurantName", startTime);
         return restaurantName;
 
     }
@@ -168,6 +190,8 @@ public class Restaurant {
      */
     public static String findRestaurantLocation(Connection connection, String restaurantName) throws SQLException{
 
+        long startTime = Metrics.startTimer();
+
         /* Declaration and initialisation of this variable because it is needed outside the while loop. */
         String restaurantLocation = "";
 
@@ -192,10 +216,26 @@ public class Restaurant {
         pstmtRestaurantLocation.close();
         resultsRestaurantLocation.close();
 
+        if (restaurantLocation != null && !restaurantLocation.isEmpty()) {
+            knownLocations.put(restaurantName.toLowerCase(), restaurantLocation);
+        }
+
+        Metrics.recordLatency("Restaurant.findRestaurantLocation", startTime);
         return restaurantLocation;
 
     }
 
+    /**
+     * Returns the location of a restaurant as it was last found by <code>findRestaurantLocation</code>, without a
+     * query. It is used by <code>DegradedMode</code> to allocate drivers while the database cannot be reached.
+     *
+     * @param restaurantName The restaurant name.
+     * @return The last known location of the restaurant, or null if it was not looked up since the program started.
+     */
+    public static String lastKnownLocation(String restaurantName) {
+        return knownLocations.get(restaurantName.toLowerCase());
+    }
+
     /**
      * A method to find the restaurant's phone number from its unique id number. It is invoked in
      * <code>printInvoice</code> in the <code>Order</code> class.
@@ -207,6 +247,8 @@ public class Restaurant {
      */
     public static String findRestaurantPhoneNumber(Connection connection, int restaurantId) throws SQLException{
 
+        long startTime = Metrics.startTimer();
+
         /* Declaration and initialisation of this variable because it is needed outside the while loop. */
         String restaurantPhoneNumber = "";
 
@@ -231,6 +273,7 @@ public class Restaurant {
         pstmtRestaurantPhone.close();
         resultsRestaurantPhone.close();
 
+        Metrics.recordLatency("Restaurant.findRestaurantPhoneNumber", startTime);
         return restaurantPhoneNumber;
     }
 
@@ -249,6 +292,8 @@ public class Restaurant {
     public static void performFieldUpdate(Connection connection, String fieldToUpdate, String newValue,
                                           int restaurantId) throws SQLException {
 
+        long startTime = Metrics.startTimer();
+
         /*
          * Use of PreparedStatement to set up a MySQL query statement to update any restaurant field as determined by
          * the parameters of this method.
@@ -265,6 +310,7 @@ public class Restaurant {
         rowsAffected = pstmtFieldUpdate.executeUpdate();
         if (rowsAffected > 0) {
             System.out.println("The update was successful.\n");
+            SearchIndex.RESTAURANTS.refresh(connection, restaurantId);
         } else {
             System.out.println("The update could not be done. Please check that the customer ID is correct.\n");
         }
@@ -272,6 +318,8 @@ public class Restaurant {
         /* Closing of resource to prevent resource leaking. */
         pstmtFieldUpdate.close();
 
+        Metrics.recordLatency("Restaurant.performFieldUpdate", startTime);
+
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,269 @@
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The retry policy sits around every statement execution of a traced connection (see <code>StatementTracer</code>),
+ * so that brief contention in the database does not turn into a failed order. A failed execution is classified by
+ * its MySQL error code and SQL state:
+ * <ul>
+ *     <li>A lock wait timeout only rolls back the statement, so the statement is tried again.</li>
+ *     <li>A deadlock rolls back the whole transaction, so the statement is only tried again when it ran on its own in
+ *     auto-commit mode. Inside a transaction the caller rolls back and reports it as before.</li>
+ *     <li>A lost connection, a full connection limit or a query timeout are not tried again, because the outcome of
+ *     the statement is unknown or trying again would only add to the load.</li>
+ *     <li>Anything else, such as a constraint violation, is a real error and is passed on at once.</li>
+ * </ul>
+ * Batches are never tried again, because part of a batch may already have been applied. The tries are spread out
+ * with a random backoff, so that sessions that collided do not collide again straight away.
+ * <p>
+ * Every database has a circuit breaker. After <code>FAILURE_THRESHOLD</code> failures in a row that are not real
+ * errors the circuit opens, and for <code>quickfood.circuitOpenMillis</code> milliseconds (10000 by default) every
+ * statement fails at once with a connection exception instead of waiting on the database. This also sends the menu to
+ * degraded mode (see <code>DegradedMode</code>). After that time one statement is let through: if it succeeds the
+ * circuit closes again, and if it fails the circuit stays open for another period. The retries, the trips and the
+ * statements that were turned away are counted in the metrics.
+ */
+public class RetryPolicy {
+
+    // Global variables
+
+    public static final int MAX_ATTEMPTS = Integer.getInteger("quickfood.retryAttempts", 3);
+    public static final int FAILURE_THRESHOLD = 5;
+    public static final long CIRCUIT_OPEN_MILLIS = Long.getLong("quickfood.circuitOpenMillis", 10_000);
+
+    /* The backoff before the first retry, which doubles with every further try up to the maximum. */
+    static final long BASE_BACKOFF_MILLIS = 50;
+    static final long MAX_BACKOFF_MILLIS = 1000;
+
+    /* The circuit breakers per database, keyed by the JDBC URL. */
+    static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    /**
+     * The kinds of failure of a statement.
+     */
+    enum Failure {
+        DEADLOCK, LOCK_WAIT, TIMEOUT, SATURATED, CONNECTION, PERMANENT
+    }
+
+    /**
+     * An execution of a statement that can be repeated.
+     */
+    interface Execution {
+
+        /**
+         * @return The result of the execution.
+         * @throws Throwable The exception thrown by the execution.
+         */
+        Object run() throws Throwable;
+    }
+
+    /**
+     * The circuit breaker of one database.
+     */
+    static class CircuitBreaker {
+
+        //Attributes
+        final String url;
+        volatile int consecutiveFailures;
+        volatile long openUntil;
+        boolean trialRunning;
+
+        /**
+         * @param url The JDBC URL of the database.
+         */
+        CircuitBreaker(String url) {
+            this.url = url;
+        }
+
+        /**
+         * Lets a statement through, or turns it away while the circuit is open. Once the open period has passed,
+         * one statement is let through as a trial.
+         *
+         * @throws SQLException If the circuit is open.
+         */
+        void beforeExecution() throws SQLException {
+
+            if (openUntil == 0) {
+                return;
+            }
+
+            synchronized (this) {
+                if (openUntil != 0 && (System.currentTimeMillis() < openUntil || trialRunning)) {
+                    Metrics.increment("jdbc.circuitRejected");
+                    throw new SQLTransientConnectionException("The database is not answering, so statements are " +
+                            "turned away for now (circuit open).", "08000");
+                }
+                trialRunning = openUntil != 0;
+            }
+        }
+
+        /**
+         * Closes the circuit after a statement succeeded or failed with a real error, which both show that the
+         * database is answering.
+         */
+        void recordSuccess() {
+
+            if (consecutiveFailures == 0 && openUntil == 0) {
+                return;
+            }
+
+            synchronized (this) {
+                if (openUntil != 0) {
+                    System.out.println("RetryPolicy: the database is answering again (circuit closed).");
+                }
+                consecutiveFailures = 0;
+                openUntil = 0;
+                trialRunning = false;
+            }
+        }
+
+        /**
+         * Counts a failure that shows that the database is in trouble, and opens the circuit when there were too many
+         * in a row or the trial statement failed.
+         */
+        synchronized void recordFailure() {
+
+            consecutiveFailures++;
+            if (trialRunning || (openUntil == 0 && consecutiveFailures >= FAILURE_THRESHOLD)) {
+                if (!trialRunning) {
+                    Metrics.increment("jdbc.circuitTrips");
+                    System.out.println("RetryPolicy: " + consecutiveFailures + " statements failed in a row, so " +
+                            "the circuit is open for " + CIRCUIT_OPEN_MILLIS / 1000 + " seconds.");
+                }
+                openUntil = System.currentTimeMillis() + CIRCUIT_OPEN_MILLIS;
+                trialRunning = false;
+            }
+        }
+    }
+
+    //Methods
+
+    /**
+     * @param url The JDBC URL of a database.
+     * @return The circuit breaker of the database.
+     */
+    static CircuitBreaker breakerFor(String url) {
+        return breakers.computeIfAbsent(url, CircuitBreaker::new);
+    }
+
+    /**
+     * Runs an execution of a statement, trying it again after a transient failure when that is safe.
+     *
+     * @param breaker The circuit breaker of the statement's database.
+     * @param statement The statement, used to find out whether it runs inside a transaction.
+     * @param methodName The name of the execute method that was called.
+     * @param execution The execution.
+     * @return The result of the execution.
+     * @throws Throwable The exception of the last try, or a connection exception if the circuit is open.
+     */
+    static Object execute(CircuitBreaker breaker, Statement statement, String methodName, Execution execution)
+            throws Throwable {
+
+        breaker.beforeExecution();
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Object result = execution.run();
+                breaker.recordSuccess();
+                return result;
+            } catch (SQLException e) {
+                Failure failure = classify(e);
+                if (attempt >= MAX_ATTEMPTS || !canRetry(failure, statement, methodName)) {
+
+                    /* A real error or a deadlock still shows that the database is answering. */
+                    if (failure == Failure.PERMANENT || failure == Failure.DEADLOCK) {
+                        breaker.recordSuccess();
+                    } else {
+                        breaker.recordFailure();
+                    }
+                    throw e;
+                }
+                Metrics.increment("jdbc.retries");
+                backOff(attempt, e);
+            } catch (Throwable e) {
+                breaker.recordSuccess();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @param e The exception thrown by a statement.
+     * @return The kind of failure, from the MySQL error code, the SQL state and the exception class.
+     */
+    static Failure classify(SQLException e) {
+
+        int errorCode = e.getErrorCode();
+        String sqlState = e.getSQLState() == null ? "" : e.getSQLState();
+
+        if (errorCode == 1213 || sqlState.equals("40001") || e instanceof SQLTransactionRollbackException) {
+            return Failure.DEADLOCK;
+        }
+        if (errorCode == 1205) {
+            return Failure.LOCK_WAIT;
+        }
+        if (errorCode == 1040 || errorCode == 1203 || sqlState.equals("08004")) {
+            return Failure.SATURATED;
+        }
+        if (errorCode == 1317 || errorCode == 3024 || e instanceof SQLTimeoutException) {
+            return Failure.TIMEOUT;
+        }
+        if (sqlState.startsWith("08") || e instanceof SQLTransientConnectionException
+                || e instanceof SQLNonTransientConnectionException || e instanceof SQLRecoverableException) {
+            return Failure.CONNECTION;
+        }
+
+        return Failure.PERMANENT;
+    }
+
+    /**
+     * @param failure The kind of failure.
+     * @param statement The statement that failed.
+     * @param methodName The name of the execute method that was called.
+     * @return True if the failed try changed nothing, so that the statement can safely be run again.
+     */
+    static boolean canRetry(Failure failure, Statement statement, String methodName) {
+
+        if (methodName.equals("executeBatch") || methodName.equals("executeLargeBatch")) {
+            return false;
+        }
+
+        return switch (failure) {
+            case LOCK_WAIT -> true;
+            case DEADLOCK -> {
+                try {
+                    yield statement.getConnection().getAutoCommit();
+                } catch (SQLException e) {
+                    yield false;
+                }
+            }
+            default -> false;
+        };
+    }
+
+    /**
+     * Waits before the next try for a random time of up to <code>BASE_BACKOFF_MILLIS</code> doubled for every earlier
+     * try ("full jitter").
+     *
+     * @param attempt The number of the try that failed, starting at 1.
+     * @param failure The exception of the try, thrown if the wait is interrupted.
+     * @throws SQLException If the wait is interrupted.
+     */
+    static void backOff(int attempt, SQLException failure) throws SQLException {
+
+        long maxBackoff = Math.min(BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 10), MAX_BACKOFF_MILLIS);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(maxBackoff + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The sales aggregator keeps the <code>daily_sales</code> summary table (see the README) up to date as orders are
+ * finalised. Every row holds the number of orders, the number of items and the revenue of one restaurant and one
+ * driver on one day, so the daily reports per restaurant, per city and per driver only read the few rows of that day
+ * instead of the whole order history.
+ * <p>
+ * The <code>orders</code> table has no date column, so an order is counted on the day it is finalised.
+ */
+public class SalesAggregator {
+
+    //Methods
+
+    /**
+     * This method adds finalised orders to today's rows of the summary table. It must be invoked once for every
+     * order, in the same transaction as the finalisation. It is invoked by
+     * <code>Order.makeFinal</code> and <code>Order.finaliseOrdersWhere</code>.
+     *
+     * @param connection The Connection resource needed here for the <code>PreparedStatement</code>.
+     * @param orderNumbers The order numbers of the orders that have just been finalised.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void recordFinalisedOrders(Connection connection, List<Integer> orderNumbers) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        for (int first = 0; first < orderNumbers.size(); first += Invoice.LOAD_BATCH_SIZE) {
+
+            List<Integer> batch = orderNumbers.subList(first, Math.min(first + Invoice.LOAD_BATCH_SIZE,
+                    orderNumbers.size()));
+            String placeholders = String.join(", ", Collections.nCopies(batch.size(), "?"));
+
+            /*
+             * The orders are grouped per restaurant and driver and added to the existing rows of the day with one
+             * upsert. The item quantities are summed per order first so that the revenue is not counted once per
+             * line.
+             */
+            String mySQLQueryRecordSales = "INSERT INTO daily_sales (sales_date, restaurant_id, driver_id, " +
+                    "restaurant_city, orders_count, items_count, revenue) " +
+                    "SELECT CURRENT_DATE, o.restaurant_id, COALESCE(o.driver_id, 0), r.restaurant_city, COUNT(*), " +
+                    "COALESCE(SUM(io.items), 0), COALESCE(SUM(o.total_cost), 0) FROM orders o " +
+                    "JOIN restaurant r ON r.restaurant_id = o.restaurant_id " +
+                    "LEFT JOIN (SELECT order_number, SUM(item_quantity) AS items FROM items_order " +
+                    "WHERE order_number IN (" + placeholders + ") GROUP BY order_number) io " +
+                    "ON io.order_number = o.order_number " +
+                    "WHERE o.order_number IN (" + placeholders + ") " +
+                    "GROUP BY o.restaurant_id, COALESCE(o.driver_id, 0), r.restaurant_city " +
+                    "ON DUPLICATE KEY UPDATE orders_count = orders_count + VALUES(orders_count), " +
+                    "items_count = items_count + VALUES(items_count), revenue = revenue + VALUES(revenue);";
+            PreparedStatement pstmtRecordSales = connection.prepareStatement(mySQLQueryRecordSales);
+            for (int i = 0; i < batch.size(); i++) {
+                pstmtRecordSales.setInt(i + 1, batch.get(i));
+                pstmtRecordSales.setInt(batch.size() + i + 1, batch.get(i));
+            }
+
+            /* Without the summary table the orders are still finalised, they are just not counted. */
+            try {
+                pstmtRecordSales.executeUpdate();
+            } catch (SQLException e) {
+                if (!"42S02".equals(e.getSQLState())) {
+                    throw e;
+                }
+            } finally {
+                /* Closing of resource to prevent resource leaking. */
+                pstmtRecordSales.close();
+            }
+        }
+
+        Metrics.recordLatency("SalesAggregator.recordFinalisedOrders", startTime);
+
+    }
+
+    /**
+     * A method to display the sales of one day per restaurant, per city and per driver. It is invoked in the
+     * <code>dailySalesReport</code> method in the main class.
+     *
+     * @param connection The Connection resource from the <code>main</code> method needed here for the instances of
+     *                   <code>PreparedStatement</code>.
+     * @param salesDate The day of the report.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static void displayDailySales(Connection connection, LocalDate salesDate) throws SQLException {
+
+        long startTime = Metrics.startTimer();
+
+        System.out.println("Daily Sales For " + salesDate + "\n--------------------------");
+
+        displaySalesBreakdown(connection, salesDate, "Restaurant", "SELECT COALESCE(r.restaurant_name, " +
+                "CONCAT('Restaurant ', s.restaurant_id)) AS name, SUM(s.orders_count) AS orders_count, " +
+                "SUM(s.items_count) AS items_count, SUM(s.revenue) AS revenue FROM daily_sales s " +
+                "LEFT JOIN restaurant r ON r.restaurant_id = s.restaurant_id WHERE s.sales_date = ? " +
+                "GROUP BY s.restaurant_id, r.restaurant_name ORDER BY revenue DESC;");
+
+        displaySalesBreakdown(connection, salesDate, "City", "SELECT s.restaurant_city AS name, " +
+                "SUM(s.orders_count) AS orders_count, SUM(s.items_count) AS items_count, SUM(s.revenue) AS revenue " +
+                "FROM daily_sales s WHERE s.sales_date = ? GROUP BY s.restaurant_city ORDER BY revenue DESC;");
+
+        displaySalesBreakdown(connection, salesDate, "Driver", "SELECT COALESCE(d.driver_name, 'No driver') AS " +
+                "name, SUM(s.orders_count) AS orders_count, SUM(s.items_count) AS items_count, " +
+                "SUM(s.revenue) AS revenue FROM daily_sales s LEFT JOIN driver d ON d.driver_id = s.driver_id " +
+                "WHERE s.sales_date = ? GROUP BY s.driver_id, d.driver_name ORDER BY revenue DESC;");
+
+        Metrics.recordLatency("SalesAggregator.displayDailySales", startTime);
+
+    }
+
+    /**
+     * Displays one breakdown of the daily sales as a table. Every shard (see ShardRouter) keeps the daily sales of
+     * the orders it finalised, so the breakdown is read from all shards and the rows of the same name are added up.
+     *
+     * @param connection The Connection resource needed here for the <code>PreparedStatement</code>.
+     * @param salesDate The day of the report.
+     * @param heading The name of the first column.
+     * @param mySQLQueryBreakdown The query of the breakdown, with the day as its only placeholder.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static void displaySalesBreakdown(Connection connection, LocalDate salesDate, String heading,
+                                      String mySQLQueryBreakdown) throws SQLException {
+
+        ArrayList<SalesRow> shardRows = ShardRouter.fanOut(connection, shardConnection ->
+                readSalesBreakdown(shardConnection, salesDate, mySQLQueryBreakdown));
+
+        /* Adding up the rows of the shards, highest revenue first. */
+        LinkedHashMap<String, SalesRow> rowsByName = new LinkedHashMap<>();
+        for (SalesRow shardRow : shardRows) {
+            SalesRow row = rowsByName.computeIfAbsent(shardRow.name, name -> new SalesRow(name, 0, 0, 0));
+            row.ordersCount += shardRow.ordersCount;
+            row.itemsCount += shardRow.itemsCount;
+            row.revenue = Money.add(row.revenue, shardRow.revenue);
+        }
+        ArrayList<SalesRow> rows = new ArrayList<>(rowsByName.values());
+        rows.sort((first, second) -> Long.compare(second.revenue, first.revenue));
+
+        System.out.println(String.format("%n%-30s %8s %8s %13s", heading, "Orders", "Items", "Revenue"));
+        if (rows.isEmpty()) {
+            System.out.println("No finalised orders.");
+        }
+        for (SalesRow row : rows) {
+            System.out.println(String.format("%-30s %8d %8d R%s", row.name, row.ordersCount, row.itemsCount,
+                    Money.format(row.revenue, 12)));
+        }
+
+    }
+
+    /**
+     * Reads one breakdown of the daily sales from one shard.
+     *
+     * @param connection The connection of the shard.
+     * @param salesDate The day of the report.
+     * @param mySQLQueryBreakdown The query of the breakdown, with the day as its only placeholder.
+     * @return The rows of the breakdown.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static ArrayList<SalesRow> readSalesBreakdown(Connection connection, LocalDate salesDate,
+                                                  String mySQLQueryBreakdown) throws SQLException {
+
+        PreparedStatement pstmtBreakdown = connection.prepareStatement(mySQLQueryBreakdown);
+        pstmtBreakdown.setDate(1, Date.valueOf(salesDate));
+        ResultSet resultsBreakdown = pstmtBreakdown.executeQuery();
+
+        ArrayList<SalesRow> rows = new ArrayList<>();
+        while (resultsBreakdown.next()) {
+            rows.add(new SalesRow(resultsBreakdown.getString("name"), resultsBreakdown.getInt("orders_count"),
+                    resultsBreakdown.getInt("items_count"), Money.read(resultsBreakdown, "revenue")));
+        }
+
+        /* Closing of resources to prevent resource leaking. */
+        pstmtBreakdown.close();
+        resultsBreakdown.close();
+
+        return rows;
+    }
+
+    /**
+     * One row of a breakdown of the daily sales.
+     */
+    static class SalesRow {
+
+        //Attributes
+        String name;
+        long ordersCount;
+        long itemsCount;
+        long revenue;
+
+        /**
+         * The constructor for the SalesRow class.
+         *
+         * @param name The restaurant, city or driver of the row.
+         * @param ordersCount The number of orders.
+         * @param itemsCount The number of items.
+         * @param revenue The revenue in cents.
+         */
+        SalesRow(String name, long ordersCount, long itemsCount, long revenue) {
+            this.name = name;
+            this.ordersCount = ordersCount;
+            this.itemsCount = itemsCount;
+            this.revenue = revenue;
+        }
+    }
+}
@@ -0,0 +1,619 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * An in-memory search index over the names of one table, used to suggest customers, restaurants, items and drivers
+ * when a name is not found exactly. Names are found in two ways:
+ * <ul>
+ *     <li>A prefix index finds names that start with what was typed, or that have a word that does (so "smi" finds
+ *     "John Smith"). It is a sorted array of every name and of every part of a name that starts at a word, which is
+ *     searched like a trie by binary search but only takes 8 bytes per entry.</li>
+ *     <li>A trigram index finds names that share most of their three-letter pieces with what was typed, so names
+ *     with a typo are still found ("Jonh Smtih" finds "John Smith").</li>
+ * </ul>
+ * Every name has a slot, and both indexes store slots in primitive arrays so that hundreds of thousands of names can
+ * be searched in well under a millisecond. The index is loaded with one query the first time it is searched and is
+ * kept up to date by the create and update methods of the other classes through <code>refresh</code>.
+ */
+public class SearchIndex {
+
+    // Global variables
+
+    /* The indexes of the four tables that are looked up by name. */
+    public static final SearchIndex CUSTOMERS = new SearchIndex("customer", "customer_id",
+            "CONCAT_WS(' ', customer_firstname, customer_surname)");
+    public static final SearchIndex RESTAURANTS = new SearchIndex("restaurant", "restaurant_id", "restaurant_name");
+    public static final SearchIndex ITEMS = new SearchIndex("item", "item_id", "item_name");
+    public static final SearchIndex DRIVERS = new SearchIndex("driver", "driver_id", "driver_name");
+
+    /* Trigram matches with a lower score than this are not suggested. */
+    static final double MIN_TRIGRAM_SCORE = 0.3;
+
+    //Attributes
+    String table;
+    String idColumn;
+    String nameExpression;
+    boolean loaded;
+
+    /* The number of refreshes, so that a reload in the background can tell whether it missed one. */
+    int refreshCount;
+
+    /* The slots. A slot of a removed or renamed record keeps a null name and is skipped. */
+    int slotCount;
+    int[] slotIds = new int[1024];
+    String[] slotNames = new String[1024];
+    String[] slotKeys = new String[1024];
+    int[] slotTrigramCounts = new int[1024];
+    HashMap<Integer, Integer> slotsById = new HashMap<>();
+
+    /* The prefix entries as (slot << 16 | offset into the normalised name), sorted by the text from the offset on. */
+    int prefixCount;
+    long[] prefixEntries = new long[1024];
+
+    /*
+     * The slots per trigram, and the shared trigram counts and touched slots of a search. The counts are reset after
+     * every search, and are shorts to keep them small enough for the processor cache.
+     */
+    HashMap<String, Postings> trigrams = new HashMap<>();
+    short[] sharedCounts = new short[1024];
+    int[] touchedSlots = new int[1024];
+
+    /**
+     * The slots of the names that contain one trigram, in the order they were added.
+     */
+    static class Postings {
+
+        //Attributes
+        int[] slots = new int[4];
+        int size;
+
+        /**
+         * @param slot The slot to add.
+         */
+        void add(int slot) {
+            if (size == slots.length) {
+                slots = Arrays.copyOf(slots, size * 2);
+            }
+            slots[size++] = slot;
+        }
+    }
+
+    /**
+     * A name that matched a search.
+     */
+    public static class Candidate {
+
+        //Attributes
+        int id;
+        String name;
+        double score;
+
+        /**
+         * The constructor for the Candidate class.
+         *
+         * @param id The unique id of the record.
+         * @param name The name of the record.
+         * @param score How well the name matched: above 1 for a prefix match, at most 1 for a trigram match.
+         */
+        public Candidate(int id, String name, double score) {
+            this.id = id;
+            this.name = name;
+            this.score = score;
+        }
+    }
+
+    /**
+     * The constructor for the SearchIndex class.
+     *
+     * @param table The table whose names are indexed.
+     * @param idColumn The unique id column of the table.
+     * @param nameExpression The SQL expression that gives the name of a record.
+     */
+    SearchIndex(String table, String idColumn, String nameExpression) {
+        this.table = table;
+        this.idColumn = idColumn;
+        this.nameExpression = nameExpression;
+    }
+
+    //Methods
+
+    /**
+     * Finds the names that best match what was typed. Prefix matches are ranked first and are followed by trigram
+     * matches, best score first.
+     *
+     * @param connection The Connection resource needed to load the index the first time it is searched.
+     * @param query What was typed.
+     * @param limit The maximum number of candidates to return.
+     * @return The candidates, best first.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public synchronized ArrayList<Candidate> search(Connection connection, String query, int limit)
+            throws SQLException {
+
+        long startTime = Metrics.startTimer();
+        ensureLoaded(connection);
+
+        String normalisedQuery = normalise(query);
+        ArrayList<Candidate> candidates = new ArrayList<>();
+        if (normalisedQuery.isEmpty()) {
+            Metrics.recordLatency("SearchIndex.search", startTime);
+            return candidates;
+        }
+
+        /*
+         * Prefix matches. The entries that start with the query are next to each other in the sorted array, from the
+         * first entry that is not smaller than the query. Names that start with the query rank above names with a
+         * later word that does, and shorter names above longer ones.
+         */
+        HashSet<Integer> foundSlots = new HashSet<>();
+        for (int i = lowerBound(normalisedQuery); i < prefixCount && candidates.size() < limit; i++) {
+            int slot = (int) (prefixEntries[i] >>> 16);
+            int offset = (int) (prefixEntries[i] & 0xFFFF);
+            if (!slotKeys[slot].startsWith(normalisedQuery, offset)) {
+                break;
+            }
+            if (slotNames[slot] != null && foundSlots.add(slot)) {
+                double score = (offset == 0 ? 2.0 : 1.0) + 1.0 / slotKeys[slot].length();
+                candidates.add(new Candidate(slotIds[slot], slotNames[slot], score));
+            }
+        }
+        candidates.sort((first, second) -> Double.compare(second.score, first.score));
+
+        /* Trigram matches for whatever room is left. */
+        if (candidates.size() < limit) {
+
+            /*
+             * A name can only reach the minimum score if it shares at least minimumShared of the query's trigrams,
+             * so it must be in at least one of the rarest (trigrams - minimumShared + 1) posting lists. Only those
+             * lists are scanned for candidates, and the common trigrams are then only looked up for them.
+             */
+            ArrayList<Postings> postings = new ArrayList<>();
+            String trigramQuery = normalisedQuery.substring(0, Math.min(normalisedQuery.length(), 1000));
+            for (String trigram : trigramsOf(trigramQuery)) {
+                postings.add(trigrams.getOrDefault(trigram, new Postings()));
+            }
+            postings.sort((first, second) -> Integer.compare(first.size, second.size));
+            int queryTrigrams = postings.size();
+            int minimumShared = (int) Math.ceil(MIN_TRIGRAM_SCORE * queryTrigrams);
+            int candidateLists = queryTrigrams - minimumShared + 1;
+
+            int touchedCount = 0;
+            for (int i = 0; i < candidateLists; i++) {
+                Postings list = postings.get(i);
+                for (int j = 0; j < list.size; j++) {
+                    int slot = list.slots[j];
+                    if (sharedCounts[slot]++ == 0) {
+                        touchedSlots[touchedCount++] = slot;
+                    }
+                }
+            }
+
+            /*
+             * The slots of a posting list are in increasing order, so when there are far fewer candidates than slots
+             * in a common list, every candidate is looked up by binary search instead of scanning the list.
+             */
+            for (int i = candidateLists; i < queryTrigrams; i++) {
+                Postings list = postings.get(i);
+                if (touchedCount * 16 < list.size) {
+                    for (int t = 0; t < touchedCount; t++) {
+                        if (Arrays.binarySearch(list.slots, 0, list.size, touchedSlots[t]) >= 0) {
+                            sharedCounts[touchedSlots[t]]++;
+                        }
+                    }
+                } else {
+                    for (int j = 0; j < list.size; j++) {
+                        int slot = list.slots[j];
+                        if (sharedCounts[slot] != 0) {
+                            sharedCounts[slot]++;
+                        }
+                    }
+                }
+            }
+
+            ArrayList<Candidate> trigramCandidates = new ArrayList<>();
+            for (int t = 0; t < touchedCount; t++) {
+                int slot = touchedSlots[t];
+                int shared = sharedCounts[slot];
+                sharedCounts[slot] = 0;
+                if (slotNames[slot] == null || foundSlots.contains(slot)) {
+                    continue;
+                }
+                double score = (double) shared / (queryTrigrams + slotTrigramCounts[slot] - shared);
+                if (score >= MIN_TRIGRAM_SCORE) {
+                    trigramCandidates.add(new Candidate(slotIds[slot], slotNames[slot], score));
+                }
+            }
+            trigramCandidates.sort((first, second) -> Double.compare(second.score, first.score));
+            for (Candidate candidate : trigramCandidates) {
+                if (candidates.size() == limit) {
+                    break;
+                }
+                candidates.add(candidate);
+            }
+        }
+
+        Metrics.recordLatency("SearchIndex.search", startTime);
+        return candidates;
+    }
+
+    /**
+     * Prints the best matches for a name that was not found, so that the user can try again with the right name. It
+     * is invoked by the find methods of the Customer, Restaurant and Driver classes.
+     *
+     * @param connection The Connection resource needed to load the index the first time it is searched.
+     * @param query The name that was not found.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public void suggest(Connection connection, String query) throws SQLException {
+
+        ArrayList<Candidate> candidates = search(connection, query, 5);
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        System.out.println("\"" + query + "\" was not found. Did you mean:");
+        for (Candidate candidate : candidates) {
+            System.out.println("  " + candidate.name + " (ID " + candidate.id + ")");
+        }
+
+    }
+
+    /**
+     * Reloads the name of one record after it was created or changed. Nothing is done if the index has not been
+     * loaded yet, because it will then be loaded in full when it is first searched.
+     *
+     * @param connection The Connection resource needed here for the <code>PreparedStatement</code>.
+     * @param id The unique id of the record.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public synchronized void refresh(Connection connection, int id) throws SQLException {
+
+        if (!loaded) {
+            return;
+        }
+
+        String mySQLQueryName = "SELECT " + nameExpression + " AS name FROM " + table + " WHERE " + idColumn + " = ?;";
+        PreparedStatement pstmtName = connection.prepareStatement(mySQLQueryName);
+        pstmtName.setInt(1, id);
+        ResultSet resultsName = pstmtName.executeQuery();
+        remove(id);
+        while (resultsName.next()) {
+            add(id, resultsName.getString("name"), true);
+        }
+
+        /* Closing of resources to prevent resource leaking. */
+        pstmtName.close();
+        resultsName.close();
+
+        refreshCount++;
+
+    }
+
+    /**
+     * Adds a record that has just been inserted. The insert statement must have been prepared with
+     * <code>Statement.RETURN_GENERATED_KEYS</code> so that the new id can be read from it.
+     *
+     * @param connection The Connection resource needed here for the <code>PreparedStatement</code>.
+     * @param insertStatement The executed insert statement.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public void refreshCreated(Connection connection, PreparedStatement insertStatement) throws SQLException {
+
+        ResultSet resultsId = insertStatement.getGeneratedKeys();
+        while (resultsId.next()) {
+            refresh(connection, resultsId.getInt(1));
+        }
+
+        /* Closing of resource to prevent resource leaking. */
+        resultsId.close();
+
+    }
+
+    /**
+     * Loads all names of the table with one query, if that has not been done yet. The prefix entries are appended
+     * unsorted while loading and sorted once at the end.
+     *
+     * @param connection The Connection resource needed here for the <code>PreparedStatement</code>.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    synchronized void ensureLoaded(Connection connection) throws SQLException {
+
+        if (loaded) {
+            return;
+        }
+
+        String mySQLQueryNames = "SELECT " + idColumn + " AS id, " + nameExpression + " AS name FROM " + table + ";";
+        PreparedStatement pstmtNames = connection.prepareStatement(mySQLQueryNames);
+        ResultSet resultsNames = pstmtNames.executeQuery();
+        while (resultsNames.next()) {
+            add(resultsNames.getInt("id"), resultsNames.getString("name"), false);
+        }
+
+        /* Closing of resources to prevent resource leaking. */
+        pstmtNames.close();
+        resultsNames.close();
+
+        sortPrefixEntries();
+        loaded = true;
+    }
+
+    /**
+     * Loads the index from names that were kept in a snapshot file by <code>CacheWarmer</code>, if it has not been
+     * loaded yet.
+     *
+     * @param ids The unique ids of the records.
+     * @param names The names of the records, in the same order as the ids.
+     */
+    synchronized void load(int[] ids, String[] names) {
+
+        if (loaded) {
+            return;
+        }
+
+        for (int i = 0; i < ids.length; i++) {
+            add(ids[i], names[i], false);
+        }
+        sortPrefixEntries();
+        loaded = true;
+    }
+
+    /**
+     * Loads all names from the database into a new index and swaps it in for this one. The new index is built
+     * without holding the lock, so searches carry on in the meantime. If a record was refreshed while the new index
+     * was built, the refresh might be missing from it, so it is built again.
+     *
+     * @param connection The Connection resource needed here for the <code>PreparedStatement</code>.
+     * @return True if the new index was swapped in, false if records kept being refreshed.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    boolean reload(Connection connection) throws SQLException {
+
+        for (int attempt = 0; attempt < 3; attempt++) {
+
+            int refreshesBefore;
+            synchronized (this) {
+                refreshesBefore = refreshCount;
+            }
+
+            SearchIndex fresh = new SearchIndex(table, idColumn, nameExpression);
+            fresh.ensureLoaded(connection);
+
+            synchronized (this) {
+                if (refreshCount == refreshesBefore) {
+                    slotCount = fresh.slotCount;
+                    slotIds = fresh.slotIds;
+                    slotNames = fresh.slotNames;
+                    slotKeys = fresh.slotKeys;
+                    slotTrigramCounts = fresh.slotTrigramCounts;
+                    slotsById = fresh.slotsById;
+                    prefixCount = fresh.prefixCount;
+                    prefixEntries = fresh.prefixEntries;
+                    trigrams = fresh.trigrams;
+                    sharedCounts = fresh.sharedCounts;
+                    touchedSlots = fresh.touchedSlots;
+                    loaded = true;
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Finds the record with a name, ignoring case and extra spaces. The prefix entries of whole names that equal the
+     * normalised name are found by binary search, so no name is compared one by one.
+     *
+     * @param name The name as it was typed.
+     * @return The unique id of the record, or 0 if the name is not in the index or the index has not been loaded.
+     */
+    synchronized int findExact(String name) {
+
+        String key = normalise(name);
+        if (!loaded || key.isEmpty()) {
+            return 0;
+        }
+
+        for (int i = lowerBound(key); i < prefixCount && compareEntry(prefixEntries[i], key) == 0; i++) {
+            int slot = (int) (prefixEntries[i] >>> 16);
+            if ((prefixEntries[i] & 0xFFFF) == 0 && slotNames[slot] != null) {
+                return slotIds[slot];
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns a copy of the names in the index, so that <code>CacheWarmer</code> can keep them in a snapshot file.
+     *
+     * @return The names by id, or null if the index has not been loaded.
+     */
+    synchronized LinkedHashMap<Integer, String> names() {
+
+        if (!loaded) {
+            return null;
+        }
+
+        LinkedHashMap<Integer, String> names = new LinkedHashMap<>();
+        for (int slot = 0; slot < slotCount; slot++) {
+            if (slotNames[slot] != null) {
+                names.put(slotIds[slot], slotNames[slot]);
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Adds a name in a new slot, to the prefix entries and to the trigram index.
+     *
+     * @param id The unique id of the record.
+     * @param name The name of the record.
+     * @param keepSorted Whether the prefix entries must be inserted in order, which is not needed while loading.
+     */
+    void add(int id, String name, boolean keepSorted) {
+
+        String key = normalise(name);
+        if (key.isEmpty()) {
+            return;
+        }
+
+        if (slotCount == slotIds.length) {
+            int capacity = slotCount * 2;
+            slotIds = Arrays.copyOf(slotIds, capacity);
+            slotNames = Arrays.copyOf(slotNames, capacity);
+            slotKeys = Arrays.copyOf(slotKeys, capacity);
+            slotTrigramCounts = Arrays.copyOf(slotTrigramCounts, capacity);
+            sharedCounts = Arrays.copyOf(sharedCounts, capacity);
+            touchedSlots = Arrays.copyOf(touchedSlots, capacity);
+        }
+        int slot = slotCount++;
+        slotIds[slot] = id;
+        slotNames[slot] = name;
+        slotKeys[slot] = key;
+        slotsById.put(id, slot);
+
+        /* A prefix entry for the whole name and one for every word after the first (offsets are kept to 16 bits). */
+        for (int offset = 0; offset < Math.min(key.length(), 0xFFFF); offset++) {
+            if (offset == 0 || key.charAt(offset - 1) == ' ') {
+                long entry = ((long) slot << 16) | offset;
+                int position = keepSorted ? lowerBound(key.substring(offset)) : prefixCount;
+                if (prefixCount == prefixEntries.length) {
+                    prefixEntries = Arrays.copyOf(prefixEntries, prefixCount * 2);
+                }
+                System.arraycopy(prefixEntries, position, prefixEntries, position + 1, prefixCount - position);
+                prefixEntries[position] = entry;
+                prefixCount++;
+            }
+        }
+
+        HashSet<String> nameTrigrams = trigramsOf(key);
+        for (String trigram : nameTrigrams) {
+            trigrams.computeIfAbsent(trigram, unused -> new Postings()).add(slot);
+        }
+        slotTrigramCounts[slot] = nameTrigrams.size();
+
+    }
+
+    /**
+     * Removes a name. Its prefix entries are removed straight away; its slot stays in the trigram postings but is
+     * skipped from then on because its name is cleared.
+     *
+     * @param id The unique id of the record.
+     */
+    void remove(int id) {
+
+        Integer slot = slotsById.remove(id);
+        if (slot == null) {
+            return;
+        }
+        slotNames[slot] = null;
+
+        int kept = 0;
+        for (int i = 0; i < prefixCount; i++) {
+            if ((int) (prefixEntries[i] >>> 16) != slot) {
+                prefixEntries[kept++] = prefixEntries[i];
+            }
+        }
+        prefixCount = kept;
+
+    }
+
+    /**
+     * Finds the first prefix entry that is not smaller than a key, by binary search.
+     *
+     * @param key A normalised key.
+     * @return The position of the entry, or <code>prefixCount</code> if all entries are smaller.
+     */
+    int lowerBound(String key) {
+
+        int low = 0;
+        int high = prefixCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareEntry(prefixEntries[middle], key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Compares the text of a prefix entry with a key without creating a substring.
+     *
+     * @param entry A prefix entry.
+     * @param key A normalised key.
+     * @return A negative number, zero or a positive number as the entry is smaller than, equal to or larger than
+     * the key.
+     */
+    int compareEntry(long entry, String key) {
+
+        String text = slotKeys[(int) (entry >>> 16)];
+        int offset = (int) (entry & 0xFFFF);
+        int length = Math.min(text.length() - offset, key.length());
+        for (int i = 0; i < length; i++) {
+            int difference = text.charAt(offset + i) - key.charAt(i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+
+        return (text.length() - offset) - key.length();
+    }
+
+    /**
+     * Sorts the prefix entries after a bulk load.
+     */
+    void sortPrefixEntries() {
+
+        Long[] entries = new Long[prefixCount];
+        for (int i = 0; i < prefixCount; i++) {
+            entries[i] = prefixEntries[i];
+        }
+        Arrays.sort(entries, (first, second) -> {
+            String text = slotKeys[(int) (second >>> 16)];
+            return compareEntry(first, text.substring((int) (second & 0xFFFF)));
+        });
+        for (int i = 0; i < prefixCount; i++) {
+            prefixEntries[i] = entries[i];
+        }
+
+    }
+
+    /**
+     * @param normalisedName A normalised name.
+     * @return The three-letter pieces of the name, with the start and end of the name marked by spaces.
+     */
+    static HashSet<String> trigramsOf(String normalisedName) {
+
+        HashSet<String> nameTrigrams = new HashSet<>();
+        String padded = "  " + normalisedName + " ";
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            nameTrigrams.add(padded.substring(i, i + 3));
+        }
+
+        return nameTrigrams;
+    }
+
+    /**
+     * Names are compared in lower case with single spaces, in the same way as the <code>LOWER(...) = LOWER(?)</code>
+     * comparisons in the find methods.
+     *
+     * @param name The name as stored or typed.
+     * @return The normalised name.
+     */
+    static String normalise(String name) {
+        return name == null ? "" : name.trim().toLowerCase().replaceAll("\\s+", " ");
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.TreeMap;
+
+/**
+ * Records the answers an operator types during a session and replays them later, so that a real shift can be run
+ * again to find regressions or to compare performance before and after a change. Every line of input is read through
+ * <code>nextLine</code>, which the methods of <code>UserInput</code> use instead of reading the Scanner directly.
+ * <ul>
+ *     <li><code>--record file</code> writes every answer with the time since the previous answer to the log.</li>
+ *     <li><code>--replay file</code> feeds the answers from the log back into the normal menu flow at the pace they
+ *     were recorded. With <code>--fast</code> the answers are fed back without waiting.</li>
+ * </ul>
+ * The log is a small binary file: a header, then for every answer the delay in milliseconds as an int followed by the
+ * answer in modified UTF-8. At the end of a replay the time every menu action took is reported, without the time the
+ * replay spent waiting to keep the original pace.
+ */
+public class SessionLog {
+
+    // Global variables
+
+    /* The first bytes of a log ("QFSL") and the version of the format. */
+    static final int MAGIC = 0x5146534C;
+    static final int VERSION = 1;
+
+    /* The log being written or read. At most one of them is open. */
+    static DataOutputStream recording;
+    static DataInputStream replaying;
+    static boolean fast;
+
+    /* The time of the previous answer, and the total time the replay has waited to keep the original pace. */
+    static long previousAnswerTime = System.nanoTime();
+    static long pacingNanos;
+
+    /* The menu action being replayed and the time each action took. */
+    static String currentAction;
+    static long actionStartTime;
+    static long actionPacingNanos;
+    static final TreeMap<String, LatencyHistogram> actionLatencies = new TreeMap<>();
+
+    //Methods
+
+    /**
+     * Starts recording or replaying as requested by the command line arguments. It is invoked at the start of the
+     * <code>main</code> method. Without <code>--record</code> or <code>--replay</code> nothing changes.
+     *
+     * @param args The command line arguments of the program.
+     * @throws IOException If the log cannot be opened.
+     */
+    public static void configure(String[] args) throws IOException {
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--record") && i + 1 < args.length) {
+                recording = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[++i])));
+                recording.writeInt(MAGIC);
+                recording.writeInt(VERSION);
+                recording.flush();
+                System.out.println("Recording this session to " + args[i] + ".\n");
+            } else if (args[i].equals("--replay") && i + 1 < args.length) {
+                replaying = new DataInputStream(new BufferedInputStream(new FileInputStream(args[++i])));
+                if (replaying.readInt() != MAGIC || replaying.readInt() != VERSION) {
+                    throw new IOException(args[i] + " is not a session log.");
+                }
+                System.out.println("Replaying the session in " + args[i] + ".\n");
+            } else if (args[i].equals("--fast")) {
+                fast = true;
+            }
+        }
+
+        /* The report is printed however the replay ends, including when the Exit option calls System.exit. */
+        if (replaying != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(renderReport()),
+                    "session-replay-report"));
+        }
+
+    }
+
+    /**
+     * Reads the next line of input: from the log when replaying, and from the Scanner otherwise. When recording, the
+     * line is also written to the log.
+     *
+     * @param input The Scanner instance from the <code>main</code> method.
+     * @return The line that was read.
+     */
+    public static String nextLine(Scanner input) {
+
+        if (replaying != null) {
+            return replayLine();
+        }
+
+        String line = input.nextLine();
+        if (recording != null) {
+            long now = System.nanoTime();
+            try {
+                recording.writeInt((int) Math.min(Integer.MAX_VALUE, (now - previousAnswerTime) / 1_000_000));
+                recording.writeUTF(line);
+                recording.flush();
+            } catch (IOException e) {
+                System.out.println("Error: IOException - SessionLog.nextLine(). Recording stopped.");
+                recording = null;
+            }
+            previousAnswerTime = now;
+        }
+
+        return line;
+    }
+
+    /**
+     * Marks the start of a menu action so that its time can be reported after a replay.
+     *
+     * @param action The name of the menu action.
+     */
+    public static void beginAction(String action) {
+        currentAction = action;
+        actionStartTime = System.nanoTime();
+        actionPacingNanos = pacingNanos;
+    }
+
+    /**
+     * Marks the end of the current menu action and records the time it took, less the time spent keeping pace.
+     */
+    public static void endAction() {
+
+        if (replaying == null || currentAction == null) {
+            return;
+        }
+
+        long elapsed = System.nanoTime() - actionStartTime - (pacingNanos - actionPacingNanos);
+        synchronized (actionLatencies) {
+            actionLatencies.computeIfAbsent(currentAction, name -> new LatencyHistogram()).record(elapsed);
+        }
+        currentAction = null;
+
+    }
+
+    /**
+     * Reads the next answer from the log, waits until it is due unless the replay is fast, and echoes it. At the end
+     * of the log the program exits, which prints the report.
+     *
+     * @return The answer.
+     */
+    static String replayLine() {
+
+        int delayMillis;
+        String line;
+        try {
+            delayMillis = replaying.readInt();
+            line = replaying.readUTF();
+        } catch (EOFException e) {
+            System.out.println("\nThe end of the session log was reached.");
+            System.exit(0);
+            return "";
+        } catch (IOException e) {
+            System.out.println("Error: IOException - SessionLog.replayLine(). The replay was stopped.");
+            System.exit(1);
+            return "";
+        }
+
+        if (!fast) {
+            long due = previousAnswerTime + delayMillis * 1_000_000L;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                pacingNanos += wait;
+            }
+        }
+        previousAnswerTime = System.nanoTime();
+
+        System.out.println(line);
+        return line;
+    }
+
+    /**
+     * Renders the time every menu action took during the replay, in milliseconds.
+     *
+     * @return The rendered report.
+     */
+    static String renderReport() {
+
+        StringBuilder text = new StringBuilder();
+        text.append("\nReplay Latencies Per Menu Action (ms)\n-------------------------------------\n");
+        text.append(String.format("%-30s %8s %10s %10s %10s %12s%n", "Action", "Count", "p50", "p99", "Max",
+                "Total"));
+        synchronized (actionLatencies) {
+            for (Map.Entry<String, LatencyHistogram> entry : actionLatencies.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                text.append(String.format("%-30s %8d %10.3f %10.3f %10.3f %12.3f%n", entry.getKey(),
+                        histogram.getCount(), histogram.getValueAtQuantile(0.5) / 1e6,
+                        histogram.getValueAtQuantile(0.99) / 1e6, histogram.getMax() / 1e6,
+                        histogram.getSum() / 1e6));
+            }
+        }
+
+        return text.toString();
+    }
+}
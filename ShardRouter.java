@@ -0,0 +1,353 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The shard router spreads orders and drivers over several databases by city, so that the order volume is not limited
+ * by a single MySQL instance. Every city belongs to one shard, and the orders of a restaurant and the drivers of a
+ * city are kept on the shard of that city, so that an order is captured, allocated a driver and finalised on one
+ * database.
+ * <p>
+ * Shard 0 is the main database. The other shards are given with <code>quickfood.shardUrls</code> (JDBC URLs
+ * separated by commas) and the cities of a shard with <code>quickfood.shardCities</code>, for example
+ * "Durban=1,Pietermaritzburg=1,Cape Town=2". Cities that are not listed are spread over the shards by a hash of their
+ * name. Neighbouring cities should be put on the same shard, because a driver is only ever allocated from the shard
+ * of the order.
+ * <p>
+ * Order numbers and driver ids tell their shard: the numbers of shard n start at <code>n * SHARD_RANGE + 1</code>, so
+ * an order or driver can be found without asking every shard. The order numbers of a shard are reserved in its range
+ * by the <code>OrderNumberAllocator</code>, and the auto-increment value of the <code>driver</code> table of every
+ * shard is started at the start of its range the first time the shard is used. Queries over all orders, such as the
+ * pending orders, are run on all shards in parallel and the results are merged. The <code>customer</code>,
+ * <code>restaurant</code>, <code>item</code> and <code>city_distance</code> tables are reference data that must be
+ * copied to every shard, for example by replication from the main database.
+ */
+public class ShardRouter {
+
+    // Global variables
+
+    /* The order numbers and driver ids of one shard. An INT column leaves room for 21 shards. */
+    public static final int SHARD_RANGE = 100_000_000;
+    public static final int MAX_SHARDS = 21;
+
+    /* The factories and the connections of the shards. Without shards there is only the main database. */
+    static ConnectionFactory[] shardFactories = new ConnectionFactory[1];
+    static Connection[] shardConnections = new Connection[1];
+
+    /* The shards whose driver ids were checked to start in the range of the shard (see prepareShard). */
+    static boolean[] preparedShards = new boolean[1];
+
+    /* The shard of every listed city, keyed as in DispatchEngine.cityKey. */
+    static final HashMap<String, Integer> cityShards = new HashMap<>();
+
+    /* The shard of every connection handed out by the router. Unknown connections belong to the main database. */
+    static final Map<Connection, Integer> shardsByConnection = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    /* The threads that query the shards in parallel. */
+    static ExecutorService fanOutExecutor;
+
+    //Methods
+
+    /**
+     * Sets up the shards. It is invoked in the <code>main</code> method before any connection is routed. Without
+     * shard URLs everything stays on the main database.
+     *
+     * @param mainFactory The factory of the main database, which is shard 0.
+     * @param shardURLs The JDBC URLs of the other shards separated by commas, or null.
+     * @param cityShardList The shards of cities as "city=shard" separated by commas, or null.
+     * @param username The MySQL username of the shards.
+     * @param password The MySQL password of the shards.
+     */
+    public static synchronized void configure(ConnectionFactory mainFactory, String shardURLs, String cityShardList,
+                                              String username, String password) {
+
+        ArrayList<ConnectionFactory> factories = new ArrayList<>();
+        factories.add(mainFactory);
+        if (shardURLs != null) {
+            for (String shardURL : shardURLs.split(",")) {
+                if (!shardURL.isBlank()) {
+                    factories.add(new ConnectionFactory(shardURL.trim(), username, password));
+                }
+            }
+        }
+        if (factories.size() > MAX_SHARDS) {
+            throw new IllegalArgumentException("At most " + MAX_SHARDS + " shards are supported.");
+        }
+        shardFactories = factories.toArray(new ConnectionFactory[0]);
+        shardConnections = new Connection[shardFactories.length];
+        preparedShards = new boolean[shardFactories.length];
+
+        cityShards.clear();
+        if (cityShardList != null) {
+            for (String cityShard : cityShardList.split(",")) {
+                String[] parts = cityShard.split("=");
+                if (parts.length == 2) {
+                    int shard = Integer.parseInt(parts[1].trim());
+                    if (shard < 0 || shard >= shardFactories.length) {
+                        throw new IllegalArgumentException("There is no shard " + shard + " for " + parts[0] + ".");
+                    }
+                    cityShards.put(DispatchEngine.cityKey(parts[0]), shard);
+                }
+            }
+        }
+
+        if (shardFactories.length > 1) {
+            fanOutExecutor = Executors.newFixedThreadPool(shardFactories.length, runnable -> {
+                Thread thread = new Thread(runnable, "shard-fan-out");
+                thread.setDaemon(true);
+                return thread;
+            });
+            System.out.println("Orders are spread over " + shardFactories.length + " shards.\n");
+        }
+
+    }
+
+    /**
+     * Makes a connection to the main database the connection of shard 0, so that the router hands it out instead of
+     * opening another one. It is invoked in the <code>main</code> method and by <code>CommandLine</code>.
+     *
+     * @param connection The connection to the main database.
+     */
+    public static synchronized void attach(Connection connection) {
+        shardConnections[0] = connection;
+        shardsByConnection.put(connection, 0);
+    }
+
+    /**
+     * @return The number of shards, which is 1 when the orders are not sharded.
+     */
+    public static int shardCount() {
+        return shardFactories.length;
+    }
+
+    /**
+     * @param shard The shard.
+     * @return The factory that opens connections to the shard, for background jobs that need their own connection.
+     */
+    public static ConnectionFactory shardFactory(int shard) {
+        return shardFactories[shard];
+    }
+
+    /**
+     * @param city The name of a city.
+     * @return The shard that holds the orders and drivers of the city.
+     */
+    public static int shardOfCity(String city) {
+        String cityKey = DispatchEngine.cityKey(city);
+        Integer shard = cityShards.get(cityKey);
+        return shard != null ? shard : Math.floorMod(cityKey.hashCode(), shardCount());
+    }
+
+    /**
+     * @param number An order number or a driver id.
+     * @return The shard the order or driver is kept on.
+     */
+    public static int shardOfNumber(int number) {
+        int shard = (number - 1) / SHARD_RANGE;
+        return shard > 0 && shard < shardCount() ? shard : 0;
+    }
+
+    /**
+     * @param connection A connection handed out by the router or the main connection.
+     * @return The shard the connection belongs to.
+     */
+    public static int shardOf(Connection connection) {
+        return shardsByConnection.getOrDefault(connection, 0);
+    }
+
+    /**
+     * Returns the connection of the shard of a city.
+     *
+     * @param connection The connection of the caller, which is returned if it is already on the right shard.
+     * @param city The name of the city.
+     * @return The connection to use for the orders and drivers of the city.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static Connection forCity(Connection connection, String city) throws SQLException {
+        return shardCount() == 1 ? connection : forShard(connection, shardOfCity(city));
+    }
+
+    /**
+     * Returns the connection of the shard of a restaurant's city, where its orders are kept.
+     *
+     * @param connection The connection of the caller.
+     * @param restaurantName The name of the restaurant.
+     * @return The connection to use for the orders of the restaurant.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static Connection forRestaurant(Connection connection, String restaurantName) throws SQLException {
+        if (shardCount() == 1) {
+            return connection;
+        }
+        return forCity(connection, Restaurant.findRestaurantLocation(connection, restaurantName));
+    }
+
+    /**
+     * Returns the connection of the shard an order or a driver is kept on.
+     *
+     * @param connection The connection of the caller.
+     * @param number The order number or driver id.
+     * @return The connection to use for the order or driver.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    public static Connection forNumber(Connection connection, int number) throws SQLException {
+        return shardCount() == 1 ? connection : forShard(connection, shardOfNumber(number));
+    }
+
+    /**
+     * @param connection The connection of the caller.
+     * @param shard The shard.
+     * @return The connection of the caller if it is on the shard, and the router's connection to the shard otherwise.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static Connection forShard(Connection connection, int shard) throws SQLException {
+        return shardOf(connection) == shard ? connection : shardConnection(shard);
+    }
+
+    /**
+     * Returns the router's connection to a shard, opening it the first time it is needed.
+     *
+     * @param shard The shard.
+     * @return The connection to the shard.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static synchronized Connection shardConnection(int shard) throws SQLException {
+
+        if (shardConnections[shard] == null || shardConnections[shard].isClosed()) {
+            Connection connection = shardFactories[shard].openConnection();
+            prepareShard(connection, shard);
+            shardConnections[shard] = connection;
+            shardsByConnection.put(connection, shard);
+        }
+
+        return shardConnections[shard];
+    }
+
+    /**
+     * A query that is run on every shard.
+     *
+     * @param <T> The type of the rows returned by the query.
+     */
+    public interface ShardQuery<T> {
+
+        /**
+         * @param connection The connection of one shard.
+         * @return The rows found on the shard.
+         * @throws SQLException If the underlying MySQL service fails.
+         */
+        ArrayList<T> run(Connection connection) throws SQLException;
+    }
+
+    /**
+     * Runs a query on all shards in parallel and merges the results. The results are merged in shard order, so
+     * order numbers that each shard returns in ascending order stay in ascending order. Without shards the query
+     * simply runs on the connection of the caller.
+     *
+     * @param connection The connection of the caller.
+     * @param query The query to run.
+     * @param <T> The type of the rows returned by the query.
+     * @return The rows of all shards.
+     * @throws SQLException If the query fails on any shard.
+     */
+    public static <T> ArrayList<T> fanOut(Connection connection, ShardQuery<T> query) throws SQLException {
+
+        if (shardCount() == 1) {
+            return query.run(connection);
+        }
+
+        long startTime = Metrics.startTimer();
+
+        /* Every shard's connection is used by one thread only, while the caller waits for all of them. */
+        ArrayList<Future<ArrayList<T>>> results = new ArrayList<>();
+        for (int shard = 0; shard < shardCount(); shard++) {
+            Connection shardConnection = forShard(connection, shard);
+            results.add(fanOutExecutor.submit(() -> query.run(shardConnection)));
+        }
+
+        ArrayList<T> merged = new ArrayList<>();
+        try {
+            for (Future<ArrayList<T>> result : results) {
+                merged.addAll(result.get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+            throw new SQLException("A shard query failed.", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("A shard query was interrupted.", e);
+        }
+
+        Metrics.recordLatency("ShardRouter.fanOut", startTime);
+        return merged;
+    }
+
+    /**
+     * Starts the auto-increment value of the <code>driver</code> table of a shard at the start of its range. The order
+     * numbers need no such step, because the <code>OrderNumberAllocator</code> starts the sequence of every shard in
+     * its range. The current value is read from <code>information_schema</code> first, so the ALTER TABLE, which takes
+     * a metadata lock on the table, only runs the first time a shard is used. It is also only checked once per shard
+     * while the program runs.
+     *
+     * @param connection The connection to the shard.
+     * @param shard The shard.
+     * @throws SQLException If the underlying MySQL service fails.
+     */
+    static void prepareShard(Connection connection, int shard) throws SQLException {
+
+        if (shard == 0 || preparedShards[shard]) {
+            return;
+        }
+
+        long autoIncrement = 0;
+        String mySQLQueryAutoIncrement = "SELECT COALESCE(AUTO_INCREMENT, 0) AS auto_increment FROM " +
+                "information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'driver';";
+        PreparedStatement pstmtAutoIncrement = connection.prepareStatement(mySQLQueryAutoIncrement);
+        ResultSet resultsAutoIncrement = pstmtAutoIncrement.executeQuery();
+        while (resultsAutoIncrement.next()) {
+            autoIncrement = resultsAutoIncrement.getLong("auto_increment");
+        }
+        pstmtAutoIncrement.close();
+        resultsAutoIncrement.close();
+
+        /*
+         * The range start is a number computed here, so it is safe to put into the statement. A value that is out of
+         * date in information_schema can only be too low, and InnoDB never lowers the value below the highest id.
+         */
+        if (autoIncrement <= (long) shard * SHARD_RANGE) {
+            String mySQLQueryRange = "ALTER TABLE driver AUTO_INCREMENT = " + (shard * SHARD_RANGE + 1) + ";";
+            PreparedStatement pstmtRange = connection.prepareStatement(mySQLQueryRange);
+            pstmtRange.executeUpdate();
+            pstmtRange.close();
+        }
+        preparedShards[shard] = true;
+
+    }
+
+    /**
+     * Closes the router's connections to the shards other than the main database.
+     */
+    public static synchronized void closeAll() {
+        for (int shard = 1; shard < shardConnections.length; shard++) {
+            if (shardConnections[shard] != null) {
+                try {
+                    shardConnections[shard].close();
+                } catch (SQLException e) {
+                    System.out.println("Error: SQLException - ShardRouter.closeAll()");
+                }
+                shardConnections[shard] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,388 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * The statement tracer wraps the Connection from the <code>main</code> method so that every SQL statement is measured
+ * without changing any of the classes that use the Connection. For every combination of calling method and SQL text
+ * it keeps the number of executions, the number of bound parameters, the execution time and the number of rows
+ * fetched. Statements that are slower than the threshold are also written to <code>slow-queries.log</code>.
+ * <p>
+ * The tracer is kept cheap enough to leave switched on:
+ * <ul>
+ *     <li>The calling method is found for every statement, so a SQL text that is issued from several methods is
+ *     counted exactly under each of them. The stack is walked lazily and only up to the first frame outside the
+ *     JDBC, tracing and routing code, which is a few frames deep, and the statistics are found by SQL text and then
+ *     by method without building a key.</li>
+ *     <li>A list of parameters such as <code>IN (?, ?, ?)</code> is counted as <code>IN (?...)</code> whatever its
+ *     length, and at most <code>MAX_STATEMENTS</code> statements are kept. Any further statements are counted
+ *     together on one line.</li>
+ *     <li>Counting the rows of a result set only adds a counter to <code>next</code>. It can be switched off by
+ *     setting <code>quickfood.countRows</code> to false, so that reading a column does not go through a proxy.</li>
+ * </ul>
+ * The slow query threshold can be changed with the system property <code>quickfood.slowQueryMillis</code>.
+ */
+public class StatementTracer {
+
+    // Global variables
+
+    public static final String SLOW_QUERY_LOG = "slow-queries.log";
+    public static final long SLOW_QUERY_MILLIS = Long.getLong("quickfood.slowQueryMillis", 200);
+    public static final boolean COUNT_ROWS = !"false".equals(System.getProperty("quickfood.countRows"));
+    public static final int MAX_STATEMENTS = 500;
+
+    /*
+     * The statistics per statement, keyed by the SQL text and then by the class and method name of the calling
+     * method.
+     */
+    static final ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, StatementStats>>>
+            statistics = new ConcurrentHashMap<>();
+
+    /* The number of statements kept in the statistics. */
+    static final AtomicInteger statementCount = new AtomicInteger();
+
+    /* The statistics of the statements beyond MAX_STATEMENTS. */
+    static final StatementStats otherStatements = new StatementStats("(other)", "(statements beyond the first " +
+            MAX_STATEMENTS + ")");
+
+    /* A list of two or more parameters in brackets, such as the list of an IN condition. */
+    static final Pattern PARAMETER_LIST = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+
+    /* Used to find the method that issued a statement. */
+    static final StackWalker STACK_WALKER = StackWalker.getInstance();
+
+    /**
+     * The statistics of one SQL statement issued from one calling method.
+     */
+    public static class StatementStats {
+
+        //Attributes
+        String operation;
+        String sql;
+        LongAdder executions = new LongAdder();
+        LongAdder bindCount = new LongAdder();
+        LongAdder rowsFetched = new LongAdder();
+        LongAdder slowExecutions = new LongAdder();
+        LatencyHistogram latency = new LatencyHistogram();
+
+        /**
+         * The constructor for the StatementStats class.
+         *
+         * @param operation The method that issued the statement.
+         * @param sql The SQL text of the statement.
+         */
+        public StatementStats(String operation, String sql) {
+            this.operation = operation;
+            this.sql = sql;
+        }
+    }
+
+    //Methods
+
+    /**
+     * Wraps a Connection so that every statement prepared on it is traced, and executed under the
+     * <code>RetryPolicy</code> of its database. All other calls are passed straight through to the wrapped
+     * Connection.
+     *
+     * @param connection The Connection to wrap.
+     * @return A Connection that traces its statements.
+     */
+    public static Connection trace(Connection connection) {
+
+        String url;
+        try {
+            url = connection.getMetaData().getURL();
+        } catch (SQLException e) {
+            url = "unknown";
+        }
+
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new ConnectionHandler(connection, RetryPolicy.breakerFor(url)));
+    }
+
+    /**
+     * A method to display the traced statements to the user, with the statements that issued the most executions
+     * first. It is invoked from the <code>showMetrics</code> menu option in the main class.
+     */
+    public static void displayTrace() {
+
+        ArrayList<StatementStats> sortedStatistics = new ArrayList<>();
+        for (ConcurrentHashMap<String, ConcurrentHashMap<String, StatementStats>> sqlStatistics : statistics.values()) {
+            for (ConcurrentHashMap<String, StatementStats> classStatistics : sqlStatistics.values()) {
+                sortedStatistics.addAll(classStatistics.values());
+            }
+        }
+        sortedStatistics.sort(Comparator.comparingLong((StatementStats stats) -> stats.executions.sum()).reversed());
+
+        if (otherStatements.executions.sum() > 0) {
+            sortedStatistics.add(otherStatements);
+        }
+
+        System.out.println("Statement Trace\n---------------");
+        System.out.println(String.format("%-35s %8s %6s %10s %10s %8s  %s", "Operation", "Count", "Binds",
+                "Rows", "p99 (ms)", "Slow", "SQL"));
+        for (StatementStats stats : sortedStatistics) {
+            long executions = stats.executions.sum();
+            System.out.println(String.format("%-35s %8d %6d %10s %10.3f %8d  %s", stats.operation, executions,
+                    executions == 0 ? 0 : stats.bindCount.sum() / executions,
+                    COUNT_ROWS ? String.valueOf(stats.rowsFetched.sum()) : "-",
+                    stats.latency.getValueAtQuantile(0.99) / 1e6, stats.slowExecutions.sum(), stats.sql));
+        }
+        System.out.println();
+
+    }
+
+    /**
+     * Finds the statistics of a statement that is being prepared or executed.
+     *
+     * @param sql The SQL text of the statement.
+     * @return The statistics of the statement under its calling method, or those of the other statements if
+     * <code>MAX_STATEMENTS</code> statements are already kept.
+     */
+    static StatementStats statsFor(String sql) {
+
+        /* The regular expression is only needed for SQL texts with a list of parameters. */
+        String normalisedSql = sql.contains("?,") ? PARAMETER_LIST.matcher(sql).replaceAll("(?...)") : sql;
+
+        Optional<StackWalker.StackFrame> caller = findCallingFrame();
+        String className = caller.map(StackWalker.StackFrame::getClassName).orElse("unknown");
+        String methodName = caller.map(StackWalker.StackFrame::getMethodName).orElse("unknown");
+
+        /* The statements seen before are found without allocating, which is the case for nearly every statement. */
+        ConcurrentHashMap<String, ConcurrentHashMap<String, StatementStats>> sqlStatistics =
+                statistics.get(normalisedSql);
+        ConcurrentHashMap<String, StatementStats> classStatistics = sqlStatistics == null ? null
+                : sqlStatistics.get(className);
+        StatementStats stats = classStatistics == null ? null : classStatistics.get(methodName);
+        if (stats != null) {
+            return stats;
+        }
+        if (statementCount.get() >= MAX_STATEMENTS) {
+            return otherStatements;
+        }
+
+        return statistics.computeIfAbsent(normalisedSql, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(className, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(methodName, key -> {
+                    statementCount.incrementAndGet();
+                    return new StatementStats(className + "." + methodName, normalisedSql);
+                });
+    }
+
+    /**
+     * Finds the method outside the JDBC, tracing and routing code that issued a statement, for example
+     * "Order.printInvoice". The frames of <code>ReadRouter</code> are skipped too, because with a replica every
+     * statement is prepared through its routing handler.
+     *
+     * @return The frame of the caller, or empty if every frame belongs to that code.
+     */
+    static Optional<StackWalker.StackFrame> findCallingFrame() {
+
+        return STACK_WALKER.walk(frames -> frames
+                .filter(frame -> !frame.getClassName().startsWith("StatementTracer")
+                        && !frame.getClassName().startsWith("jdk.")
+                        && !frame.getClassName().startsWith("java.")
+                        && !frame.getClassName().startsWith("ReadRouter")
+                        && !frame.getClassName().contains("$Proxy"))
+                .findFirst());
+    }
+
+    /**
+     * Records one execution of a statement and writes it to the slow query log if it exceeded the threshold.
+     *
+     * @param stats The statistics of the statement.
+     * @param elapsedNanos The execution time in nanoseconds.
+     * @param bindCount The number of parameters bound for the execution.
+     */
+    static void recordExecution(StatementStats stats, long elapsedNanos, int bindCount) {
+
+        stats.executions.increment();
+        stats.bindCount.add(bindCount);
+        stats.latency.record(elapsedNanos);
+        Metrics.countStatement();
+
+        if (elapsedNanos >= SLOW_QUERY_MILLIS * 1_000_000) {
+            stats.slowExecutions.increment();
+            writeSlowQuery(stats, elapsedNanos, bindCount);
+        }
+
+    }
+
+    /**
+     * Appends a slow statement to the slow query log.
+     *
+     * @param stats The statistics of the statement.
+     * @param elapsedNanos The execution time in nanoseconds.
+     * @param bindCount The number of parameters bound for the execution.
+     */
+    static synchronized void writeSlowQuery(StatementStats stats, long elapsedNanos, int bindCount) {
+        try (FileWriter writer = new FileWriter(SLOW_QUERY_LOG, true)) {
+            writer.write(LocalDateTime.now() + " " + (elapsedNanos / 1_000_000) + "ms " + stats.operation + " binds="
+                    + bindCount + " " + stats.sql + "\n");
+        } catch (IOException e) {
+            System.out.println("Error: IOException - writeSlowQuery()");
+        }
+    }
+
+    /**
+     * A utility method that invokes a method on the wrapped object and unwraps the exception it throws.
+     *
+     * @param target The wrapped object.
+     * @param method The method to invoke.
+     * @param args The arguments of the invocation.
+     * @return The return value of the method.
+     * @throws Throwable The exception thrown by the method.
+     */
+    static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Intercepts the calls on the Connection that create statements.
+     */
+    static class ConnectionHandler implements InvocationHandler {
+
+        //Attributes
+        Connection connection;
+        RetryPolicy.CircuitBreaker breaker;
+
+        /**
+         * @param connection The Connection that is wrapped.
+         * @param breaker The circuit breaker of the Connection's database.
+         */
+        ConnectionHandler(Connection connection, RetryPolicy.CircuitBreaker breaker) {
+            this.connection = connection;
+            this.breaker = breaker;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            Object result = StatementTracer.invoke(connection, method, args);
+
+            /* Prepared statements are traced per SQL text. Plain statements get their SQL text when executed. */
+            if (result instanceof PreparedStatement && method.getName().equals("prepareStatement")) {
+                StatementStats stats = statsFor((String) args[0]);
+                return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                        new Class<?>[]{PreparedStatement.class},
+                        new StatementHandler((Statement) result, stats, breaker));
+            } else if (result instanceof Statement && method.getName().equals("createStatement")) {
+                return Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[]{Statement.class},
+                        new StatementHandler((Statement) result, null, breaker));
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Intercepts the calls on a statement to count bound parameters and to time executions.
+     */
+    static class StatementHandler implements InvocationHandler {
+
+        //Attributes
+        Statement statement;
+        StatementStats stats;
+        RetryPolicy.CircuitBreaker breaker;
+        int bindCount;
+
+        /**
+         * @param statement The statement that is wrapped.
+         * @param stats The statistics of the statement, or <code>null</code> for a plain statement.
+         * @param breaker The circuit breaker of the statement's database.
+         */
+        StatementHandler(Statement statement, StatementStats stats, RetryPolicy.CircuitBreaker breaker) {
+            this.statement = statement;
+            this.stats = stats;
+            this.breaker = breaker;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            String name = method.getName();
+
+            /* Parameter setters have the parameter index as first argument and a value as second. */
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                bindCount = Math.max(bindCount, (Integer) args[0]);
+                return StatementTracer.invoke(statement, method, args);
+            }
+            if (name.equals("clearParameters")) {
+                bindCount = 0;
+            }
+            if (!name.startsWith("execute")) {
+                return StatementTracer.invoke(statement, method, args);
+            }
+
+            /* Plain statements are traced when they are executed, because only then is the SQL text known. */
+            StatementStats executionStats = stats;
+            if (executionStats == null) {
+                executionStats = statsFor(args != null && args.length > 0 ? (String) args[0] : "batch");
+            }
+
+            /* The time includes any retries, because that is how long the caller waited. */
+            long startTime = System.nanoTime();
+            Object result = RetryPolicy.execute(breaker, statement, name,
+                    () -> StatementTracer.invoke(statement, method, args));
+            recordExecution(executionStats, System.nanoTime() - startTime, bindCount);
+
+            /* Result sets are wrapped to count the rows that are fetched, unless that has been switched off. */
+            if (COUNT_ROWS && result instanceof ResultSet) {
+                return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                        new ResultSetHandler((ResultSet) result, executionStats));
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Intercepts <code>next</code> on a result set to count the rows that are fetched.
+     */
+    static class ResultSetHandler implements InvocationHandler {
+
+        //Attributes
+        ResultSet resultSet;
+        StatementStats stats;
+
+        /**
+         * @param resultSet The result set that is wrapped.
+         * @param stats The statistics of the statement that produced the result set.
+         */
+        ResultSetHandler(ResultSet resultSet, StatementStats stats) {
+            this.resultSet = resultSet;
+            this.stats = stats;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            Object result = StatementTracer.invoke(resultSet, method, args);
+            if (method.getName().equals("next") && Boolean.TRUE.equals(result)) {
+                stats.rowsFetched.increment();
+            }
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Renders an invoice in the free-form text layout that is written to <code>invoice.txt</code> for the customer.
+ */
+public class TextInvoiceRenderer implements InvoiceRenderer {
+
+    /**
+     * Writes the invoice in the layout determined by the fictional company.
+     *
+     * @param invoice The invoice to write.
+     * @param buffer The buffer to write to.
+     */
+    @Override
+    public void render(Invoice invoice, InvoiceBuffer buffer) {
+
+        buffer.append("Invoice\n\n");
+        buffer.append("Order Number: ").append(invoice.orderNumber).append('\n');
+        buffer.append("Customer: ").append(invoice.customerName).append('\n');
+        buffer.append("Email: ").append(invoice.customerEmail).append('\n');
+        buffer.append("Phone number: ").append(invoice.customerPhoneNumber).append('\n');
+        buffer.append("Location: ").append(invoice.customerCity).append('\n');
+        buffer.append("\n\n");
+        buffer.append("You have ordered the following from ").append(invoice.restaurantName).append(" in ")
+                .append(invoice.restaurantCity).append(":\n");
+        buffer.append("\n\n");
+
+        /* A for loop because there is likely more than one item on the order. */
+        for (Invoice.Line line : invoice.lines) {
+            buffer.append(line.itemQuantity).append(" x ").append(line.itemName).append(" (R")
+                    .appendAmount(line.itemPrice).append(") Special Instructions: ")
+                    .append(line.preparationInstructions).append('\n');
+        }
+
+        buffer.append("\n\n");
+        buffer.append("Total: ").appendAmount(invoice.totalCost).append('\n');
+        buffer.append(invoice.driverName).append(" is nearest to the restaurant and so he will be delivering your " +
+                "order at:\n");
+        buffer.append(invoice.customerAddress).append('\n');
+        buffer.append("\n\n");
+        buffer.append("If you need to contact the restaurant, their number is ")
+                .append(invoice.restaurantPhoneNumber).append('\n');
+        buffer.append("\n\n");
+
+    }
+}
@@ -16,7 +16,7 @@ public class UserInput {
         System.out.println(prompt);
 
         /* Return of the read line using the Scanner instance. */
-        return input.nextLine();
+        return SessionLog.nextLine(input);
 
     }
 
@@ -43,7 +43,7 @@ public class UserInput {
 
             /*A try/catch block to handle exceptions where the user enters non-numeric values.*/
             try {
-                userIntegerInput = Integer.parseInt(input.nextLine());
+                userIntegerInput = Integer.parseInt(SessionLog.nextLine(input));
                 break;
             } catch (NumberFormatException e) {
                 System.out.println("You entered non-numeric input. Please only enter numeric input as indicated.");
@@ -54,33 +54,33 @@ public class UserInput {
 
     }
 
-    /** A generic method used to get double input from the user. It ensures that a double is entered by looping until
-     * a  double has been entered (this is controlled by a try/catch block).
+    /** A generic method used to get an amount of money from the user. It ensures that an amount is entered by looping
+     * until a decimal amount has been entered (this is controlled by a try/catch block).
      * @param prompt The prompt indicates to the user what information is required as input.
      * @param input The Scanner instance from the <code>main</code> method, needed to read user input.
-     * @return A Double from user input.
+     * @return The amount from user input in cents (see <code>Money</code>).
      */
-    public static double readDouble(String prompt, Scanner input) {
+    public static long readAmount(String prompt, Scanner input) {
         /*
          * Declaration of the return variable outside the while loop so that it can be accessed in the return
          * statement.
          */
-        double userDoubleInput;
+        long userAmountInput;
 
-        /* A while loop that will continue running until a double is entered as input. */
+        /* A while loop that will continue running until an amount is entered as input. */
         while (true) {
 
             System.out.println(prompt);
 
-            /*A try/catch block to handle exceptions where the user enters decimal values.*/
+            /*A try/catch block to handle exceptions where the user enters non-decimal values.*/
             try {
-                userDoubleInput = Double.parseDouble(input.nextLine());
+                userAmountInput = Money.parse(SessionLog.nextLine(input));
                 break;
             } catch (NumberFormatException e) {
                 System.out.println("You entered non-decimal input. Please only enter decimal input as indicated.");
             }
         }
 
-        return userDoubleInput;
+        return userAmountInput;
     }
 }
\ No newline at end of file